@@ -17,11 +17,12 @@ package com.ikanow.aleph2.analytics.spark.assets;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.Level;
@@ -55,6 +56,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import com.ikanow.aleph2.analytics.spark.data_model.SparkTopologyConfigBean;
+import com.ikanow.aleph2.analytics.spark.utils.SparkJsEnginePool;
 import com.ikanow.aleph2.analytics.spark.utils.SparkTechnologyUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
@@ -79,6 +81,7 @@ public class SparkJsInterpreterTopology {
 	// rdd.filter(function(x, yy) x + yy, [y]) to use "y" from the enclosing scope
 	// I like the idea of having _2s.f(..., bind[]) for each of
 	// https://spark.apache.org/docs/1.6.0/api/java/org/apache/spark/api/java/function/package-tree.html (.f0, .f2, etc)
+	// (For now, per-record transforms are supported via _a2.map_partitions(rdd, fn), which ships fn as source and runs it in SparkJsEnginePool)
 	
 	// Params:
 	
@@ -120,8 +123,7 @@ public class SparkJsInterpreterTopology {
 				final JavaPairRDD<Object, Tuple2<Long, IBatchRecord>> all_inputs = inputs.values().stream().reduce((acc1, acc2) -> acc1.union(acc2)).orElse(null);				
 
 				// Load globals:
-				ScriptEngineManager manager = new ScriptEngineManager();
-				ScriptEngine engine = manager.getEngineByName("JavaScript");
+				final ScriptEngine engine = SparkJsEnginePool.createEngine();
 				engine.put("_a2_global_context", context);
 				engine.put("_a2_global_bucket", context.getBucket().get());
 				engine.put("_a2_global_job", context.getJob().get());
@@ -134,13 +136,12 @@ public class SparkJsInterpreterTopology {
 				engine.put("_a2_spark_inputs_all", all_inputs);
 				engine.put("_a2_spark_context", jsc);
 				
-				Stream.concat(config.uploaded_lang_files().stream(), Stream.of("aleph2_sparkjs_globals_before.js", ""))
+				// The bootstrap scripts (uploaded language files + globals) are also shipped to the executors, where they are
+				// compiled once per JVM by SparkJsEnginePool and shared by all the JS record functions created via _a2.map_partitions 
+				final List<String> bootstrap_scripts = Stream.concat(config.uploaded_lang_files().stream(), Stream.of("aleph2_sparkjs_globals_before.js"))
 					.flatMap(Lambdas.flatWrap_i(import_path -> {
 						try {
-							if (import_path.equals("")) { // also import the user script just before here
-								return js_script;
-							}
-							else return IOUtils.toString(SparkJsInterpreterTopology.class.getClassLoader().getResourceAsStream(import_path), "UTF-8");
+							return IOUtils.toString(SparkJsInterpreterTopology.class.getClassLoader().getResourceAsStream(import_path), "UTF-8");
 						}
 						catch (Throwable e) {
 							bucket_logger.optional().ifPresent(l -> l.log(Level.ERROR, 
@@ -155,6 +156,10 @@ public class SparkJsInterpreterTopology {
 							throw e; // ignored
 						}
 					}))
+					.collect(Collectors.toList());
+				engine.put("_a2_global_bootstrap_scripts", bootstrap_scripts);
+				
+				Stream.concat(bootstrap_scripts.stream(), Stream.of(js_script)) // (user script last)
 					.forEach(Lambdas.wrap_consumer_i(script -> {
 						try {
 							engine.eval(script);
@@ -172,7 +177,6 @@ public class SparkJsInterpreterTopology {
 							throw e; // ignored
 						}
 					}));
-					;
 				
 				jsc.stop();
 				
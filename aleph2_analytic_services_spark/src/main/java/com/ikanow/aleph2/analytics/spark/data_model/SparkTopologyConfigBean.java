@@ -37,6 +37,8 @@ public class SparkTopologyConfigBean implements Serializable {
 	public static final String DEFAULT_CLUSTER_MODE = "yarn-cluster";
 	public static final String JOB_CONFIG_KEY = "spark.aleph2_job_config";
 	public static final String STREAMING_BATCH_INTERVAL = "spark.aleph2_streaming_batch_interval";			
+	public static final long DEFAULT_STREAMING_MAX_RATE_PER_PARTITION = 10000L;
+	public static final long DEFAULT_STREAMING_LAG_WARNING_MS = 60000L;
 	
 	public enum SparkType { r, python, jvm, js }
 	
@@ -114,6 +116,28 @@ public class SparkTopologyConfigBean implements Serializable {
 	 
 	public List<EnrichmentControlMetadataBean> enrich_pipeline() { return Optional.ofNullable(enrich_pipeline).orElse(Collections.emptyList()); }	
 	
+	/** For streaming jobs, whether spark should adapt the ingest rate of the kafka inputs to the processing rate (default: true)
+	 * @return
+	 */
+	public Boolean streaming_backpressure_enabled() { return Optional.ofNullable(streaming_backpressure_enabled).orElse(true); }
+	
+	/** For streaming jobs, the max number of messages per second read from each kafka partition (default: 10000, 0 for unlimited)
+	 *  - this bounds the size of the first micro-batches after an outage, before backpressure has any rate estimates
+	 * @return
+	 */
+	public Long streaming_max_rate_per_partition() { return Optional.ofNullable(streaming_max_rate_per_partition).orElse(DEFAULT_STREAMING_MAX_RATE_PER_PARTITION); }
+	
+	/** For streaming jobs, per input overrides (by job input name) of streaming_max_rate_per_partition
+	 *  (spark applies a single max rate to all the direct kafka streams in a job, so the lowest of the values in use is applied) 
+	 * @return
+	 */
+	public Map<String, Long> streaming_input_max_rates() { return Optional.ofNullable(streaming_input_max_rates).orElse(Collections.emptyMap()); }
+	
+	/** For streaming jobs, micro-batches that are delayed by more than this are logged as warnings in the bucket logs (default: 60s)
+	 * @return
+	 */
+	public Long streaming_lag_warning_ms() { return Optional.ofNullable(streaming_lag_warning_ms).orElse(DEFAULT_STREAMING_LAG_WARNING_MS); }
+	
 	private String cluster_mode;
 	
 	private SparkType language;
@@ -133,4 +157,9 @@ public class SparkTopologyConfigBean implements Serializable {
 	private List<String> external_lang_files;
 	
 	private List<EnrichmentControlMetadataBean> enrich_pipeline;
+	
+	private Boolean streaming_backpressure_enabled;
+	private Long streaming_max_rate_per_partition;
+	private Map<String, Long> streaming_input_max_rates;
+	private Long streaming_lag_warning_ms;
 }
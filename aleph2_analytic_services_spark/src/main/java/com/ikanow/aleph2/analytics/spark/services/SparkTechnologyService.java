@@ -23,6 +23,7 @@ import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
@@ -53,6 +54,7 @@ import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadJobBean
 import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadTriggerBean.AnalyticThreadComplexTriggerBean;
 import com.ikanow.aleph2.data_model.objects.data_import.BucketDiffBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean.MasterEnrichmentType;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
 import com.ikanow.aleph2.data_model.objects.shared.ProcessingTestSpecBean;
@@ -62,6 +64,7 @@ import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.FutureUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils;
+import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.Patterns;
 import com.ikanow.aleph2.data_model.utils.ProcessUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
@@ -408,6 +411,17 @@ public class SparkTechnologyService implements IAnalyticsTechnologyService, IExt
 		final Set<String> requested_files = spark_job_config.uploaded_files().stream().map(s -> SparkTechnologyUtils.transformFromPath(s)).collect(Collectors.toSet());
 		final Set<String> requested_lang_files = spark_job_config.uploaded_lang_files().stream().map(s -> SparkTechnologyUtils.transformFromPath(s)).collect(Collectors.toSet());
 		
+		// Streaming jobs: add the kafka rate control settings (anything explicitly set in spark_config takes precedence)
+		final Map<String, String> spark_job_options = Stream.concat(
+					(MasterEnrichmentType.streaming == job_to_start.analytic_type())
+						? SparkTechnologyUtils.getStreamingRateControlConfig(spark_job_config, 
+								Optionals.ofNullable(job_to_start.inputs()).stream().map(i -> i.name()).filter(n -> null != n).collect(Collectors.toList())
+								).entrySet().stream().map(kv -> Tuples._2T(kv.getKey(), kv.getValue()))
+						: Stream.<Tuple2<String, String>>empty()
+					,
+					spark_job_config.spark_config().entrySet().stream().map(kv -> Tuples._2T(kv.getKey().replace(":", "."), kv.getValue())))
+				.collect(Collectors.toMap(t2 -> t2._1(), t2 -> t2._2(), (v1, v2) -> v2));
+		
 		final ProcessBuilder pb =
 				SparkTechnologyUtils.createSparkJob(
 						bucket_signature,
@@ -428,7 +442,7 @@ public class SparkTechnologyService implements IAnalyticsTechnologyService, IExt
 						spark_job_config.external_files(),
 						spark_job_config.external_lang_files(),
 						Optional.ofNullable(spark_job_config.job_config()).filter(__ -> spark_job_config.include_job_config_in_spark_config()),
-						spark_job_config.spark_config().entrySet().stream().map(kv -> Tuples._2T(kv.getKey().replace(":", "."), kv.getValue())).collect(Collectors.toMap(t2 -> t2._1(), t2 -> t2._2())), 
+						spark_job_options, 
 						spark_job_config.system_config()
 						);
 
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.ikanow.aleph2.analytics.spark.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+import jdk.nashorn.api.scripting.JSObject;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+
+import org.apache.spark.api.java.function.FlatMapFunction;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Lambdas;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** A per-JVM pool of pre-initialized JavaScript (Nashorn) engines, used to run JS record transforms on the spark executors
+ *  The bootstrap and user scripts are compiled exactly once per JVM (keyed by a hash of their contents) and then evaluated
+ *  into any number of independent script contexts, which are borrowed/returned by tasks so they are re-used across partitions
+ * @author Alex
+ */
+public class SparkJsEnginePool {
+	public static final String RECORD_FUNCTION_NAME = "_a2_record_fn";
+	public static final String JS_TO_JSON_FUNCTION_NAME = "_a2_global_js_to_json";
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+	protected static final Cache<String, SparkJsEnginePool> _pools = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.HOURS).build();
+
+	protected final ScriptEngine _engine;
+	protected final List<CompiledScript> _compiled_scripts;
+	protected final ConcurrentLinkedQueue<ScriptContext> _idle_contexts = new ConcurrentLinkedQueue<>();
+	protected final int _max_idle;
+	protected final AtomicInteger _contexts_created = new AtomicInteger(0);
+
+	/** Creates a new JS engine - used both on the driver and by the executor-side pools
+	 * @return
+	 */
+	public static ScriptEngine createEngine() {
+		return new ScriptEngineManager().getEngineByName("JavaScript");
+	}
+
+	/** Returns the hash used to share pools across the partitions/tasks in a JVM
+	 * @param scripts - the ordered list of scripts that make up the pool's bootstrap and user code
+	 * @return
+	 */
+	public static String getScriptHash(final List<String> scripts) {
+		final Hasher hasher = Hashing.sha256().newHasher();
+		scripts.forEach(script -> hasher.putInt(script.length()).putString(script, StandardCharsets.UTF_8));
+		return hasher.hash().toString();
+	}
+
+	/** Returns the (per-JVM) pool for the specified scripts, compiling them if this is the first time they've been seen
+	 * @param scripts - the ordered list of scripts that make up the pool's bootstrap and user code
+	 * @return
+	 */
+	public static SparkJsEnginePool get(final List<String> scripts) {
+		return get(getScriptHash(scripts), scripts);
+	}
+
+	/** Returns the (per-JVM) pool for the specified scripts, compiling them if this is the first time they've been seen
+	 * @param script_hash - the hash of the scripts (see getScriptHash)
+	 * @param scripts - the ordered list of scripts that make up the pool's bootstrap and user code
+	 * @return
+	 */
+	public static SparkJsEnginePool get(final String script_hash, final List<String> scripts) {
+		return Lambdas.get(Lambdas.wrap_u(() -> _pools.get(script_hash, () -> new SparkJsEnginePool(scripts, Runtime.getRuntime().availableProcessors()))));
+	}
+
+	/** User c'tor, compiles the scripts (doesn't create any contexts until they are needed)
+	 * @param scripts - the ordered list of scripts that make up the pool's bootstrap and user code
+	 * @param max_idle - the max number of initialized contexts to keep around once returned
+	 * @throws ScriptException
+	 */
+	protected SparkJsEnginePool(final List<String> scripts, final int max_idle) throws ScriptException {
+		_engine = createEngine();
+		_max_idle = max_idle;
+		final Compilable compiler = (Compilable) _engine;
+		final List<CompiledScript> mutable_compiled = new ArrayList<>(scripts.size());
+		for (String script: scripts) {
+			mutable_compiled.add(compiler.compile(script));
+		}
+		_compiled_scripts = Collections.unmodifiableList(mutable_compiled);
+	}
+
+	/** Returns an initialized script context (all scripts already evaluated into its own global scope) - must be returned via returnContext
+	 * @return
+	 * @throws ScriptException
+	 */
+	public ScriptContext borrowContext() throws ScriptException {
+		final ScriptContext idle = _idle_contexts.poll();
+		if (null != idle) {
+			return idle;
+		}
+		final Bindings bindings = _engine.createBindings();
+		bindings.put("_a2_global_mapper", _mapper);
+		final ScriptContext context = new SimpleScriptContext();
+		context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+		for (CompiledScript compiled_script: _compiled_scripts) {
+			compiled_script.eval(context);
+		}
+		_contexts_created.incrementAndGet();
+		return context;
+	}
+
+	/** Returns a context to the pool once the task has finished with it
+	 *  (not if the user code threw while using it, since its global scope might have been left in any state - just drop it instead)
+	 * @param context
+	 */
+	public void returnContext(final ScriptContext context) {
+		if (_idle_contexts.size() < _max_idle) {
+			_idle_contexts.offer(context);
+		}
+	}
+
+	/** The number of script contexts (ie bootstrap/user script evaluations) this pool has performed
+	 * @return
+	 */
+	public int getContextsCreated() {
+		return _contexts_created.get();
+	}
+
+	/** Calls the record function (RECORD_FUNCTION_NAME) defined in the context and converts the return value to a list of JSON objects
+	 *  (null/undefined to filter out the record, a single object, or an array of objects)
+	 * @param context - a borrowed context
+	 * @param json - the input record
+	 * @return
+	 */
+	public static List<JsonNode> callRecordFunction(final ScriptContext context, final JsonNode json) {
+		final JSObject record_fn = (JSObject) context.getAttribute(RECORD_FUNCTION_NAME, ScriptContext.ENGINE_SCOPE);
+		final JSObject to_json = (JSObject) context.getAttribute(JS_TO_JSON_FUNCTION_NAME, ScriptContext.ENGINE_SCOPE);
+		final Object ret_val = record_fn.call(null, json);
+
+		if ((null == ret_val) || ScriptObjectMirror.isUndefined(ret_val)) {
+			return Collections.emptyList();
+		}
+		else if ((ret_val instanceof JSObject) && ((JSObject) ret_val).isArray()) {
+			return ((JSObject) ret_val).values().stream().filter(o -> (null != o) && !ScriptObjectMirror.isUndefined(o)).map(o -> convertToJson(to_json, o)).collect(Collectors.toList());
+		}
+		else return Collections.singletonList(convertToJson(to_json, ret_val));
+	}
+
+	/** Utility - converts a returned JS value into JSON (fast path for objects that are already JSON)
+	 * @param to_json
+	 * @param o
+	 * @return
+	 */
+	protected static JsonNode convertToJson(final JSObject to_json, final Object o) {
+		return (o instanceof JsonNode)
+				? (JsonNode) o
+				: (JsonNode) to_json.call(null, o);
+	}
+
+	/** A serializable mapPartitions function that runs a JS record transform using the per-JVM engine pool
+	 *  (only the script text is serialized - the engines/compiled scripts are created on the executor the first time the hash is seen)
+	 * @author Alex
+	 */
+	public static class JsRecordFunction implements FlatMapFunction<Iterator<Tuple2<Long, IBatchRecord>>, Tuple2<Long, IBatchRecord>> {
+		private static final long serialVersionUID = -2207404151963010335L;
+
+		protected final List<String> _scripts;
+		protected final String _script_hash;
+
+		/** User c'tor
+		 * @param bootstrap_scripts - the scripts to evaluate before the function (eg uploaded language files, globals)
+		 * @param js_function - the source of a JS function (json) -> null|json|[json]
+		 */
+		public JsRecordFunction(final List<String> bootstrap_scripts, final String js_function) {
+			final List<String> mutable_scripts = new ArrayList<>(bootstrap_scripts);
+			mutable_scripts.add("var " + RECORD_FUNCTION_NAME + " = " + js_function + ";");
+			_scripts = Collections.unmodifiableList(mutable_scripts);
+			_script_hash = getScriptHash(_scripts); //(compute on the driver so executors don't need to re-hash per task)
+		}
+
+		@Override
+		public Iterable<Tuple2<Long, IBatchRecord>> call(final Iterator<Tuple2<Long, IBatchRecord>> it) throws Exception {
+			final SparkJsEnginePool pool = SparkJsEnginePool.get(_script_hash, _scripts);
+			return () -> new JsRecordIterator(pool, it);
+		}
+	}
+	
+	/** Lazily runs the JS record function over a partition, so the output is streamed rather than collected in memory
+	 *  The context is borrowed when the first record is processed and returned once the input is exhausted, or discarded if the function throws
+	 * @author Alex
+	 */
+	public static class JsRecordIterator implements Iterator<Tuple2<Long, IBatchRecord>> {
+		protected final SparkJsEnginePool _pool;
+		protected final Iterator<Tuple2<Long, IBatchRecord>> _input;
+		protected ScriptContext _context = null;
+		protected boolean _done = false;
+		protected Long _current_key = null;
+		protected Iterator<JsonNode> _current_output = Collections.emptyIterator();
+		
+		/** User c'tor
+		 * @param pool - the pool to borrow a context from
+		 * @param input - the partition
+		 */
+		protected JsRecordIterator(final SparkJsEnginePool pool, final Iterator<Tuple2<Long, IBatchRecord>> input) {
+			_pool = pool;
+			_input = input;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (!_current_output.hasNext()) {
+				if (_done) {
+					return false;
+				}
+				else if (!_input.hasNext()) {
+					_done = true;
+					if (null != _context) {
+						_pool.returnContext(_context);
+						_context = null;
+					}
+					return false;
+				}
+				final Tuple2<Long, IBatchRecord> t2 = _input.next();
+				try {
+					if (null == _context) {
+						_context = _pool.borrowContext();
+					}
+					_current_output = callRecordFunction(_context, t2._2().getJson()).iterator();
+					_current_key = t2._1();
+				}
+				catch (Exception e) { // (don't return the context, the user code might have left it in any state)
+					_done = true;
+					_context = null;
+					throw new RuntimeException(ErrorUtils.getLongForm("Error running JS record function: {0}", e), e);
+				}
+			}
+			return true;
+		}
+		
+		@Override
+		public Tuple2<Long, IBatchRecord> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return Tuples._2T(_current_key, new BatchRecordUtils.JsonBatchRecord(_current_output.next()));
+		}
+	}
+}
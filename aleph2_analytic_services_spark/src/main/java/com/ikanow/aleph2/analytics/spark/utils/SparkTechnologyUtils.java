@@ -22,6 +22,7 @@ import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +35,7 @@ import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import kafka.serializer.DefaultDecoder;
 import kafka.serializer.StringDecoder;
 
 import org.apache.hadoop.conf.Configuration;
@@ -473,7 +475,31 @@ public class SparkTechnologyUtils {
 			;			
 	}
 	
+	/** Returns the spark config params that control the ingest rate of the streaming (kafka) inputs
+	 *  (these have to be set before the streaming context is created, so are passed into spark-submit)
+	 * @param job_config - the spark job config
+	 * @param input_names - the names of the job's inputs (used to select any per input rate overrides)
+	 * @return
+	 */
+	public static Map<String, String> getStreamingRateControlConfig(final SparkTopologyConfigBean job_config, final Collection<String> input_names) {
+		final Map<String, String> mutable_config = new HashMap<>();
+		mutable_config.put("spark.streaming.backpressure.enabled", job_config.streaming_backpressure_enabled().toString());
+		
+		// (spark only supports a single max rate per job, so use the most restrictive of the ones that apply)
+		final long max_rate = Stream.concat(Stream.of(job_config.streaming_max_rate_per_partition()), 
+												input_names.stream().map(name -> job_config.streaming_input_max_rates().get(name)).filter(rate -> null != rate))
+											.filter(rate -> rate > 0)
+											.mapToLong(rate -> rate)
+											.min()
+											.orElse(0L);
+		if (max_rate > 0) {
+			mutable_config.put("spark.streaming.kafka.maxRatePerPartition", Long.toString(max_rate));
+		}
+		return mutable_config;
+	}
+	
 	/** Builds a map of streaming spark inputs
+	 *  (also registers a listener that writes per batch throughput/lag metrics to the bucket logger)
 	 * @param context
 	 * @param maybe_test_spec
 	 * @param streaming_context
@@ -490,19 +516,25 @@ public class SparkTechnologyUtils {
 		final AnalyticThreadJobBean job = context.getJob().get();
 		
 		final Multimap<String, JavaPairDStream<String, Tuple2<Long, IBatchRecord>>> mutable_builder = HashMultimap.create();
+		final Map<Integer, String> mutable_stream_names = new HashMap<>();
 		
 	    transformInputBean(Optionals.ofNullable(job.inputs()).stream(), maybe_test_spec)
 	    	.filter(job_input -> !exclude_names.contains(job_input.name()))
 	    	.forEach(job_input -> {
 	    		final List<String> topics = context.getInputTopics(context.getBucket(), job, job_input);
-	    		final JavaPairInputDStream<String, String> k_stream = 
-	    				KafkaUtils.createDirectStream(streaming_context, String.class, String.class, 
-	    						StringDecoder.class, StringDecoder.class, 
+	    		final JavaPairInputDStream<String, byte[]> k_stream = 
+	    				KafkaUtils.createDirectStream(streaming_context, String.class, byte[].class, 
+	    						StringDecoder.class, DefaultDecoder.class, // (decode the JSON straight from the bytes, saves building an intermediate string)
 	    						com.ikanow.aleph2.distributed_services.utils.KafkaUtils.getProperties(), 
 	    						ImmutableSet.<String>builder().addAll(topics).build());
 	    		
+	    		mutable_stream_names.put(k_stream.inputDStream().id(), job_input.name());
 	    		mutable_builder.put(job_input.name(), k_stream.mapToPair(t2 -> Tuples._2T(t2._1(), Tuples._2T(0L, new BatchRecordUtils.JsonBatchRecord(_mapper.readTree(t2._2()))))));
 	    	});
+	    
+	    final SparkTopologyConfigBean job_config = BeanTemplateUtils.from(Optional.ofNullable(job.config()).orElse(Collections.emptyMap()), SparkTopologyConfigBean.class).get();
+	    streaming_context.addStreamingListener(new StreamingMetricsListener(context.getLogger(context.getBucket()), 
+	    		Optional.ofNullable(job.name()).orElse("no_name"), mutable_stream_names, job_config.streaming_lag_warning_ms()));
 		
 		return mutable_builder;
 	}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.ikanow.aleph2.analytics.spark.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.spark.streaming.scheduler.BatchInfo;
+import org.apache.spark.streaming.scheduler.StreamInputInfo;
+import org.apache.spark.streaming.scheduler.StreamingListener;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchCompleted;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchSubmitted;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverError;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverStopped;
+
+import scala.collection.JavaConverters;
+
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IBucketLogger;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** Driver-side listener that writes per-micro-batch throughput and lag metrics for the streaming inputs to the bucket logger
+ *  (lag is the batch's scheduling delay, ie how long it waited behind earlier batches - this grows when the job can't keep up)
+ * @author Alex
+ */
+public class StreamingMetricsListener implements StreamingListener {
+
+	protected final IBucketLogger _logger;
+	protected final String _job_name;
+	protected final Map<Integer, String> _stream_names;
+	protected final long _lag_warning_ms;
+
+	/** User c'tor
+	 * @param logger - the bucket logger to write to
+	 * @param job_name - the job name (for the log subsystem/command)
+	 * @param stream_names - a map of the spark input stream ids to the job input names
+	 * @param lag_warning_ms - batches delayed by more than this are logged as warnings (else debug)
+	 */
+	public StreamingMetricsListener(final IBucketLogger logger, final String job_name, final Map<Integer, String> stream_names, final long lag_warning_ms) {
+		_logger = logger;
+		_job_name = job_name;
+		_stream_names = stream_names;
+		_lag_warning_ms = lag_warning_ms;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.spark.streaming.scheduler.StreamingListener#onBatchCompleted(org.apache.spark.streaming.scheduler.StreamingListenerBatchCompleted)
+	 */
+	@Override
+	public void onBatchCompleted(final StreamingListenerBatchCompleted batch_completed) {
+		final BatchInfo info = batch_completed.batchInfo();
+		final long num_records = info.numRecords();
+		final long scheduling_delay_ms = getDelay(info.schedulingDelay());
+		final long processing_delay_ms = getDelay(info.processingDelay());
+
+		final Map<String, Object> mutable_details = new LinkedHashMap<>();
+		mutable_details.put("batch_time", info.batchTime().milliseconds());
+		mutable_details.put("num_records", num_records);
+		mutable_details.put("scheduling_delay_ms", scheduling_delay_ms);
+		mutable_details.put("processing_delay_ms", processing_delay_ms);
+		mutable_details.put("records_per_sec", (processing_delay_ms > 0) ? (1000.0*num_records)/processing_delay_ms : 0.0);
+		JavaConverters.mapAsJavaMapConverter(info.streamIdToInputInfo()).asJava().forEach((id, input_info) -> {
+			final String name = _stream_names.getOrDefault((Integer) id, String.valueOf(id));
+			mutable_details.put("num_records." + name, ((StreamInputInfo) input_info).numRecords());
+		});
+
+		final boolean lagging = scheduling_delay_ms > _lag_warning_ms;
+		_logger.log(lagging ? Level.WARN : Level.DEBUG,
+				ErrorUtils.lazyBuildMessage(!lagging, () -> StreamingMetricsListener.class.getSimpleName(),
+						() -> _job_name + ".onBatchCompleted",
+						() -> null,
+						() -> ErrorUtils.get("Streaming batch for job {0}: records={1} scheduling_delay_ms={2} processing_delay_ms={3}", _job_name, num_records, scheduling_delay_ms, processing_delay_ms),
+						() -> mutable_details));
+	}
+
+	/** Utility - converts a scala Option[Long] delay to a long (-1 if not present)
+	 * @param maybe_delay
+	 * @return
+	 */
+	protected static long getDelay(final scala.Option<Object> maybe_delay) {
+		return maybe_delay.isDefined() ? ((Number) maybe_delay.get()).longValue() : -1L;
+	}
+
+	@Override
+	public void onBatchStarted(final StreamingListenerBatchStarted batch_started) {
+	}
+
+	@Override
+	public void onBatchSubmitted(final StreamingListenerBatchSubmitted batch_submitted) {
+	}
+
+	@Override
+	public void onReceiverError(final StreamingListenerReceiverError receiver_error) {
+	}
+
+	@Override
+	public void onReceiverStarted(final StreamingListenerReceiverStarted receiver_started) {
+	}
+
+	@Override
+	public void onReceiverStopped(final StreamingListenerReceiverStopped receiver_stopped) {
+	}
+}
@@ -9,6 +9,7 @@
 // _a2_spark_inputs - Multimap<String, JavaPairRDD<Object, Tuple2<Long, IBatchRecord>>>
 // _a2_spark_inputs_all - JavaPairRDD<Object, Tuple2<Long, IBatchRecord>>
 // _a2_spark_context - org.apache.spark.api.java.JavaSparkContext
+// _a2_global_bootstrap_scripts - List<String> (the uploaded language files and this file, shipped to the executors by _a2_global_map_partitions)
 
 // Global methods
 function _a2_global_js_to_json(json) {
@@ -47,6 +48,14 @@ function _a2_global_list_to_js(jlist) {
 	return Java.from(jlist);
 }
 
+// Runs fn(json) -> null|json|[json] over each record of the (pair) RDD, using the executors' per-JVM pool of pre-compiled engines
+// (fn is shipped as source, so it can't reference variables from the enclosing scope)
+var _a2_global_js_record_function = Java.type("com.ikanow.aleph2.analytics.spark.utils.SparkJsEnginePool$JsRecordFunction");
+function _a2_global_map_partitions(rdd, fn) {
+	var values = (rdd instanceof org.apache.spark.api.java.JavaPairRDD) ? rdd.values() : rdd;
+	return values.mapPartitions(new _a2_global_js_record_function(_a2_global_bootstrap_scripts, String(fn)));
+}
+
 //TODO (make this more sophisticated)
 function _a2_bucket_log(level, msg) {
 	var success = (level != org.apache.logging.log4j.Level.ERROR) && (level != org.apache.logging.log4j.Level.WARN);
@@ -70,6 +79,7 @@ var Aleph2Api = Java.extend( Java.type("java.io.Serializable"),
 	externalEmit: function() { return _a2_global_emit_external; },
 	to_json: function() { return _a2_global_to_json; },
 	list_to_js: function() { return _a2_global_list_to_js; },
+	map_partitions: function(rdd, fn) { return _a2_global_map_partitions(rdd, fn); },
 	//TODO (until bucket logger is serializable, don't allow anywhere)
 	//logger: function() { return _a2_bucket_logger; },
 	log_trace: function(msg) { _a2_bucket_log(org.apache.logging.log4j.Level.TRACE, msg); },
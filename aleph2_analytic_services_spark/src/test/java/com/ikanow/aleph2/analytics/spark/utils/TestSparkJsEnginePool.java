@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.ikanow.aleph2.analytics.spark.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/**
+ * @author Alex
+ *
+ */
+public class TestSparkJsEnginePool {
+	final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	@Test
+	public void test_enginePool() throws Exception {
+		final List<String> scripts = Arrays.asList("var _test_global = 'test';", "function " + SparkJsEnginePool.RECORD_FUNCTION_NAME + "(json) { return json; }");
+
+		// Same scripts -> same pool, compiled once
+		final SparkJsEnginePool pool = SparkJsEnginePool.get(scripts);
+		assertTrue(pool == SparkJsEnginePool.get(Arrays.asList(scripts.get(0), scripts.get(1))));
+		assertFalse(pool == SparkJsEnginePool.get(Arrays.asList(scripts.get(0), scripts.get(1) + " ")));
+
+		// Contexts are re-used once returned
+		final ScriptContext context1 = pool.borrowContext();
+		final ScriptContext context2 = pool.borrowContext();
+		assertFalse(context1 == context2);
+		assertEquals("test", context1.getAttribute("_test_global", ScriptContext.ENGINE_SCOPE));
+		assertEquals(2, pool.getContextsCreated());
+		pool.returnContext(context1);
+		assertTrue(context1 == pool.borrowContext());
+		assertEquals(2, pool.getContextsCreated());
+
+		// Contexts have independent global scopes
+		context2.setAttribute("_test_global", "changed", ScriptContext.ENGINE_SCOPE);
+		assertEquals("test", context1.getAttribute("_test_global", ScriptContext.ENGINE_SCOPE));
+	}
+
+	@Test
+	public void test_jsRecordFunction() throws Exception {
+		final String globals = IOUtils.toString(SparkJsEnginePool.class.getClassLoader().getResourceAsStream("aleph2_sparkjs_globals_before.js"), "UTF-8");
+		final String js_function = "function(json) { var j = _a2_global_to_json(json); if (j.filter) return null; else if (j.split) return [ { a: 1 }, { a: 2 } ]; else { j.b = 'x'; return j; } }";
+
+		final SparkJsEnginePool.JsRecordFunction record_fn = new SparkJsEnginePool.JsRecordFunction(Arrays.asList(globals), js_function);
+
+		final List<Tuple2<Long, IBatchRecord>> input = Arrays.asList(
+				Tuples._2T(1L, new BatchRecordUtils.JsonBatchRecord(_mapper.readTree("{\"filter\":true}"))),
+				Tuples._2T(2L, new BatchRecordUtils.JsonBatchRecord(_mapper.readTree("{\"split\":true}"))),
+				Tuples._2T(3L, new BatchRecordUtils.JsonBatchRecord(_mapper.readTree("{\"c\":\"y\"}")))
+				);
+
+		final List<String> output = StreamSupport.stream(record_fn.call(input.iterator()).spliterator(), false)
+				.map(t2 -> t2._1() + ":" + t2._2().getJson().toString())
+				.collect(Collectors.toList());
+
+		assertEquals(Arrays.asList("2:{\"a\":1}", "2:{\"a\":2}", "3:{\"c\":\"y\",\"b\":\"x\"}"), output);
+
+		// Second partition re-uses the pool and the context
+		final SparkJsEnginePool pool = SparkJsEnginePool.get(record_fn._script_hash, record_fn._scripts);
+		assertEquals(1, pool.getContextsCreated());
+		assertEquals(3L, StreamSupport.stream(record_fn.call(input.iterator()).spliterator(), false).count());
+		assertEquals(1, pool.getContextsCreated());
+		
+		// The output is streamed: nothing runs until the first record is asked for
+		final Iterator<Tuple2<Long, IBatchRecord>> lazy_it = record_fn.call(input.iterator()).iterator();
+		final ScriptContext idle_context = pool.borrowContext();
+		assertEquals(1, pool.getContextsCreated());
+		final Tuple2<Long, IBatchRecord> first = lazy_it.next();
+		assertEquals(2L, first._1().longValue());
+		assertEquals("{\"a\":1}", first._2().getJson().toString());
+		assertEquals(2, pool.getContextsCreated()); // (the idle context was borrowed above, so it needed a new one)
+		pool.returnContext(idle_context);
+	}
+	
+	@Test
+	public void test_jsRecordFunction_errors() throws Exception {
+		final String globals = IOUtils.toString(SparkJsEnginePool.class.getClassLoader().getResourceAsStream("aleph2_sparkjs_globals_before.js"), "UTF-8");
+		final String js_function = "function(json) { var j = _a2_global_to_json(json); if (j.error) throw 'test error'; return j; }";
+
+		final SparkJsEnginePool.JsRecordFunction record_fn = new SparkJsEnginePool.JsRecordFunction(Arrays.asList(globals), js_function);
+		final SparkJsEnginePool pool = SparkJsEnginePool.get(record_fn._script_hash, record_fn._scripts);
+		
+		final List<Tuple2<Long, IBatchRecord>> input = Arrays.asList(
+				Tuples._2T(1L, new BatchRecordUtils.JsonBatchRecord(_mapper.readTree("{\"c\":\"y\"}"))),
+				Tuples._2T(2L, new BatchRecordUtils.JsonBatchRecord(_mapper.readTree("{\"error\":true}")))
+				);
+		
+		final Iterator<Tuple2<Long, IBatchRecord>> it = record_fn.call(input.iterator()).iterator();
+		assertEquals(1L, it.next()._1().longValue());
+		try {
+			it.next();
+			fail("Should have errored");
+		}
+		catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("test error"));
+		}
+		assertFalse(it.hasNext());
+		assertEquals(1, pool.getContextsCreated());
+		
+		// The context the function threw in isn't returned to the pool
+		pool.borrowContext();
+		assertEquals(2, pool.getContextsCreated());
+	}
+	
+	static JavaSparkContext _spark = null;
+	
+	@AfterClass
+	public static void tearDown() {
+		if (null != _spark) {
+			_spark.stop();
+		}
+	}
+	
+	@Test
+	public void test_mapPartitions_localSpark() throws Exception {
+		_spark = new JavaSparkContext(new SparkConf().setMaster("local[2]").setAppName("TestSparkJsEnginePool").set("spark.driver.allowMultipleContexts", "true"));
+		
+		// Set up the driver-side engine the way SparkJsInterpreterTopology does
+		final String globals = IOUtils.toString(SparkJsEnginePool.class.getClassLoader().getResourceAsStream("aleph2_sparkjs_globals_before.js"), "UTF-8");
+		final ScriptEngine engine = SparkJsEnginePool.createEngine();
+		engine.put("_a2_global_mapper", _mapper);
+		engine.put("_a2_global_bootstrap_scripts", Arrays.asList(globals));
+		engine.eval(globals);
+		
+		final JavaPairRDD<Object, Tuple2<Long, IBatchRecord>> input = _spark.parallelizePairs(Arrays.asList(
+				Tuples._2T((Object)"k1", Tuples._2T(1L, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(_mapper.readTree("{\"id\":1}")))),
+				Tuples._2T((Object)"k2", Tuples._2T(2L, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(_mapper.readTree("{\"id\":2,\"filter\":true}")))),
+				Tuples._2T((Object)"k3", Tuples._2T(3L, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(_mapper.readTree("{\"id\":3}"))))
+				), 2);
+		engine.put("test_input", input);
+		
+		// Pair RDD -> values, function shipped as source to the executors
+		{
+			@SuppressWarnings("unchecked")
+			final JavaRDD<Tuple2<Long, IBatchRecord>> output = (JavaRDD<Tuple2<Long, IBatchRecord>>) engine.eval(
+					"_a2.map_partitions(test_input, function(json) { var j = _a2_global_to_json(json); if (j.filter) return null; j.b = 'x'; return j; })");
+			
+			final List<String> results = output.map(t2 -> t2._1() + ":" + t2._2().getJson().toString()).collect().stream().sorted().collect(Collectors.toList());
+			assertEquals(Arrays.asList("1:{\"id\":1,\"b\":\"x\"}", "3:{\"id\":3,\"b\":\"x\"}"), results);
+		}
+		// Plain RDD, and a function that throws fails the job
+		{
+			engine.put("test_input_values", input.values().union(_spark.parallelize(Arrays.asList(
+					Tuples._2T(4L, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(_mapper.readTree("{\"id\":4,\"error\":true}")))))));
+			@SuppressWarnings("unchecked")
+			final JavaRDD<Tuple2<Long, IBatchRecord>> output = (JavaRDD<Tuple2<Long, IBatchRecord>>) engine.eval(
+					"_a2.map_partitions(test_input_values, function(json) { var j = _a2_global_to_json(json); if (j.error) throw 'test error ' + j.id; return j; })");
+			try {
+				output.count();
+				fail("Should have errored");
+			}
+			catch (Exception e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("Error running JS record function"));
+			}
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.ikanow.aleph2.analytics.spark.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.ikanow.aleph2.analytics.spark.data_model.SparkTopologyConfigBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+/**
+ * @author Alex
+ *
+ */
+public class TestSparkTechnologyUtils {
+
+	@Test
+	public void test_getStreamingRateControlConfig() {
+		// Defaults
+		{
+			final SparkTopologyConfigBean config = BeanTemplateUtils.build(SparkTopologyConfigBean.class).done().get();
+			final Map<String, String> res = SparkTechnologyUtils.getStreamingRateControlConfig(config, Collections.emptyList());
+			assertEquals("true", res.get("spark.streaming.backpressure.enabled"));
+			assertEquals(Long.toString(SparkTopologyConfigBean.DEFAULT_STREAMING_MAX_RATE_PER_PARTITION), res.get("spark.streaming.kafka.maxRatePerPartition"));
+		}
+		// Per input overrides: most restrictive one in use wins
+		{
+			final SparkTopologyConfigBean config = BeanTemplateUtils.build(SparkTopologyConfigBean.class)
+					.with(SparkTopologyConfigBean::streaming_backpressure_enabled, false)
+					.with(SparkTopologyConfigBean::streaming_max_rate_per_partition, 500L)
+					.with(SparkTopologyConfigBean::streaming_input_max_rates, ImmutableMap.of("in1", 200L, "in2", 100L))
+				.done().get();
+			final Map<String, String> res = SparkTechnologyUtils.getStreamingRateControlConfig(config, Arrays.asList("in1", "in3"));
+			assertEquals("false", res.get("spark.streaming.backpressure.enabled"));
+			assertEquals("200", res.get("spark.streaming.kafka.maxRatePerPartition"));
+		}
+		// Unlimited
+		{
+			final SparkTopologyConfigBean config = BeanTemplateUtils.build(SparkTopologyConfigBean.class)
+					.with(SparkTopologyConfigBean::streaming_max_rate_per_partition, 0L)
+				.done().get();
+			final Map<String, String> res = SparkTechnologyUtils.getStreamingRateControlConfig(config, Arrays.asList("in1"));
+			assertFalse(res.containsKey("spark.streaming.kafka.maxRatePerPartition"));
+		}
+	}
+}
@@ -23,6 +23,8 @@ import java.util.Optional;
 public class V1DocDbConfigBean {
 
 	final public static String PROPERTIES_ROOT = "V1DocumentDbService";
+	final public static long DEFAULT_BYTES_PER_SPLIT = 64L*1024L*1024L;
+	final public static int DEFAULT_QUERY_BATCH_SIZE = 500;
 	
 	public V1DocDbConfigBean() {}
 	
@@ -42,7 +44,19 @@ public class V1DocDbConfigBean {
 	 */
 	public String infinite_config_home() { return Optional.ofNullable(infinite_config_home).orElse("/opt/infinite-home/config"); }
 	
+	/** The target amount of data (in bytes) read by each hadoop input split, estimated from the collection stats
+	 *  (unless the job's filter sets :docsPerSplit; <= 0 to use the legacy fixed split sizes)
+	 * @return
+	 */
+	public long bytes_per_split() { return Optional.ofNullable(bytes_per_split).orElse(DEFAULT_BYTES_PER_SPLIT); }
+	
+	/** The number of documents that CRUD service cursors fetch from the DB at a time
+	 * @return
+	 */
+	public int query_batch_size() { return Optional.ofNullable(query_batch_size).orElse(DEFAULT_QUERY_BATCH_SIZE); }
 	
 	private String mongodb_connection;
 	private String infinite_config_home;
+	private Long bytes_per_split;
+	private Integer query_batch_size;
 }
@@ -16,36 +16,160 @@
 package com.ikanow.aleph2.v1.document_db.hadoop.assets;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.bson.BSONObject;
 
 import scala.Tuple2;
+import scala.Tuple3;
 
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
-import com.ikanow.aleph2.data_model.utils.Lambdas;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.v1.document_db.utils.JsonNodeBsonUtils;
+import com.ikanow.aleph2.v1.document_db.utils.V1DocumentDbHadoopUtils;
+import com.ikanow.infinit.e.data_model.custom.InfiniteMongoConfigUtil;
 import com.ikanow.infinit.e.data_model.custom.InfiniteMongoInputFormat;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.hadoop.input.MongoInputSplit;
+import com.mongodb.hadoop.util.MongoConfigUtil;
 
 /** Extends the old v1 code and places a v2 facade around it
  * @author Alex
  */
 public class Aleph2V1InputFormat extends InfiniteMongoInputFormat {
+	/** If set, the number of splits/docs per split is calculated from the collection stats so each split reads roughly this many bytes
+	 */
+	public static final String BYTES_PER_SPLIT = "aleph2.v1.bytes.per.split";
+	
+	/** If > 1, the record reader's cursor fetches documents from the DB in batches of this size (instead of the driver default)
+	 */
+	public static final String CURSOR_BATCH_SIZE = "aleph2.v1.cursor.batch.size";
+	
+	/** If true, the record reader returns the same (mutable) record object for every document, instead of allocating a new one each time
+	 *  - only safe if the mapper doesn't hold onto records after asking for the next one (the usual hadoop contract for Writables)
+	 */
+	public static final String REUSE_VALUES = "aleph2.v1.reuse.values";
+	
+	/** If true (the default), jobs over multiple communities are split up per community, with each community's share of max.splits
+	 *  proportional to its size (see V1DocumentDbHadoopUtils.calculateCommunitySplitSizes)
+	 */
+	public static final String SPLIT_BY_COMMUNITY = "aleph2.v1.split.by.community";
+	
+	/** The maximum number of threads used to plan the per community splits (default 4) - they share the DB with whatever else is running
+	 */
+	public static final String SPLIT_PLANNING_THREADS = "aleph2.v1.split.planning.threads";
+	public static final int DEFAULT_SPLIT_PLANNING_THREADS = 4;
 
 	/* (non-Javadoc)
 	 * @see org.elasticsearch.hadoop.mr.EsInputFormat#getSplits(org.apache.hadoop.mapreduce.JobContext)
 	 */
 	@Override
 	public List<InputSplit> getSplits(JobContext context) {
+		final Configuration config = context.getConfiguration();
+		final long bytes_per_split = config.getLong(BYTES_PER_SPLIT, 0L);
+		
+		// (record limits apply to the whole job, so can't be split up by community)
+		if (config.getBoolean(SPLIT_BY_COMMUNITY, true) && (MongoConfigUtil.getLimit(config) <= 0)
+				&& (V1DocumentDbHadoopUtils.getQueryCommunityIds(MongoConfigUtil.getQuery(config)).size() > 1))
+		{
+			final Optional<List<InputSplit>> community_splits = getCommunitySplits(context, bytes_per_split);
+			if (community_splits.isPresent()) {
+				return community_splits.get();
+			}
+		}
+		if (bytes_per_split > 0) {
+			final Tuple2<Integer, Integer> split_sizes = V1DocumentDbHadoopUtils.calculateSplitSizes(
+					getInputCollection(config), 
+					MongoConfigUtil.getQuery(config), Optional.ofNullable(MongoConfigUtil.getFields(config)), 
+					bytes_per_split, InfiniteMongoConfigUtil.getMaxSplits(config));
+			
+			InfiniteMongoConfigUtil.setMaxSplits(config, split_sizes._1());
+			InfiniteMongoConfigUtil.setMaxDocsPerSplit(config, split_sizes._2());
+		}
+		return getSplitsForConfig(context);
+	}
+	
+	/** Runs the v1 splitter (overridden in tests)
+	 * @param context - the job context, containing the (possibly per community) query and split sizes
+	 * @return the splits
+	 */
+	protected List<InputSplit> getSplitsForConfig(final JobContext context) {
 		return super.getSplits(context);
 	}
 	
+	/** Returns the input collection (overridden in tests)
+	 * @param config
+	 * @return
+	 */
+	protected DBCollection getInputCollection(final Configuration config) {
+		return MongoConfigUtil.getCollection(MongoConfigUtil.getInputURI(config));
+	}
+	
+	/** Plans the splits for each community in a multi-community job separately (in parallel, on a bounded pool), and combines them
+	 * @param context
+	 * @param bytes_per_split - if <= 0, the existing max.docs.per.split is used
+	 * @return the combined splits, or Optional.empty() if the job should be split up as a whole instead (eg too many communities)
+	 */
+	protected Optional<List<InputSplit>> getCommunitySplits(final JobContext context, final long bytes_per_split) {
+		final Configuration config = context.getConfiguration();
+		final int max_splits = InfiniteMongoConfigUtil.getMaxSplits(config);
+		final DBCollection collection = getInputCollection(config);
+		final DBObject query = MongoConfigUtil.getQuery(config);
+		
+		// (not the common fork/join pool, the per community DB calls block)
+		final int num_threads = Math.max(1, Math.min(config.getInt(SPLIT_PLANNING_THREADS, DEFAULT_SPLIT_PLANNING_THREADS), 
+														V1DocumentDbHadoopUtils.getQueryCommunityIds(query).size()));
+		final ExecutorService executor = Executors.newFixedThreadPool(num_threads);
+		try {
+			final List<Tuple3<DBObject, Integer, Integer>> plan = V1DocumentDbHadoopUtils.calculateCommunitySplitSizes(collection, 
+					query, Optional.ofNullable(MongoConfigUtil.getFields(config)), 
+					bytes_per_split, InfiniteMongoConfigUtil.getMaxDocsPerSplit(config), max_splits, executor);
+			
+			if (plan.isEmpty()) {
+				return Optional.empty();
+			}
+			final List<CompletableFuture<List<InputSplit>>> community_splits = plan.stream()
+					.map(community_plan -> CompletableFuture.supplyAsync(() -> {
+						final Configuration community_config = new Configuration(config);
+						MongoConfigUtil.setQuery(community_config, community_plan._1());
+						InfiniteMongoConfigUtil.setMaxSplits(community_config, community_plan._2());
+						InfiniteMongoConfigUtil.setMaxDocsPerSplit(community_config, community_plan._3());
+						return getSplitsForConfig(new JobContextImpl(community_config, context.getJobID()));
+					}, executor))
+					.collect(Collectors.toList());
+			
+			final List<InputSplit> splits = community_splits.stream()
+					.flatMap(f -> f.join().stream())
+					.collect(Collectors.toList());
+			
+			// (the v1 splitter should stay within each community's budget, but just in case)
+			return (splits.size() <= max_splits) ? Optional.of(splits) : Optional.empty();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.ikanow.infinit.e.data_model.custom.InfiniteMongoInputFormat#createRecordReader(org.apache.hadoop.mapreduce.InputSplit, org.apache.hadoop.mapreduce.TaskAttemptContext)
 	 */
@@ -59,23 +183,55 @@ public class Aleph2V1InputFormat extends InfiniteMongoInputFormat {
 	 * @author Alex
 	 */
 	public static class V1DocumentDbRecordReader extends RecordReader<String, Tuple2<Long, IBatchRecord>> {
+		private static final Logger _logger = LogManager.getLogger();
+		private static final AtomicBoolean _batch_size_error_logged = new AtomicBoolean(false);
+		
 		final protected RecordReader<Object, BSONObject> _delegate;
+		protected int _cursor_batch_size;
+		protected boolean _reuse_values;
+		
+		protected Tuple2<Long, IBatchRecord> _current_value = null;
+		
+		// (value re-use mode)
+		protected JsonNodeBsonUtils.ObjectNodeWrapper _reusable_node = null;
+		protected IBatchRecord _reusable_record = null;
 		
 		/** User c'tor
 		 * @param delegate
 		 */
 		V1DocumentDbRecordReader(final RecordReader<Object, BSONObject> delegate) {
+			this(delegate, 0, false);
+		}
+		
+		/** User c'tor (the settings can be overridden from the configuration by initialize)
+		 * @param delegate
+		 * @param cursor_batch_size - see CURSOR_BATCH_SIZE
+		 * @param reuse_values - see REUSE_VALUES
+		 */
+		V1DocumentDbRecordReader(final RecordReader<Object, BSONObject> delegate, final int cursor_batch_size, final boolean reuse_values) {
 			_delegate = delegate;
+			_cursor_batch_size = cursor_batch_size;
+			_reuse_values = reuse_values;
 		}
 		
 		@Override
 		public void initialize(InputSplit split, TaskAttemptContext context)
 				throws IOException, InterruptedException {
 			_delegate.initialize(split, context);
+			
+			if (null != context) {
+				final Configuration config = context.getConfiguration();
+				_cursor_batch_size = config.getInt(CURSOR_BATCH_SIZE, _cursor_batch_size);
+				_reuse_values = config.getBoolean(REUSE_VALUES, _reuse_values);
+			}
+			if ((_cursor_batch_size > 1) && (split instanceof MongoInputSplit)) {
+				setCursorBatchSize((MongoInputSplit) split, _cursor_batch_size);
+			}
 		}
 
 		@Override
 		public boolean nextKeyValue() throws IOException, InterruptedException {
+			_current_value = null;
 			return _delegate.nextKeyValue();
 		}
 
@@ -94,13 +250,49 @@ public class Aleph2V1InputFormat extends InfiniteMongoInputFormat {
 			return _delegate.getCurrentKey().toString();
 		}
 
+		/* (non-Javadoc)
+		 * @see org.apache.hadoop.mapreduce.RecordReader#getCurrentValue()
+		 * Returns (the size of the document as BSON, the document as JSON) 
+		 */
 		@Override
 		public Tuple2<Long, IBatchRecord> getCurrentValue() throws IOException,
 				InterruptedException {
-			return Lambdas.wrap_u(() -> {
-				return Tuples._2T(0L, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(JsonNodeBsonUtils.from(_delegate.getCurrentValue())));
-			}).get();
+			if (null == _current_value) { // (once per document, however many times this is called)
+				final BSONObject bson = _delegate.getCurrentValue();
+				final long size = JsonNodeBsonUtils.getBsonSize(bson);
+				if (_reuse_values) {
+					if (null == _reusable_node) {
+						_reusable_node = new JsonNodeBsonUtils.ObjectNodeWrapper(JsonNodeFactory.instance, bson);
+						_reusable_record = new BatchRecordUtils.JsonBatchRecord(_reusable_node);
+					}
+					else {
+						_reusable_node.reset(bson);
+					}
+					_current_value = Tuples._2T(size, _reusable_record);
+				}
+				else {
+					_current_value = Tuples._2T(size, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(JsonNodeBsonUtils.from(bson)));
+				}
+			}
+			return _current_value;
 		}
 		
+		/** Makes the split's cursor fetch documents from the DB in batches of the given size (best effort)
+		 * @param split
+		 * @param batch_size
+		 */
+		protected static void setCursorBatchSize(final MongoInputSplit split, final int batch_size) {
+			try {
+				// Ugh, getCursor is protected (it's created lazily and cached in the split, so this is the record reader's cursor)
+				final Method m = MongoInputSplit.class.getDeclaredMethod("getCursor");
+				m.setAccessible(true);
+				((DBCursor) m.invoke(split)).batchSize(batch_size);
+			}
+			catch (Exception e) { // (only log the first failure, it will be the same for every split)
+				if (_batch_size_error_logged.compareAndSet(false, true)) {
+					_logger.warn(ErrorUtils.getLongForm("Failed to set cursor batch size, using the driver default: {0}", e));
+				}
+			}
+		}
 	}
 }
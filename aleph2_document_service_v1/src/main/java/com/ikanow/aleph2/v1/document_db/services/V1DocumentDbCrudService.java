@@ -0,0 +1,485 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.v1.document_db.services;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.bson.types.ObjectId;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.Iterators;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ISecurityService;
+import com.ikanow.aleph2.data_model.objects.shared.AuthorizationBean;
+import com.ikanow.aleph2.data_model.objects.shared.ProjectBean;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
+import com.ikanow.aleph2.data_model.utils.FutureUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.shared.crud.mongodb.utils.MongoDbUtils;
+import com.ikanow.aleph2.v1.document_db.utils.JsonNodeBsonUtils;
+import com.ikanow.aleph2.v1.document_db.utils.V1DocumentDbErrorUtils;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/** A read-only CRUD service over the v1 documents (doc_metadata.metadata), restricted to a set of communities
+ *  Documents are returned as lazy JsonNode wrappers around the BSON objects (see JsonNodeBsonUtils), and cursors stream
+ *  from the DB in batches
+ * @author Alex
+ */
+public class V1DocumentDbCrudService implements ICrudService<JsonNode> {
+
+	public static final String _ID = "_id";
+	public static final String COMMUNITY_ID = "communityId";
+	public static final String INDEX = "index";
+	public static final String DELETED_INDEX = "?DEL?"; // (v1 marks docs for deletion by setting their index to this)
+	
+	/** A (streaming) cursor over v1 documents that wraps each one in a lazy JsonNode
+	 * @author Alex
+	 */
+	public static class V1DocumentDbCursor extends Cursor<JsonNode> {
+		protected V1DocumentDbCursor(final DBCursor cursor) {
+			_cursor = cursor;
+		}
+		protected final DBCursor _cursor;
+		
+		@Override
+		public void close() throws Exception {
+			_cursor.close();
+		}
+
+		@Override
+		public Iterator<JsonNode> iterator() {
+			return Iterators.transform(_cursor.iterator(), dbo -> JsonNodeBsonUtils.from(dbo));
+		}
+
+		@Override
+		public long count() {
+			return _cursor.count();
+		}		
+	}
+	
+	protected final DBCollection _coll;
+	protected final List<ObjectId> _community_ids;
+	protected final DBObject _community_filter;
+	protected final int _batch_size;
+	protected final Optional<ISecurityService> _security;
+	
+	/** User c'tor - no security service, so getFilteredRepo can't narrow the communities
+	 * @param coll - the v1 document collection (doc_metadata.metadata)
+	 * @param community_ids - the communities whose documents can be read
+	 * @param batch_size - the number of documents each cursor fetches from the DB at a time
+	 */
+	public V1DocumentDbCrudService(final DBCollection coll, final Collection<ObjectId> community_ids, final int batch_size) {
+		this(coll, community_ids, batch_size, Optional.empty());
+	}
+	
+	/** User c'tor
+	 * @param coll - the v1 document collection (doc_metadata.metadata)
+	 * @param community_ids - the communities whose documents can be read
+	 * @param batch_size - the number of documents each cursor fetches from the DB at a time
+	 * @param security - if present, used by getFilteredRepo to restrict the communities to those the user can read
+	 */
+	public V1DocumentDbCrudService(final DBCollection coll, final Collection<ObjectId> community_ids, final int batch_size, final Optional<ISecurityService> security) {
+		_coll = coll;
+		_community_ids = community_ids.stream().distinct().collect(Collectors.toList());
+		_batch_size = batch_size;
+		_security = security;
+		
+		// (same as the hadoop input: just these communities, and not docs that are being deleted)
+		_community_filter = new BasicDBObject(COMMUNITY_ID, (1 == _community_ids.size()) ? _community_ids.get(0) : new BasicDBObject("$in", _community_ids))
+								.append(INDEX, new BasicDBObject("$ne", DELETED_INDEX));
+	}
+	
+	/** Restricts a query to the service's communities
+	 * @param query
+	 * @return
+	 */
+	protected DBObject addCommunityFilter(final DBObject query) {
+		return query.keySet().isEmpty()
+				? new BasicDBObject(_community_filter.toMap())
+				: new BasicDBObject("$and", Arrays.asList(_community_filter, query));
+	}
+	
+	/** Converts a v1 document _id (which are ObjectIds, but often passed in as strings) 
+	 * @param id
+	 * @return
+	 */
+	protected static Object convertId(final Object id) {
+		return ((id instanceof String) && ObjectId.isValid((String)id)) ? new ObjectId((String)id) : id;
+	}
+	
+	/** Creates a cursor over the matching docs (without any of the query's sort/limit)
+	 * @param query - the already converted query
+	 * @param field_list
+	 * @param include
+	 * @return
+	 */
+	protected DBCursor find(final DBObject query, final List<String> field_list, final boolean include) {
+		return (field_list.isEmpty() ? _coll.find(addCommunityFilter(query)) : _coll.find(addCommunityFilter(query), getFields(field_list, include)))
+				.batchSize(_batch_size);
+	}
+	
+	/** Returns an error for any attempt to change the v1 documents
+	 * @return
+	 */
+	protected static <T> CompletableFuture<T> readOnlyError() {
+		return FutureUtils.<T>returnError(new RuntimeException(V1DocumentDbErrorUtils.V1_DOCUMENT_DB_READ_ONLY));
+	}
+	
+	//////////////////////////////////////////////////////
+
+	// Authorization and project filtering:
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getFilteredRepo(java.lang.String, java.util.Optional, java.util.Optional)
+	 * (returns a service over just the communities that the user can read, same check as the hadoop input - 
+	 *  if there's no security service to check against, a service over no communities)
+	 */
+	@Override
+	public ICrudService<JsonNode> getFilteredRepo(
+								final String authorization_fieldname,
+								final Optional<AuthorizationBean> client_auth,
+								final Optional<ProjectBean> project_auth)
+	{
+		return client_auth.map(auth -> {
+			final List<ObjectId> permitted_ids = _security.map(sec -> _community_ids.stream()
+					.filter(cid -> sec.isUserPermitted(auth.getPrincipalName(), Tuples._2T("community", cid.toString()), Optional.of(ISecurityService.ACTION_READ)))
+					.collect(Collectors.toList()))
+					.orElse(Collections.<ObjectId>emptyList()); // (fail closed)
+			
+			return (ICrudService<JsonNode>) new V1DocumentDbCrudService(_coll, permitted_ids, _batch_size, _security);
+		})
+		.orElse(this);
+	}
+
+	//////////////////////////////////////////////////////
+	
+	// *C*REATE - not supported
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#storeObject(java.lang.Object, boolean)
+	 */
+	@Override
+	public CompletableFuture<Supplier<Object>> storeObject(final JsonNode new_object, final boolean replace_if_present) {
+		return readOnlyError();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#storeObject(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Supplier<Object>> storeObject(final JsonNode new_object) {
+		return readOnlyError();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#storeObjects(java.util.List, boolean)
+	 */
+	@Override
+	public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<JsonNode> new_objects, final boolean replace_if_present) {
+		return readOnlyError();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#storeObjects(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<JsonNode> new_objects) {
+		return readOnlyError();
+	}
+
+	//////////////////////////////////////////////////////
+	
+	// *R*ETRIEVE
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#optimizeQuery(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<Boolean> optimizeQuery(final List<String> ordered_field_list) {
+		// (the v1 indexes are managed by v1)
+		return readOnlyError();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deregisterOptimizedQuery(java.util.List)
+	 */
+	@Override
+	public boolean deregisterOptimizedQuery(final List<String> ordered_field_list) {
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public CompletableFuture<Optional<JsonNode>> getObjectBySpec(final QueryComponent<JsonNode> unique_spec) {
+		return getObjectBySpec(unique_spec, Collections.<String>emptyList(), false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.List, boolean)
+	 */
+	@Override
+	public CompletableFuture<Optional<JsonNode>> getObjectBySpec(final QueryComponent<JsonNode> unique_spec, final List<String> field_list, final boolean include) {
+		try {
+			final Tuple2<DBObject, DBObject> query_and_meta = MongoDbUtils.convertToMongoQuery(unique_spec);
+			final DBObject sort = (DBObject)query_and_meta._2().get("$sort");
+			try (final DBCursor cursor = find(query_and_meta._1(), field_list, include).limit(1)) {
+				if (null != sort) cursor.sort(sort);
+				return CompletableFuture.completedFuture(cursor.hasNext() ? Optional.of(JsonNodeBsonUtils.from(cursor.next())) : Optional.empty());
+			}
+		}
+		catch (Exception e) {			
+			return FutureUtils.<Optional<JsonNode>>returnError(e);
+		}		
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectById(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Optional<JsonNode>> getObjectById(final Object id) {
+		return getObjectById(id, Collections.<String>emptyList(), false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectById(java.lang.Object, java.util.List, boolean)
+	 */
+	@Override
+	public CompletableFuture<Optional<JsonNode>> getObjectById(final Object id, final List<String> field_list, final boolean include) {
+		try {
+			final DBObject query = addCommunityFilter(new BasicDBObject(_ID, convertId(id)));
+			final DBObject ret_val = field_list.isEmpty() ? _coll.findOne(query) : _coll.findOne(query, getFields(field_list, include));
+			return CompletableFuture.completedFuture(Optional.ofNullable(ret_val).map(dbo -> JsonNodeBsonUtils.from(dbo)));
+		}
+		catch (Exception e) {			
+			return FutureUtils.<Optional<JsonNode>>returnError(e);
+		}		
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public CompletableFuture<Cursor<JsonNode>> getObjectsBySpec(final QueryComponent<JsonNode> spec) {
+		return getObjectsBySpec(spec, Collections.<String>emptyList(), false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.List, boolean)
+	 */
+	@Override
+	public CompletableFuture<Cursor<JsonNode>> getObjectsBySpec(final QueryComponent<JsonNode> spec, final List<String> field_list, final boolean include) {
+		try {
+			final Tuple2<DBObject, DBObject> query_and_meta = MongoDbUtils.convertToMongoQuery(spec);
+			final DBCursor cursor = find(query_and_meta._1(), field_list, include);
+			
+			final DBObject sort = (DBObject)query_and_meta._2().get("$sort");
+			if (null != sort) cursor.sort(sort);
+			final Long limit = (Long)query_and_meta._2().get("$limit");
+			if (null != limit) cursor.limit(limit.intValue());
+			
+			return CompletableFuture.completedFuture(new V1DocumentDbCursor(cursor));
+		}
+		catch (Exception e) {			
+			return FutureUtils.<Cursor<JsonNode>>returnError(e);
+		}		
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#countObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public CompletableFuture<Long> countObjectsBySpec(final QueryComponent<JsonNode> spec) {
+		try {
+			final Tuple2<DBObject, DBObject> query_and_meta = MongoDbUtils.convertToMongoQuery(spec);
+			final Long limit = (Long)query_and_meta._2().get("$limit");
+			if (null == limit) {
+				return CompletableFuture.completedFuture(_coll.count(addCommunityFilter(query_and_meta._1())));
+			}
+			else {
+				return CompletableFuture.completedFuture((long)find(query_and_meta._1(), Collections.<String>emptyList(), false).limit(limit.intValue()).size());
+			}
+		}
+		catch (Exception e) {			
+			return FutureUtils.<Long>returnError(e);
+		}		
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#countObjects()
+	 * (one count per community on the indexed communityId field, which mongodb can answer from the index alone - 
+	 *  note this includes any docs that v1 has flagged for deletion but not yet removed, unlike the queries)
+	 */
+	@Override
+	public CompletableFuture<Long> countObjects() {
+		try {
+			return CompletableFuture.completedFuture(_community_ids.stream().mapToLong(cid -> _coll.count(new BasicDBObject(COMMUNITY_ID, cid))).sum());
+		}
+		catch (Exception e) {			
+			return FutureUtils.<Long>returnError(e);
+		}		
+	}
+	
+	//////////////////////////////////////////////////////
+	
+	// *U*PDATE - not supported
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateObjectById(java.lang.Object, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
+	 */
+	@Override
+	public CompletableFuture<Boolean> updateObjectById(final Object id, final UpdateComponent<JsonNode> update) {
+		return readOnlyError();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
+	 */
+	@Override
+	public CompletableFuture<Boolean> updateObjectBySpec(final QueryComponent<JsonNode> unique_spec, final Optional<Boolean> upsert, final UpdateComponent<JsonNode> update) {
+		return readOnlyError();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
+	 */
+	@Override
+	public CompletableFuture<Long> updateObjectsBySpec(final QueryComponent<JsonNode> spec, final Optional<Boolean> upsert, final UpdateComponent<JsonNode> update) {
+		return readOnlyError();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateAndReturnObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent, java.util.Optional, java.util.List, boolean)
+	 */
+	@Override
+	public CompletableFuture<Optional<JsonNode>> updateAndReturnObjectBySpec(
+								final QueryComponent<JsonNode> unique_spec, final Optional<Boolean> upsert, 
+								final UpdateComponent<JsonNode> update,
+								final Optional<Boolean> before_updated, final List<String> field_list, final boolean include)
+	{
+		return readOnlyError();
+	}
+	
+	//////////////////////////////////////////////////////
+	
+	// *D*ELETE - not supported
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteObjectById(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteObjectById(final Object id) {
+		return readOnlyError();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteObjectBySpec(final QueryComponent<JsonNode> unique_spec) {
+		return readOnlyError();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public CompletableFuture<Long> deleteObjectsBySpec(final QueryComponent<JsonNode> spec) {
+		return readOnlyError();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteDatastore()
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteDatastore() {
+		return readOnlyError();
+	}
+	
+	//////////////////////////////////////////////////////
+	
+	// Misc
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getRawService()
+	 */
+	@Override
+	public ICrudService<JsonNode> getRawService() {
+		return this;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getSearchService()
+	 */
+	@Override
+	public Optional<IBasicSearchService<JsonNode>> getSearchService() {
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		if (DBCollection.class == driver_class) return (Optional<T>) Optional.of(_coll);
+		else if (ICrudService.class == driver_class) return (Optional<T>) Optional.of(this);
+		else return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getMetaModel()
+	 */
+	@Override 
+	public Optional<IMetaModel> getMetaModel() {
+		return Optional.empty();
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getCrudService()
+	 */
+	@Override
+	public Optional<ICrudService<JsonNode>> getCrudService() {
+		return Optional.of(this);
+	}
+	
+	/** Low level util to get the set of fields to collect for retrieval
+	 * @param field_list
+	 * @param include
+	 * @return
+	 */
+	private static BasicDBObject getFields(final List<String> field_list, final boolean include) {
+		final BasicDBObject fields = new BasicDBObject(field_list.stream().collect(Collectors.toMap(f -> f, f -> include ? 1 : 0, (v1, v2) -> v1)));
+		if (include && !fields.containsField(_ID)) fields.put(_ID, 0); // (mongodb adds this by default)
+		return fields;
+	}
+}
@@ -17,17 +17,27 @@ package com.ikanow.aleph2.v1.document_db.services;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 import org.apache.hadoop.mapreduce.InputFormat;
+import org.bson.types.ObjectId;
 
 import scala.Tuple2;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsAccessContext;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IDocumentService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.IReadOnlyCrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IExtraDependencyLoader;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadJobBean;
@@ -36,21 +46,29 @@ import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.DocumentS
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.AnalyticsUtils;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.BucketUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.v1.document_db.data_model.V1DocDbConfigBean;
 import com.ikanow.aleph2.v1.document_db.modules.V1DocumentDbModule;
 import com.ikanow.aleph2.v1.document_db.utils.V1DocumentDbErrorUtils;
 import com.ikanow.aleph2.v1.document_db.utils.V1DocumentDbHadoopUtils;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoURI;
+import com.mongodb.hadoop.util.MongoConfigUtil;
 
 /** An implementation of the V1 document service
- *  Currently only usable to generate inputs to hadoop processing
+ *  Usable to generate inputs to hadoop processing, and as a read-only CRUD service over the documents in v1 communities
  * @author Alex
  */
-public class V1DocumentDbService implements IDocumentService, IExtraDependencyLoader {
+public class V1DocumentDbService implements IDocumentService, IGenericDataService, IExtraDependencyLoader {
 
+	public static final String V1_DOC_DB = "doc_metadata";
+	public static final String V1_DOC_COLLECTION = "metadata";
+	
 	protected final V1DocDbConfigBean _config;
 	protected final IServiceContext _context;
+	protected DBCollection _doc_collection = null; // (created lazily, since most uses are just for hadoop inputs)
 	
 	/** User constructor
 	 */
@@ -134,5 +152,132 @@ public class V1DocumentDbService implements IDocumentService, IExtraDependencyLo
 		
 	}
 	
-	// (leave getDataService to return Optional.empty())
+	//////////////////////////////////////////////////////////
+	
+	// DATA SERVICE PROVIDER / GENERIC DATA SERVICE
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider#getDataService()
+	 */
+	@Override
+	public Optional<IGenericDataService> getDataService() {
+		return Optional.of(this);
+	}
+	
+	/** Returns the v1 document collection
+	 *  (uses the connection that mongo-hadoop caches per URI - the same one the hadoop input format uses - rather than creating a client that never gets closed)
+	 * @return
+	 */
+	@SuppressWarnings("deprecation")
+	protected synchronized DBCollection getDocumentCollection() {
+		if (null == _doc_collection) {
+			try {
+				_doc_collection = MongoConfigUtil.getCollection(new MongoURI("mongodb://" + _config.mongodb_connection() + "/" + V1_DOC_DB + "." + V1_DOC_COLLECTION));
+			}
+			catch (Exception e) {
+				throw new RuntimeException(ErrorUtils.getLongForm("{0}", e), e);
+			}
+		}
+		return _doc_collection;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getWritableDataService(java.lang.Class, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<IDataWriteService<O>> getWritableDataService(
+			Class<O> clazz, DataBucketBean bucket, Optional<String> options,
+			Optional<String> secondary_buffer) {
+		// (v1 is read-only)
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getReadableCrudService(java.lang.Class, java.util.Collection, java.util.Optional)
+	 * Returns a CRUD service over the documents in the communities the buckets map to (/aleph2_external/<community id>_<community id>...), 
+	 * JsonNode only
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <O> Optional<IReadOnlyCrudService<O>> getReadableCrudService(
+			Class<O> clazz, Collection<DataBucketBean> buckets,
+			Optional<String> options) {
+		if (JsonNode.class != clazz) {
+			return Optional.empty();
+		}
+		final List<ObjectId> community_ids = buckets.stream()
+				.map(b -> b.full_name())
+				.filter(name -> (null != name) && name.startsWith(BucketUtils.EXTERNAL_BUCKET_PREFIX))
+				.flatMap(name -> V1DocumentDbHadoopUtils.getCommunityIds(name).stream())
+				.filter(cid -> ObjectId.isValid(cid))
+				.map(cid -> new ObjectId(cid))
+				.distinct()
+				.collect(Collectors.toList());
+		
+		if (community_ids.isEmpty()) {
+			return Optional.empty();
+		}
+		final ICrudService<JsonNode> crud = new V1DocumentDbCrudService(getDocumentCollection(), community_ids, _config.query_batch_size(), 
+																			Optional.ofNullable(_context).map(sc -> sc.getSecurityService()));
+		return Optional.of((IReadOnlyCrudService<O>)(IReadOnlyCrudService<?>)crud.readOnlyVersion());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getUpdatableCrudService(java.lang.Class, java.util.Collection, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<ICrudService<O>> getUpdatableCrudService(
+			Class<O> clazz, Collection<DataBucketBean> buckets,
+			Optional<String> options) {
+		// (v1 is read-only)
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getSecondaryBuffers(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional)
+	 */
+	@Override
+	public Set<String> getSecondaryBuffers(DataBucketBean bucket,
+			Optional<String> intermediate_step) {
+		return Collections.emptySet();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getPrimaryBufferName(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional)
+	 */
+	@Override
+	public Optional<String> getPrimaryBufferName(DataBucketBean bucket,
+			Optional<String> intermediate_step) {
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#switchCrudServiceToPrimaryBuffer(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> switchCrudServiceToPrimaryBuffer(
+			DataBucketBean bucket, Optional<String> secondary_buffer,
+			Optional<String> new_name_for_ex_primary,
+			Optional<String> intermediate_step) {
+		return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this.getClass().getSimpleName(), "switchCrudServiceToPrimaryBuffer", V1DocumentDbErrorUtils.V1_DOCUMENT_DB_READ_ONLY));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleAgeOutRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleAgeOutRequest(
+			DataBucketBean bucket) {
+		return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this.getClass().getSimpleName(), "handleAgeOutRequest", V1DocumentDbErrorUtils.V1_DOCUMENT_DB_READ_ONLY));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleBucketDeletionRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, boolean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleBucketDeletionRequest(
+			DataBucketBean bucket, Optional<String> secondary_buffer,
+			boolean bucket_or_buffer_getting_deleted) {
+		return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this.getClass().getSimpleName(), "handleBucketDeletionRequest", V1DocumentDbErrorUtils.V1_DOCUMENT_DB_READ_ONLY));
+	}
 }
@@ -15,29 +15,48 @@
  *******************************************************************************/
 package com.ikanow.aleph2.v1.document_db.utils;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
 import org.bson.BasicBSONObject;
+import org.bson.LazyBSONObject;
+import org.bson.types.BSONTimestamp;
 import org.bson.types.BasicBSONList;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.mongodb.BasicDBObject;
 
-/** Utilities for creating JsonNodes lazily from MapWritables
+/** Utilities for creating JsonNodes lazily from MapWritables (BSON objects), or directly from raw BSON
  * @author Alex
  *
  */
 public class JsonNodeBsonUtils {
+	protected static final ObjectMapper _mapper = new ObjectMapper();
 
 	/** Creates a lazy object node from a MapWritable 
 	 * @param m
@@ -47,6 +66,35 @@ public class JsonNodeBsonUtils {
 		return new ObjectNodeWrapper(JsonNodeFactory.instance, b);
 	}
 	
+	/** Creates an object node directly from raw BSON, without building a BSONObject first
+	 * @param bson - a single BSON document
+	 * @param fields - if present, only these top level fields are decoded (the others are skipped over)
+	 * @return
+	 * @throws IOException
+	 */
+	public static ObjectNode from(final byte[] bson, final Optional<Set<String>> fields) throws IOException {
+		return (ObjectNode) _mapper.readTree(parserFrom(bson, fields));
+	}
+	
+	/** Returns a token stream over raw BSON, eg for data binding straight into beans
+	 *  (values are converted the same way as transform, except that unsupported types are returned as nulls)
+	 * @param bson - a single BSON document
+	 * @param fields - if present, only these top level fields are decoded (the others are skipped over)
+	 * @return
+	 * @throws IOException
+	 */
+	public static JsonParser parserFrom(final byte[] bson, final Optional<Set<String>> fields) throws IOException {
+		final ByteBuffer buf = ByteBuffer.wrap(bson).order(ByteOrder.LITTLE_ENDIAN);
+		final TokenBuffer tokens = new TokenBuffer(_mapper, false);
+		try {
+			writeDocument(buf, tokens, false, fields);
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Truncated BSON document", e);
+		}
+		return tokens.asParser(_mapper);
+	}
+	
 	/** Utility that goes from various MongoDB artefacts to JsonNode
 	 * @param x
 	 * @return
@@ -94,8 +142,245 @@ public class JsonNodeBsonUtils {
 
 	/////////////////////////////////////////////////
 	
+	// Raw BSON decoding
+	
+	protected static final byte BSON_DOUBLE = 0x01;
+	protected static final byte BSON_STRING = 0x02;
+	protected static final byte BSON_DOCUMENT = 0x03;
+	protected static final byte BSON_ARRAY = 0x04;
+	protected static final byte BSON_BINARY = 0x05;
+	protected static final byte BSON_UNDEFINED = 0x06;
+	protected static final byte BSON_OBJECT_ID = 0x07;
+	protected static final byte BSON_BOOLEAN = 0x08;
+	protected static final byte BSON_DATE = 0x09;
+	protected static final byte BSON_NULL = 0x0A;
+	protected static final byte BSON_REGEX = 0x0B;
+	protected static final byte BSON_DB_POINTER = 0x0C;
+	protected static final byte BSON_CODE = 0x0D;
+	protected static final byte BSON_SYMBOL = 0x0E;
+	protected static final byte BSON_CODE_W_SCOPE = 0x0F;
+	protected static final byte BSON_INT32 = 0x10;
+	protected static final byte BSON_TIMESTAMP = 0x11;
+	protected static final byte BSON_INT64 = 0x12;
+	protected static final byte BSON_DECIMAL128 = 0x13;
+	protected static final byte BSON_MIN_KEY = (byte)0xFF;
+	protected static final byte BSON_MAX_KEY = 0x7F;
+	
+	/** Writes a (sub-)document or array as tokens
+	 * @param buf - positioned at the start of the document
+	 * @param gen
+	 * @param is_array
+	 * @param fields - if present, the fields to decode (the others are skipped)
+	 * @throws IOException
+	 */
+	protected static void writeDocument(final ByteBuffer buf, final JsonGenerator gen, final boolean is_array, final Optional<Set<String>> fields) throws IOException {
+		final int end = buf.position() + buf.getInt() - 1; // (excluding the terminating 0)
+		if (is_array) gen.writeStartArray(); else gen.writeStartObject();
+		while (buf.position() < end) {
+			final byte type = buf.get();
+			final String name = readCString(buf);
+			if (fields.isPresent() && !fields.get().contains(name)) {
+				skipValue(buf, type);
+			}
+			else {
+				if (!is_array) gen.writeFieldName(name);
+				writeValue(buf, gen, type);
+			}
+		}
+		buf.get(); // (terminating 0)
+		if (is_array) gen.writeEndArray(); else gen.writeEndObject();
+	}
+	
+	/** Writes a single value as tokens
+	 * @param buf - positioned at the start of the value
+	 * @param gen
+	 * @param type - the BSON type
+	 * @throws IOException
+	 */
+	protected static void writeValue(final ByteBuffer buf, final JsonGenerator gen, final byte type) throws IOException {
+		switch (type) {
+			case BSON_DOUBLE: gen.writeNumber(buf.getDouble()); break;
+			case BSON_STRING: gen.writeString(readString(buf)); break;
+			case BSON_DOCUMENT: writeDocument(buf, gen, false, Optional.empty()); break;
+			case BSON_ARRAY: writeDocument(buf, gen, true, Optional.empty()); break;
+			case BSON_BINARY: {
+				final byte[] bytes = new byte[buf.getInt()];
+				buf.get(); // (subtype)
+				buf.get(bytes);
+				gen.writeBinary(bytes);
+				break;
+			}
+			case BSON_OBJECT_ID: {
+				final StringBuilder sb = new StringBuilder(24);
+				for (int i = 0; i < 12; ++i) {
+					final int b = buf.get() & 0xFF;
+					sb.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0x0F, 16));
+				}
+				gen.writeString(sb.toString());
+				break;
+			}
+			case BSON_BOOLEAN: gen.writeBoolean(0 != buf.get()); break;
+			case BSON_DATE: gen.writeNumber(buf.getLong()); break;
+			case BSON_INT32: gen.writeNumber(buf.getInt()); break;
+			case BSON_INT64: gen.writeNumber(buf.getLong()); break;
+			default: // (null, or a type that transform doesn't support either)
+				skipValue(buf, type);
+				gen.writeNull();
+		}
+	}
+	
+	/** Moves past a value without decoding it
+	 * @param buf - positioned at the start of the value
+	 * @param type - the BSON type
+	 * @throws IOException
+	 */
+	protected static void skipValue(final ByteBuffer buf, final byte type) throws IOException {
+		switch (type) {
+			case BSON_UNDEFINED: case BSON_NULL: case BSON_MIN_KEY: case BSON_MAX_KEY: break;
+			case BSON_BOOLEAN: skip(buf, 1); break;
+			case BSON_INT32: skip(buf, 4); break;
+			case BSON_DOUBLE: case BSON_DATE: case BSON_TIMESTAMP: case BSON_INT64: skip(buf, 8); break;
+			case BSON_OBJECT_ID: skip(buf, 12); break;
+			case BSON_DECIMAL128: skip(buf, 16); break;
+			case BSON_STRING: case BSON_CODE: case BSON_SYMBOL: skip(buf, buf.getInt()); break;
+			case BSON_DB_POINTER: skip(buf, buf.getInt() + 12); break;
+			case BSON_BINARY: skip(buf, buf.getInt() + 1); break;
+			case BSON_DOCUMENT: case BSON_ARRAY: case BSON_CODE_W_SCOPE: skip(buf, buf.getInt(buf.position())); break; // (length includes itself)
+			case BSON_REGEX: readCString(buf); readCString(buf); break;
+			default: throw new IOException("Unknown BSON type: " + type);
+		}
+	}
+	
+	/////////////////////////////////////////////////
+	
+	// BSON sizes
+	
+	/** Returns the number of bytes the object takes up as BSON (eg as read off the wire), without encoding it
+	 * @param b
+	 * @return
+	 */
+	public static long getBsonSize(final BSONObject b) {
+		if (b instanceof LazyBSONObject) { // (still has its raw bytes)
+			return ((LazyBSONObject)b).getBSONSize();
+		}
+		long size = 5L; // (length + terminating 0)
+		for (String key: b.keySet()) {
+			size += 2L + utf8Length(key) + getBsonValueSize(b.get(key));
+		}
+		return size;
+	}
+	
+	/** Returns the number of bytes a value takes up as BSON (excluding the type and field name)
+	 * @param x
+	 * @return
+	 */
+	protected static long getBsonValueSize(final Object x) {
+		if ((null == x) || (x instanceof Boolean)) {
+			return (null == x) ? 0L : 1L;
+		}
+		else if ((x instanceof String) || (x instanceof Character)) {
+			return 5L + utf8Length(x.toString());
+		}
+		else if ((x instanceof Integer) || (x instanceof Short) || (x instanceof Byte) || (x instanceof AtomicInteger)) {
+			return 4L;
+		}
+		else if ((x instanceof Long) || (x instanceof Double) || (x instanceof Float) || (x instanceof AtomicLong)) {
+			return 8L;
+		}
+		else if ((x instanceof Date) || (x instanceof BSONTimestamp)) {
+			return 8L;
+		}
+		else if (x instanceof ObjectId) {
+			return 12L;
+		}
+		else if (x instanceof byte[]) {
+			return 5L + ((byte[])x).length;
+		}
+		else if (x instanceof Binary) { // (the old binary subtype has an extra length)
+			return 5L + ((Binary)x).length() + ((2 == ((Binary)x).getType()) ? 4L : 0L);
+		}
+		else if (x instanceof UUID) {
+			return 21L;
+		}
+		else if (x instanceof BSONObject) { // (includes BasicBSONList)
+			return getBsonSize((BSONObject)x);
+		}
+		else if (x instanceof List) {
+			long size = 5L;
+			int i = 0;
+			for (Object o: (List<?>)x) {
+				size += 2L + stringSize(i++) + getBsonValueSize(o);
+			}
+			return size;
+		}
+		else { // (rare types, just encode them: {"": x} is 7 bytes plus the value)
+			return new BasicBSONEncoder().encode(new BasicBSONObject("", x)).length - 7L;
+		}
+	}
+	
+	/** The length of a string as UTF-8, without encoding it
+	 */
+	private static int utf8Length(final String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			final char ch = s.charAt(i);
+			if (ch < 0x80) length += 1;
+			else if (ch < 0x800) length += 2;
+			else if (Character.isHighSurrogate(ch) && ((i + 1) < s.length()) && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				++i;
+			}
+			else length += 3;
+		}
+		return length;
+	}
+	
+	/** The number of digits in an array index
+	 */
+	private static int stringSize(final int i) {
+		return (i < 10) ? 1 : (i < 100) ? 2 : (i < 1000) ? 3 : Integer.toString(i).length();
+	}
+	
+	private static void skip(final ByteBuffer buf, final int n) {
+		buf.position(buf.position() + n);
+	}
+	
+	/** Reads a null terminated string (field names)
+	 */
+	private static String readCString(final ByteBuffer buf) {
+		final int start = buf.position();
+		while (0 != buf.get());
+		return new String(buf.array(), buf.arrayOffset() + start, buf.position() - start - 1, StandardCharsets.UTF_8);
+	}
+	
+	/** Reads a length prefixed string (values)
+	 */
+	private static String readString(final ByteBuffer buf) {
+		final int length = buf.getInt(); // (includes the terminating 0)
+		final String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length - 1, StandardCharsets.UTF_8);
+		skip(buf, length);
+		return s;
+	}
+	
+	/////////////////////////////////////////////////
+	
 	// Utility classes
 	
+	// (Ugh, children is private - look the fields up once, not for every object)
+	private static final Field _object_children = getChildrenField(ObjectNode.class);
+	private static final Field _array_children = getChildrenField(ArrayNode.class);
+	
+	private static Field getChildrenField(final Class<?> clazz) {
+		try {
+			final Field f = clazz.getDeclaredField("_children");
+			f.setAccessible(true);
+			return f;
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+	
 	
 	/** Lazy map that can have a mix of String/JsonObject and Text/Writable in it
 	 * @author Alex
@@ -111,6 +396,16 @@ public class JsonNodeBsonUtils {
 			_nc = nc;
 		}
 		
+		/** Points the map at a different object, discarding any changes
+		 * @param delegate
+		 */
+		void reset(BSONObject delegate) {
+			_delegate = (BasicBSONObject) delegate;
+			if (_EMPTY_MAP != _new_vals) {
+				_new_vals.clear();
+			}
+		}
+		
 		@Override
 		public int size() {
 			return _new_vals.size() + _delegate.size();
@@ -135,7 +430,10 @@ public class JsonNodeBsonUtils {
 
 		@Override
 		public JsonNode get(Object key) {
-			return (JsonNode) _new_vals.getOrDefault(key, JsonNodeBsonUtils.transform(_delegate.toMap().get((String) key), _nc));
+			// (BasicBSONObject is a map, so this is a constant time lookup - and only transform if the value isn't overridden)
+			return _new_vals.containsKey(key) 
+					? _new_vals.get(key) 
+					: JsonNodeBsonUtils.transform(_delegate.get(key), _nc);
 		}
 
 		@Override
@@ -216,15 +514,24 @@ public class JsonNodeBsonUtils {
 		public ObjectNodeWrapper(JsonNodeFactory nc, BSONObject delegate) {
 			super(nc);
 			try {
-				// Ugh, children is private
-				final Field f = ObjectNode.class.getDeclaredField("_children");
-				f.setAccessible(true);
-				f.set(this, new LazyTransformingMap(delegate, nc));
-				_my_children = (Map<String, JsonNode>) f.get(this);
+				_object_children.set(this, new LazyTransformingMap(delegate, nc));
+				_my_children = (Map<String, JsonNode>) _object_children.get(this);
 			}
 			catch (Exception e) {}
 		}
 		
+		/** Re-uses this node for a different object (any changes made to the node are discarded)
+		 *  - only safe if nothing is still holding onto the node's previous contents
+		 * @param delegate
+		 * @return this node
+		 */
+		public ObjectNodeWrapper reset(BSONObject delegate) {
+			if (_my_children instanceof LazyTransformingMap) {
+				((LazyTransformingMap)_my_children).reset(delegate);
+			}
+			return this;
+		}
+		
 		public boolean containsKey(Object key) {
 			return _my_children.containsKey(key);
 		}
@@ -244,10 +551,7 @@ public class JsonNodeBsonUtils {
 		public ArrayNodeWrapper(JsonNodeFactory nc, BasicBSONList delegate) {
 			super(nc);
 			try {
-				// Ugh, children is private
-				final Field f = ArrayNode.class.getDeclaredField("_children");
-				f.setAccessible(true);
-				f.set(this, com.google.common.collect.Lists.transform(delegate, x -> transform(x, nc)));
+				_array_children.set(this, com.google.common.collect.Lists.transform(delegate, x -> transform(x, nc)));
 			}
 			catch (Exception e) {}
 		}		
@@ -15,18 +15,25 @@
  *******************************************************************************/
 package com.ikanow.aleph2.v1.document_db.utils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.hadoop.mapreduce.InputFormat;
+import org.bson.BasicBSONEncoder;
 
 import scala.Tuple2;
+import scala.Tuple3;
 import scala.Tuple4;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -42,6 +49,8 @@ import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.v1.document_db.data_model.V1DocDbConfigBean;
 import com.ikanow.aleph2.v1.document_db.hadoop.assets.Aleph2V1InputFormat;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 
 import fj.data.Either;
@@ -52,6 +61,9 @@ import fj.data.Either;
 public class V1DocumentDbHadoopUtils {
 	final private static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty()); 
 	
+	final static int SIZE_SAMPLE_DOCS = 100;
+	final static String COMMUNITY_ID = "communityId";
+	
 	final static Set<String> DESCRIBE_FILTER = ImmutableSet.<String>builder().addAll(
 			Arrays.asList(
 					"mongo.job.verbose",
@@ -101,10 +113,7 @@ public class V1DocumentDbHadoopUtils {
 				
 				// Parse various inputs:
 				
-				final List<String> communities = 
-						Arrays.stream(job_input.resource_name_or_id().substring(BucketUtils.EXTERNAL_BUCKET_PREFIX.length()).split("_"))
-								.collect(Collectors.toList())
-								; 
+				final List<String> communities = getCommunityIds(job_input.resource_name_or_id()); 
 				
 				// Validate communities:
 				maybe_security.ifPresent(sec -> {
@@ -143,7 +152,7 @@ public class V1DocumentDbHadoopUtils {
 				_mutable_output.put("mongo.job.background", "false");
 				_mutable_output.put("mongo.input.uri", "mongodb://" + db_server + "/doc_metadata.metadata");
 				_mutable_output.put("mongo.input.query", horrible_object._1());
-				_mutable_output.put("mongo.input.fields", Optional.ofNullable(horrible_object._4()).map(o -> o.toString()).orElse(""));
+				_mutable_output.put("mongo.input.fields", Optional.ofNullable(horrible_object._4()).map(o -> getFieldProjection(o).toString()).orElse(""));
 				_mutable_output.put("mongo.input.limit", Optional.ofNullable(job_input.config()).map(cfg -> cfg.test_record_limit_request()).map(o -> o.toString()).orElse("0"));
 				
 				// 2) Basic Infinit.e/MongoDB fields:
@@ -151,6 +160,10 @@ public class V1DocumentDbHadoopUtils {
 				//Maximum number of docs per split [optional] --><name>max.docs.per.split</name><value>"+nDocsPerSplit
 				_mutable_output.put("max.splits", horrible_object._2()._1().toString());
 				_mutable_output.put("max.docs.per.split", horrible_object._2()._2().toString());
+				// (unless the job sets the docs per split itself, size the splits from the collection stats at submission time, with max.splits as the upper bound)
+				if ((config.bytes_per_split() > 0) && !Optional.ofNullable(job_input.filter()).map(f -> f.containsKey(":docsPerSplit")).orElse(false)) {
+					_mutable_output.put(Aleph2V1InputFormat.BYTES_PER_SPLIT, Long.toString(config.bytes_per_split()));
+				}
 				
 				
 				// 3) Advanced Infinit.e/MongoDB fields:				
@@ -163,6 +176,184 @@ public class V1DocumentDbHadoopUtils {
 		};
 	}
 	
+	/** v1 communities are accessed as external buckets, eg /aleph2_external/<community id>_<community id>
+	 * @param resource_name_or_id - the bucket name
+	 * @return the community ids
+	 */
+	public static List<String> getCommunityIds(final String resource_name_or_id) {
+		return Arrays.stream(resource_name_or_id.substring(BucketUtils.EXTERNAL_BUCKET_PREFIX.length()).split("_"))
+					.collect(Collectors.toList())
+					;
+	}
+	
+	/** The fields the job needs can be declared either as a (legacy) mongodb projection, eg {"title": 1, "entities": 1}, 
+	 *  or just as a list of field names, eg ["title", "entities"]
+	 * @param fields - the ":fields" object from the job's filter
+	 * @return a mongodb projection
+	 */
+	public static DBObject getFieldProjection(final DBObject fields) {
+		if (fields instanceof List) {
+			final BasicDBObject projection = new BasicDBObject();
+			((List<?>) fields).stream().forEach(field -> projection.put(field.toString(), 1));
+			return projection;
+		}
+		else return fields;
+	}
+	
+	/** Works out how to split up a job so that each split reads roughly bytes_per_split (so small jobs don't get more splits than they need,
+	 *  and big jobs don't get splits that are too big), with the splits themselves still calculated by the v1 splitter (ie aligned to source keys
+	 *  or _id ranges)
+	 * @param collection - the input collection
+	 * @param query - the job's query
+	 * @param fields - the job's projection, if any
+	 * @param bytes_per_split - the target size of each split
+	 * @param max_splits - the maximum number of splits
+	 * @return (number of splits, docs per split)
+	 */
+	public static Tuple2<Integer, Integer> calculateSplitSizes(final DBCollection collection, final DBObject query, final Optional<DBObject> fields, 
+			final long bytes_per_split, final int max_splits)
+	{
+		final long num_docs = collection.count(query);
+		return calculateSplitSizes(num_docs, getAverageDocSize(collection, query, fields), bytes_per_split, max_splits);
+	}
+	
+	/** Works out how to split up num_docs documents of the specified average size so that each split reads roughly bytes_per_split
+	 * @param num_docs
+	 * @param avg_doc_size
+	 * @param bytes_per_split
+	 * @param max_splits
+	 * @return (number of splits, docs per split)
+	 */
+	public static Tuple2<Integer, Integer> calculateSplitSizes(final long num_docs, final double avg_doc_size, final long bytes_per_split, final int max_splits) {
+		final long total_bytes = (long)(num_docs*avg_doc_size);
+		final int num_splits = (int) Math.max(1L, Math.min((long)max_splits, (total_bytes + bytes_per_split - 1)/bytes_per_split));
+		final int docs_per_split = (int) Math.max(1L, (num_docs + num_splits - 1)/num_splits);
+		return Tuples._2T(num_splits, docs_per_split);
+	}
+	
+	/** Returns the communities a multi-community job's query covers (ie communityId: { $in: [ ... ] })
+	 * @param query - the job's query
+	 * @return the community ids (empty if the query isn't restricted to a list of communities)
+	 */
+	public static List<Object> getQueryCommunityIds(final DBObject query) {
+		final Object community_query = (null == query) ? null : query.get(COMMUNITY_ID);
+		final Object community_ids = (community_query instanceof DBObject) ? ((DBObject)community_query).get("$in") : null;
+		return (community_ids instanceof List) ? new ArrayList<Object>((List<?>)community_ids) : Collections.emptyList();
+	}
+	
+	/** For multi-community jobs, splits the job up by community: each community gets its own share of the max_splits budget, proportional
+	 *  to the amount of data it has, so that a large community doesn't skew the splits of the combined query (the counts/sizes are 
+	 *  calculated one community at a time)
+	 * @param collection - the input collection
+	 * @param query - the job's query, with communityId: { $in: [ ... ] }
+	 * @param fields - the job's projection, if any
+	 * @param bytes_per_split - the target size of each split (if <= 0, split by document count instead)
+	 * @param docs_per_split - the target number of docs in each split, if bytes_per_split <= 0 
+	 * @param max_splits - the maximum number of splits across all the communities
+	 * @return a list of (community query, number of splits, docs per split), for the communities that have any documents 
+	 *         - or an empty list if the job can't be split up this way (not multi-community, or more communities than splits) 
+	 */
+	public static List<Tuple3<DBObject, Integer, Integer>> calculateCommunitySplitSizes(final DBCollection collection, final DBObject query, final Optional<DBObject> fields, 
+			final long bytes_per_split, final int docs_per_split, final int max_splits)
+	{
+		return calculateCommunitySplitSizes(collection, query, fields, bytes_per_split, docs_per_split, max_splits, Runnable::run);
+	}
+	
+	/** As above, but the counts/sizes are calculated for all the communities in parallel on the specified executor
+	 * @param collection - the input collection
+	 * @param query - the job's query, with communityId: { $in: [ ... ] }
+	 * @param fields - the job's projection, if any
+	 * @param bytes_per_split - the target size of each split (if <= 0, split by document count instead)
+	 * @param docs_per_split - the target number of docs in each split, if bytes_per_split <= 0 
+	 * @param max_splits - the maximum number of splits across all the communities
+	 * @param executor - runs the per community counts
+	 * @return a list of (community query, number of splits, docs per split) - see above
+	 */
+	public static List<Tuple3<DBObject, Integer, Integer>> calculateCommunitySplitSizes(final DBCollection collection, final DBObject query, final Optional<DBObject> fields, 
+			final long bytes_per_split, final int docs_per_split, final int max_splits, final Executor executor)
+	{
+		final List<Object> community_ids = getQueryCommunityIds(query);
+		if ((community_ids.size() < 2) || (community_ids.size() > max_splits)) {
+			return Collections.emptyList();
+		}
+		// (if splitting by doc count, treat each doc as 1 "byte")
+		final long split_size = (bytes_per_split > 0) ? bytes_per_split : Math.max(1, docs_per_split);
+		
+		// 1) Get the number and (if needed) size of each community's docs
+		final List<CompletableFuture<Tuple3<DBObject, Long, Double>>> community_futures = community_ids.stream()
+				.map(community_id -> CompletableFuture.supplyAsync(() -> {
+					final BasicDBObject community_query = new BasicDBObject(query.toMap());
+					community_query.put(COMMUNITY_ID, community_id);
+					final long num_docs = collection.count(community_query);
+					final double avg_doc_size = ((bytes_per_split > 0) && (num_docs > 0)) ? getAverageDocSize(collection, community_query, fields) : 1.0;
+					return Tuples._3T((DBObject)community_query, num_docs, avg_doc_size);
+				}, executor))
+				.collect(Collectors.toList());
+		
+		final List<Tuple3<DBObject, Long, Double>> community_stats = community_futures.stream()
+				.map(f -> f.join())
+				.filter(t3 -> t3._2() > 0)
+				.collect(Collectors.toList());
+		
+		if (community_stats.isEmpty()) {
+			return Collections.emptyList();
+		}
+		
+		// 2) Share out the splits in proportion to the amount of data (at least 1 each, then the leftovers by largest remainder)
+		final double total_size = community_stats.stream().mapToDouble(t3 -> t3._2()*t3._3()).sum();
+		final double[] exact_budgets = community_stats.stream().mapToDouble(t3 -> max_splits*t3._2()*t3._3()/total_size).toArray();
+		final int[] budgets = Arrays.stream(exact_budgets).mapToInt(d -> Math.max(1, (int)Math.floor(d))).toArray();
+		int leftover = max_splits - Arrays.stream(budgets).sum();
+		final List<Integer> by_remainder = IntStream.range(0, budgets.length).boxed()
+				.sorted(Comparator.<Integer>comparingDouble(i -> budgets[i] - exact_budgets[i]))
+				.collect(Collectors.toList());
+		for (int i = 0; (leftover > 0) && (i < by_remainder.size()); ++i, --leftover) {
+			budgets[by_remainder.get(i)]++;
+		}
+		for (; leftover < 0; ++leftover) { // (too many small communities bumped up to 1 - take the excess from the biggest budgets)
+			final int biggest = IntStream.range(0, budgets.length).reduce((i, j) -> (budgets[j] > budgets[i]) ? j : i).getAsInt();
+			budgets[biggest]--;
+		}
+		
+		// 3) Then size each community's splits within its budget
+		return IntStream.range(0, budgets.length).mapToObj(i -> {
+					final Tuple3<DBObject, Long, Double> stats = community_stats.get(i);
+					final Tuple2<Integer, Integer> split_sizes = calculateSplitSizes(stats._2(), stats._3(), split_size, budgets[i]);
+					return Tuples._3T(stats._1(), split_sizes._1(), split_sizes._2());
+				})
+				.collect(Collectors.toList());
+	}
+	
+	/** Returns the average size of the documents the job will read - from the collection stats if the whole document is read, else (or if the
+	 *  stats aren't available) from a sample of the (projected) documents 
+	 * @param collection - the input collection
+	 * @param query - the job's query
+	 * @param fields - the job's projection, if any
+	 * @return the average size in bytes
+	 */
+	public static double getAverageDocSize(final DBCollection collection, final DBObject query, final Optional<DBObject> fields) {
+		final Optional<DBObject> projection = fields.filter(f -> !f.keySet().isEmpty());
+		if (!projection.isPresent()) {
+			try {
+				final Object avg_size = collection.getStats().get("avgObjSize");
+				if ((avg_size instanceof Number) && (((Number)avg_size).doubleValue() > 0)) {
+					return ((Number)avg_size).doubleValue();
+				}
+			}
+			catch (Exception e) {} // (just sample instead)
+		}
+		final BasicBSONEncoder encoder = new BasicBSONEncoder();
+		long num_bytes = 0L;
+		int num_docs = 0;
+		try (final DBCursor cursor = collection.find(query, projection.orElse(null)).limit(SIZE_SAMPLE_DOCS)) {
+			for (DBObject doc: cursor) {
+				num_bytes += encoder.encode(doc).length;
+				num_docs++;
+			}
+		}
+		return (num_docs > 0) ? ((double)num_bytes)/num_docs : 0.0;
+	}
+	
 	// Here's a list of removed options to keep the above code simpler
 	
 	// A) REMOVED BECAUSE THEY ARE OPTIONAL AND WE DON'T WANT THEM
@@ -18,21 +18,47 @@ package com.ikanow.aleph2.v1.document_db.hadoop.assets;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
 import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import scala.Tuple2;
+import scala.Tuple3;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.github.fakemongo.Fongo;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.v1.document_db.hadoop.assets.Aleph2V1InputFormat.V1DocumentDbRecordReader;
+import com.ikanow.infinit.e.data_model.custom.InfiniteMongoConfigUtil;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.hadoop.util.MongoConfigUtil;
 
 public class TestAleph2V1InputFormat {
 
@@ -57,6 +83,77 @@ public class TestAleph2V1InputFormat {
 		catch (IllegalStateException e) {} // (otherwise fail)		
 	}
 	
+	@Test
+	public void test_getCommunitySplits() {
+		final DBCollection collection = new Fongo("test_getCommunitySplits").getDB("doc_metadata").getCollection("metadata");
+		final ObjectId hot_community = new ObjectId();
+		final ObjectId medium_community = new ObjectId();
+		final ObjectId small_community = new ObjectId();
+		final ObjectId empty_community = new ObjectId();
+		for (ObjectId community_id: Arrays.asList(hot_community, medium_community, small_community)) {
+			final int num_docs = community_id.equals(hot_community) ? 2000 : community_id.equals(medium_community) ? 200 : 20;
+			for (int i = 0; i < num_docs; ++i) {
+				collection.insert(new BasicDBObject("communityId", community_id).append("index", "doc_" + community_id).append("title", "title " + i));
+			}
+		}
+		final DBObject query = new BasicDBObject("communityId", new BasicDBObject("$in", 
+				Arrays.asList(hot_community, medium_community, small_community, empty_community))).append("index", new BasicDBObject("$ne", "?DEL?"));
+		
+		// Replace the v1 splitter with one that records what it was asked for, and returns max.splits splits
+		final Map<Object, Tuple3<DBObject, Integer, Integer>> splitter_calls = new ConcurrentHashMap<>();
+		final Set<String> splitter_threads = ConcurrentHashMap.newKeySet();
+		final Aleph2V1InputFormat to_test = new Aleph2V1InputFormat() {
+			@Override
+			protected DBCollection getInputCollection(final Configuration config) {
+				return collection;
+			}
+			@Override
+			protected List<InputSplit> getSplitsForConfig(final JobContext context) {
+				final Configuration config = context.getConfiguration();
+				final DBObject splitter_query = MongoConfigUtil.getQuery(config);
+				splitter_calls.put(splitter_query.get("communityId"), 
+						Tuples._3T(splitter_query, InfiniteMongoConfigUtil.getMaxSplits(config), InfiniteMongoConfigUtil.getMaxDocsPerSplit(config)));
+				splitter_threads.add(Thread.currentThread().getName());
+				return IntStream.range(0, InfiniteMongoConfigUtil.getMaxSplits(config)).mapToObj(i -> Mockito.mock(InputSplit.class)).collect(Collectors.toList());
+			}
+		};
+		final Configuration config = new Configuration(false);
+		MongoConfigUtil.setQuery(config, query);
+		MongoConfigUtil.setFields(config, new BasicDBObject());
+		InfiniteMongoConfigUtil.setMaxSplits(config, 10);
+		InfiniteMongoConfigUtil.setMaxDocsPerSplit(config, 100);
+		config.setInt(Aleph2V1InputFormat.SPLIT_PLANNING_THREADS, 2);
+		
+		// Split by community: 10 splits shared out ~9/1/1, then the excess taken from the hot community (the empty community is skipped)
+		{
+			final List<InputSplit> splits = to_test.getSplits(new JobContextImpl(config, null));
+			assertEquals(10, splits.size());
+			assertEquals(3, splitter_calls.size());
+			assertEquals(Tuples._2T(8, 250), Tuples._2T(splitter_calls.get(hot_community)._2(), splitter_calls.get(hot_community)._3()));
+			assertEquals(Tuples._2T(1, 200), Tuples._2T(splitter_calls.get(medium_community)._2(), splitter_calls.get(medium_community)._3()));
+			assertEquals(Tuples._2T(1, 20), Tuples._2T(splitter_calls.get(small_community)._2(), splitter_calls.get(small_community)._3()));
+			
+			// (each community's query is the job's query narrowed to that community)
+			for (Tuple3<DBObject, Integer, Integer> call: splitter_calls.values()) {
+				assertEquals(new BasicDBObject("$ne", "?DEL?"), call._1().get("index"));
+				assertEquals(2, call._1().keySet().size());
+			}
+			// (run on the bounded pool, not the common fork/join pool)
+			assertTrue("Threads: " + splitter_threads, splitter_threads.size() <= 2);
+			assertTrue("Threads: " + splitter_threads, splitter_threads.stream().noneMatch(name -> name.startsWith("ForkJoinPool")));
+		}
+		// Not split by community: the v1 splitter is run once over the whole query
+		{
+			splitter_calls.clear();
+			config.setBoolean(Aleph2V1InputFormat.SPLIT_BY_COMMUNITY, false);
+			final List<InputSplit> splits = to_test.getSplits(new JobContextImpl(config, null));
+			assertEquals(10, splits.size());
+			assertEquals(1, splitter_calls.size());
+			assertEquals(Tuples._2T(10, 100), Tuples._2T(splitter_calls.values().iterator().next()._2(), splitter_calls.values().iterator().next()._3()));
+			assertEquals(query.get("communityId"), splitter_calls.keySet().iterator().next());
+		}
+	}
+	
 	@Test
 	public void test_V1DocumentDbRecordReader_objectConversion() throws IOException, InterruptedException {
 		
@@ -74,7 +171,7 @@ public class TestAleph2V1InputFormat {
 			assertEquals("text_test", key);
 			
 			final Tuple2<Long, IBatchRecord> value = reader_under_test.getCurrentValue();
-			assertEquals(0L, value._1().longValue()); // (so something breaks in here when/if we put some logic in)
+			assertEquals(new BasicBSONEncoder().encode(test_ret).length, value._1().longValue());
 			assertEquals(Optional.empty(), value._2().getContent());
 			final JsonNode json_val = value._2().getJson();
 			assertTrue("Is object: " + json_val, json_val.isObject());
@@ -114,4 +211,123 @@ public class TestAleph2V1InputFormat {
 		}
 		catch (Exception e) {}		
 	}
+	
+	@Test
+	public void test_V1DocumentDbRecordReader_sizes() throws IOException, InterruptedException {
+		final List<BSONObject> docs = createDocs(10);
+		
+		// Every combination of cursor batch size/re-use should return the same keys, sizes and values
+		for (int batch_size: Arrays.asList(0, 1, 3, 10, 25)) {
+			for (boolean reuse: Arrays.asList(false, true)) {
+				try (final V1DocumentDbRecordReader reader_under_test = new V1DocumentDbRecordReader(new ListRecordReader(docs), batch_size, reuse)) {
+					int i = 0;
+					while (reader_under_test.nextKeyValue()) {
+						final BSONObject expected = docs.get(i);
+						assertEquals(expected.get("_id").toString(), reader_under_test.getCurrentKey());
+						
+						final Tuple2<Long, IBatchRecord> value = reader_under_test.getCurrentValue();
+						assertTrue("Same object every call", value == reader_under_test.getCurrentValue());
+						assertEquals("Size: batch_size=" + batch_size + " reuse=" + reuse + " doc=" + expected, 
+								new BasicBSONEncoder().encode(expected).length, value._1().longValue());
+						assertEquals(expected.get("text"), value._2().getJson().get("text").asText());
+						assertEquals(i, value._2().getJson().get("nested").get("index").asInt());
+						i++;
+					}
+					assertEquals(docs.size(), i);
+					assertFalse(reader_under_test.nextKeyValue());
+				}
+			}
+		}
+		
+		// In re-use mode, the record object is shared
+		try (final V1DocumentDbRecordReader reader_under_test = new V1DocumentDbRecordReader(new ListRecordReader(docs), 0, true)) {
+			reader_under_test.nextKeyValue();
+			final IBatchRecord first = reader_under_test.getCurrentValue()._2();
+			reader_under_test.nextKeyValue();
+			assertTrue(first == reader_under_test.getCurrentValue()._2());
+			assertEquals(docs.get(1).get("text"), first.getJson().get("text").asText());
+		}
+	}
+	
+	@Ignore // (profiling only - allocation counts depend on the JVM/JIT, so this isn't run as part of the build)
+	@Test
+	public void test_V1DocumentDbRecordReader_allocationBenchmark() throws IOException, InterruptedException {
+		final java.lang.management.ThreadMXBean thread_bean = ManagementFactory.getThreadMXBean();
+		if (!(thread_bean instanceof com.sun.management.ThreadMXBean)) {
+			return; // (can't measure allocations on this JVM)
+		}
+		final com.sun.management.ThreadMXBean alloc_bean = (com.sun.management.ThreadMXBean) thread_bean;
+		final List<BSONObject> docs = createDocs(20000);
+		final long thread_id = Thread.currentThread().getId();
+		
+		long[] bytes_per_record = new long[2];
+		for (int run = 0; run < 2; ++run) { // (first run is warm up)
+			for (int mode = 0; mode < 2; ++mode) {
+				final boolean reuse = (1 == mode);
+				try (final V1DocumentDbRecordReader reader_under_test = new V1DocumentDbRecordReader(new ListRecordReader(docs), 0, reuse)) {
+					final long start_bytes = alloc_bean.getThreadAllocatedBytes(thread_id);
+					while (reader_under_test.nextKeyValue()) {
+						final Tuple2<Long, IBatchRecord> value = reader_under_test.getCurrentValue();
+						assertNotNull(value._2().getJson().get("num"));
+					}
+					final long bytes = alloc_bean.getThreadAllocatedBytes(thread_id) - start_bytes;
+					bytes_per_record[mode] = bytes/docs.size();
+				}
+			}
+		}
+		assertTrue("Re-use allocates less: " + Arrays.toString(bytes_per_record), bytes_per_record[1] < bytes_per_record[0]);
+	}
+	
+	/** Test docs with a variety of BSON types
+	 */
+	protected static List<BSONObject> createDocs(final int num_docs) {
+		final List<BSONObject> docs = new ArrayList<BSONObject>(num_docs);
+		for (int i = 0; i < num_docs; ++i) {
+			final BasicDBObject doc = new BasicDBObject("_id", new ObjectId());
+			doc.put("text", "text " + i + ((0 == (i % 3)) ? " \u00e9\u4e2d\ud83d\ude00" : ""));
+			doc.put("num", (long)i);
+			doc.put("int", i);
+			doc.put("dbl", i*0.5);
+			doc.put("bool", 0 == (i % 2));
+			doc.put("date", new Date(i*1000L));
+			doc.put("null", null);
+			doc.put("bin", new byte[i % 7]);
+			doc.put("list", Arrays.asList("a", i, new BasicDBObject("x", i)));
+			doc.put("nested", new BasicDBObject("index", i).append("tags", Arrays.asList("t1", "t2")));
+			docs.add(doc);
+		}
+		return docs;
+	}
+	
+	/** Record reader over a list of docs (like the mongo record reader, the key is the _id)
+	 */
+	protected static class ListRecordReader extends RecordReader<Object, BSONObject> {
+		protected final Iterator<BSONObject> _it;
+		protected BSONObject _current = null;
+		
+		ListRecordReader(final List<BSONObject> docs) {
+			_it = docs.iterator();
+		}
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) {}
+		@Override
+		public boolean nextKeyValue() {
+			_current = _it.hasNext() ? _it.next() : null;
+			return null != _current;
+		}
+		@Override
+		public Object getCurrentKey() {
+			return _current.get("_id");
+		}
+		@Override
+		public BSONObject getCurrentValue() {
+			return _current;
+		}
+		@Override
+		public float getProgress() {
+			return _it.hasNext() ? 0.0f : 1.0f;
+		}
+		@Override
+		public void close() {}
+	}
 }
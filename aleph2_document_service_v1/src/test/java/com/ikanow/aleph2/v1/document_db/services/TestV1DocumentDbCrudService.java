@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.v1.document_db.services;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.fakemongo.Fongo;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.IReadOnlyCrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ISecurityService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.shared.AuthorizationBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.v1.document_db.data_model.V1DocDbConfigBean;
+import com.ikanow.aleph2.v1.document_db.utils.JsonNodeBsonUtils;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+public class TestV1DocumentDbCrudService {
+
+	public static final ObjectId BIG_COMMUNITY = new ObjectId("565e076a12c33214b78fd3c2");
+	public static final ObjectId SMALL_COMMUNITY = new ObjectId("565e076a12c33214b78fd3c3");
+	public static final ObjectId OTHER_COMMUNITY = new ObjectId("565e076a12c33214b78fd3c4");
+	public static final int BIG_COMMUNITY_DOCS = 2500;
+	public static final int SMALL_COMMUNITY_DOCS = 10;
+	public static final int OTHER_COMMUNITY_DOCS = 50;
+	
+	protected DBCollection _collection;
+	protected ObjectId _other_community_doc_id;
+	protected ObjectId _deleted_doc_id;
+	
+	@Before
+	public void setup() {
+		_collection = new Fongo("TestV1DocumentDbCrudService").getDB("doc_metadata").getCollection("metadata");
+		_collection.createIndex(new BasicDBObject("communityId", 1));
+		
+		int index = 0;
+		for (Tuple2<ObjectId, Integer> community: Arrays.asList(new Tuple2<>(BIG_COMMUNITY, BIG_COMMUNITY_DOCS), new Tuple2<>(SMALL_COMMUNITY, SMALL_COMMUNITY_DOCS), new Tuple2<>(OTHER_COMMUNITY, OTHER_COMMUNITY_DOCS))) {
+			for (int i = 0; i < community._2(); ++i, ++index) {
+				final ObjectId id = new ObjectId();
+				_collection.insert(new BasicDBObject("_id", id)
+										.append("communityId", community._1())
+										.append("index", "document_index")
+										.append("title", "title " + index)
+										.append("order", index)
+										.append("mediaType", (0 == (i % 2)) ? "News" : "Social"));
+				if (community._1().equals(OTHER_COMMUNITY)) _other_community_doc_id = id;
+			}
+		}
+		// (one doc in the small community that v1 is deleting)
+		_deleted_doc_id = new ObjectId();
+		_collection.insert(new BasicDBObject("_id", _deleted_doc_id).append("communityId", SMALL_COMMUNITY).append("index", "?DEL?").append("title", "deleted"));
+	}
+	
+	@Test
+	public void test_communityRestrictedQueries() throws InterruptedException, ExecutionException {
+		final V1DocumentDbCrudService crud = new V1DocumentDbCrudService(_collection, Arrays.asList(SMALL_COMMUNITY, OTHER_COMMUNITY), 100);
+		
+		// Counts
+		assertEquals(SMALL_COMMUNITY_DOCS + OTHER_COMMUNITY_DOCS + 1, crud.countObjects().get().longValue()); // (index count includes the doc being deleted)
+		assertEquals(SMALL_COMMUNITY_DOCS + OTHER_COMMUNITY_DOCS, crud.countObjectsBySpec(CrudUtils.allOf()).get().longValue());
+		assertEquals((SMALL_COMMUNITY_DOCS + OTHER_COMMUNITY_DOCS)/2, crud.countObjectsBySpec(CrudUtils.allOf().when("mediaType", "News")).get().longValue());
+		assertEquals(7L, crud.countObjectsBySpec(CrudUtils.allOf().when("mediaType", "News").limit(7)).get().longValue());
+		
+		// (a query on a community that isn't allowed just returns nothing)
+		assertEquals(0L, crud.countObjectsBySpec(CrudUtils.allOf().when("communityId", BIG_COMMUNITY)).get().longValue());
+		
+		// Single objects
+		assertTrue(crud.getObjectById(_other_community_doc_id).get().isPresent());
+		assertTrue("String _ids are converted", crud.getObjectById(_other_community_doc_id.toString()).get().isPresent());
+		assertFalse("Deleted docs are ignored", crud.getObjectById(_deleted_doc_id).get().isPresent());
+		
+		final ObjectId big_community_doc_id = (ObjectId) _collection.findOne(new BasicDBObject("communityId", BIG_COMMUNITY)).get("_id");
+		assertFalse("Other communities are ignored", crud.getObjectById(big_community_doc_id).get().isPresent());
+		assertTrue(new V1DocumentDbCrudService(_collection, Arrays.asList(BIG_COMMUNITY), 100).getObjectById(big_community_doc_id).get().isPresent());
+		
+		final Optional<JsonNode> first = crud.getObjectBySpec(CrudUtils.allOf().when("mediaType", "Social").orderBy(new Tuple2<String, Integer>("order", -1))).get();
+		assertTrue(first.isPresent());
+		assertTrue("Lazy wrapper: " + first.get().getClass(), first.get() instanceof JsonNodeBsonUtils.ObjectNodeWrapper);
+		assertEquals(OTHER_COMMUNITY.toString(), first.get().get("communityId").asText());
+		assertEquals(SMALL_COMMUNITY_DOCS + BIG_COMMUNITY_DOCS + OTHER_COMMUNITY_DOCS - 1, first.get().get("order").asInt());
+		
+		// Field lists
+		final JsonNode title_only = crud.getObjectById(_other_community_doc_id, Arrays.asList("title"), true).get().get();
+		assertTrue(title_only.has("title"));
+		assertFalse(title_only.has("mediaType"));
+		assertFalse(title_only.has("_id"));
+		final JsonNode no_title = crud.getObjectById(_other_community_doc_id, Arrays.asList("title"), false).get().get();
+		assertFalse(no_title.has("title"));
+		assertTrue(no_title.has("mediaType"));
+		
+		// Sorted/limited cursors
+		try (final Cursor<JsonNode> cursor = crud.getObjectsBySpec(CrudUtils.allOf().orderBy(new Tuple2<String, Integer>("order", 1)).limit(5), Arrays.asList("order", "communityId"), true).get()) {
+			int last = -1;
+			int n = 0;
+			for (JsonNode j: cursor) {
+				assertTrue(j.get("order").asInt() > last);
+				last = j.get("order").asInt();
+				assertEquals(SMALL_COMMUNITY.toString(), j.get("communityId").asText());
+				n++;
+			}
+			assertEquals(5, n);
+		}
+	}
+	
+	@Test
+	public void test_filteredRepo() throws InterruptedException, ExecutionException {
+		// (user can read the small community, but not the other one)
+		final ISecurityService security = Mockito.mock(ISecurityService.class);
+		Mockito.when(security.isUserPermitted("user", Tuples._2T("community", SMALL_COMMUNITY.toString()), Optional.of(ISecurityService.ACTION_READ))).thenReturn(true);
+		
+		final V1DocumentDbCrudService crud = new V1DocumentDbCrudService(_collection, Arrays.asList(SMALL_COMMUNITY, OTHER_COMMUNITY), 100, Optional.of(security));
+		
+		// No user: not filtered
+		assertTrue(crud == crud.getFilteredRepo("", Optional.empty(), Optional.empty()));
+		
+		// A user but no security service to check them against: nothing can be read
+		final V1DocumentDbCrudService no_security_crud = new V1DocumentDbCrudService(_collection, Arrays.asList(SMALL_COMMUNITY, OTHER_COMMUNITY), 100);
+		final ICrudService<JsonNode> no_security_user_crud = no_security_crud.getFilteredRepo("", Optional.of(new AuthorizationBean("user")), Optional.empty());
+		assertTrue(no_security_crud != no_security_user_crud);
+		assertEquals(0L, no_security_user_crud.countObjects().get().longValue());
+		assertEquals(0L, no_security_user_crud.countObjectsBySpec(CrudUtils.allOf()).get().longValue());
+		assertFalse(no_security_user_crud.getObjectById(_other_community_doc_id).get().isPresent());
+		
+		// Unpermitted communities are rejected
+		final ICrudService<JsonNode> user_crud = crud.getFilteredRepo("", Optional.of(new AuthorizationBean("user")), Optional.empty());
+		assertEquals(SMALL_COMMUNITY_DOCS + 1, user_crud.countObjects().get().longValue()); // (index count includes the doc being deleted)
+		assertEquals(SMALL_COMMUNITY_DOCS, user_crud.countObjectsBySpec(CrudUtils.allOf()).get().longValue());
+		assertFalse(user_crud.getObjectById(_other_community_doc_id).get().isPresent());
+		assertEquals(0L, user_crud.countObjectsBySpec(CrudUtils.allOf().when("communityId", OTHER_COMMUNITY)).get().longValue());
+		assertTrue(crud.getObjectById(_other_community_doc_id).get().isPresent());
+		
+		// (and a user who can't read any of them sees nothing)
+		final ICrudService<JsonNode> other_user_crud = crud.getFilteredRepo("", Optional.of(new AuthorizationBean("other_user")), Optional.empty());
+		assertEquals(0L, other_user_crud.countObjects().get().longValue());
+		assertEquals(0L, other_user_crud.countObjectsBySpec(CrudUtils.allOf()).get().longValue());
+	}
+	
+	@Test
+	public void test_largeResultSets() throws Exception {
+		// (small batch size, so the cursor has to go back to the DB many times)
+		final V1DocumentDbCrudService crud = new V1DocumentDbCrudService(_collection, Arrays.asList(BIG_COMMUNITY, SMALL_COMMUNITY), 7);
+		
+		try (final Cursor<JsonNode> cursor = crud.getObjectsBySpec(CrudUtils.allOf()).get()) {
+			assertEquals(BIG_COMMUNITY_DOCS + SMALL_COMMUNITY_DOCS, cursor.count());
+			final Set<String> ids = new HashSet<String>();
+			final Iterator<JsonNode> it = cursor.iterator();
+			while (it.hasNext()) {
+				final JsonNode j = it.next();
+				assertNotEquals(OTHER_COMMUNITY.toString(), j.get("communityId").asText());
+				assertNotEquals("deleted", j.get("title").asText());
+				ids.add(j.get("_id").asText());
+			}
+			assertEquals(BIG_COMMUNITY_DOCS + SMALL_COMMUNITY_DOCS, ids.size());
+		}
+		
+		// Filtered within the communities
+		try (final Cursor<JsonNode> cursor = crud.getObjectsBySpec(CrudUtils.allOf().rangeAbove("order", 2000, true)).get()) {
+			int n = 0;
+			for (@SuppressWarnings("unused") JsonNode j: cursor) n++;
+			assertEquals((BIG_COMMUNITY_DOCS - 2001) + SMALL_COMMUNITY_DOCS, n);
+		}
+	}
+	
+	@Test
+	public void test_readOnly() throws InterruptedException {
+		final V1DocumentDbCrudService crud = new V1DocumentDbCrudService(_collection, Arrays.asList(SMALL_COMMUNITY), 100);
+		
+		final List<java.util.concurrent.CompletableFuture<?>> writes = Arrays.asList(
+				crud.storeObject(BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode()),
+				crud.deleteObjectBySpec(CrudUtils.allOf().when("title", "title 0")),
+				crud.deleteObjectById(_deleted_doc_id),
+				crud.deleteObjectsBySpec(CrudUtils.allOf()),
+				crud.deleteDatastore(),
+				crud.optimizeQuery(Arrays.asList("title"))
+				);
+		for (java.util.concurrent.CompletableFuture<?> write: writes) {
+			try {
+				write.get();
+				fail("Should have errored");
+			}
+			catch (ExecutionException e) {}
+		}
+		assertFalse(crud.deregisterOptimizedQuery(Arrays.asList("title")));
+		assertEquals(SMALL_COMMUNITY_DOCS + OTHER_COMMUNITY_DOCS + BIG_COMMUNITY_DOCS + 1, _collection.count());
+		
+		assertEquals(Optional.of(_collection), crud.getUnderlyingPlatformDriver(DBCollection.class, Optional.empty()));
+		assertEquals(Optional.empty(), crud.getSearchService());
+	}
+	
+	@Test
+	public void test_getReadableCrudService() throws InterruptedException, ExecutionException {
+		final V1DocumentDbService service = new V1DocumentDbService(null, new V1DocDbConfigBean("test:27018")) {
+			@Override
+			protected synchronized DBCollection getDocumentCollection() {
+				return _collection;
+			}
+		};
+		assertTrue(service.getDataService().isPresent());
+		assertEquals(Optional.empty(), service.getDataService().get().getWritableDataService(JsonNode.class, bucket(SMALL_COMMUNITY), Optional.empty(), Optional.empty()));
+		assertEquals(Optional.empty(), service.getDataService().get().getUpdatableCrudService(JsonNode.class, Arrays.asList(bucket(SMALL_COMMUNITY)), Optional.empty()));
+		
+		// (only JsonNode, and only v1 buckets)
+		assertEquals(Optional.empty(), service.getDataService().get().getReadableCrudService(String.class, Arrays.asList(bucket(SMALL_COMMUNITY)), Optional.empty()));
+		assertEquals(Optional.empty(), service.getDataService().get().getReadableCrudService(JsonNode.class, 
+				Arrays.asList(BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/v2").done().get()), Optional.empty()));
+		
+		final Optional<IReadOnlyCrudService<JsonNode>> crud = service.getDataService().get().getReadableCrudService(JsonNode.class, 
+				Arrays.asList(bucket(SMALL_COMMUNITY, OTHER_COMMUNITY), bucket(SMALL_COMMUNITY)), Optional.empty());
+		assertTrue(crud.isPresent());
+		assertEquals(SMALL_COMMUNITY_DOCS + OTHER_COMMUNITY_DOCS, crud.get().countObjectsBySpec(CrudUtils.allOf()).get().longValue());
+		
+		final Optional<ICrudService<JsonNode>> no_crud = service.getDataService().get().getUpdatableCrudService(JsonNode.class, Arrays.asList(bucket(SMALL_COMMUNITY)), Optional.empty());
+		assertFalse(no_crud.isPresent());
+	}
+	
+	/** Creates a v1 external bucket for the communities
+	 */
+	protected static DataBucketBean bucket(final ObjectId... communities) {
+		return BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/aleph2_external/" + String.join("_", Arrays.stream(communities).map(c -> c.toString()).toArray(String[]::new)))
+				.done().get();
+	}
+}
@@ -18,15 +18,25 @@ package com.ikanow.aleph2.v1.document_db.utils;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.types.BSONTimestamp;
 import org.bson.types.ObjectId;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -37,6 +47,7 @@ import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.v1.document_db.utils.JsonNodeBsonUtils.ObjectNodeWrapper;
 import com.mongodb.BasicDBList;
@@ -150,4 +161,173 @@ public class TestJsonNodeBsonUtils {
 		o2.removeAll();
 		assertEquals(0, o2.size());		
 	}
+	
+	@Test
+	public void test_fromRawBson() throws IOException {
+		final ObjectMapper mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+		
+		final BasicDBObject m1 = new BasicDBObject();
+		m1.put("test1", true);
+		final BasicDBList a1 = new BasicDBList();
+		a1.add(4); a1.add("five"); a1.add(new BasicDBObject("six", 6L));
+		m1.put("array", a1);
+		
+		final BasicDBObject m2 = new BasicDBObject();
+		m2.put("_id", new ObjectId("4c927585d591d31d7b37097a"));
+		m2.put("nested", m1);
+		m2.put("str", "test2\u00e9");
+		m2.put("int", 4);
+		m2.put("long", 5L);
+		m2.put("dbl", 4.5);
+		m2.put("date", new Date(1000L));
+		m2.put("bin", new byte[] { (byte)0xFF, (byte)0xFE });
+		m2.put("regex", Pattern.compile("a.*b"));
+		m2.put("ts", new BSONTimestamp(1, 2));
+		m2.put("null", null);
+		m2.put("last", "last");
+		
+		final byte[] bson = new BasicBSONEncoder().encode(m2);
+		
+		// All fields: same as the wrapper (unsupported types are nulls)
+		final ObjectNode j = JsonNodeBsonUtils.from(bson, Optional.empty());
+		assertEquals(12, j.size());
+		for (String field: Arrays.asList("_id", "nested", "str", "int", "long", "dbl", "date", "bin", "last")) {
+			// (the wrapper's children map doesn't implement equals, so compare this way round)
+			assertEquals(field, j.get(field), JsonNodeBsonUtils.transform(m2.get(field), JsonNodeFactory.instance));
+		}
+		assertEquals(mapper.convertValue("4c927585d591d31d7b37097a", JsonNode.class), j.get("_id"));
+		assertEquals(mapper.convertValue(1000L, JsonNode.class), j.get("date"));
+		assertEquals("{\"test1\":true,\"array\":[4,\"five\",{\"six\":6}]}", j.get("nested").toString());
+		assertEquals(NullNode.instance, j.get("regex"));
+		assertEquals(NullNode.instance, j.get("ts"));
+		assertEquals(NullNode.instance, j.get("null"));
+		
+		// Selected fields: the others are skipped
+		final ObjectNode j2 = JsonNodeBsonUtils.from(bson, Optional.of(new HashSet<String>(Arrays.asList("nested", "bin", "last", "not_present"))));
+		assertEquals(Arrays.asList("nested", "bin", "last"), Optionals.streamOf(j2.fieldNames(), false).collect(Collectors.toList()));
+		assertEquals(j.get("nested"), j2.get("nested"));
+		assertEquals(j.get("bin"), j2.get("bin"));
+		assertEquals("last", j2.get("last").asText());
+		
+		// Truncated
+		try {
+			JsonNodeBsonUtils.from(Arrays.copyOf(bson, bson.length/2), Optional.empty());
+			fail("Should have thrown");
+		}
+		catch (IOException e) {}
+	}
+	
+	/** Wide documents with a mix of field types
+	 * @param num_docs
+	 * @param num_fields
+	 * @return
+	 */
+	protected static List<BasicDBObject> createWideDocuments(final int num_docs, final int num_fields) {
+		final List<BasicDBObject> docs = new ArrayList<BasicDBObject>(num_docs);
+		for (int i = 0; i < num_docs; ++i) {
+			final BasicDBObject doc = new BasicDBObject();
+			for (int f = 0; f < num_fields; ++f) {
+				switch (f % 4) {
+					case 0: doc.put("field_" + f, "value " + i + " " + f); break;
+					case 1: doc.put("field_" + f, (long)(i*f)); break;
+					case 2: doc.put("field_" + f, new BasicDBObject("nested", f).append("text", "nested text")); break;
+					default: doc.put("field_" + f, new Date(i*1000L)); break;
+				}
+			}
+			docs.add(doc);
+		}
+		return docs;
+	}
+	
+	@Test
+	public void test_wideDocuments() throws IOException {
+		final List<String> read_fields = Arrays.asList("field_0", "field_50", "field_100", "field_150", "field_199");
+		
+		final List<BasicDBObject> docs = createWideDocuments(20, 200);
+		final Set<String> read_field_set = new HashSet<String>(read_fields);
+		
+		// All the ways of reading a few fields from a wide document give the same results as copying the whole document:
+		// the wrapper (direct lookups), raw BSON -> BSONObject -> wrapper, and raw BSON -> tokens (only the selected fields)
+		for (BasicDBObject doc: docs) {
+			final byte[] raw = new BasicBSONEncoder().encode(doc);
+			final JsonNode wrapper = JsonNodeBsonUtils.from(doc);
+			final JsonNode decoded = JsonNodeBsonUtils.from(new BasicBSONDecoder().readObject(raw));
+			final JsonNode streamed = JsonNodeBsonUtils.from(raw, Optional.of(read_field_set));
+			
+			assertEquals(read_fields.size(), streamed.size());
+			for (String field: read_fields) {
+				final String expected = JsonNodeBsonUtils.transform(doc.toMap().get(field), JsonNodeFactory.instance).toString();
+				assertEquals(field, expected, wrapper.get(field).toString());
+				assertEquals(field, expected, decoded.get(field).toString());
+				assertEquals(field, expected, streamed.get(field).toString());
+			}
+		}
+	}
+	
+	@Ignore // (profiling only - timings depend on the machine and the JIT, so this isn't run as part of the build)
+	@Test
+	public void test_wideDocumentBenchmark() throws IOException {
+		final int num_docs = 2000;
+		final int num_fields = 200;
+		final List<String> read_fields = Arrays.asList("field_0", "field_50", "field_100", "field_150", "field_199");
+		
+		final List<BasicDBObject> docs = createWideDocuments(num_docs, num_fields);
+		final List<byte[]> raw_docs = docs.stream().map(doc -> new BasicBSONEncoder().encode(doc)).collect(Collectors.toList());
+		final Set<String> read_field_set = new HashSet<String>(read_fields);
+		
+		for (int run = 0; run < 2; ++run) { // (first run is warm up)
+			// 1) The old way: every field access copies the whole document into a new map
+			long start = System.nanoTime();
+			long copy_hash = 0L;
+			for (BasicDBObject doc: docs) {
+				for (String field: read_fields) {
+					copy_hash += JsonNodeBsonUtils.transform(doc.toMap().get(field), JsonNodeFactory.instance).toString().hashCode();
+				}
+			}
+			final long copy_time = System.nanoTime() - start;
+			
+			// 2) Wrapper, direct lookups
+			start = System.nanoTime();
+			long wrapper_hash = 0L;
+			for (BasicDBObject doc: docs) {
+				final JsonNode j = JsonNodeBsonUtils.from(doc);
+				for (String field: read_fields) {
+					wrapper_hash += j.get(field).toString().hashCode();
+				}
+			}
+			final long wrapper_time = System.nanoTime() - start;
+			
+			// 3) Raw BSON -> BSONObject -> wrapper
+			start = System.nanoTime();
+			long decode_hash = 0L;
+			for (byte[] raw: raw_docs) {
+				final JsonNode j = JsonNodeBsonUtils.from(new BasicBSONDecoder().readObject(raw));
+				for (String field: read_fields) {
+					decode_hash += j.get(field).toString().hashCode();
+				}
+			}
+			final long decode_time = System.nanoTime() - start;
+			
+			// 4) Raw BSON -> tokens (only the selected fields)
+			start = System.nanoTime();
+			long stream_hash = 0L;
+			for (byte[] raw: raw_docs) {
+				final JsonNode j = JsonNodeBsonUtils.from(raw, Optional.of(read_field_set));
+				for (String field: read_fields) {
+					stream_hash += j.get(field).toString().hashCode();
+				}
+			}
+			final long stream_time = System.nanoTime() - start;
+			
+			assertEquals(copy_hash, wrapper_hash);
+			assertEquals(copy_hash, decode_hash);
+			assertEquals(copy_hash, stream_hash);
+			if (run > 0) {
+				final String timings = ErrorUtils.get("Read {0} of {1} fields from {2} docs: copy={3}ms wrapper={4}ms decode+wrapper={5}ms stream={6}ms", 
+						read_fields.size(), num_fields, num_docs, copy_time/1000000L, wrapper_time/1000000L, decode_time/1000000L, stream_time/1000000L);
+				assertTrue(timings, wrapper_time < copy_time);
+				assertTrue(timings, stream_time < decode_time);
+			}
+		}
+	}
 }
@@ -17,14 +17,23 @@ package com.ikanow.aleph2.v1.document_db.utils;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.hadoop.mapreduce.InputFormat;
+import org.bson.types.ObjectId;
 import org.junit.Test;
 
+import scala.Tuple2;
+import scala.Tuple3;
+
+import com.github.fakemongo.Fongo;
 import com.google.common.collect.ImmutableMap;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsAccessContext;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ISecurityService;
@@ -32,9 +41,14 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.MockSecurityServi
 import com.ikanow.aleph2.data_model.interfaces.shared_services.MockServiceContext;
 import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadJobBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.v1.document_db.data_model.V1DocDbConfigBean;
 import com.ikanow.aleph2.v1.document_db.hadoop.assets.Aleph2V1InputFormat;
 import com.ikanow.aleph2.v1.document_db.services.V1DocumentDbService;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
 
 import fj.data.Either;
 
@@ -117,7 +131,7 @@ public class TestV1DocumentDbHadoopUtils {
 			//DEBUG
 			//System.out.println(res);			
 			
-			assertEquals(9, res.size());
+			assertEquals(10, res.size());
 			assertEquals("unknown:/aleph2_external/565e076a12c33214b78fd3c2_565e076a12c33214b78fd3c3", res.get("mongo.job.name"));
 			assertEquals("true", res.get("mongo.job.verbose"));
 			assertEquals("false", res.get("mongo.job.background"));
@@ -128,8 +142,9 @@ public class TestV1DocumentDbHadoopUtils {
 			assertEquals("8", res.get("max.splits"));
 			assertEquals("12500", res.get("max.docs.per.split"));
 			assertEquals(null, res.get("infinit.e.source.tags.filter"));
+			assertEquals("67108864", res.get(Aleph2V1InputFormat.BYTES_PER_SPLIT));
 
-			assertEquals("service_name=Aleph2V1InputFormat options={mongo.input.limit=10, max.docs.per.split=12500, mongo.input.fields=, mongo.input.query={ \"communityId\" : { \"$in\" : [ { \"$oid\" : \"565e076a12c33214b78fd3c2\"} , { \"$oid\" : \"565e076a12c33214b78fd3c3\"}]} , \"index\" : { \"$ne\" : \"?DEL?\"}}, mongo.job.name=unknown:/aleph2_external/565e076a12c33214b78fd3c2_565e076a12c33214b78fd3c3, max.splits=8, mongo.input.uri=mongodb://test:27018/doc_metadata.metadata}", access_context.describe());
+			assertEquals("service_name=Aleph2V1InputFormat options={mongo.input.limit=10, max.docs.per.split=12500, mongo.input.fields=, mongo.input.query={ \"communityId\" : { \"$in\" : [ { \"$oid\" : \"565e076a12c33214b78fd3c2\"} , { \"$oid\" : \"565e076a12c33214b78fd3c3\"}]} , \"index\" : { \"$ne\" : \"?DEL?\"}}, mongo.job.name=unknown:/aleph2_external/565e076a12c33214b78fd3c2_565e076a12c33214b78fd3c3, aleph2.v1.bytes.per.split=67108864, max.splits=8, mongo.input.uri=mongodb://test:27018/doc_metadata.metadata}", access_context.describe());
 		}
 		// Srctags specified
 		{
@@ -147,9 +162,118 @@ public class TestV1DocumentDbHadoopUtils {
 			
 			Map<String, Object> res = access_context.getAccessConfig().get();			
 			
-			assertEquals(10, res.size());
+			assertEquals(11, res.size());
 			assertEquals("{ \"tags\" : \"test\"}", res.get("infinit.e.source.tags.filter"));			
 		}
+		// Fields declared as a list, fixed split sizes
+		{
+			final AnalyticThreadJobBean.AnalyticThreadJobInputBean job_input3 =
+					BeanTemplateUtils.clone(job_input)
+						.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::filter,
+								new LinkedHashMap<String, Object>(
+										ImmutableMap.<String, Object>builder()
+											.put(":fields", Arrays.asList("title", "entities"))
+											.put(":docsPerSplit", 1000)
+										.build()
+								))
+					.done();
+			
+			@SuppressWarnings("rawtypes")
+			IAnalyticsAccessContext<InputFormat> 
+				access_context = V1DocumentDbHadoopUtils.getInputFormat("misc_user", job_input3, Optional.empty(), config);
+			
+			Map<String, Object> res = access_context.getAccessConfig().get();			
+			
+			assertEquals(9, res.size());
+			assertEquals("{ \"title\" : 1 , \"entities\" : 1}", res.get("mongo.input.fields"));			
+			assertEquals("1000", res.get("max.docs.per.split"));			
+			assertEquals(null, res.get(Aleph2V1InputFormat.BYTES_PER_SPLIT));
+		}
+	}
+	
+	@Test
+	public void test_calculateSplitSizes() {
+		final DBCollection collection = new Fongo("test_calculateSplitSizes").getDB("doc_metadata").getCollection("metadata");
+		final ObjectId community_id = new ObjectId();
+		final String full_text = Stream.generate(() -> "0123456789").limit(200).collect(Collectors.joining());
+		for (int i = 0; i < 1000; ++i) {
+			collection.insert(new BasicDBObject("communityId", community_id).append("index", "doc_" + community_id).append("title", "title " + i).append("fullText", full_text));
+		}
+		collection.insert(new BasicDBObject("communityId", new ObjectId()).append("title", "other community"));
+		final DBObject query = new BasicDBObject("communityId", new BasicDBObject("$in", Arrays.asList(community_id))).append("index", new BasicDBObject("$ne", "?DEL?"));
+		final long bytes_per_split = 200L*1024L;
+		
+		// Whole documents (~2KB each, ~2MB total)
+		final double doc_size = V1DocumentDbHadoopUtils.getAverageDocSize(collection, query, Optional.empty());
+		assertTrue("Doc size: " + doc_size, doc_size > 2000);
+		final Tuple2<Integer, Integer> full_splits = V1DocumentDbHadoopUtils.calculateSplitSizes(collection, query, Optional.empty(), bytes_per_split, 100);
+		assertEquals((int)Math.ceil(1000*doc_size/bytes_per_split), full_splits._1().intValue());
+		assertTrue("Splits: " + full_splits, (full_splits._1() >= 9) && (full_splits._1() <= 12));
+		assertTrue("Splits: " + full_splits, full_splits._1()*full_splits._2() >= 1000);
+		
+		// Limited by max splits
+		assertEquals(Tuples._2T(8, 125), V1DocumentDbHadoopUtils.calculateSplitSizes(collection, query, Optional.empty(), bytes_per_split, 8));
+
+		// Projected: only the titles are read, so it all fits in one split
+		final DBObject fields = V1DocumentDbHadoopUtils.getFieldProjection((DBObject) JSON.parse("[ \"title\" ]"));
+		final double projected_size = V1DocumentDbHadoopUtils.getAverageDocSize(collection, query, Optional.of(fields));
+		assertTrue("Projected doc size: " + projected_size, projected_size < 100);
+		assertEquals(Tuples._2T(1, 1000), V1DocumentDbHadoopUtils.calculateSplitSizes(collection, query, Optional.of(fields), bytes_per_split, 100));
+	}
+	
+	@Test
+	public void test_calculateCommunitySplitSizes() {
+		final DBCollection collection = new Fongo("test_calculateCommunitySplitSizes").getDB("doc_metadata").getCollection("metadata");
+		final ObjectId hot_community = new ObjectId();
+		final ObjectId medium_community = new ObjectId();
+		final ObjectId small_community = new ObjectId();
+		final ObjectId empty_community = new ObjectId();
+		final String full_text = Stream.generate(() -> "0123456789").limit(20).collect(Collectors.joining());
+		for (ObjectId community_id: Arrays.asList(hot_community, medium_community, small_community)) {
+			final int num_docs = community_id.equals(hot_community) ? 2000 : community_id.equals(medium_community) ? 200 : 20;
+			for (int i = 0; i < num_docs; ++i) {
+				collection.insert(new BasicDBObject("communityId", community_id).append("index", "doc_" + community_id).append("title", String.format("title %05d", i)).append("fullText", full_text));
+			}
+		}
+		final DBObject query = new BasicDBObject("communityId", new BasicDBObject("$in", 
+				Arrays.asList(hot_community, medium_community, small_community, empty_community))).append("index", new BasicDBObject("$ne", "?DEL?"));
+		
+		assertEquals(Arrays.asList(hot_community, medium_community, small_community, empty_community), V1DocumentDbHadoopUtils.getQueryCommunityIds(query));
+		assertEquals(Collections.emptyList(), V1DocumentDbHadoopUtils.getQueryCommunityIds(new BasicDBObject("communityId", hot_community)));
+		
+		// By doc count: 10 splits of 100 docs shared out ~9/1/1, then the excess taken from the hot community
+		{
+			final List<Tuple3<DBObject, Integer, Integer>> plan = V1DocumentDbHadoopUtils.calculateCommunitySplitSizes(collection, query, Optional.empty(), 0L, 100, 10);
+			assertEquals(3, plan.size()); // (empty community dropped)
+			assertEquals(Arrays.asList(hot_community, medium_community, small_community), plan.stream().map(t3 -> t3._1().get("communityId")).collect(Collectors.toList()));
+			assertEquals(new BasicDBObject("$ne", "?DEL?"), plan.get(0)._1().get("index"));
+			assertEquals(Arrays.asList(8, 1, 1), plan.stream().map(t3 -> t3._2()).collect(Collectors.toList()));
+			assertEquals(Arrays.asList(250, 200, 20), plan.stream().map(t3 -> t3._3()).collect(Collectors.toList()));
+		}
+		// By size: plenty of splits, so each community gets the splits it needs and they are all ~the same size
+		{
+			final double doc_size = V1DocumentDbHadoopUtils.getAverageDocSize(collection, query, Optional.empty());
+			final List<Tuple3<DBObject, Integer, Integer>> plan = V1DocumentDbHadoopUtils.calculateCommunitySplitSizes(collection, query, Optional.empty(), (long)(100*doc_size), 0, 100);
+			assertEquals(3, plan.size());
+			assertTrue("Splits: " + plan, plan.stream().mapToInt(t3 -> t3._2()).sum() <= 100);
+			assertTrue("Splits: " + plan, (plan.get(0)._2() >= 18) && (plan.get(0)._2() <= 22));
+			assertTrue("Splits: " + plan, (plan.get(1)._2() >= 2) && (plan.get(1)._2() <= 3));
+			assertEquals(1, plan.get(2)._2().intValue());
+			assertTrue("Splits: " + plan, (plan.get(0)._3() <= 2*plan.get(1)._3()) && (plan.get(1)._3() <= 2*plan.get(0)._3()));
+			assertTrue("Splits: " + plan, plan.get(0)._2()*plan.get(0)._3() >= 2000);
+			assertTrue("Splits: " + plan, plan.get(1)._2()*plan.get(1)._3() >= 200);
+		}
+		// Tight budget: stays within max splits, with the hot community getting the most
+		{
+			final List<Tuple3<DBObject, Integer, Integer>> plan = V1DocumentDbHadoopUtils.calculateCommunitySplitSizes(collection, query, Optional.empty(), 0L, 1, 5);
+			assertEquals(5, plan.stream().mapToInt(t3 -> t3._2()).sum());
+			assertEquals(Arrays.asList(3, 1, 1), plan.stream().map(t3 -> t3._2()).collect(Collectors.toList()));
+			assertEquals(667, plan.get(0)._3().intValue());
+		}
+		// Can't split by community: single community, or more communities than splits
+		assertEquals(Collections.emptyList(), V1DocumentDbHadoopUtils.calculateCommunitySplitSizes(collection, 
+				new BasicDBObject("communityId", new BasicDBObject("$in", Arrays.asList(hot_community))), Optional.empty(), 0L, 100, 10));
+		assertEquals(Collections.emptyList(), V1DocumentDbHadoopUtils.calculateCommunitySplitSizes(collection, query, Optional.empty(), 0L, 100, 3));
 	}
 	
 }
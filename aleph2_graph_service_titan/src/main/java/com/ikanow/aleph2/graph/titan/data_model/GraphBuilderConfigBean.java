@@ -16,6 +16,8 @@
 
 package com.ikanow.aleph2.graph.titan.data_model;
 
+import java.util.Optional;
+
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.GraphSchemaBean;
 
 /** Optional config bean for graph
@@ -30,5 +32,21 @@ public class GraphBuilderConfigBean {
 	 */
 	public GraphSchemaBean graph_schema_override() { return graph_schema_override; }
 	
+	/** The max number of vertex key -> vertex id mappings cached across batches, to avoid repeated index lookups for recurring vertices (0 to disable)
+	 * @return
+	 */
+	public Long vertex_cache_size() { return Optional.ofNullable(vertex_cache_size).orElse(DEFAULT_VERTEX_CACHE_SIZE); }
+	
+	public static final Long DEFAULT_VERTEX_CACHE_SIZE = 10000L;
+	
+	/** If true, each batch is split into independent groups of connected elements which are written in Titan batch-loading transactions,
+	 *  and on lock contention only the groups containing the conflicting keys are retried (defaults to false)
+	 *  (duplicates that slip through because of the relaxed consistency checks are merged at the end of the stage as usual)
+	 * @return
+	 */
+	public Boolean bulk_load() { return Optional.ofNullable(bulk_load).orElse(false); }
+	
 	private GraphSchemaBean graph_schema_override;
+	private Long vertex_cache_size;
+	private Boolean bulk_load;
 }
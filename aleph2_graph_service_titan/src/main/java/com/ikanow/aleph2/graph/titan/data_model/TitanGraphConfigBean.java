@@ -29,7 +29,22 @@ public class TitanGraphConfigBean {
 
 	public String config_path_name() { return Optional.ofNullable(config_path_name).orElse(DEFAULT_TITAN_CONFIG); }
 	public Map<String, Object> config_override() { return config_override; }
+	
+	/** The max number of vertices (or edges) removed/edited in a single transaction when deleting a bucket
+	 * @return
+	 */
+	public Integer deletion_batch_size() { return Optional.ofNullable(deletion_batch_size).orElse(DEFAULT_DELETION_BATCH_SIZE); }
+	
+	/** The number of threads across which each round of bucket deletion is partitioned
+	 * @return
+	 */
+	public Integer deletion_threads() { return Optional.ofNullable(deletion_threads).orElse(DEFAULT_DELETION_THREADS); }
+	
+	public static final Integer DEFAULT_DELETION_BATCH_SIZE = 1000;
+	public static final Integer DEFAULT_DELETION_THREADS = 4;
 		
 	private Map<String, Object> config_override;
 	private String config_path_name;
+	private Integer deletion_batch_size;
+	private Integer deletion_threads;
 }
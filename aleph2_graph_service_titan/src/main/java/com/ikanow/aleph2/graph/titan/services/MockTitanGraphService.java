@@ -28,6 +28,7 @@ import com.google.inject.Module;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.UuidUtils;
+import com.ikanow.aleph2.graph.titan.data_model.TitanGraphConfigBean;
 import com.ikanow.aleph2.graph.titan.module.TitanGraphModule;
 
 /** Titan implementation of the graph service
@@ -48,6 +49,15 @@ public class MockTitanGraphService extends TitanGraphService {
 		_USE_ES_FOR_DEDUP_INDEXES = true; //(since the in memory backing store doesn't support indexes at all)
 	}
 	
+	/** Shares another mock service's graph, but with different (non-connection) settings
+	 * @param to_share - the mock service whose graph to use
+	 * @param config - the settings
+	 */
+	public MockTitanGraphService(final MockTitanGraphService to_share, final TitanGraphConfigBean config) {
+		super(to_share._titan, config);
+		_USE_ES_FOR_DEDUP_INDEXES = true;
+	}
+	
 	/** This service needs to load some additional classes via Guice. Here's the module that defines the bindings
 	 * @return
 	 */
@@ -16,8 +16,10 @@
 
 package com.ikanow.aleph2.graph.titan.services;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -26,6 +28,7 @@ import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -33,9 +36,12 @@ import org.apache.logging.log4j.Level;
 import org.apache.tinkerpop.gremlin.structure.Vertex;
 
 import scala.Tuple2;
+import scala.Tuple4;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
@@ -89,14 +95,17 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 	protected final SetOnce<IBucketLogger> _logger = new SetOnce<>();
 	protected final SetOnce<MutableStatsBean> _mutable_stats = new SetOnce<>();
 	protected final SetOnce<TitanGraph> _titan = new SetOnce<>();
+	protected final SetOnce<Cache<JsonNode, Long>> _vertex_cache = new SetOnce<>(); // (vertex key -> vertex id, across batches)
 	
 	protected final Set<ObjectNode> _mutable_new_vertex_keys = new HashSet<>();
+	protected boolean _bulk_load = false;
 	
 	// Special test mode
 	protected LinkedList<TitanException> _MUTABLE_TEST_ERRORS = new LinkedList<>();
 	
 	protected final static int _MAX_ATTEMPT_NUM = 9;
 	protected final static Integer[] _BACKOFF_TIMES_MS = { 50, 100, 250, 1500, 3000, 6000, 12000, 24000, 48000, 96000 }; // (final one never called, that's the one we bail out on)
+	protected final static int _MAX_BULK_BACKOFF_MS = 60000; // (total time a bulk batch can spend backing off before its conflicting groups are given up on)
 	
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule#onStageInitialize(com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadataBean, scala.Tuple2, java.util.Optional)
@@ -124,6 +133,12 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 		_bucket.set(bucket);
 		_mutable_stats.set(new MutableStatsBean());
 		
+		_bulk_load = dedup_config.bulk_load();
+		
+		if (dedup_config.vertex_cache_size() > 0) {
+			_vertex_cache.set(CacheBuilder.newBuilder().maximumSize(dedup_config.vertex_cache_size()).build());
+		}
+		
 		_service_context.get()
 			.getService(IGraphService.class, Optional.ofNullable(graph_schema.service_name()))
 			.flatMap(graph_service -> graph_service.getUnderlyingPlatformDriver(TitanGraph.class, Optional.empty()))
@@ -203,47 +218,187 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 				TitanGraphBuildingUtils.buildGraph_getUserGeneratedAssets(batch, batch_size, grouping_key, 
 						_custom_graph_decomp_handler.optional().map(handler -> Tuples._2T(handler, _custom_graph_decomp_context.get())));
 
+		if (_bulk_load) {
+			final Random random_generator = new Random(java.util.UUID.randomUUID().getMostSignificantBits());
+			tryRecoverableBulkTransaction(TitanGraphBuildingUtils.buildGraph_groupConnectedElements(_config.get(), vertices_and_edges), random_generator);
+			return;
+		}
+		
 		final MutableStatsBean mutable_stats = new MutableStatsBean();
 		
 		tryRecoverableTransaction(mutable_tx -> {
-			final Stream<ObjectNode> copy_vertices_and_edges = vertices_and_edges.stream().map(o -> o.deepCopy());
-			
-			// Fill in transaction
-			
 			mutable_stats.reset();
-			
-			TitanGraphBuildingUtils.buildGraph_handleMerge(mutable_tx, _config.get(), _security_context.get(), _logger.optional(), mutable_stats,
-					_mutable_new_vertex_keys,
-					_custom_graph_merge_handler.optional().map(handler -> Tuples._2T(handler, _custom_graph_merge_context.get()))
-					, 
-					_bucket.get(),
-					TitanGraphBuildingUtils.buildGraph_collectUserGeneratedAssets(mutable_tx, _config.get(), 
-							_security_context.get(), _logger.optional(), 
-							_bucket.get(), mutable_stats,
-							copy_vertices_and_edges
-					));					
-
-			//(test mode for errors)
-			if (!_MUTABLE_TEST_ERRORS.isEmpty()) {
-				throw _MUTABLE_TEST_ERRORS.pop();
-			}			
+			buildGraph_inTransaction(mutable_tx, vertices_and_edges, mutable_stats);
 		},
-		() -> {
+		() -> onBatchSuccess(mutable_stats));		
+	}
+
+	/** Fills in the transaction from the user generated vertices and edges (which are copied, so this can be re-run on retry)
+	 * @param mutable_tx
+	 * @param vertices_and_edges
+	 * @param mutable_stats
+	 */
+	protected void buildGraph_inTransaction(final TitanTransaction mutable_tx, final List<ObjectNode> vertices_and_edges, final MutableStatsBean mutable_stats) {
+		final Stream<ObjectNode> copy_vertices_and_edges = vertices_and_edges.stream().map(o -> o.deepCopy());
+		
+		// Fill in transaction
+		
+		final Stream<Tuple4<ObjectNode, List<ObjectNode>, List<ObjectNode>, List<Vertex>>> mergeable =
+				TitanGraphBuildingUtils.buildGraph_collectUserGeneratedAssets(mutable_tx, _config.get(), 
+						_security_context.get(), _logger.optional(), 
+						_bucket.get(), mutable_stats,
+						_vertex_cache.optional(),
+						copy_vertices_and_edges
+				);
+		
+		TitanGraphBuildingUtils.buildGraph_handleMerge(mutable_tx, _config.get(), _security_context.get(), _logger.optional(), mutable_stats,
+				_mutable_new_vertex_keys,
+				_custom_graph_merge_handler.optional().map(handler -> Tuples._2T(handler, _custom_graph_merge_context.get()))
+				, 
+				_bucket.get(),
+				_vertex_cache.optional(),
+				_bulk_load 
+					? mergeable.sorted(Comparator.comparing((Tuple4<ObjectNode, List<ObjectNode>, List<ObjectNode>, List<Vertex>> t4) -> t4._1().toString())) //(consistent key order across workers)
+					: mergeable
+				);					
+
+		//(test mode for errors)
+		if (!_MUTABLE_TEST_ERRORS.isEmpty()) {
+			throw _MUTABLE_TEST_ERRORS.pop();
+		}			
+	}
+	
+	/** Logs the stats for a successfully committed batch, and adds them to the stage totals
+	 * @param mutable_stats
+	 */
+	protected void onBatchSuccess(final MutableStatsBean mutable_stats) {
+		_logger.optional().ifPresent(logger -> {
+			logger.log(Level.DEBUG,
+					ErrorUtils.lazyBuildMessage(true, 
+							() -> "GraphBuilderEnrichmentService",
+							() -> "system.onObjectBatch",
+							() -> null, 
+							() -> ErrorUtils.get("Graph stats: V_emitted={0} V_matched={1} V_created={2} V_updated={3} V_errors={4} E_emitted={5} E_matched={6} E_created={7} E_updated={8} E_errors={9} V_cache_hits={11} V_cache_misses={12} (uuid={10})",
+									mutable_stats.vertices_emitted, mutable_stats.vertex_matches_found, mutable_stats.vertices_created, mutable_stats.vertices_updated, mutable_stats.vertex_errors,
+									mutable_stats.edges_emitted, mutable_stats.edge_matches_found, mutable_stats.edges_created, mutable_stats.edges_updated, mutable_stats.edge_errors,
+									UUID,
+									mutable_stats.vertex_cache_hits, mutable_stats.vertex_cache_misses
+									), 
+							() -> BeanTemplateUtils.toMap(mutable_stats)));
+		});		
+		_mutable_stats.get().combine(mutable_stats);		
+	}
+	
+	/** Bulk load version of tryRecoverableTransaction - writes all the groups of connected elements in a single batch-loading transaction,
+	 *  and if that fails with a recoverable error, bisects the groups and retries each half, so that only the groups containing the
+	 *  conflicting keys end up being backed off and retried. All the conflicting groups from a round are backed off together and 
+	 *  retried as a single batch, and every group is attempted before any errors are rethrown
+	 * @param element_groups - the output of buildGraph_groupConnectedElements
+	 * @param random_generator
+	 */
+	protected void tryRecoverableBulkTransaction(final List<List<ObjectNode>> element_groups, final Random random_generator) {
+		final List<TitanException> mutable_failures = new LinkedList<>();
+		List<List<ObjectNode>> to_try = element_groups;
+		int total_backoff_ms = 0;
+		for (int attempt_num = 0; !to_try.isEmpty(); ++attempt_num) {
+			final List<List<ObjectNode>> mutable_conflicting = new ArrayList<>();
+			final List<TitanException> mutable_conflict_errors = new LinkedList<>();
+			tryBulkTransaction_bisect(to_try, mutable_conflicting, mutable_conflict_errors, mutable_failures);
+			
+			if (mutable_conflicting.isEmpty()) break;
+			
+			final int min_sleep_time = _BACKOFF_TIMES_MS[attempt_num]/2;
+			final int sleep_time = Math.min(min_sleep_time + random_generator.nextInt(min_sleep_time), _MAX_BULK_BACKOFF_MS - total_backoff_ms);
+			final int num_attempts = 1 + attempt_num;
+			if ((attempt_num >= _MAX_ATTEMPT_NUM) || (sleep_time <= 0)) { // Give up on the remaining conflicting groups
+				_logger.optional().ifPresent(logger -> {
+					logger.log(Level.ERROR,
+							ErrorUtils.lazyBuildMessage(false, 
+									() -> "GraphBuilderEnrichmentService",
+									() -> "system.onObjectBatch",
+									() -> null, 
+									() -> ErrorUtils.getLongForm("Failed to commit bulk transaction due to local conflicts, attempts={1} groups={3} error={0} (uuid={2})", mutable_conflict_errors.get(0), num_attempts, UUID, mutable_conflicting.size()),
+									() -> null));
+				});
+				mutable_failures.addAll(mutable_conflict_errors);
+				break;
+			}
 			_logger.optional().ifPresent(logger -> {
 				logger.log(Level.DEBUG,
-						ErrorUtils.lazyBuildMessage(true, 
+						ErrorUtils.lazyBuildMessage(false, 
 								() -> "GraphBuilderEnrichmentService",
 								() -> "system.onObjectBatch",
 								() -> null, 
-								() -> ErrorUtils.get("Graph stats: V_emitted={0} V_matched={1} V_created={2} V_updated={3} V_errors={4} E_emitted={5} E_matched={6} E_created={7} E_updated={8} E_errors={9} (uuid={10})",
-										mutable_stats.vertices_emitted, mutable_stats.vertex_matches_found, mutable_stats.vertices_created, mutable_stats.vertices_updated, mutable_stats.vertex_errors,
-										mutable_stats.edges_emitted, mutable_stats.edge_matches_found, mutable_stats.edges_created, mutable_stats.edges_updated, mutable_stats.edge_errors,
-										UUID
-										), 
-								() -> BeanTemplateUtils.toMap(mutable_stats)));
-			});		
-			_mutable_stats.get().combine(mutable_stats);		
-		});		
+								() -> ErrorUtils.get("Failed to commit bulk transaction due to local conflicts, attempts={0} groups={3} (uuid={1} sleep_ms={2})", num_attempts, UUID, sleep_time, mutable_conflicting.size()),
+								() -> null));
+			});
+			backoff(sleep_time);
+			total_backoff_ms += sleep_time;
+			to_try = mutable_conflicting;
+		}
+		if (!mutable_failures.isEmpty()) {
+			final TitanException first = mutable_failures.get(0);
+			mutable_failures.stream().skip(1).forEach(e -> first.addSuppressed(e));
+			throw first;
+		}
+	}
+	
+	/** Tries to commit the groups in a single batch-loading transaction, bisecting on recoverable errors until the conflicting groups are isolated
+	 *  (both halves are always tried)
+	 * @param element_groups - the groups to commit
+	 * @param mutable_conflicting - the groups that failed with recoverable errors on their own are added to this
+	 * @param mutable_conflict_errors - and their errors to this
+	 * @param mutable_failures - non recoverable errors are added to this
+	 */
+	protected void tryBulkTransaction_bisect(final List<List<ObjectNode>> element_groups, 
+			final List<List<ObjectNode>> mutable_conflicting, final List<TitanException> mutable_conflict_errors, final List<TitanException> mutable_failures)
+	{
+		if (element_groups.isEmpty()) return;
+		
+		final MutableStatsBean mutable_stats = new MutableStatsBean();
+		try {
+			final TitanTransaction mutable_tx = _titan.get().buildTransaction().enableBatchLoading().start();
+			try {
+				buildGraph_inTransaction(mutable_tx, element_groups.stream().flatMap(group -> group.stream()).collect(Collectors.toList()), mutable_stats);
+			}
+			catch (Exception e) { //(close the transaction without saving)
+				mutable_tx.rollback();
+				throw e;
+			}
+			mutable_tx.commit();
+			
+			onBatchSuccess(mutable_stats);
+		}
+		catch (TitanException e) {
+			if (!isRecoverableError(e)) {
+				_logger.optional().ifPresent(logger -> {
+					logger.log(Level.ERROR,
+							ErrorUtils.lazyBuildMessage(false, 
+									() -> "GraphBuilderEnrichmentService",
+									() -> "system.onObjectBatch",
+									() -> null, 
+									() -> ErrorUtils.getLongForm("Failed to commit bulk transaction, groups={2} error={0} (uuid={1})", e, UUID, element_groups.size()),
+									() -> null));
+				});
+				mutable_failures.add(e);
+			}
+			else if (element_groups.size() > 1) { // Split and retry each half straight away, the non conflicting half(s) will just succeed
+				final int split = element_groups.size()/2;
+				tryBulkTransaction_bisect(element_groups.subList(0, split), mutable_conflicting, mutable_conflict_errors, mutable_failures);
+				tryBulkTransaction_bisect(element_groups.subList(split, element_groups.size()), mutable_conflicting, mutable_conflict_errors, mutable_failures);
+			}
+			else { // Down to a single set of conflicting keys, will be backed off and retried with the others
+				mutable_conflicting.add(element_groups.get(0));
+				mutable_conflict_errors.add(e);
+			}
+		}
+	}
+	
+	/** Waits before retrying a conflicting bulk transaction (overridden in tests)
+	 * @param sleep_time_ms
+	 */
+	protected void backoff(final int sleep_time_ms) {
+		try { Thread.sleep(sleep_time_ms); } catch (Exception interrupted) {}
 	}
 
 	protected void tryRecoverableTransaction(
@@ -431,7 +586,7 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 //										() -> BeanTemplateUtils.toMap(combine_stats)));
 //					});
 					
-					TitanGraphBuildingUtils.mergeDuplicates(tx, _bucket.get().full_name(), grouped_vertices, per_batch_stats);
+					TitanGraphBuildingUtils.mergeDuplicates(tx, _bucket.get().full_name(), grouped_vertices, per_batch_stats, _vertex_cache.optional());
 
 					global_combine_stats.combine(per_batch_stats);
 					combine_stats.reset();
@@ -475,10 +630,11 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 							() -> "GraphBuilderEnrichmentService",
 							() -> "system.onStageComplete",
 							() -> null, 
-							() -> ErrorUtils.get("Graph stats: V_emitted={0} V_matched={1} V_created={2} V_updated={3} V_errors={4} E_emitted={5} E_matched={6} E_created={7} E_updated={8} E_errors={9} (uuid={10})",
+							() -> ErrorUtils.get("Graph stats: V_emitted={0} V_matched={1} V_created={2} V_updated={3} V_errors={4} E_emitted={5} E_matched={6} E_created={7} E_updated={8} E_errors={9} V_cache_hit_rate={11} (uuid={10})",
 									_mutable_stats.get().vertices_emitted, _mutable_stats.get().vertex_matches_found, _mutable_stats.get().vertices_created, _mutable_stats.get().vertices_updated, _mutable_stats.get().vertex_errors,
 									_mutable_stats.get().edges_emitted, _mutable_stats.get().vertex_matches_found, _mutable_stats.get().edges_created, _mutable_stats.get().edges_updated, _mutable_stats.get().edge_errors,
-									UUID
+									UUID,
+									_mutable_stats.get().vertexCacheHitRate()
 									), 
 							() -> BeanTemplateUtils.toMap(_mutable_stats.get())));
 		});
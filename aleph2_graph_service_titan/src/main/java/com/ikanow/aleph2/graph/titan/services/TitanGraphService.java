@@ -24,11 +24,13 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import org.apache.commons.configuration.ConfigurationMap;
 import org.apache.commons.configuration.MapConfiguration;
@@ -40,6 +42,7 @@ import org.apache.tinkerpop.gremlin.structure.VertexProperty;
 
 import scala.Tuple2;
 
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule;
@@ -59,6 +62,7 @@ import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils;
 import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.Patterns;
+import com.ikanow.aleph2.data_model.utils.SetOnce;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.data_model.utils.UuidUtils;
 import com.ikanow.aleph2.graph.titan.data_model.TitanGraphConfigBean;
@@ -67,8 +71,10 @@ import com.ikanow.aleph2.graph.titan.utils.ErrorUtils;
 import com.thinkaurelius.titan.core.Cardinality;
 import com.thinkaurelius.titan.core.PropertyKey;
 import com.thinkaurelius.titan.core.TitanEdge;
+import com.thinkaurelius.titan.core.TitanException;
 import com.thinkaurelius.titan.core.TitanFactory;
 import com.thinkaurelius.titan.core.TitanGraph;
+import com.thinkaurelius.titan.core.TitanGraphQuery;
 import com.thinkaurelius.titan.core.TitanTransaction;
 import com.thinkaurelius.titan.core.TitanVertex;
 import com.thinkaurelius.titan.core.schema.Mapping;
@@ -89,8 +95,18 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 	public static String GLOBAL_PATH_INDEX_GV = "aleph2_path_query_gv";
 	public static String GLOBAL_PATH_INDEX_GE = "aleph2_path_query_ge";
 	public static String GLOBAL_DEFAULT_INDEX_GV = "aleph2_index_query_gv";
+	public static String GLOBAL_PURGE_CHECKPOINT_GV = "aleph2_purge_checkpoint_gv";
+	
+	// Bucket deletion checkpoints are stored as (un-bucketed) vertices in the graph itself 
+	public static String PURGE_CHECKPOINT_LABEL = "aleph2_purge_checkpoint";
+	public static String PURGE_CHECKPOINT_BUCKET = "a2_purge_bucket";
+	public static String PURGE_CHECKPOINT_VERTICES = "a2_purge_v";
+	public static String PURGE_CHECKPOINT_EDGES = "a2_purge_e";
+	protected static int MAX_STALE_PURGE_ROUNDS = 5; // (number of times to wait for the index to refresh if a purge round doesn't find anything new)
+	
 	protected static String UUID = System.getProperty("java.io.tmpdir") + "/titan_test_" + UuidUtils.get().getRandomUuid();
 	protected final TitanGraph _titan;
+	protected final TitanGraphConfigBean _config;
 	
 	protected boolean _USE_ES_FOR_DEDUP_INDEXES = false;
 	
@@ -98,6 +114,7 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 =	 */
 	@Inject
 	public TitanGraphService(final TitanGraphConfigBean config) {
+		_config = config;
 		_titan = Lambdas.get(() -> {
 			try {
 				
@@ -115,10 +132,20 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 		});
 	}
 	
+	/** Test c'tor - shares an existing graph, but with different (non-connection) settings
+	 * @param titan - the graph
+	 * @param config - the settings
+	 */
+	protected TitanGraphService(final TitanGraph titan, final TitanGraphConfigBean config) {
+		_config = config;
+		_titan = titan;
+	}
+	
 	/** Mock titan c'tor to allow it to use the protected _titan property
 	 * @param mock
 	 */
 	protected TitanGraphService(final boolean mock) {
+		_config = BeanTemplateUtils.build(TitanGraphConfigBean.class).done().get();
 		_titan = TitanFactory.build()
 						.set("storage.backend", "inmemory")
 						.set("index.search.backend", "elasticsearch")
@@ -297,6 +324,9 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 	}
 	
 	/** Deletes a bucket
+	 *  The deletion is performed in rounds: each round grabs the next chunk of (deletion_batch_size x deletion_threads) matching elements from the index,
+	 *  splits them into id ranges, and processes each range in its own bounded-size transaction on a worker thread. Progress is checkpointed 
+	 *  into the graph after each round, so a failed purge can just be re-run (already-purged elements no longer match the query) 
 	 * @param bucket
 	 * @param secondary_buffer
 	 * @param bucket_or_buffer_getting_deleted
@@ -314,52 +344,221 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 		
 		//TODO (ALEPH-15): At some point need to be able for services to (optionally) request batch enrichment jobs - eg would be much nicer to fire this off as a distributed job
 		
+		final String bucket_path = bucket.full_name();
+		final SetOnce<Tuple2<Long, Long>> previous_progress = new SetOnce<>();
+		final long[] mutable_progress = { 0L, 0L }; // (vertices, edges)
+		
 		return CompletableFuture.runAsync(() -> {
 			
 			try { Thread.sleep(1000L); } catch (Exception e) {} // just check the indexes have refreshed...
 			
-			final TitanTransaction tx = _titan.buildTransaction().start();
-
-			//DEBUG
-			//final com.fasterxml.jackson.databind.ObjectMapper titan_mapper = _titan.io(org.apache.tinkerpop.gremlin.structure.io.IoCore.graphson()).mapper().create().createMapper();
+			previous_progress.set(getPurgeCheckpoint(bucket_path).orElse(Tuples._2T(0L, 0L)));
+			mutable_progress[0] = previous_progress.get()._1();
+			mutable_progress[1] = previous_progress.get()._2();
 			
-			@SuppressWarnings("unchecked")
-			final Stream<TitanVertex> vertices_to_check = Optionals.<TitanVertex>streamOf(tx.query().has(GraphAnnotationBean.a2_p, bucket.full_name()).vertices(), false);
-			vertices_to_check.forEach(v -> {
-				{
-					final Iterator<VertexProperty<String>> props = v.<String>properties(GraphAnnotationBean.a2_p);
-					while (props.hasNext()) {
-						final VertexProperty<String> prop = props.next();
-						if (bucket.full_name().equals(prop.value())) {
-							prop.remove();
-						}
-					}
-				}
-				{
-					final Iterator<VertexProperty<String>> props = v.<String>properties(GraphAnnotationBean.a2_p);
-					if (!props.hasNext()) { // can delete this bucket
-						v.remove();
-					}
-				}
-			});
-			@SuppressWarnings("unchecked")
-			final Stream<TitanEdge> edges_to_check = Optionals.<TitanEdge>streamOf(tx.query().has(GraphAnnotationBean.a2_p, bucket.full_name()).edges(), false);
-			edges_to_check.forEach(e -> {
-				e.remove(); // (can only have one edge so delete it)
-			});
+			final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, _config.deletion_threads()));
+			try {
+				purgeElementsInRounds(bucket_path, true, executor, mutable_progress);
+				purgeElementsInRounds(bucket_path, false, executor, mutable_progress);
+			}
+			finally {
+				executor.shutdown();
+			}
 			
-			tx.commit();
+			clearPurgeCheckpoint(bucket_path);
 		})
 		.thenApply(__ -> 
-			ErrorUtils.buildSuccessMessage(this.getClass().getSimpleName(), "handleBucketDeletionRequest", "Completed", "handleBucketDeletionRequest")
+			ErrorUtils.buildSuccessMessage(this.getClass().getSimpleName(), "handleBucketDeletionRequest", ErrorUtils.PURGE_COMPLETE, 
+					bucket_path, mutable_progress[0], mutable_progress[1], previous_progress.optional().map(t2 -> t2._1()).orElse(0L), previous_progress.optional().map(t2 -> t2._2()).orElse(0L))
 					)
 		.exceptionally(t -> 
-			ErrorUtils.buildErrorMessage(this.getClass().getSimpleName(), "handleBucketDeletionRequest", ErrorUtils.getLongForm("{0}", t), "handleBucketDeletionRequest")
+			ErrorUtils.buildErrorMessage(this.getClass().getSimpleName(), "handleBucketDeletionRequest", ErrorUtils.PURGE_INCOMPLETE, 
+					bucket_path, mutable_progress[0], mutable_progress[1], ErrorUtils.getLongForm("{0}", t))
 					)
 		;
 		
 	}
 
+	/** Repeatedly grabs the next chunk of vertices/edges belonging to the bucket and purges them in parallel, until none are left
+	 * @param bucket_path
+	 * @param vertices - true for vertices, false for edges
+	 * @param executor - the thread pool over which each chunk is partitioned
+	 * @param mutable_progress - (vertices, edges) purged so far, updated and checkpointed after each round
+	 */
+	protected void purgeElementsInRounds(final String bucket_path, final boolean vertices, final ExecutorService executor, final long[] mutable_progress) {
+		final int batch_size = Math.max(1, _config.deletion_batch_size());
+		final int num_threads = Math.max(1, _config.deletion_threads());
+		
+		int stale_rounds = 0;
+		for (;;) {
+			// Grab the next chunk of ids (read only, not held open)
+			final List<Object> ids = Lambdas.get(() -> {
+				final TitanTransaction read_tx = _titan.buildTransaction().readOnly().start();
+				try {
+					final TitanGraphQuery<?> query = read_tx.query().has(GraphAnnotationBean.a2_p, bucket_path).limit(batch_size*num_threads);
+					return (vertices
+							? Optionals.<TitanVertex>streamOf(query.vertices(), false).map(v -> v.id()).sorted()
+							: Optionals.<TitanEdge>streamOf(query.edges(), false).map(e -> e.id()))
+						.collect(Collectors.<Object>toList());
+				}
+				finally {
+					read_tx.rollback();
+				}
+			});
+			if (ids.isEmpty()) break;
+			
+			// Split into contiguous id ranges and process each range in its own transaction
+			final List<CompletableFuture<Long>> range_results = 
+				Lists.partition(ids, (ids.size() + num_threads - 1)/num_threads).stream()
+					.map(range -> CompletableFuture.supplyAsync(() -> purgeElementRange(bucket_path, vertices, range), executor))
+					.collect(Collectors.toList());
+			
+			final long num_purged = range_results.stream().mapToLong(f -> f.join()).sum();
+			
+			if (num_purged > 0) {
+				stale_rounds = 0;
+				mutable_progress[vertices ? 0 : 1] += num_purged;
+				setPurgeCheckpoint(bucket_path, mutable_progress[0], mutable_progress[1]);
+			}
+			else if (++stale_rounds > MAX_STALE_PURGE_ROUNDS) { // (the index is still returning already-purged elements, leave the checkpoint and report the purge as incomplete)
+				throw new RuntimeException(ErrorUtils.get(ErrorUtils.PURGE_STALE_INDEX, bucket_path, MAX_STALE_PURGE_ROUNDS));
+			}
+			else {
+				try { Thread.sleep(1000L); } catch (Exception e) {}
+			}
+		}
+	}
+	
+	/** Purges a single range of vertices/edges in one transaction, retrying (with the same backoff as the graph builder) if it conflicts
+	 *  with another transaction, eg one of the other ranges touching the same vertex's edges
+	 * @param bucket_path
+	 * @param vertices - true for vertices, false for edges
+	 * @param ids
+	 * @return the number of elements edited/removed
+	 */
+	protected long purgeElementRange(final String bucket_path, final boolean vertices, final List<Object> ids) {
+		final Random random_generator = new Random(java.util.UUID.randomUUID().getMostSignificantBits());
+		for (int attempt_num = 0; ; ++attempt_num) {
+			try {
+				return purgeElementRange_inTransaction(bucket_path, vertices, ids);
+			}
+			catch (TitanException e) {
+				if ((attempt_num >= TitanGraphBuilderEnrichmentService._MAX_ATTEMPT_NUM) || !TitanGraphBuilderEnrichmentService.isRecoverableError(e)) {
+					throw e;
+				}
+				final int min_sleep_time = TitanGraphBuilderEnrichmentService._BACKOFF_TIMES_MS[attempt_num]/2;
+				final int sleep_time = min_sleep_time + random_generator.nextInt(min_sleep_time);
+				try { Thread.sleep(sleep_time); } catch (Exception interrupted) {}
+			}
+		}
+	}
+	
+	/** Purges a single range of vertices/edges in one transaction 
+	 *  (re-checks each element still belongs to the bucket, so is safe to re-run on stale ids or after a conflict)
+	 * @param bucket_path
+	 * @param vertices - true for vertices, false for edges
+	 * @param ids
+	 * @return the number of elements edited/removed
+	 */
+	protected long purgeElementRange_inTransaction(final String bucket_path, final boolean vertices, final List<Object> ids) {
+		final TitanTransaction tx = _titan.buildTransaction().start();
+		try {
+			final long[] mutable_count = { 0L };
+			if (vertices) {
+				tx.vertices(ids.toArray()).forEachRemaining(v -> {
+					boolean changed = false;
+					{
+						final Iterator<VertexProperty<String>> props = v.<String>properties(GraphAnnotationBean.a2_p);
+						while (props.hasNext()) {
+							final VertexProperty<String> prop = props.next();
+							if (bucket_path.equals(prop.value())) {
+								prop.remove();
+								changed = true;
+							}
+						}
+					}
+					if (changed) {
+						mutable_count[0]++;
+						final Iterator<VertexProperty<String>> props = v.<String>properties(GraphAnnotationBean.a2_p);
+						if (!props.hasNext()) { // can delete this bucket
+							v.remove();
+						}
+					}
+				});
+			}
+			else {
+				tx.edges(ids.toArray()).forEachRemaining(e -> {
+					if (Optionals.streamOf(e.properties(GraphAnnotationBean.a2_p), false).anyMatch(p -> bucket_path.equals(p.value()))) {
+						mutable_count[0]++;
+						e.remove(); // (can only have one edge so delete it)
+					}
+				});
+			}
+			tx.commit();
+			return mutable_count[0];
+		}
+		catch (Throwable t) {
+			if (tx.isOpen()) tx.rollback();
+			throw t;
+		}
+	}
+	
+	/** Returns the (vertices, edges) purged by a previous incomplete deletion of this bucket, if any
+	 * @param bucket_path
+	 * @return
+	 */
+	protected Optional<Tuple2<Long, Long>> getPurgeCheckpoint(final String bucket_path) {
+		final TitanTransaction tx = _titan.buildTransaction().readOnly().start();
+		try {
+			return getPurgeCheckpointVertex(tx, bucket_path)
+					.map(v -> Tuples._2T(v.<Long>property(PURGE_CHECKPOINT_VERTICES).orElse(0L), v.<Long>property(PURGE_CHECKPOINT_EDGES).orElse(0L)));
+		}
+		finally {
+			tx.rollback();
+		}
+	}
+	
+	/** Creates or updates the progress checkpoint for the deletion of this bucket
+	 * @param bucket_path
+	 * @param vertices_purged
+	 * @param edges_purged
+	 */
+	protected void setPurgeCheckpoint(final String bucket_path, final long vertices_purged, final long edges_purged) {
+		final TitanTransaction tx = _titan.buildTransaction().start();
+		final Vertex v = getPurgeCheckpointVertex(tx, bucket_path).orElseGet(() -> {
+			final Vertex new_v = tx.addVertex(PURGE_CHECKPOINT_LABEL);
+			new_v.property(PURGE_CHECKPOINT_BUCKET, bucket_path);
+			return new_v;
+		});
+		v.property(PURGE_CHECKPOINT_VERTICES, vertices_purged);
+		v.property(PURGE_CHECKPOINT_EDGES, edges_purged);
+		tx.commit();
+	}
+	
+	/** Removes the progress checkpoint for the deletion of this bucket (once it has completed)
+	 * @param bucket_path
+	 */
+	@SuppressWarnings("unchecked")
+	protected void clearPurgeCheckpoint(final String bucket_path) {
+		final TitanTransaction tx = _titan.buildTransaction().start();
+		Optionals.<TitanVertex>streamOf(tx.query().has(PURGE_CHECKPOINT_BUCKET, bucket_path).vertices(), false)
+			.filter(v -> PURGE_CHECKPOINT_LABEL.equals(v.label()))
+			.forEach(v -> v.remove()); // (remove all of them in case a lagging index let a duplicate in)
+		tx.commit();
+	}
+	
+	/** Low level utility to find the checkpoint vertex
+	 * @param tx
+	 * @param bucket_path
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static Optional<TitanVertex> getPurgeCheckpointVertex(final TitanTransaction tx, final String bucket_path) {
+		return Optionals.<TitanVertex>streamOf(tx.query().has(PURGE_CHECKPOINT_BUCKET, bucket_path).vertices(), false)
+					.filter(v -> PURGE_CHECKPOINT_LABEL.equals(v.label()))
+					.findFirst();
+	}
+	
 	//////////////////////////////////////////////////////
 
 	// Worker utils
@@ -425,6 +624,27 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 			
 		} // (already indexed, this is fine/expected)
 		
+		// Bucket deletion checkpoints
+		try {
+			final PropertyKey checkpoint_index = mgmt.makePropertyKey(PURGE_CHECKPOINT_BUCKET).dataType(String.class).make();
+			if (use_es_for_dedup_indices) { // (ie the backing store doesn't support indexes)
+				mgmt.buildIndex(GLOBAL_PURGE_CHECKPOINT_GV, Vertex.class)
+					.addKey(checkpoint_index, Mapping.STRING.asParameter())
+					.buildMixedIndex(SEARCH_INDEX_NAME);
+			}
+			else {
+				mgmt.buildIndex(GLOBAL_PURGE_CHECKPOINT_GV, Vertex.class)
+					.addKey(checkpoint_index)
+					.buildCompositeIndex();
+			}
+		}
+		catch (IllegalArgumentException e) {
+			//DEBUG
+			//_logger.error(ErrorUtils.getLongForm("{0}", e));
+			//e.printStackTrace();
+			
+		} // (already indexed, this is fine/expected)
+		
 		// Then check that the global default index is set
 		Optional<List<String>> maybe_dedup_fields = Optionals.of(() -> bucket.data_schema().graph_schema().deduplication_fields());
 		final Collection<BasicMessageBean> ret_val = maybe_dedup_fields.map(dedup_fields -> {
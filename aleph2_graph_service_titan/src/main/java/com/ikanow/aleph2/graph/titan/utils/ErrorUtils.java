@@ -30,4 +30,8 @@ public class ErrorUtils extends com.ikanow.aleph2.data_model.utils.ErrorUtils {
 	public static String MISSING_OR_BADLY_FORMED_FIELD = "For user emitted vertices/edges, bad field {0}: {1}";
 	
 	public static String BUFFERS_NOT_SUPPORTED = "Secondary buffers not supported ({0})";
+	
+	public static String PURGE_COMPLETE = "Completed deletion of {0}: vertices_purged={1} edges_purged={2} (resumed from vertices={3} edges={4})";
+	public static String PURGE_INCOMPLETE = "Deletion of {0} incomplete, re-run to resume: vertices_purged={1} edges_purged={2} error={3}";
+	public static String PURGE_STALE_INDEX = "Index still returning already purged elements of {0} after {1} rounds";
 }
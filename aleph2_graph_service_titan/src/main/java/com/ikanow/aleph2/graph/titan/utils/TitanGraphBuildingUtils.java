@@ -19,9 +19,11 @@ package com.ikanow.aleph2.graph.titan.utils;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -47,6 +49,7 @@ import scala.Tuple4;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Maps;
@@ -97,6 +100,8 @@ public class TitanGraphBuildingUtils {
 		public long edge_errors = 0L;
 		public long vertex_matches_found = 0L;
 		public long edge_matches_found = 0L;
+		public long vertex_cache_hits = 0L;
+		public long vertex_cache_misses = 0L;
 		
 		/** Mutable reset
 =		 */
@@ -111,6 +116,8 @@ public class TitanGraphBuildingUtils {
 			edge_errors = 0L;
 			vertex_matches_found = 0L;
 			edge_matches_found = 0L;			
+			vertex_cache_hits = 0L;
+			vertex_cache_misses = 0L;
 		}
 		
 		/** Mutable update method
@@ -127,6 +134,16 @@ public class TitanGraphBuildingUtils {
 			edge_errors += per_batch.edge_errors;
 			vertex_matches_found += per_batch.vertex_matches_found;
 			edge_matches_found += per_batch.edge_matches_found;
+			vertex_cache_hits += per_batch.vertex_cache_hits;
+			vertex_cache_misses += per_batch.vertex_cache_misses;
+		}
+		
+		/** Fraction of vertex key lookups that were served from the vertex cache (0 if no lookups)
+		 * @return
+		 */
+		public double vertexCacheHitRate() {
+			final long lookups = vertex_cache_hits + vertex_cache_misses;
+			return (0L == lookups) ? 0.0 : ((double)vertex_cache_hits)/lookups;
 		}
 	}
 	
@@ -175,6 +192,31 @@ public class TitanGraphBuildingUtils {
 			final DataBucketBean bucket,
 			final MutableStatsBean mutable_stats,
 			final Stream<ObjectNode> vertices_and_edges)
+	{
+		return buildGraph_collectUserGeneratedAssets(tx, config, security_service, logger, bucket, mutable_stats, Optional.empty(), vertices_and_edges);
+	}
+	
+	/** (2/3) Creates a stream of user-generated assets together (grouped by vertex key) with associated data
+	 *  (version that uses a cross-batch vertex key -> vertex id cache to avoid index lookups for recurring vertices)
+	 * @param tx
+	 * @param config
+	 * @param security_service
+	 * @param logger
+	 * @param bucket
+	 * @param mutable_stats
+	 * @param maybe_vertex_cache - if present, keys found in the cache are looked up by id instead of via the index query
+	 * @param vertices_and_edges
+	 * @return
+	 */
+	public static Stream<Tuple4<ObjectNode, List<ObjectNode>, List<ObjectNode>, List<Vertex>>> buildGraph_collectUserGeneratedAssets(
+			final TitanTransaction tx, 
+			final GraphSchemaBean config,
+			final Tuple2<String, ISecurityService> security_service,
+			final Optional<IBucketLogger> logger,
+			final DataBucketBean bucket,
+			final MutableStatsBean mutable_stats,
+			final Optional<Cache<JsonNode, Long>> maybe_vertex_cache,
+			final Stream<ObjectNode> vertices_and_edges)
 	{		
 		// Convert the list of vertexes into a mega query - will have a false positive rate to keep the query simple  
 		
@@ -182,7 +224,8 @@ public class TitanGraphBuildingUtils {
 		
 		final Map<JsonNode, List<Vertex>> grouped_vertices = 
 				getGroupedVertices(nodes_to_get.keySet(), tx, 
-						config.deduplication_fields(), vertex -> isAllowed(bucket.full_name(), security_service, vertex));
+						config.deduplication_fields(), vertex -> isAllowed(bucket.full_name(), security_service, vertex),
+						maybe_vertex_cache, mutable_stats);
 		
 		//TRACE:
 		//System.err.println(new Date().toString() + ": DUPS=" + grouped_vertices);
@@ -214,6 +257,35 @@ public class TitanGraphBuildingUtils {
 				final DataBucketBean bucket,
 				final Stream<Tuple4<ObjectNode, List<ObjectNode>, List<ObjectNode>, List<Vertex>>> mergeable
 			)
+	{
+		buildGraph_handleMerge(tx, config, security_service, logger, mutable_stats, mutable_new_vertex_keys, maybe_merger, bucket, Optional.empty(), mergeable);
+	}
+	
+	/** (3/3) Merges user generated edges/vertices with the ones already in the system
+	 *  (version that records the winning vertex for each key in the cross-batch vertex cache)
+	 * @param tx
+	 * @param config
+	 * @param security_service
+	 * @param logger
+	 * @param mutable_stats
+	 * @param mutable_new_vertex_keys
+	 * @param maybe_merger
+	 * @param bucket
+	 * @param maybe_vertex_cache - if present, is populated with the id of the created/matched vertex for each key
+	 * @param mergeable
+	 */
+	public static void buildGraph_handleMerge(
+				final TitanTransaction tx,
+				final GraphSchemaBean config,
+				final Tuple2<String, ISecurityService> security_service,
+				final Optional<IBucketLogger> logger,
+				final MutableStatsBean mutable_stats,
+				final Collection<ObjectNode> mutable_new_vertex_keys,
+				final Optional<Tuple2<IEnrichmentBatchModule, GraphMergeEnrichmentContext>> maybe_merger,
+				final DataBucketBean bucket,
+				final Optional<Cache<JsonNode, Long>> maybe_vertex_cache,
+				final Stream<Tuple4<ObjectNode, List<ObjectNode>, List<ObjectNode>, List<Vertex>>> mergeable
+			)
 	{	
 		final org.apache.tinkerpop.shaded.jackson.databind.ObjectMapper titan_mapper = tx.io(IoCore.graphson()).mapper().create().createMapper();
 		final Multimap<JsonNode, Edge> mutable_existing_edge_endpoint_store = LinkedHashMultimap.create(); //(lazy simple way of handling 1.3/2)
@@ -250,6 +322,9 @@ public class TitanGraphBuildingUtils {
 			maybe_vertex_winner.ifPresent(vertex_winner -> {
 				mutable_per_merge_cached_vertices.put(key, vertex_winner);
 				
+				// (if the transaction ends up getting rolled back then the id will be stale, but that's checked on the way out of the cache)
+				maybe_vertex_cache.ifPresent(cache -> cache.put(key.deepCopy(), (Long) vertex_winner.id()));
+				
 				//(slighty nasty hack, use stats to see if a vertex was created vs updated...)
 				if (mutable_stats.vertices_created > prev_created) {
 					mutable_new_vertex_keys.add(key);
@@ -313,6 +388,40 @@ public class TitanGraphBuildingUtils {
 		//System.err.println(new Date() + ": VERTICES FOUND = " + mutable_existing_vertex_store);
 	}
 	
+	/** (Bulk mode, optional between 1/3 and 2/3) Splits the user generated vertices and edges into groups that share no vertex keys 
+	 *  (ie the connected components of the batch), so that each group can be merged and committed independently of the others
+	 *  Each group is sorted (vertices first, then by key) and the groups are sorted by their first key, so concurrent workers touch keys in a consistent order
+	 * @param config
+	 * @param vertices_and_edges
+	 * @return
+	 */
+	public static List<List<ObjectNode>> buildGraph_groupConnectedElements(
+			final GraphSchemaBean config,
+			final List<ObjectNode> vertices_and_edges)
+	{
+		final Map<JsonNode, JsonNode> mutable_parents = new HashMap<>();
+		
+		// Get the vertex keys for each element and union them together
+		final List<Tuple2<ObjectNode, List<JsonNode>>> elements_and_keys = vertices_and_edges.stream()
+				.map(o -> Tuples._2T(o, getElementKeys(o, config)))
+				.peek(t2 -> t2._2().stream().skip(1).forEach(k -> mutable_parents.put(findRootKey(mutable_parents, k), findRootKey(mutable_parents, t2._2().get(0)))))
+				.collect(Collectors.toList());
+		
+		final Comparator<ObjectNode> element_order = 
+				Comparator.<ObjectNode, Boolean>comparing(o -> !GraphAnnotationBean.ElementType.vertex.toString().equals(Optional.ofNullable(o.get(GraphAnnotationBean.type)).map(t -> t.asText()).orElse(null)))
+							.thenComparing(o -> getElementKeys(o, config).toString());
+		
+		return elements_and_keys.stream()
+				.collect(Collectors.groupingBy(
+						t2 -> t2._2().isEmpty() ? t2._1() : findRootKey(mutable_parents, t2._2().get(0)), //(elements with no keys will fail validation, just give them their own group)  
+						LinkedHashMap::new,
+						Collectors.mapping(t2 -> t2._1(), Collectors.toList())))
+				.values().stream()
+				.map(group -> group.stream().sorted(element_order).collect(Collectors.toList()))
+				.sorted(Comparator.comparing((List<ObjectNode> group) -> getElementKeys(group.get(0), config).toString()))
+				.collect(Collectors.toList());
+	}
+	
 	//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 	////////////////////////////////
 	////////////////////////////////
@@ -324,13 +433,87 @@ public class TitanGraphBuildingUtils {
 	 * @param bucket_filter
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
 	public static final Map<JsonNode, List<Vertex>> getGroupedVertices(
 			final Collection<ObjectNode> keys,
 			final TitanTransaction tx,
 			final List<String> key_fields,
 			final Predicate<Vertex> vertex_filter
 			)
+	{
+		return getGroupedVertices(keys, tx, key_fields, vertex_filter, Optional.empty(), new MutableStatsBean());
+	}
+	
+	/** Utility to get the vertices in the DB matching the specified keys, checking a cache of vertex key -> vertex id first
+	 *  Only the keys that miss the cache (or whose cached vertex has since been deleted/changed) go to the index query
+	 *  NOTE: a cache hit returns only the cached vertex, not any duplicates of it (which are tidied up at the end of the stage by mergeDuplicates)
+	 * @param keys
+	 * @param tx
+	 * @param key_fields
+	 * @param vertex_filter
+	 * @param maybe_vertex_cache
+	 * @param mutable_stats - the cache hits/misses are recorded here
+	 * @return
+	 */
+	public static final Map<JsonNode, List<Vertex>> getGroupedVertices(
+			final Collection<ObjectNode> keys,
+			final TitanTransaction tx,
+			final List<String> key_fields,
+			final Predicate<Vertex> vertex_filter,
+			final Optional<Cache<JsonNode, Long>> maybe_vertex_cache,
+			final MutableStatsBean mutable_stats
+			)
+	{
+		if (!maybe_vertex_cache.isPresent()) {
+			return getGroupedVertices_internal(keys, tx, key_fields, vertex_filter);
+		}
+		final Cache<JsonNode, Long> vertex_cache = maybe_vertex_cache.get();
+		
+		// Try to resolve each key from the cache, checking the vertex still exists and still matches the key
+		
+		final Map<Boolean, List<Tuple2<ObjectNode, Optional<Vertex>>>> hits_vs_misses = 
+				keys.stream()
+					.map(key -> Tuples._2T(key, Optional.ofNullable(vertex_cache.getIfPresent(key))
+													.map(id -> tx.getVertex(id))
+													.filter(v -> !v.isRemoved())
+													.<Vertex>map(v -> v)
+													.filter(v -> key.equals(getElementProperties(v, key_fields)))
+													.filter(v -> vertex_filter.test(v))
+							))
+					.collect(Collectors.partitioningBy(t2 -> t2._2().isPresent()));
+		
+		final List<ObjectNode> misses = hits_vs_misses.get(false).stream().map(t2 -> t2._1()).collect(Collectors.toList());
+		mutable_stats.vertex_cache_hits += hits_vs_misses.get(true).size();
+		mutable_stats.vertex_cache_misses += misses.size();
+		vertex_cache.invalidateAll(misses); // (removes any stale entries)
+		
+		final Map<JsonNode, List<Vertex>> grouped_vertices = misses.isEmpty()
+				? new HashMap<>()
+				: getGroupedVertices_internal(misses, tx, key_fields, vertex_filter);
+		
+		// Only cache unambiguous matches - duplicates are left to the (uncached) merge logic
+		grouped_vertices.entrySet().stream()
+			.filter(kv -> 1 == kv.getValue().size())
+			.forEach(kv -> vertex_cache.put(kv.getKey().deepCopy(), (Long) kv.getValue().get(0).id()));
+		
+		hits_vs_misses.get(true).forEach(t2 -> grouped_vertices.put(t2._1(), Arrays.asList(t2._2().get())));
+		
+		return grouped_vertices;
+	}
+	
+	/** Utility to get the vertices in the DB matching the specified keys (always goes to the DB)
+	 * @param keys
+	 * @param tx
+	 * @param key_fields
+	 * @param vertex_filter
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected static final Map<JsonNode, List<Vertex>> getGroupedVertices_internal(
+			final Collection<ObjectNode> keys,
+			final TitanTransaction tx,
+			final List<String> key_fields,
+			final Predicate<Vertex> vertex_filter
+			)
 	{
 		final Stream<TitanVertex> dups = Lambdas.get(() -> {
 			final Map<String, Set<Object>> dedup_query_builder = 		
@@ -677,9 +860,29 @@ public class TitanGraphBuildingUtils {
 			final String bucket_path,
 			final Map<JsonNode, List<Vertex>> grouped_vertices, 
 			final MutableStatsBean mutable_stats_per_batch)
+	{
+		mergeDuplicates(tx, bucket_path, grouped_vertices, mutable_stats_per_batch, Optional.empty());
+	}
+	
+	/** Tidy up duplicates created because of the lack of consistency in deduplication (+lack of upsert!)
+	 *  (version that invalidates the cross-batch vertex cache for any key whose vertices get merged/deleted)
+	 * @param tx
+	 * @param bucket_path
+	 * @param grouped_vertices
+	 * @param mutable_stats_per_batch
+	 * @param maybe_vertex_cache
+	 */
+	public static void mergeDuplicates(final TitanTransaction tx,
+			final String bucket_path,
+			final Map<JsonNode, List<Vertex>> grouped_vertices, 
+			final MutableStatsBean mutable_stats_per_batch,
+			final Optional<Cache<JsonNode, Long>> maybe_vertex_cache)
 	{
 		grouped_vertices.entrySet().stream().filter(kv -> !kv.getValue().isEmpty()).forEach(kv -> {
 			
+			// (the cached id might be one of the vertices about to be removed)
+			if (kv.getValue().size() > 1) maybe_vertex_cache.ifPresent(cache -> cache.invalidate(kv.getKey()));
+			
 			final Stream<Vertex> vertices = kv.getValue().stream().sorted((a, b) -> postProcSortingMethod(a, b));
 			final Iterator<Vertex> it = vertices.iterator();
 			if (it.hasNext()) {
@@ -770,6 +973,40 @@ public class TitanGraphBuildingUtils {
 	
 	// UTILS - LOW LEVEL
 	
+	/** Returns the vertex key(s) that a user generated element refers to (the id for vertices, inV/outV for edges)
+	 * @param o
+	 * @param config
+	 * @return
+	 */
+	protected static List<JsonNode> getElementKeys(final ObjectNode o, final GraphSchemaBean config) {
+		return Stream.of(GraphAnnotationBean.id, GraphAnnotationBean.inV, GraphAnnotationBean.outV)
+					.filter(f -> !GraphAnnotationBean.id.equals(f) || !GraphAnnotationBean.ElementType.edge.toString().equals(Optional.ofNullable(o.get(GraphAnnotationBean.type)).map(t -> t.asText()).orElse(null)))
+					.map(f -> o.get(f))
+					.filter(k -> null != k)
+					.<JsonNode>map(k -> convertToObject(k, config))
+					.collect(Collectors.toList());
+	}
+	
+	/** Union-find utility: returns the root of the set containing the key (inserting it if not present), with path compression
+	 * @param mutable_parents
+	 * @param key
+	 * @return
+	 */
+	private static JsonNode findRootKey(final Map<JsonNode, JsonNode> mutable_parents, final JsonNode key) {
+		JsonNode root = key;
+		for (;;) {
+			final JsonNode parent = mutable_parents.computeIfAbsent(root, k -> k);
+			if (parent.equals(root)) break;
+			root = parent;
+		}
+		for (JsonNode curr = key; !curr.equals(root); ) {
+			final JsonNode next = mutable_parents.get(curr);
+			mutable_parents.put(curr, root);
+			curr = next;
+		}
+		return root;
+	}
+	
 	/** Creates a JSON object out of the designated vertex properties
 	 * @param el
 	 * @param fields
@@ -17,11 +17,16 @@
 package com.ikanow.aleph2.graph.titan.services;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.tinkerpop.gremlin.structure.Vertex;
@@ -52,6 +57,7 @@ import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.graph.titan.data_model.SimpleDecompConfigBean;
 import com.ikanow.aleph2.graph.titan.data_model.SimpleDecompConfigBean.SimpleDecompElementBean;
+import com.ikanow.aleph2.graph.titan.utils.TitanGraphBuildingUtils.MutableStatsBean;
 import com.thinkaurelius.titan.core.TitanEdge;
 import com.thinkaurelius.titan.core.TitanException;
 import com.thinkaurelius.titan.core.TitanTransaction;
@@ -287,4 +293,104 @@ public class TestTitanGraphBuilderEnrichmentService extends TestTitanCommon {
 			tx.commit();
 		}
 	}
+	
+	/** Bulk load mode where the writes are stubbed out: records which groups get committed, and fails any transaction
+	 *  containing one of the "conflicting" groups (while the error count lasts) with a recoverable error
+	 */
+	public static class BulkRetryTestService extends TitanGraphBuilderEnrichmentService {
+		final List<List<String>> committed = new ArrayList<>();
+		final List<Integer> backoffs = new ArrayList<>();
+		final List<String> conflicting_groups;
+		int conflicts_remaining;
+		List<String> last_built = null;
+		
+		BulkRetryTestService(final String conflicting_group, final int num_conflicts) {
+			this(Arrays.asList(conflicting_group), num_conflicts);
+		}
+		BulkRetryTestService(final List<String> conflicting_groups, final int num_conflicts) {
+			this.conflicting_groups = conflicting_groups;
+			this.conflicts_remaining = num_conflicts;
+			_bulk_load = true;
+			_titan.set(TestTitanCommon._titan);
+			_mutable_stats.set(new MutableStatsBean());
+		}
+		
+		@Override
+		protected void buildGraph_inTransaction(final TitanTransaction mutable_tx, final List<ObjectNode> vertices_and_edges, final MutableStatsBean mutable_stats) {
+			last_built = vertices_and_edges.stream().map(o -> o.get(GraphAnnotationBean.name).asText()).collect(Collectors.toList());
+			if (last_built.stream().anyMatch(name -> conflicting_groups.contains(name)) && (conflicts_remaining-- > 0)) {
+				final PermanentLockingException inner = Mockito.mock(PermanentLockingException.class);
+				Mockito.when(inner.getStackTrace()).thenReturn(new StackTraceElement[0]);
+				throw new TitanException("test", inner);
+			}
+		}
+		
+		@Override
+		protected void onBatchSuccess(final MutableStatsBean mutable_stats) {
+			committed.add(last_built);
+		}
+		
+		@Override
+		protected void backoff(final int sleep_time_ms) {
+			backoffs.add(sleep_time_ms);
+		}
+	}
+	
+	@Test
+	public void test_tryRecoverableBulkTransaction() {
+		final List<List<ObjectNode>> groups = Stream.of("g0", "g1", "g2", "g3")
+				.map(name -> Arrays.asList(_mapper.createObjectNode().put(GraphAnnotationBean.name, name)))
+				.collect(Collectors.toList());
+		
+		// Conflict in one group: the batch is bisected, the non-conflicting groups commit straight away, the conflicting one backs off until it succeeds
+		{
+			final BulkRetryTestService service = new BulkRetryTestService("g2", 3);
+			service.tryRecoverableBulkTransaction(groups, new Random(0L));
+			
+			assertEquals(Arrays.asList(Arrays.asList("g0", "g1"), Arrays.asList("g3"), Arrays.asList("g2")), service.committed);
+			assertEquals(1, service.backoffs.size()); // (full batch and [g2, g3] fail and get split, then [g2] fails once more on its own)
+			assertTrue("Backoff: " + service.backoffs, service.backoffs.get(0) >= TitanGraphBuilderEnrichmentService._BACKOFF_TIMES_MS[0]/2);
+		}
+		// Conflicts in both halves: the conflicting groups share a single backoff and are retried together
+		{
+			final BulkRetryTestService service = new BulkRetryTestService(Arrays.asList("g1", "g3"), 5);
+			service.tryRecoverableBulkTransaction(groups, new Random(0L));
+			
+			assertEquals(Arrays.asList(Arrays.asList("g0"), Arrays.asList("g2"), Arrays.asList("g1", "g3")), service.committed);
+			assertEquals(1, service.backoffs.size());
+		}
+		// Conflict that never clears: the conflicting group backs off (increasingly, up to the total limit) then rethrows, after the other groups have committed
+		{
+			final BulkRetryTestService service = new BulkRetryTestService("g2", Integer.MAX_VALUE);
+			try {
+				service.tryRecoverableBulkTransaction(groups, new Random(0L));
+				fail("Should have errored");
+			}
+			catch (TitanException e) {}
+			
+			assertEquals(Arrays.asList(Arrays.asList("g0", "g1"), Arrays.asList("g3")), service.committed);
+			assertTrue("Backoff: " + service.backoffs, service.backoffs.size() <= TitanGraphBuilderEnrichmentService._MAX_ATTEMPT_NUM);
+			assertTrue("Backoff: " + service.backoffs, service.backoffs.stream().mapToInt(i -> i).sum() <= TitanGraphBuilderEnrichmentService._MAX_BULK_BACKOFF_MS);
+			for (int i = 0; i < service.backoffs.size() - 1; ++i) { // (increasing backoff - except the last one, which can be cut short by the total limit)
+				final int min_sleep_time = TitanGraphBuilderEnrichmentService._BACKOFF_TIMES_MS[i]/2;
+				assertTrue("Backoff: " + service.backoffs, (service.backoffs.get(i) >= min_sleep_time) && (service.backoffs.get(i) < 2*min_sleep_time));
+			}
+		}
+		// Non recoverable errors are rethrown straight away
+		{
+			final BulkRetryTestService service = new BulkRetryTestService("g2", 0) {
+				@Override
+				protected void buildGraph_inTransaction(final TitanTransaction mutable_tx, final List<ObjectNode> vertices_and_edges, final MutableStatsBean mutable_stats) {
+					throw new TitanException("test");
+				}				
+			};
+			try {
+				service.tryRecoverableBulkTransaction(groups, new Random(0L));
+				fail("Should have errored");
+			}
+			catch (TitanException e) {}
+			assertEquals(Collections.emptyList(), service.committed);
+			assertEquals(Collections.emptyList(), service.backoffs);
+		}
+	}
 }
@@ -27,6 +27,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -54,6 +55,7 @@ import com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadat
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.Optionals;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.data_model.utils.UuidUtils;
 import com.ikanow.aleph2.graph.titan.data_model.TitanGraphConfigBean;
 import com.ikanow.aleph2.graph.titan.module.TitanGraphModule;
@@ -346,6 +348,90 @@ public class TestTitanGraphService extends TestTitanCommon {
 		}
 	}
 	
+	@Test
+	public void test_handleBucketDeletionRequest_resume() throws InterruptedException {
+		final String bucket_path = "/test/bucket/delete_resume";
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, bucket_path)
+			.done().get();			
+		
+		_mock_graph_db_service.onPublishOrUpdate(bucket, Optional.empty(), false, ImmutableSet.of(GraphSchemaBean.name), Collections.emptySet()).join();		
+		
+		// Checkpoint CRUD
+		assertEquals(Optional.empty(), _mock_graph_db_service.getPurgeCheckpoint(bucket_path));
+		_mock_graph_db_service.setPurgeCheckpoint(bucket_path, 7L, 3L);
+		waitForIndex(() -> _mock_graph_db_service.getPurgeCheckpoint(bucket_path).isPresent());
+		_mock_graph_db_service.setPurgeCheckpoint(bucket_path, 70L, 30L);
+		assertEquals(Optional.of(Tuples._2T(70L, 30L)), _mock_graph_db_service.getPurgeCheckpoint(bucket_path));
+		
+		// Add some vertices/edges
+		final int N_OBJECTS = 50;
+		{
+			final TitanTransaction tx = _titan.buildTransaction().start();
+			for (int ii = 0; ii < N_OBJECTS; ++ii) {
+				final Vertex v1 = tx.addVertex("test_resume_A_" + ii);
+				final Vertex v2 = tx.addVertex("test_resume_B_" + ii);
+				final Edge e1 = v1.addEdge("test_edge_" + ii, v2);
+				v1.property(GraphAnnotationBean.a2_p, bucket_path);
+				v2.property(GraphAnnotationBean.a2_p, bucket_path);
+				e1.property(GraphAnnotationBean.a2_p, bucket_path);
+			}
+			tx.commit();
+		}
+		waitForIndex(() -> (2*N_OBJECTS == countBucketElements(bucket_path, true)) && (N_OBJECTS == countBucketElements(bucket_path, false)));
+		
+		// Delete in small rounds (10 elements x 2 threads), so it takes several rounds/checkpoints to get through everything
+		// Progress is reported relative to the previous (incomplete) attempt 
+		{
+			final MockTitanGraphService small_rounds_service = new MockTitanGraphService(_mock_graph_db_service, 
+					BeanTemplateUtils.build(TitanGraphConfigBean.class)
+						.with(TitanGraphConfigBean::deletion_batch_size, 10)
+						.with(TitanGraphConfigBean::deletion_threads, 2)
+					.done().get());
+			
+			final BasicMessageBean ret_val = small_rounds_service.handleBucketDeletionRequest(bucket, Optional.empty(), true).join();
+			assertTrue(ret_val.message(), ret_val.success());
+			assertTrue(ret_val.message(), ret_val.message().contains("vertices_purged=" + (70 + 2*N_OBJECTS)));
+			assertTrue(ret_val.message(), ret_val.message().contains("edges_purged=" + (30 + N_OBJECTS)));
+			assertTrue(ret_val.message(), ret_val.message().contains("resumed from vertices=70 edges=30"));
+		}
+		
+		// Checkpoint removed on completion, and everything deleted
+		waitForIndex(() -> !_mock_graph_db_service.getPurgeCheckpoint(bucket_path).isPresent());
+		assertEquals(Optional.empty(), _mock_graph_db_service.getPurgeCheckpoint(bucket_path));
+		waitForIndex(() -> (0L == countBucketElements(bucket_path, true)) && (0L == countBucketElements(bucket_path, false)));
+		assertEquals(0L, countBucketElements(bucket_path, true)); 
+		assertEquals(0L, countBucketElements(bucket_path, false)); 
+	}
+	
+	/** Counts the vertices or edges tagged with the bucket
+	 * @param bucket_path
+	 * @param vertices - true for vertices, false for edges
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static long countBucketElements(final String bucket_path, final boolean vertices) {
+		final TitanTransaction tx = _titan.buildTransaction().readOnly().start();
+		try {
+			return vertices
+					? StreamUtils.stream(tx.query().has(GraphAnnotationBean.a2_p, bucket_path).vertices()).count()
+					: StreamUtils.stream(tx.query().has(GraphAnnotationBean.a2_p, bucket_path).edges()).count();
+		}
+		finally {
+			tx.rollback();
+		}
+	}
+	
+	/** Polls (for up to 10s) until the ES backed index reflects the check, rather than waiting a fixed time for it to refresh
+	 * @param check
+	 * @throws InterruptedException
+	 */
+	private static void waitForIndex(final BooleanSupplier check) throws InterruptedException {
+		for (int i = 0; (i < 100) && !check.getAsBoolean(); ++i) {
+			Thread.sleep(100L);
+		}
+	}
+	
 	@Test
 	public void test_miscCoverage() {
 		
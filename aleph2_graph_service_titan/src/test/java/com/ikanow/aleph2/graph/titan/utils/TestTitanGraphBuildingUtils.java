@@ -47,6 +47,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
@@ -1497,6 +1499,131 @@ public class TestTitanGraphBuildingUtils {
 		}
 	}
 
+	@Test
+	public void test_buildGraph_groupConnectedElements() {
+		final GraphSchemaBean graph_schema = BeanTemplateUtils.build(GraphSchemaBean.class)
+				.with(GraphSchemaBean::deduplication_fields, Arrays.asList(GraphAnnotationBean.name, GraphAnnotationBean.type))
+			.done().get();
+		
+		final Function<String, ObjectNode> key = name -> _mapper.createObjectNode().put(GraphAnnotationBean.name, name).put(GraphAnnotationBean.type, "ip");
+		final Function<String, ObjectNode> vertex = name -> (ObjectNode) _mapper.createObjectNode()
+																.put(GraphAnnotationBean.type, GraphAnnotationBean.ElementType.vertex.toString())
+																.put(GraphAnnotationBean.label, name)
+																.set(GraphAnnotationBean.id, key.apply(name));
+		final Function<Tuple2<String, String>, ObjectNode> edge = t2 -> {
+			final ObjectNode o = _mapper.createObjectNode()
+									.put(GraphAnnotationBean.type, GraphAnnotationBean.ElementType.edge.toString())
+									.put(GraphAnnotationBean.label, t2._1() + "_" + t2._2());
+			o.set(GraphAnnotationBean.outV, key.apply(t2._1()));
+			o.set(GraphAnnotationBean.inV, key.apply(t2._2()));
+			return o;
+		};
+		
+		// 3 components: (D, C, C->D), (A, B, B->A, A->E, E), (F)
+		final List<ObjectNode> vertices_and_edges = Arrays.asList(
+				edge.apply(Tuples._2T("C", "D")),
+				vertex.apply("D"),
+				vertex.apply("B"),
+				vertex.apply("F"),
+				edge.apply(Tuples._2T("B", "A")),
+				vertex.apply("C"),
+				vertex.apply("A"),
+				edge.apply(Tuples._2T("A", "E")),
+				vertex.apply("E")
+				);
+		
+		final List<List<ObjectNode>> ret_val = TitanGraphBuildingUtils.buildGraph_groupConnectedElements(graph_schema, vertices_and_edges);
+		
+		assertEquals(3, ret_val.size());
+		assertEquals(9, ret_val.stream().mapToInt(l -> l.size()).sum());
+		
+		final Function<List<ObjectNode>, List<String>> labels = l -> l.stream().map(o -> o.get(GraphAnnotationBean.label).asText()).collect(Collectors.toList());
+		
+		// (groups sorted by first key, vertices first then edges, edges sorted by (inV, outV))
+		assertEquals(Arrays.asList("A", "B", "E", "B_A", "A_E"), labels.apply(ret_val.get(0)));
+		assertEquals(Arrays.asList("C", "D", "C_D"), labels.apply(ret_val.get(1)));
+		assertEquals(Arrays.asList("F"), labels.apply(ret_val.get(2)));
+	}
+	
+	@Test
+	public void test_getGroupedVertices_withCache() {
+		final TitanGraph titan = getSimpleTitanGraph();
+		TitanManagement mgmt = titan.openManagement();		
+		mgmt.makePropertyKey(GraphAnnotationBean.a2_p).dataType(String.class).cardinality(Cardinality.SET).make();
+		mgmt.commit();
+		
+		final TitanTransaction tx = titan.buildTransaction().start();
+		rebuildSimpleGraph(tx, "/test/cache");
+		
+		final List<String> key_fields = Arrays.asList(GraphAnnotationBean.name, GraphAnnotationBean.type);
+		final ObjectNode key_ipA = _mapper.createObjectNode().put(GraphAnnotationBean.name, "ipA").put(GraphAnnotationBean.type, "ip");
+		final ObjectNode key_dY = _mapper.createObjectNode().put(GraphAnnotationBean.name, "dY").put(GraphAnnotationBean.type, "host");
+		final ObjectNode key_dX = _mapper.createObjectNode().put(GraphAnnotationBean.name, "dX").put(GraphAnnotationBean.type, "host");
+		
+		final Cache<JsonNode, Long> cache = CacheBuilder.newBuilder().maximumSize(100).build();
+		
+		// 1) Empty cache - all misses, matches get cached
+		{
+			final MutableStatsBean stats = new MutableStatsBean();
+			final Map<JsonNode, List<Vertex>> ret_val = TitanGraphBuildingUtils.getGroupedVertices(Arrays.asList(key_ipA, key_dY, key_dX), tx, key_fields, v -> true, Optional.of(cache), stats);
+			
+			assertEquals(2, ret_val.size());
+			assertEquals(0L, stats.vertex_cache_hits);
+			assertEquals(3L, stats.vertex_cache_misses);
+			assertEquals(2L, cache.size());
+			assertEquals(ret_val.get(key_ipA).get(0).id(), cache.getIfPresent(key_ipA));
+		}
+		// 2) Same keys again - cached ones are hits, returning the same vertices
+		{
+			final MutableStatsBean stats = new MutableStatsBean();
+			final Map<JsonNode, List<Vertex>> ret_val = TitanGraphBuildingUtils.getGroupedVertices(Arrays.asList(key_ipA, key_dY, key_dX), tx, key_fields, v -> true, Optional.of(cache), stats);
+			
+			assertEquals(2, ret_val.size());
+			assertEquals(2L, stats.vertex_cache_hits);
+			assertEquals(1L, stats.vertex_cache_misses);
+			assertEquals(cache.getIfPresent(key_dY), ret_val.get(key_dY).get(0).id());
+			assertEquals(2.0/3, stats.vertexCacheHitRate(), 0.001);
+		}
+		// 3) Filter still applies to cached vertices
+		{
+			final MutableStatsBean stats = new MutableStatsBean();
+			final Map<JsonNode, List<Vertex>> ret_val = TitanGraphBuildingUtils.getGroupedVertices(Arrays.asList(key_ipA), tx, key_fields, v -> false, Optional.of(cache), stats);
+			
+			assertEquals(0, ret_val.size());
+			assertEquals(0L, stats.vertex_cache_hits);
+			assertEquals(1L, stats.vertex_cache_misses);
+			assertEquals(null, cache.getIfPresent(key_ipA));
+		}
+		// 4) Stale entries (vertex deleted) are treated as misses and removed
+		{
+			final MutableStatsBean stats = new MutableStatsBean();
+			TitanGraphBuildingUtils.getGroupedVertices(Arrays.asList(key_ipA), tx, key_fields, v -> true, Optional.of(cache), stats);
+			assertEquals(2L, cache.size());
+			
+			tx.getVertex(cache.getIfPresent(key_dY)).remove();
+			
+			final Map<JsonNode, List<Vertex>> ret_val = TitanGraphBuildingUtils.getGroupedVertices(Arrays.asList(key_ipA, key_dY), tx, key_fields, v -> true, Optional.of(cache), stats);
+			assertEquals(1, ret_val.size());
+			assertTrue(ret_val.containsKey(key_ipA));
+			assertEquals(null, cache.getIfPresent(key_dY));
+		}
+		// 5) Merging duplicates invalidates the cache entry
+		{
+			final Vertex dup = tx.addVertex("existing_ipA");
+			dup.property(GraphAnnotationBean.name, "ipA");
+			dup.property(GraphAnnotationBean.type, "ip");
+			dup.property(GraphAnnotationBean.a2_p, "/test/cache");
+			assertTrue(null != cache.getIfPresent(key_ipA));
+			
+			final Map<JsonNode, List<Vertex>> grouped_vertices = TitanGraphBuildingUtils.getGroupedVertices(Arrays.asList(key_ipA), tx, key_fields, v -> true);
+			assertEquals(2, grouped_vertices.get(key_ipA).size());
+			
+			TitanGraphBuildingUtils.mergeDuplicates(tx, "/test/cache", grouped_vertices, new MutableStatsBean(), Optional.of(cache));
+			assertEquals(null, cache.getIfPresent(key_ipA));
+		}
+		tx.rollback();
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Test
 	public void test_mergeDuplicates() {
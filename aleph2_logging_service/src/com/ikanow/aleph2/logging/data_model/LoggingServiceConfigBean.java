@@ -15,6 +15,10 @@
  *******************************************************************************/
 package com.ikanow.aleph2.logging.data_model;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
 import org.apache.logging.log4j.Level;
 
 /**
@@ -25,16 +29,42 @@ import org.apache.logging.log4j.Level;
 public class LoggingServiceConfigBean {
 
 	public static final String PROPERTIES_ROOT = "CoreLoggingService";
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+	public static final int DEFAULT_MAX_BUFFERED_MESSAGES = 16384;
+	public static final int DEFAULT_RATE_LIMIT_BURST = 1000;
+	
+	/**
+	 * What a bucket logger does when its buffer is full:
+	 * block - the logging thread waits for the buffer to drain
+	 * drop_oldest - the oldest buffered message is discarded (and counted)
+	 * drop_newest - the new message is discarded (and counted)
+	 */
+	public enum OverflowPolicy { block, drop_oldest, drop_newest }
+	
 	private String default_time_field;
 	private Level default_system_log_level;
 	private Level default_user_log_level;
+	private Integer buffer_size;
+	private OverflowPolicy buffer_overflow_policy;
+	private Integer max_buffered_messages;
+	private Double rate_limit_per_sec;
+	private Integer rate_limit_burst;
+	private Long dedup_window_ms;
+	private Map<String, Double> sampling_ratios;
 	
 	protected LoggingServiceConfigBean() {}
 	
 	public LoggingServiceConfigBean(final String default_time_field, final Level default_system_log_level, final Level default_user_log_level) {
+		this(default_time_field, default_system_log_level, default_user_log_level, null, null);
+	}
+	
+	public LoggingServiceConfigBean(final String default_time_field, final Level default_system_log_level, final Level default_user_log_level,
+			final Integer buffer_size, final OverflowPolicy buffer_overflow_policy) {
 		this.default_time_field = default_time_field;
 		this.default_system_log_level = default_system_log_level;
 		this.default_user_log_level = default_user_log_level;
+		this.buffer_size = buffer_size;
+		this.buffer_overflow_policy = buffer_overflow_policy;
 	}
 	
 	/**
@@ -52,4 +82,40 @@ public class LoggingServiceConfigBean {
 	 * @return
 	 */
 	public Level default_user_log_level() { return this.default_user_log_level; }
+	/**
+	 * Max number of log messages each bucket logger buffers before they are written out (defaults to 256, 0 to write synchronously)
+	 * @return
+	 */
+	public Integer buffer_size() { return Optional.ofNullable(this.buffer_size).orElse(DEFAULT_BUFFER_SIZE); }
+	/**
+	 * Max number of log messages buffered across all the bucket loggers, past which the overflow policy applies (defaults to 16384, 0 for no limit)
+	 * @return
+	 */
+	public Integer max_buffered_messages() { return Optional.ofNullable(this.max_buffered_messages).orElse(DEFAULT_MAX_BUFFERED_MESSAGES); }
+	/**
+	 * What to do when a bucket logger's buffer is full (defaults to 'block')
+	 * @return
+	 */
+	public OverflowPolicy buffer_overflow_policy() { return Optional.ofNullable(this.buffer_overflow_policy).orElse(OverflowPolicy.block); }
+	/**
+	 * Sustained number of messages per second a bucket logger writes for each (subsystem, command, message code), the rest are
+	 * folded into a summary record (defaults to 0, ie disabled)
+	 * @return
+	 */
+	public Double rate_limit_per_sec() { return Optional.ofNullable(this.rate_limit_per_sec).orElse(0.0); }
+	/**
+	 * Number of messages for each (subsystem, command, message code) that can be written at once before rate limiting applies (defaults to 1000)
+	 * @return
+	 */
+	public Integer rate_limit_burst() { return Optional.ofNullable(this.rate_limit_burst).orElse(DEFAULT_RATE_LIMIT_BURST); }
+	/**
+	 * Identical messages logged within this many ms of each other are folded into a summary record (defaults to 0, ie disabled)
+	 * @return
+	 */
+	public Long dedup_window_ms() { return Optional.ofNullable(this.dedup_window_ms).orElse(0L); }
+	/**
+	 * Map of level name (eg "DEBUG") to the fraction of messages at that level that are kept (defaults to empty, ie keep everything)
+	 * @return
+	 */
+	public Map<String, Double> sampling_ratios() { return Optional.ofNullable(this.sampling_ratios).orElse(Collections.emptyMap()); }
 }
@@ -17,10 +17,18 @@ package com.ikanow.aleph2.logging.service;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -29,7 +37,9 @@ import org.apache.logging.log4j.Logger;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListeners;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.ikanow.aleph2.core.shared.services.MultiDataService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
@@ -40,6 +50,8 @@ import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.logging.data_model.LoggingServiceConfigBean;
+import com.ikanow.aleph2.logging.utils.LoggingRingBuffer;
+import com.ikanow.aleph2.logging.utils.LoggingThrottle;
 import com.ikanow.aleph2.logging.utils.LoggingUtils;
 import com.ikanow.aleph2.management_db.services.DataBucketCrudService;
 
@@ -53,11 +65,35 @@ public class LoggingService implements ILoggingService {
 	
 	private final static Logger _logger = LogManager.getLogger();
 	protected final static Cache<String, MultiDataService> bucket_writable_cache = CacheBuilder.newBuilder().expireAfterAccess(30, TimeUnit.MINUTES).build();
+	protected final static long MAX_CACHED_LOGGERS = 1000L;
+	protected final static ExecutorService drain_executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("aleph2-bucket-log-drainer-%d").build());
 	private static final BasicMessageBean LOG_MESSAGE_BELOW_THRESHOLD = ErrorUtils.buildSuccessMessage(BucketLogger.class.getName(), "Log message dropped, below threshold", "n/a");
+	private static final BasicMessageBean LOG_MESSAGE_QUEUED = ErrorUtils.buildSuccessMessage(BucketLogger.class.getName(), "Log message queued", "n/a");
+	private static final BasicMessageBean LOG_MESSAGE_WRITTEN = ErrorUtils.buildSuccessMessage(BucketLogger.class.getName(), "Log message written", "n/a");
+	private static final BasicMessageBean LOG_MESSAGE_WRITE_FAILED = ErrorUtils.buildErrorMessage(BucketLogger.class.getName(), "Log message dropped, write failed", "n/a");
+	private static final BasicMessageBean LOG_MESSAGE_SUPPRESSED = ErrorUtils.buildSuccessMessage(BucketLogger.class.getName(), "Log message suppressed (sampled, duplicate, or rate limited)", "n/a");
+	private static final BasicMessageBean LOG_MESSAGE_BUFFER_FULL = ErrorUtils.buildErrorMessage(BucketLogger.class.getName(), "Log message dropped, buffer full", "n/a");
 	
 	protected final LoggingServiceConfigBean properties;
 	protected final IServiceContext service_context;
 	protected final IStorageService storage_service;
+	protected final Optional<Semaphore> buffered_message_permits; //(caps the number of messages buffered across all the bucket loggers, empty if unlimited)
+	
+	//(loggers are keyed on the bucket version and logging thresholds, so a changed management schema gets a new logger - 
+	// evicted loggers are flushed on the drain executor, so the flush never runs on the thread that triggered the eviction,
+	// but stay usable by anyone still holding on to them)
+	protected final Cache<String, BucketLogger> bucket_logger_cache = CacheBuilder.newBuilder()
+			.maximumSize(MAX_CACHED_LOGGERS)
+			.expireAfterAccess(30, TimeUnit.MINUTES)
+			.removalListener(RemovalListeners.<String, BucketLogger>asynchronous(notification -> {
+				try {
+					notification.getValue().flush();
+				}
+				catch (Throwable t) {
+					_logger.error("Error flushing evicted logger: " + notification.getKey(), t);
+				}
+			}, drain_executor))
+			.build();
 	
 	@Inject
 	public LoggingService(
@@ -66,6 +102,7 @@ public class LoggingService implements ILoggingService {
 		this.properties = properties;
 		this.service_context = service_context;
 		this.storage_service = service_context.getStorageService();		
+		this.buffered_message_permits = Optional.of(properties.max_buffered_messages()).filter(max -> max > 0).map(max -> new Semaphore(max));
 	}	
 
 	/* (non-Javadoc)
@@ -73,7 +110,7 @@ public class LoggingService implements ILoggingService {
 	 */
 	@Override
 	public IBucketLogger getLogger(DataBucketBean bucket) {
-		return getBucketLogger(bucket, getWritable(bucket), false);		
+		return getBucketLogger(bucket, false);		
 	}
 
 	/* (non-Javadoc)
@@ -81,7 +118,7 @@ public class LoggingService implements ILoggingService {
 	 */
 	@Override
 	public IBucketLogger getSystemLogger(DataBucketBean bucket) {
-		return getBucketLogger(bucket, getWritable(bucket), true);
+		return getBucketLogger(bucket, true);
 	}
 	
 	/* (non-Javadoc)
@@ -90,7 +127,7 @@ public class LoggingService implements ILoggingService {
 	@Override
 	public IBucketLogger getExternalLogger(final String subsystem) {
 		final DataBucketBean bucket = LoggingUtils.getExternalBucket(subsystem, Optional.ofNullable(properties.default_system_log_level()).orElse(Level.OFF));		
-		return getBucketLogger(bucket, getWritable(bucket), true);
+		return getBucketLogger(bucket, true);
 	}
 	
 	/**
@@ -113,23 +150,49 @@ public class LoggingService implements ILoggingService {
 	}	
 
 	/**
-	 * Creates the bucket logger for the given bucket.  First attempts to write the
-	 * output path, if that fails returns an exceptioned completable.
+	 * Returns the bucket logger for the given bucket, from the cache if possible.  Otherwise first attempts to write the
+	 * output path, if that fails returns a logger that ignores requests (which isn't cached, so the next request tries again).
 	 * 
 	 * @param bucket
-	 * @param writable
-	 * @param b
+	 * @param isSystem
 	 */
-	private IBucketLogger getBucketLogger(DataBucketBean bucket,
-			MultiDataService writable, boolean isSystem) {
+	private IBucketLogger getBucketLogger(final DataBucketBean bucket, final boolean isSystem) {
+		final String cache_key = getLoggerCacheKey(bucket, isSystem);
+		final BucketLogger cached_logger = bucket_logger_cache.getIfPresent(cache_key);
+		if (null != cached_logger) {
+			return cached_logger;
+		}
+		
 		//initial the logging bucket path in case it hasn't been created yet
 		try {
-			DataBucketCrudService.createFilePaths(bucket, storage_service);
+			createFilePaths(bucket);
 		} catch (Exception e) {
 			_logger.error("Error creating logging bucket file path: " + bucket.full_name(), e);			
 			return new BucketLogger(LoggingUtils.getEmptyBucket(), getWritable(bucket), isSystem);
 		}
-		return new BucketLogger(bucket, getWritable(bucket), isSystem);
+		final BucketLogger logger = new BucketLogger(bucket, getWritable(bucket), isSystem);
+		final BucketLogger existing_logger = bucket_logger_cache.asMap().putIfAbsent(cache_key, logger);
+		return (null == existing_logger) ? logger : existing_logger; //(another thread beat us to it, use theirs so there's one buffer per logger)
+	}
+	
+	/**
+	 * Creates the bucket's storage paths - only called when a logger isn't in the cache
+	 * 
+	 * @param bucket
+	 * @throws Exception
+	 */
+	protected void createFilePaths(final DataBucketBean bucket) throws Exception {
+		DataBucketCrudService.createFilePaths(bucket, storage_service);
+	}
+	
+	/**
+	 * Returns the key to cache loggers on, currently "bucket.full_name:bucket.modified:is_system:logging thresholds hash"
+	 * @param bucket
+	 * @param isSystem
+	 * @return
+	 */
+	private static String getLoggerCacheKey(final DataBucketBean bucket, final boolean isSystem) {
+		return getWritableCacheKey(bucket) + ":" + isSystem + ":" + LoggingUtils.getBucketLoggingThresholds(bucket).hashCode();
 	}
 	
 	/**
@@ -141,19 +204,43 @@ public class LoggingService implements ILoggingService {
 		return bucket.full_name() + ":" + Optional.ofNullable(bucket.modified()).map(d->d.toString());
 	}
 	
+	/**
+	 * A log message waiting in a bucket logger's buffer
+	 * @author Burch
+	 *
+	 */
+	private static class BufferedLogMessage {
+		final Level level;
+		final BasicMessageBean message;
+		
+		BufferedLogMessage(final Level level, final BasicMessageBean message) {
+			this.level = level;
+			this.message = message;
+		}
+	}
+	
 	/**
 	 * Implementation of the IBucketLogger that just filters log messages based on the ManagementSchema in
 	 * the DatabucketBean and pushes objects into a writable created from the same schema at initialization of this object.
+	 * 
+	 * Messages that pass the filter are put in a bounded ring buffer - a single drain task per logger (run on a shared executor)
+	 * builds the log objects and writes them out, so the logging threads never wait on the writable (unless the buffer is full
+	 * and the overflow policy is "block")
 	 * @author Burch
 	 *
 	 */
-	private class BucketLogger implements IBucketLogger {		
+	protected class BucketLogger implements IBucketLogger {		
 		final MultiDataService logging_writable;
 		final boolean isSystem;
 		final DataBucketBean bucket;
 		final String date_field;
 		final Level default_log_level;  //holds the default log level for quick matching
 		final ImmutableMap<String, Level> bucket_logging_thresholds; //holds bucket logging overrides for quick matching
+		final Level most_permissive_log_level; //messages below this are always filtered out, whatever their subsystem
+		final Optional<LoggingRingBuffer<BufferedLogMessage>> maybe_buffer; //(empty if buffering is disabled)
+		final AtomicBoolean draining = new AtomicBoolean(false); //(ensures there's only ever one drain task queued or running)
+		final Object drain_lock = new Object(); //(held while writing out the buffer, so there's only ever one consumer of it)
+		final Optional<LoggingThrottle> maybe_throttle; //(empty if sampling/dedup/rate limiting are all disabled)
 		
 		public BucketLogger(final DataBucketBean bucket, final MultiDataService logging_writable, final boolean isSystem) {
 			this.bucket = bucket;
@@ -162,6 +249,9 @@ public class LoggingService implements ILoggingService {
 			this.bucket_logging_thresholds = LoggingUtils.getBucketLoggingThresholds(bucket);
 			this.date_field = Optional.ofNullable(properties.default_time_field()).orElse("date");
 			this.default_log_level = isSystem ? Optional.ofNullable(properties.default_system_log_level()).orElse(Level.OFF) : Optional.ofNullable(properties.default_user_log_level()).orElse(Level.OFF);			
+			this.most_permissive_log_level = LoggingUtils.getMostPermissiveLogLevel(bucket_logging_thresholds, default_log_level);
+			this.maybe_buffer = Optional.of(properties.buffer_size()).filter(size -> size > 0).map(size -> new LoggingRingBuffer<>(size, properties.buffer_overflow_policy(), buffered_message_permits));
+			this.maybe_throttle = createThrottle(System::currentTimeMillis);
 		}
 		
 		/* (non-Javadoc)
@@ -170,26 +260,141 @@ public class LoggingService implements ILoggingService {
 		@Override
 		public CompletableFuture<?> log(final Level level, final BasicMessageBean message) {		
 			if ( LoggingUtils.meetsLogLevelThreshold(level, bucket_logging_thresholds, message.source(), default_log_level)) {
-				//create log message to output:				
-				final JsonNode logObject = LoggingUtils.createLogObject(level, bucket, message, isSystem, date_field);
-				
-				//send message to output log file
-				_logger.debug("LOGGING MSG: " + logObject.toString());		
-				return CompletableFuture.completedFuture(logging_writable.batchWrite(logObject));
+				if (maybe_throttle.isPresent() && !maybe_throttle.get().accept(level, message, this::emit)) {
+					return CompletableFuture.completedFuture(LOG_MESSAGE_SUPPRESSED);
+				}
+				return CompletableFuture.completedFuture(emit(level, message));
 			} else {
 				return CompletableFuture.completedFuture(LOG_MESSAGE_BELOW_THRESHOLD);
 			}			
 		}
 
+		/**
+		 * Lazy version of log - the message is only built if its level could pass the bucket's filters
+		 * @param level
+		 * @param message_supplier
+		 * @return
+		 */
+		@Override
+		public CompletableFuture<?> log(final Level level, final Supplier<BasicMessageBean> message_supplier) {
+			if (!most_permissive_log_level.isLessSpecificThan(level)) {
+				return CompletableFuture.completedFuture(LOG_MESSAGE_BELOW_THRESHOLD);
+			}
+			return log(level, message_supplier.get());
+		}
+
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IBucketLogger#flush()
 		 */
 		@Override
 		public CompletableFuture<?> flush() {
+			maybe_throttle.ifPresent(throttle -> throttle.flushSummaries(this::emit));
+			maybe_buffer.ifPresent(buffer -> {
+				// Wait for any in-progress drain to finish, then write whatever's left from this thread
+				synchronized (drain_lock) {
+					try {
+						writeBuffered(buffer);
+					}
+					catch (Throwable t) {
+						_logger.error("Error writing log messages for bucket: " + bucket.full_name(), t);
+					}
+				}
+			});
 			return logging_writable.flushBatchOutput();
-		}		
+		}
+		
+		/**
+		 * Writes the message directly, or queues it if buffering is enabled
+		 * @param level
+		 * @param message
+		 * @return
+		 */
+		private BasicMessageBean emit(final Level level, final BasicMessageBean message) {
+			if (!maybe_buffer.isPresent()) {
+				return write(level, message) ? LOG_MESSAGE_WRITTEN : LOG_MESSAGE_WRITE_FAILED;
+			}
+			final boolean queued = maybe_buffer.get().offer(new BufferedLogMessage(level, message));
+			scheduleDrain();
+			return queued ? LOG_MESSAGE_QUEUED : LOG_MESSAGE_BUFFER_FULL;
+		}
+		
+		/**
+		 * Builds the log object and hands it to the writable
+		 * @param level
+		 * @param message
+		 * @return
+		 */
+		private boolean write(final Level level, final BasicMessageBean message) {
+			//create log message to output:				
+			final JsonNode logObject = LoggingUtils.createLogObject(level, bucket, message, isSystem, date_field);
+			
+			//send message to output log file
+			if (_logger.isDebugEnabled()) {
+				_logger.debug("LOGGING MSG: " + logObject.toString());
+			}
+			return logging_writable.batchWrite(logObject);
+		}
+		
+		/**
+		 * Submits a drain task unless one is already running
+		 */
+		private void scheduleDrain() {
+			if (draining.compareAndSet(false, true)) {
+				drain_executor.execute(this::drain);
+			}
+		}
+		
+		/**
+		 * Writes out everything in the buffer - must only be called by the thread that set "draining"
+		 */
+		private void drain() {
+			final LoggingRingBuffer<BufferedLogMessage> buffer = maybe_buffer.get();
+			do {
+				try {
+					synchronized (drain_lock) {
+						writeBuffered(buffer);
+					}
+				}
+				catch (Throwable t) {
+					_logger.error("Error writing log messages for bucket: " + bucket.full_name(), t);
+				}
+				finally {
+					draining.set(false);
+				}
+			}
+			while (!buffer.isEmpty() && draining.compareAndSet(false, true)); //(re-check in case a message arrived just before the flag was cleared)
+		}
+		
+		/**
+		 * Polls the buffer until it's empty, writing out each message (and a summary of any that were dropped) - must hold drain_lock
+		 * @param buffer
+		 */
+		private void writeBuffered(final LoggingRingBuffer<BufferedLogMessage> buffer) {
+			for (BufferedLogMessage next = buffer.poll(); null != next; next = buffer.poll()) {
+				write(next.level, next.message);
+			}
+			final long dropped = buffer.getAndResetDropped();
+			if (dropped > 0) {
+				write(Level.WARN, ErrorUtils.buildErrorMessage(BucketLogger.class.getSimpleName(), "log", 
+						"Dropped {0} log messages, buffer full (size={1}, policy={2})", dropped, buffer.capacity(), properties.buffer_overflow_policy()));
+			}
+		}
 	}
 
+	/**
+	 * Creates the sampling/dedup/rate limiting filter for a bucket logger from the service config
+	 * @param clock
+	 * @return
+	 */
+	protected Optional<LoggingThrottle> createThrottle(final LongSupplier clock) {
+		final Map<Level, Double> sampling_ratios = properties.sampling_ratios().entrySet().stream()
+				.collect(Collectors.toMap(kv -> Level.toLevel(kv.getKey()), kv -> kv.getValue()));
+		if ((properties.rate_limit_per_sec() <= 0) && (properties.dedup_window_ms() <= 0) && sampling_ratios.isEmpty()) {
+			return Optional.empty();
+		}
+		return Optional.of(new LoggingThrottle(properties.rate_limit_per_sec(), properties.rate_limit_burst(), properties.dedup_window_ms(), sampling_ratios, clock));
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingArtefacts()
 	 */
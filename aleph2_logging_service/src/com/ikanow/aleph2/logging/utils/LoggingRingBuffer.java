@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.logging.utils;
+
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ikanow.aleph2.logging.data_model.LoggingServiceConfigBean.OverflowPolicy;
+
+/**
+ * A bounded, lock-free ring buffer that sits between the threads calling IBucketLogger.log and the
+ * (single, per bucket) drainer that writes the log objects out.
+ *
+ * Each slot carries a sequence number that tells producers/consumers whether it is free or full, so that
+ * an offer or poll only needs a single CAS on the shared head/tail counters (see Vyukov's bounded MPMC queue).
+ * Polls are multi-consumer safe, which is what lets producers discard the oldest element under the drop_oldest policy.
+ * Buffers can optionally share a semaphore that caps the number of elements held across all of them.
+ *
+ * @param <T>
+ */
+public class LoggingRingBuffer<T> {
+	private static final long BLOCK_PARK_NS = 100_000L; // 0.1ms
+
+	private final int mask;
+	private final AtomicReferenceArray<T> buffer;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong(0); // (next slot to write)
+	private final AtomicLong head = new AtomicLong(0); // (next slot to read)
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final OverflowPolicy overflow_policy;
+	private final Optional<Semaphore> shared_permits; // (one permit per element held, across all the buffers sharing it)
+
+	/**
+	 * @param min_capacity - rounded up to the next power of 2
+	 * @param overflow_policy - what to do when the buffer is full
+	 */
+	public LoggingRingBuffer(final int min_capacity, final OverflowPolicy overflow_policy) {
+		this(min_capacity, overflow_policy, Optional.empty());
+	}
+
+	/**
+	 * @param min_capacity - rounded up to the next power of 2
+	 * @param overflow_policy - what to do when the buffer (or the shared limit) is full
+	 * @param shared_permits - if present, an element can only be added if a permit can be taken from here (it's handed back when the element is polled)
+	 */
+	public LoggingRingBuffer(final int min_capacity, final OverflowPolicy overflow_policy, final Optional<Semaphore> shared_permits) {
+		final int capacity = Integer.highestOneBit(Math.max(2, min_capacity) - 1) << 1;
+		this.mask = capacity - 1;
+		this.buffer = new AtomicReferenceArray<>(capacity);
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; ++i) sequences.set(i, i);
+		this.overflow_policy = overflow_policy;
+		this.shared_permits = shared_permits;
+	}
+
+	/**
+	 * Adds an element, applying the overflow policy if the buffer is full
+	 * @param element
+	 * @return true if the element was added, false if it was dropped
+	 */
+	public boolean offer(final T element) {
+		for (;;) {
+			if (tryOffer(element)) return true;
+			switch (overflow_policy) {
+				case block:
+					LockSupport.parkNanos(BLOCK_PARK_NS); // (wait for the drainer)
+					break;
+				case drop_oldest:
+					if (null != poll()) {
+						dropped.incrementAndGet();
+						break;
+					}
+					//(else it's the shared limit that's full and there's nothing of ours to discard, so drop the new element instead)
+					dropped.incrementAndGet();
+					return false;
+				default: // drop_newest
+					dropped.incrementAndGet();
+					return false;
+			}
+		}
+	}
+
+	/**
+	 * Tries to add an element, returns false immediately if the buffer (or the shared limit) is full
+	 * @param element
+	 * @return
+	 */
+	public boolean tryOffer(final T element) {
+		if (shared_permits.isPresent() && !shared_permits.get().tryAcquire()) {
+			return false;
+		}
+		for (;;) {
+			final long pos = tail.get();
+			final int index = (int) (pos & mask);
+			final long diff = sequences.get(index) - pos;
+			if (0 == diff) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					buffer.lazySet(index, element);
+					sequences.set(index, pos + 1); // (publishes the element)
+					return true;
+				}
+			}
+			else if (diff < 0) {
+				shared_permits.ifPresent(Semaphore::release);
+				return false; // full
+			}
+			//(else another producer claimed this slot, retry)
+		}
+	}
+
+	/**
+	 * Removes the oldest element
+	 * @return the element, or null if the buffer is empty
+	 */
+	public T poll() {
+		for (;;) {
+			final long pos = head.get();
+			final int index = (int) (pos & mask);
+			final long diff = sequences.get(index) - (pos + 1);
+			if (0 == diff) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					final T element = buffer.get(index);
+					buffer.lazySet(index, null);
+					sequences.set(index, pos + mask + 1); // (frees the slot for the next lap)
+					shared_permits.ifPresent(Semaphore::release);
+					return element;
+				}
+			}
+			else if (diff < 0) {
+				return null; // empty
+			}
+			//(else another consumer took this slot, retry)
+		}
+	}
+
+	/**
+	 * @return whether the buffer is (currently) empty
+	 */
+	public boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+
+	/**
+	 * @return the approximate number of elements in the buffer
+	 */
+	public int size() {
+		return (int) Math.max(0L, tail.get() - head.get());
+	}
+
+	/**
+	 * @return the max number of elements the buffer can hold
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Returns the number of elements dropped by the overflow policy since the last call, and resets it
+	 * @return
+	 */
+	public long getAndResetDropped() {
+		return dropped.getAndSet(0);
+	}
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.logging.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.Level;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableMap;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/**
+ * Protects the logging index from modules that flood a bucket logger with (usually identical) messages:
+ * 1. sampling - a fixed fraction of the messages at each level is kept
+ * 2. dedup - identical messages (same subsystem/command/message code/text) within a time window are suppressed
+ * 3. rate limiting - a token bucket per (subsystem, command, message code)
+ *
+ * Messages suppressed by 2/3 are folded into a single summary record (with the count) that is emitted the next time a message
+ * with the same key gets through, or when the logger is flushed (or, if the key's state is evicted, on the next call to either).
+ */
+public class LoggingThrottle {
+	public static final String SUPPRESSED_COUNT_FIELD = "suppressed_count";
+	private static final long MAX_TRACKED_KEYS = 10000L;
+
+	private final double rate_per_ms;
+	private final double burst;
+	private final long dedup_window_ms;
+	private final Map<Level, Double> sampling_ratios;
+	private final LongSupplier clock;
+
+	private final Map<Level, AtomicLong> sampling_counters = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<Summary> evicted_summaries = new ConcurrentLinkedQueue<>(); //(from keys evicted from the caches below)
+	private final RemovalListener<List<String>, KeyState> on_evict = notification -> {
+		final KeyState state = notification.getValue();
+		synchronized (state) { 
+			Optional.ofNullable(takeSummary(state)).ifPresent(evicted_summaries::add);
+		}
+	};
+	private final Cache<List<String>, KeyState> rate_limit_state;
+	private final Cache<List<String>, KeyState> dedup_state;
+
+	/**
+	 * Per key state, guarded by its own monitor
+	 */
+	private static class KeyState {
+		double tokens;
+		long last_time; // (last refill for rate limiting, window start for dedup)
+		long suppressed = 0;
+		Level suppressed_level = null;
+		BasicMessageBean suppressed_example = null;
+
+		KeyState(final double tokens, final long now) {
+			this.tokens = tokens;
+			this.last_time = now;
+		}
+	}
+	
+	/**
+	 * A summary record waiting to be passed to a sink
+	 */
+	private static class Summary {
+		final Level level;
+		final BasicMessageBean message;
+		
+		Summary(final Level level, final BasicMessageBean message) {
+			this.level = level;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * @param rate_per_sec - the sustained number of messages per second allowed for each (subsystem, command, message code) (<= 0 to disable)
+	 * @param burst - the max number of messages that can be sent at once before the rate limit applies
+	 * @param dedup_window_ms - identical messages within this window are suppressed (<= 0 to disable)
+	 * @param sampling_ratios - the fraction (0-1) of messages at each level to keep (missing levels are not sampled)
+	 * @param clock - returns the current time in ms (for testing)
+	 */
+	public LoggingThrottle(final double rate_per_sec, final int burst, final long dedup_window_ms, final Map<Level, Double> sampling_ratios, final LongSupplier clock) {
+		this(rate_per_sec, burst, dedup_window_ms, sampling_ratios, clock, MAX_TRACKED_KEYS);
+	}
+
+	/**
+	 * @param rate_per_sec - the sustained number of messages per second allowed for each (subsystem, command, message code) (<= 0 to disable)
+	 * @param burst - the max number of messages that can be sent at once before the rate limit applies
+	 * @param dedup_window_ms - identical messages within this window are suppressed (<= 0 to disable)
+	 * @param sampling_ratios - the fraction (0-1) of messages at each level to keep (missing levels are not sampled)
+	 * @param clock - returns the current time in ms (for testing)
+	 * @param max_tracked_keys - the max number of keys whose state is kept for rate limiting/dedup (for testing)
+	 */
+	protected LoggingThrottle(final double rate_per_sec, final int burst, final long dedup_window_ms, final Map<Level, Double> sampling_ratios, final LongSupplier clock, final long max_tracked_keys) {
+		this.rate_per_ms = rate_per_sec/1000.0;
+		this.burst = Math.max(1, burst);
+		this.dedup_window_ms = dedup_window_ms;
+		this.sampling_ratios = ImmutableMap.copyOf(sampling_ratios);
+		this.clock = clock;
+		this.rate_limit_state = CacheBuilder.newBuilder().maximumSize(max_tracked_keys).removalListener(on_evict).build();
+		this.dedup_state = CacheBuilder.newBuilder().maximumSize(max_tracked_keys).removalListener(on_evict).build();
+	}
+
+	/**
+	 * Decides whether a message should be written out
+	 * @param level
+	 * @param message
+	 * @param summary_sink - any pending summary records for this message's key are passed in here (before the message itself is written),
+	 *                       called without holding any of the throttle's locks
+	 * @return true if the message should be written
+	 */
+	public boolean accept(final Level level, final BasicMessageBean message, final BiConsumer<Level, BasicMessageBean> summary_sink) {
+		emitEvictedSummaries(summary_sink);
+		if (!isSampled(level)) return false;
+
+		final long now = clock.getAsLong();
+		final List<String> rate_key = Arrays.asList(message.source(), message.command(), Optional.ofNullable(message.message_code()).map(String::valueOf).orElse(null));
+
+		// Dedup
+		Summary dedup_summary = null;
+		if (dedup_window_ms > 0) {
+			final KeyState state = getState(dedup_state, Arrays.asList(rate_key.get(0), rate_key.get(1), rate_key.get(2), message.message()), now);
+			synchronized (state) {
+				if ((now - state.last_time) < dedup_window_ms) {
+					suppress(state, level, message);
+					return false;
+				}
+				else {
+					dedup_summary = takeSummary(state);
+					state.last_time = now;
+				}
+			}
+		}
+		// Rate limiting
+		Summary rate_limit_summary = null;
+		boolean accepted = true;
+		if (rate_per_ms > 0) {
+			final KeyState state = getState(rate_limit_state, rate_key, now);
+			synchronized (state) {
+				state.tokens = Math.min(burst, state.tokens + (now - state.last_time)*rate_per_ms);
+				state.last_time = now;
+				if (state.tokens < 1.0) {
+					suppress(state, level, message);
+					accepted = false;
+				}
+				else {
+					state.tokens -= 1.0;
+					rate_limit_summary = takeSummary(state);
+				}
+			}
+		}
+		// (summaries are emitted outside the locks - a dedup summary is still emitted if the message is then rate limited, since its count has been reset)
+		emitSummary(dedup_summary, summary_sink);
+		emitSummary(rate_limit_summary, summary_sink);
+		return accepted;
+	}
+
+	/**
+	 * Passes all the pending summary records to the sink (eg when the logger is flushed)
+	 * @param summary_sink
+	 */
+	public void flushSummaries(final BiConsumer<Level, BasicMessageBean> summary_sink) {
+		emitEvictedSummaries(summary_sink);
+		for (KeyState state: dedup_state.asMap().values()) {
+			final Summary summary;
+			synchronized (state) { summary = takeSummary(state); }
+			emitSummary(summary, summary_sink);
+		}
+		for (KeyState state: rate_limit_state.asMap().values()) {
+			final Summary summary;
+			synchronized (state) { summary = takeSummary(state); }
+			emitSummary(summary, summary_sink);
+		}
+	}
+
+	/**
+	 * Deterministic sampling: for a ratio r, keeps the nth message at a level if floor(n*r) > floor((n-1)*r)
+	 * @param level
+	 * @return
+	 */
+	private boolean isSampled(final Level level) {
+		final Double ratio = sampling_ratios.get(level);
+		if ((null == ratio) || (ratio >= 1.0)) return true;
+		if (ratio <= 0.0) return false;
+		final long n = sampling_counters.computeIfAbsent(level, __ -> new AtomicLong(0)).incrementAndGet();
+		return Math.floor(n*ratio) > Math.floor((n - 1)*ratio);
+	}
+
+	/**
+	 * Counts a suppressed message against the key
+	 */
+	private static void suppress(final KeyState state, final Level level, final BasicMessageBean message) {
+		state.suppressed++;
+		state.suppressed_level = level;
+		state.suppressed_example = message;
+	}
+
+	/**
+	 * If any messages have been suppressed for this key, builds the summary record and resets the count - must be called holding the state's lock
+	 * @return the summary record, or null if nothing has been suppressed
+	 */
+	private Summary takeSummary(final KeyState state) {
+		if (state.suppressed > 0) {
+			final BasicMessageBean example = state.suppressed_example;
+			final Map<String, Object> mutable_details = new HashMap<>(Optional.ofNullable(example.details()).orElse(Collections.emptyMap()));
+			mutable_details.put(SUPPRESSED_COUNT_FIELD, state.suppressed);
+			final Summary summary = new Summary(state.suppressed_level, BeanTemplateUtils.clone(example)
+					.with(BasicMessageBean::date, new Date(clock.getAsLong()))
+					.with(BasicMessageBean::message, ErrorUtils.get("Suppressed {0} repeated messages, last: {1}", state.suppressed, example.message()))
+					.with(BasicMessageBean::details, mutable_details)
+					.done());
+			state.suppressed = 0;
+			state.suppressed_level = null;
+			state.suppressed_example = null;
+			return summary;
+		}
+		return null;
+	}
+
+	/**
+	 * Sends a summary record (if any) to the sink - must be called without holding any state's lock
+	 */
+	private static void emitSummary(final Summary summary, final BiConsumer<Level, BasicMessageBean> summary_sink) {
+		if (null != summary) {
+			summary_sink.accept(summary.level, summary.message);
+		}
+	}
+
+	/**
+	 * Sends the summary records of any evicted keys to the sink
+	 */
+	private void emitEvictedSummaries(final BiConsumer<Level, BasicMessageBean> summary_sink) {
+		for (Summary summary = evicted_summaries.poll(); null != summary; summary = evicted_summaries.poll()) {
+			emitSummary(summary, summary_sink);
+		}
+	}
+
+	/**
+	 * Gets or creates the state for a key
+	 */
+	private KeyState getState(final Cache<List<String>, KeyState> cache, final List<String> key, final long now) {
+		try {
+			return cache.get(key, () -> new KeyState(burst, (cache == dedup_state) ? (now - dedup_window_ms) : now));
+		}
+		catch (ExecutionException e) { // (can't happen)
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -16,12 +16,14 @@
 package com.ikanow.aleph2.logging.utils;
 
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 import org.apache.logging.log4j.Level;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableMap;
 import com.ikanow.aleph2.core.shared.services.MultiDataService;
@@ -42,6 +44,10 @@ public class LoggingUtils {
 	private static final String EXTERNAL_PREFIX = "/external";
 	private static final String DEFAULT_LEVEL_KEY = "__DEFAULT__";
 	
+	//(ObjectMapper and JsonNodeFactory are thread safe once configured, so share them across all the loggers)
+	private static final ObjectMapper _mapper = new ObjectMapper();
+	private static final JsonNodeFactory _node_factory = _mapper.getNodeFactory();
+	
 	/**
 	 * Builds a JsonNode log message object, contains fields for date, message, generated_by, bucket, subsystem, and severity
 	 * 
@@ -52,8 +58,7 @@ public class LoggingUtils {
 	 * @return
 	 */
 	public static JsonNode createLogObject(final Level level, final DataBucketBean bucket, final BasicMessageBean message, final boolean isSystemMessage, final String date_field) {
-		final ObjectMapper _mapper = new ObjectMapper();
-		return Optional.ofNullable(message.details()).map(d -> _mapper.convertValue(d, ObjectNode.class)).orElseGet(() -> _mapper.createObjectNode())
+		return createDetailsObject(message.details())
 				.put(date_field, message.date().getTime()) //TODO can I actually pass in a date object/need to?
 				.put("message", ErrorUtils.show(message))
 				.put("generated_by", isSystemMessage ? "system" : "user")
@@ -62,6 +67,31 @@ public class LoggingUtils {
 				.put("severity", level.toString());			
 	}
 	
+	/**
+	 * Converts a message's details into the object the log fields are added to - simple values are converted directly,
+	 * only nested objects go through the (comparatively expensive) mapper
+	 * 
+	 * @param details
+	 * @return
+	 */
+	private static ObjectNode createDetailsObject(final Map<String, Object> details) {
+		final ObjectNode obj = _node_factory.objectNode();
+		if (null != details) {
+			for (Map.Entry<String, Object> kv: details.entrySet()) {
+				final Object val = kv.getValue();
+				if (null == val) obj.putNull(kv.getKey());
+				else if (val instanceof String) obj.put(kv.getKey(), (String) val);
+				else if (val instanceof Integer) obj.put(kv.getKey(), (Integer) val);
+				else if (val instanceof Long) obj.put(kv.getKey(), (Long) val);
+				else if (val instanceof Double) obj.put(kv.getKey(), (Double) val);
+				else if (val instanceof Boolean) obj.put(kv.getKey(), (Boolean) val);
+				else if (val instanceof JsonNode) obj.set(kv.getKey(), (JsonNode) val);
+				else obj.set(kv.getKey(), _mapper.valueToTree(val));
+			}
+		}
+		return obj;
+	}
+	
 	/**
 	 * Builds a minimal bucket pointing the full path to the external bucket/subsystem
 	 * 
@@ -130,13 +160,25 @@ public class LoggingUtils {
 	 * @return
 	 */
 	public static boolean meetsLogLevelThreshold(final Level level, final ImmutableMap<String, Level> logging_overrides, final String subsystem, final Level default_log_level) {
-		final Level curr_min_level = 
-				Optional.ofNullable(logging_overrides.get(subsystem))
-				.orElseGet(() -> (Optional.ofNullable(logging_overrides.get(DEFAULT_LEVEL_KEY))
-						.orElse(default_log_level)));	
+		//(called for every log message, including all the ones that get filtered out, so avoid allocating anything)
+		Level curr_min_level = (null == subsystem) ? null : logging_overrides.get(subsystem);
+		if (null == curr_min_level) curr_min_level = logging_overrides.get(DEFAULT_LEVEL_KEY);
+		if (null == curr_min_level) curr_min_level = default_log_level;
 		return curr_min_level.isLessSpecificThan(level);
 	}
 	
+	/**
+	 * Returns the least restrictive of all the levels that meetsLogLevelThreshold could apply, ie any message below this
+	 * level will be filtered out whatever its subsystem is (so there's no need to build it)
+	 * 
+	 * @param logging_overrides
+	 * @param default_log_level
+	 * @return
+	 */
+	public static Level getMostPermissiveLogLevel(final ImmutableMap<String, Level> logging_overrides, final Level default_log_level) {
+		return logging_overrides.values().stream().filter(l -> null != l).reduce(default_log_level, (acc, l) -> l.intLevel() > acc.intLevel() ? l : acc);
+	}
+	
 	/**
 	 * Creates an empty DataBucketBean to use during creation of a MultiWriter
 	 * as a way to create a safe empty writer that will do nothing when invoked.
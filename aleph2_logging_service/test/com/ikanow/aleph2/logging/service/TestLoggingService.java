@@ -19,9 +19,16 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -230,6 +237,118 @@ public class TestLoggingService {
 		logging_crud.deleteDatastore().get();
 	}
 	
+	/**
+	 * Floods a single bucket logger from many threads (the logger only buffers the messages, a background
+	 * drainer writes them out) and checks nothing is lost once the logger is flushed.
+	 * 
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	@Test
+	public void testLogFlood() throws InterruptedException, ExecutionException {
+		final String subsystem_name = "logging_test4";
+		final int num_threads = 8;
+		final int num_messages_per_thread = 250;
+		final DataBucketBean test_bucket = getTestBucket("test4", Level.ALL); 
+		final IBucketLogger user_logger = logging_service.getLogger(test_bucket);
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(num_threads);
+		final List<Future<?>> futures = IntStream.range(0, num_threads).boxed().map(t -> executor.submit(() -> {
+			for (int i = 0; i < num_messages_per_thread; i++) {
+				user_logger.log(Level.ERROR, ErrorUtils.buildMessage(true, subsystem_name, "test_message " + t + "_" + i, "no error"));
+			}
+		}))
+		.collect(Collectors.toList());
+		for (Future<?> f: futures) f.get();
+		executor.shutdown();
+		user_logger.flush().get();
+		
+		//check its in ES, wait 10s max for the index to refresh
+		final DataBucketBean logging_test_bucket = BucketUtils.convertDataBucketBeanToLogging(test_bucket);
+		final IDataWriteService<BasicMessageBean> logging_crud = search_index_service.getDataService().get().getWritableDataService(BasicMessageBean.class, logging_test_bucket, Optional.empty(), Optional.empty()).get();
+		waitForResults(logging_crud, 10);
+		assertEquals(num_threads*num_messages_per_thread, logging_crud.countObjects().get().longValue());
+		
+		//cleanup
+		logging_crud.deleteDatastore().get();
+	}
+	
+	/**
+	 * Tests the lazy version of log only builds the message when its level can get through the bucket's filters
+	 * 
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	@Test
+	public void testLogLazy() throws InterruptedException, ExecutionException {
+		final String subsystem_name = "logging_test6";
+		final DataBucketBean test_bucket = getTestBucket("test6", Level.ERROR); 
+		final IBucketLogger user_logger = logging_service.getLogger(test_bucket);
+		final AtomicInteger messages_built = new AtomicInteger(0);
+		
+		for (Level level: Arrays.asList(Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR, Level.FATAL)) {
+			user_logger.log(level, () -> {
+				messages_built.incrementAndGet();
+				return ErrorUtils.buildMessage(true, subsystem_name, "test_message " + level, "no error");
+			}).get();
+		}
+		assertEquals(2, messages_built.get()); //(only ERROR and FATAL get built)
+		user_logger.flush().get();
+		
+		//check its in ES, wait 10s max for the index to refresh
+		final DataBucketBean logging_test_bucket = BucketUtils.convertDataBucketBeanToLogging(test_bucket);
+		final IDataWriteService<BasicMessageBean> logging_crud = search_index_service.getDataService().get().getWritableDataService(BasicMessageBean.class, logging_test_bucket, Optional.empty(), Optional.empty()).get();
+		waitForResults(logging_crud, 10);
+		assertEquals(2, logging_crud.countObjects().get().longValue());
+		
+		//cleanup
+		logging_crud.deleteDatastore().get();
+	}
+	
+	/**
+	 * Tests that loggers are cached per bucket version/logging schema, so only the first getLogger call 
+	 * creates the bucket's file paths
+	 * 
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	@Test
+	public void testLoggerCache() throws InterruptedException, ExecutionException {
+		final AtomicInteger file_path_calls = new AtomicInteger(0);
+		final LoggingService counting_logging_service = new LoggingService(_config, _service_context) {
+			@Override
+			protected void createFilePaths(final DataBucketBean bucket) throws Exception {
+				file_path_calls.incrementAndGet();
+				super.createFilePaths(bucket);
+			}
+		};
+		final DataBucketBean test_bucket = getTestBucket("test5", Level.ALL);
+		
+		final IBucketLogger user_logger = counting_logging_service.getLogger(test_bucket);
+		assertEquals(1, file_path_calls.get());
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(user_logger == counting_logging_service.getLogger(test_bucket));
+			assertTrue(user_logger == counting_logging_service.getLogger(BeanTemplateUtils.clone(test_bucket).done()));
+		}
+		assertEquals(1, file_path_calls.get());
+		
+		// System loggers are separate
+		final IBucketLogger system_logger = counting_logging_service.getSystemLogger(test_bucket);
+		assertTrue(user_logger != system_logger);
+		assertTrue(system_logger == counting_logging_service.getSystemLogger(test_bucket));
+		assertEquals(2, file_path_calls.get());
+		
+		// A changed logging schema gets a new logger
+		final IBucketLogger changed_logger = counting_logging_service.getLogger(getTestBucket("test5", Level.ERROR));
+		assertTrue(user_logger != changed_logger);
+		assertEquals(3, file_path_calls.get());
+		
+		// As does a new version of the bucket
+		final IBucketLogger modified_logger = counting_logging_service.getLogger(BeanTemplateUtils.clone(test_bucket).with(DataBucketBean::modified, new Date()).done());
+		assertTrue(user_logger != modified_logger);
+		assertEquals(4, file_path_calls.get());
+	}
+	
 	/**
 	 * Waits for the crud service count objects to return some amount of objects w/in the given
 	 * timeframe, returns as soon as we find any results.  Useful for waiting for ES to flush/update the index. 
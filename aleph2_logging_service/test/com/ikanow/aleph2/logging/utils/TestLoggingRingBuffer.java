@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.logging.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.ikanow.aleph2.logging.data_model.LoggingServiceConfigBean.OverflowPolicy;
+
+public class TestLoggingRingBuffer {
+
+	/**
+	 * Floods the buffer from many threads with a single (slow-ish) consumer, checks that each producer's messages
+	 * come out in order, nothing is lost with the block policy, and the buffer never grows past its capacity
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testFlood_block() throws InterruptedException {
+		final int num_producers = 16;
+		final int num_messages = 20000;
+		final LoggingRingBuffer<long[]> buffer = new LoggingRingBuffer<>(100, OverflowPolicy.block);
+		assertEquals(128, buffer.capacity());
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> producers = new ArrayList<>();
+		for (int p = 0; p < num_producers; ++p) {
+			final long producer = p;
+			final Thread t = new Thread(() -> {
+				try { start.await(); } catch (InterruptedException e) {}
+				for (long i = 0; i < num_messages; ++i) {
+					assertTrue(buffer.offer(new long[] { producer, i }));
+				}
+			});
+			t.start();
+			producers.add(t);
+		}
+
+		final long[] last_seen = new long[num_producers];
+		Arrays.fill(last_seen, -1L);
+		final AtomicBoolean producers_done = new AtomicBoolean(false);
+		final AtomicInteger max_size = new AtomicInteger(0);
+		final AtomicInteger out_of_order = new AtomicInteger(0);
+		final Thread consumer = new Thread(() -> {
+			for (;;) {
+				max_size.accumulateAndGet(buffer.size(), Math::max);
+				final long[] next = buffer.poll();
+				if (null == next) {
+					if (producers_done.get() && buffer.isEmpty()) break;
+					Thread.yield();
+					continue;
+				}
+				if (last_seen[(int)next[0]] + 1 != next[1]) out_of_order.incrementAndGet();
+				last_seen[(int)next[0]] = next[1];
+			}
+		});
+		consumer.start();
+		start.countDown();
+		for (Thread t: producers) t.join();
+		producers_done.set(true);
+		consumer.join(60000L);
+
+		assertEquals(0, out_of_order.get());
+		for (int p = 0; p < num_producers; ++p) {
+			assertEquals(num_messages - 1, last_seen[p]);
+		}
+		assertTrue("Max size = " + max_size.get(), max_size.get() <= buffer.capacity());
+		assertEquals(0L, buffer.getAndResetDropped());
+	}
+
+	/**
+	 * Checks the drop policies discard the right elements and count them
+	 */
+	@Test
+	public void testOverflowPolicies() {
+		// Drop oldest
+		{
+			final LoggingRingBuffer<Integer> buffer = new LoggingRingBuffer<>(4, OverflowPolicy.drop_oldest);
+			for (int i = 0; i < 10; ++i) assertTrue(buffer.offer(i));
+			assertEquals(4, buffer.size());
+			assertEquals(6L, buffer.getAndResetDropped());
+			assertEquals(0L, buffer.getAndResetDropped());
+			for (int i = 6; i < 10; ++i) assertEquals(i, buffer.poll().intValue());
+			assertEquals(null, buffer.poll());
+		}
+		// Drop newest
+		{
+			final LoggingRingBuffer<Integer> buffer = new LoggingRingBuffer<>(4, OverflowPolicy.drop_newest);
+			for (int i = 0; i < 10; ++i) assertEquals(i < 4, buffer.offer(i));
+			assertEquals(4, buffer.size());
+			assertEquals(6L, buffer.getAndResetDropped());
+			for (int i = 0; i < 4; ++i) assertEquals(i, buffer.poll().intValue());
+			assertTrue(buffer.isEmpty());
+		}
+	}
+
+	/**
+	 * Checks buffers sharing a limit can't hold more than it between them, and give the permits back as they're polled
+	 */
+	@Test
+	public void testSharedLimit() {
+		final Semaphore permits = new Semaphore(6);
+		final LoggingRingBuffer<Integer> buffer1 = new LoggingRingBuffer<>(4, OverflowPolicy.drop_newest, Optional.of(permits));
+		final LoggingRingBuffer<Integer> buffer2 = new LoggingRingBuffer<>(4, OverflowPolicy.drop_oldest, Optional.of(permits));
+		
+		for (int i = 0; i < 4; ++i) assertTrue(buffer1.offer(i));
+		assertTrue(buffer2.offer(10));
+		assertTrue(buffer2.offer(11));
+		assertEquals(0, permits.availablePermits());
+		
+		// Shared limit full: drop_newest drops the new element, drop_oldest discards its own oldest one 
+		assertFalse(buffer1.offer(4));
+		assertEquals(1L, buffer1.getAndResetDropped());
+		assertTrue(buffer2.offer(12));
+		assertEquals(1L, buffer2.getAndResetDropped());
+		assertEquals(11, buffer2.poll().intValue());
+		assertEquals(12, buffer2.poll().intValue());
+		assertEquals(2, permits.availablePermits());
+		
+		// ...and if it has nothing to discard, drop_oldest drops the new element too
+		assertTrue(buffer2.offer(13));
+		assertTrue(buffer2.offer(14));
+		final LoggingRingBuffer<Integer> buffer3 = new LoggingRingBuffer<>(4, OverflowPolicy.drop_oldest, Optional.of(permits));
+		assertFalse(buffer3.offer(20));
+		assertEquals(1L, buffer3.getAndResetDropped());
+		assertTrue(buffer3.isEmpty());
+		
+		for (int i = 0; i < 4; ++i) assertEquals(i, buffer1.poll().intValue());
+		assertEquals(13, buffer2.poll().intValue());
+		assertEquals(14, buffer2.poll().intValue());
+		assertEquals(6, permits.availablePermits());
+	}
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.logging.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.apache.logging.log4j.Level;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+public class TestLoggingThrottle {
+
+	final AtomicLong fake_clock = new AtomicLong(1000000L);
+	final List<BasicMessageBean> summaries = new ArrayList<>();
+	final BiConsumer<Level, BasicMessageBean> summary_sink = (level, message) -> summaries.add(message);
+
+	/**
+	 * Logs the same message n times, returns the number that got through
+	 */
+	private int logN(final LoggingThrottle throttle, final int n, final Level level, final BasicMessageBean message) {
+		int accepted = 0;
+		for (int i = 0; i < n; ++i) {
+			if (throttle.accept(level, message, summary_sink)) accepted++;
+		}
+		return accepted;
+	}
+
+	@Test
+	public void testRateLimit() {
+		final LoggingThrottle throttle = new LoggingThrottle(10.0, 5, 0L, Collections.emptyMap(), fake_clock::get);
+		final BasicMessageBean message = ErrorUtils.buildErrorMessage("subsystem", "command", "something bad");
+
+		// Burst gets through, the rest is suppressed
+		assertEquals(5, logN(throttle, 100, Level.ERROR, message));
+		assertEquals(0, summaries.size());
+
+		// Other keys have their own bucket
+		assertEquals(5, logN(throttle, 100, Level.ERROR, ErrorUtils.buildErrorMessage("subsystem", "other_command", "something bad")));
+
+		// After 1s, 10 more tokens: the first accepted message brings the summary with it
+		fake_clock.addAndGet(1000L);
+		assertEquals(5, logN(throttle, 5, Level.ERROR, message));
+		assertEquals(1, summaries.size());
+		assertEquals(95L, ((Number)summaries.get(0).details().get(LoggingThrottle.SUPPRESSED_COUNT_FIELD)).longValue());
+		assertEquals("subsystem", summaries.get(0).source());
+		assertEquals("command", summaries.get(0).command());
+		assertEquals(fake_clock.get(), summaries.get(0).date().getTime());
+
+		// Tokens are capped at the burst size
+		fake_clock.addAndGet(60000L);
+		assertEquals(5, logN(throttle, 20, Level.ERROR, message));
+
+		// Flush emits the pending summaries (15 + 95 for the 2 keys)
+		summaries.clear();
+		throttle.flushSummaries(summary_sink);
+		assertEquals(2, summaries.size());
+		assertEquals(110L, summaries.stream().mapToLong(m -> ((Number)m.details().get(LoggingThrottle.SUPPRESSED_COUNT_FIELD)).longValue()).sum());
+		summaries.clear();
+		throttle.flushSummaries(summary_sink);
+		assertEquals(0, summaries.size());
+	}
+
+	@Test
+	public void testDedup() {
+		final LoggingThrottle throttle = new LoggingThrottle(0.0, 0, 1000L, Collections.emptyMap(), fake_clock::get);
+		final BasicMessageBean message = ErrorUtils.buildErrorMessage("subsystem", "command", "something bad");
+
+		assertEquals(1, logN(throttle, 50, Level.ERROR, message));
+		// (different text isn't a duplicate)
+		assertEquals(1, logN(throttle, 50, Level.ERROR, ErrorUtils.buildErrorMessage("subsystem", "command", "something else bad")));
+
+		fake_clock.addAndGet(999L);
+		assertEquals(0, logN(throttle, 10, Level.ERROR, message));
+		assertEquals(0, summaries.size());
+
+		fake_clock.addAndGet(1L);
+		assertEquals(1, logN(throttle, 10, Level.ERROR, message));
+		assertEquals(1, summaries.size());
+		assertEquals(59L, ((Number)summaries.get(0).details().get(LoggingThrottle.SUPPRESSED_COUNT_FIELD)).longValue());
+		assertTrue(summaries.get(0).message().contains("something bad"));
+	}
+
+	@Test
+	public void testEvictedSummaries() {
+		final LoggingThrottle throttle = new LoggingThrottle(0.0, 0, 1000L, Collections.emptyMap(), fake_clock::get, 1L);
+		final BasicMessageBean message = ErrorUtils.buildErrorMessage("subsystem", "command", "something bad");
+
+		assertEquals(1, logN(throttle, 10, Level.ERROR, message));
+		
+		// Tracking another key evicts the first one's state: its summary comes out on the next call, not lost
+		assertEquals(1, logN(throttle, 1, Level.ERROR, ErrorUtils.buildErrorMessage("subsystem", "command", "something else bad")));
+		assertEquals(0, summaries.size());
+		assertEquals(1, logN(throttle, 1, Level.INFO, ErrorUtils.buildSuccessMessage("subsystem", "other_command", "fine")));
+		assertEquals(1, summaries.size());
+		assertEquals(9L, ((Number)summaries.get(0).details().get(LoggingThrottle.SUPPRESSED_COUNT_FIELD)).longValue());
+		assertTrue(summaries.get(0).message().contains("something bad"));
+		
+		// (or on flush)
+		summaries.clear();
+		assertEquals(0, logN(throttle, 5, Level.INFO, ErrorUtils.buildSuccessMessage("subsystem", "other_command", "fine")));
+		assertEquals(1, logN(throttle, 1, Level.ERROR, message));
+		throttle.flushSummaries(summary_sink);
+		assertEquals(1, summaries.size());
+		assertEquals(5L, ((Number)summaries.get(0).details().get(LoggingThrottle.SUPPRESSED_COUNT_FIELD)).longValue());
+	}
+
+	@Test
+	public void testSummaryEmittedWithoutLock() {
+		final LoggingThrottle throttle = new LoggingThrottle(10.0, 1, 0L, Collections.emptyMap(), fake_clock::get);
+		final BasicMessageBean message = ErrorUtils.buildErrorMessage("subsystem", "command", "something bad");
+		assertEquals(1, logN(throttle, 3, Level.ERROR, message));
+		fake_clock.addAndGet(1000L);
+		
+		// A sink that logs back into the throttle from another thread (as the bucket logger's drain can) mustn't deadlock
+		final List<Boolean> mutable_nested = new ArrayList<>();
+		final BiConsumer<Level, BasicMessageBean> reentrant_sink = (level, summary) -> {
+			final Thread t = new Thread(() -> mutable_nested.add(throttle.accept(Level.ERROR, message, summary_sink)));
+			t.start();
+			try { t.join(5000L); } catch (InterruptedException e) {}
+			assertFalse("Blocked on the throttle's lock", t.isAlive());
+		};
+		assertTrue(throttle.accept(Level.ERROR, message, reentrant_sink));
+		assertEquals(1, mutable_nested.size());
+	}
+
+	@Test
+	public void testSampling() {
+		final LoggingThrottle throttle = new LoggingThrottle(0.0, 0, 0L, ImmutableMap.of(Level.DEBUG, 0.1, Level.TRACE, 0.0), fake_clock::get);
+
+		assertEquals(100, logN(throttle, 1000, Level.DEBUG, ErrorUtils.buildSuccessMessage("subsystem", "command", "debug")));
+		assertEquals(0, logN(throttle, 1000, Level.TRACE, ErrorUtils.buildSuccessMessage("subsystem", "command", "trace")));
+		assertEquals(1000, logN(throttle, 1000, Level.INFO, ErrorUtils.buildSuccessMessage("subsystem", "command", "info")));
+		// (sampled messages aren't summarized)
+		throttle.flushSummaries(summary_sink);
+		assertEquals(0, summaries.size());
+	}
+}
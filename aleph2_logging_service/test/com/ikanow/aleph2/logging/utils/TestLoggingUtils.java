@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.logging.utils;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.Level;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableMap;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+public class TestLoggingUtils {
+	private static final int NUM_CALLS = 1000000;
+
+	final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/logging/utils").done().get();
+	final ImmutableMap<String, Level> thresholds = ImmutableMap.of("__DEFAULT__", Level.ERROR, "noisy_subsystem", Level.WARN);
+
+	@Test
+	public void testCreateLogObject() {
+		final BasicMessageBean message = BeanTemplateUtils.clone(ErrorUtils.buildMessage(false, "test_subsystem", "test_command", "test {0}", "message"))
+				.with(BasicMessageBean::details, ImmutableMap.<String, Object>of("str", "a", "num", 1L, "bool", true, "nested", ImmutableMap.of("x", 2)))
+				.done();
+
+		final JsonNode log_obj = LoggingUtils.createLogObject(Level.ERROR, bucket, message, false, "@timestamp");
+		assertEquals("a", log_obj.get("str").asText());
+		assertEquals(1L, log_obj.get("num").asLong());
+		assertEquals(true, log_obj.get("bool").asBoolean());
+		assertEquals(2, log_obj.get("nested").get("x").asInt());
+		assertEquals(message.date().getTime(), log_obj.get("@timestamp").asLong());
+		assertEquals("user", log_obj.get("generated_by").asText());
+		assertEquals(bucket.full_name(), log_obj.get("bucket").asText());
+		assertEquals("test_subsystem", log_obj.get("subsystem").asText());
+		assertEquals("ERROR", log_obj.get("severity").asText());
+
+		// Same output as the old (mapper per call) version
+		assertEquals(createLogObject_legacy(Level.ERROR, bucket, message, false, "@timestamp"), log_obj);
+	}
+
+	@Test
+	public void testMeetsLogLevelThreshold() {
+		assertEquals(Level.WARN, LoggingUtils.getMostPermissiveLogLevel(thresholds, Level.OFF));
+		assertEquals(Level.DEBUG, LoggingUtils.getMostPermissiveLogLevel(thresholds, Level.DEBUG));
+		assertEquals(Level.INFO, LoggingUtils.getMostPermissiveLogLevel(ImmutableMap.of(), Level.INFO));
+
+		assertTrue(LoggingUtils.meetsLogLevelThreshold(Level.WARN, thresholds, "noisy_subsystem", Level.OFF));
+		assertFalse(LoggingUtils.meetsLogLevelThreshold(Level.WARN, thresholds, "other_subsystem", Level.OFF));
+		assertFalse(LoggingUtils.meetsLogLevelThreshold(Level.WARN, thresholds, null, Level.OFF));
+		assertTrue(LoggingUtils.meetsLogLevelThreshold(Level.INFO, ImmutableMap.of(), null, Level.INFO));
+	}
+
+	/**
+	 * Microbenchmark: allocations for 1M accepted and 1M filtered out log calls, old vs new code paths
+	 */
+	@Ignore // (profiling only - allocation counts depend on the JVM/JIT, so this isn't run as part of the build)
+	@Test
+	public void testLogAllocations() {
+		final java.lang.management.ThreadMXBean thread_bean = ManagementFactory.getThreadMXBean();
+		if (!(thread_bean instanceof com.sun.management.ThreadMXBean)) {
+			return; // (can't measure allocations on this JVM)
+		}
+		final com.sun.management.ThreadMXBean alloc_bean = (com.sun.management.ThreadMXBean) thread_bean;
+		final BasicMessageBean message = BeanTemplateUtils.clone(ErrorUtils.buildMessage(false, "test_subsystem", "test_command", "test message"))
+				.with(BasicMessageBean::details, ImmutableMap.<String, Object>of("str", "a", "num", 1L))
+				.done();
+
+		// Accepted messages: log object construction
+		final long accepted_legacy = measureAllocatedBytes(alloc_bean, () -> {
+			for (int i = 0; i < NUM_CALLS; ++i) createLogObject_legacy(Level.ERROR, bucket, message, false, "@timestamp");
+		});
+		final long accepted = measureAllocatedBytes(alloc_bean, () -> {
+			for (int i = 0; i < NUM_CALLS; ++i) LoggingUtils.createLogObject(Level.ERROR, bucket, message, false, "@timestamp");
+		});
+
+		// Filtered out messages: eager message vs lazy message + quick reject
+		final long filtered_legacy = measureAllocatedBytes(alloc_bean, () -> {
+			for (int i = 0; i < NUM_CALLS; ++i) {
+				final BasicMessageBean m = ErrorUtils.buildMessage(true, "test_subsystem", "test_command", "test message {0}", i);
+				meetsLogLevelThreshold_legacy(Level.DEBUG, thresholds, m.source(), Level.OFF);
+			}
+		});
+		final Level most_permissive = LoggingUtils.getMostPermissiveLogLevel(thresholds, Level.OFF);
+		final long filtered = measureAllocatedBytes(alloc_bean, () -> {
+			for (int i = 0; i < NUM_CALLS; ++i) {
+				final int ii = i;
+				final Supplier<BasicMessageBean> m = () -> ErrorUtils.buildMessage(true, "test_subsystem", "test_command", "test message {0}", ii);
+				if (most_permissive.isLessSpecificThan(Level.DEBUG)) {
+					LoggingUtils.meetsLogLevelThreshold(Level.DEBUG, thresholds, m.get().source(), Level.OFF);
+				}
+			}
+		});
+
+		assertTrue("Accepted: legacy=" + accepted_legacy/NUM_CALLS + " current=" + accepted/NUM_CALLS, accepted < accepted_legacy);
+		assertTrue("Filtered: legacy=" + filtered_legacy/NUM_CALLS + " current=" + filtered/NUM_CALLS, filtered < filtered_legacy);
+	}
+
+	/**
+	 * Returns the bytes allocated by the current thread while running the task (after a warm-up run)
+	 * @param alloc_bean
+	 * @param task
+	 * @return
+	 */
+	private static long measureAllocatedBytes(final com.sun.management.ThreadMXBean alloc_bean, final Runnable task) {
+		final long thread_id = Thread.currentThread().getId();
+		task.run(); //(warm-up)
+		final long before = alloc_bean.getThreadAllocatedBytes(thread_id);
+		task.run();
+		return alloc_bean.getThreadAllocatedBytes(thread_id) - before;
+	}
+
+	/**
+	 * The old version of LoggingUtils.createLogObject, for comparison
+	 */
+	private static JsonNode createLogObject_legacy(final Level level, final DataBucketBean bucket, final BasicMessageBean message, final boolean isSystemMessage, final String date_field) {
+		final ObjectMapper _mapper = new ObjectMapper();
+		return Optional.ofNullable(message.details()).map(d -> _mapper.convertValue(d, ObjectNode.class)).orElseGet(() -> _mapper.createObjectNode())
+				.put(date_field, message.date().getTime())
+				.put("message", ErrorUtils.show(message))
+				.put("generated_by", isSystemMessage ? "system" : "user")
+				.put("bucket", bucket.full_name())
+				.put("subsystem", message.source())
+				.put("severity", level.toString());
+	}
+
+	/**
+	 * The old version of LoggingUtils.meetsLogLevelThreshold, for comparison
+	 */
+	private static boolean meetsLogLevelThreshold_legacy(final Level level, final ImmutableMap<String, Level> logging_overrides, final String subsystem, final Level default_log_level) {
+		final Level curr_min_level =
+				Optional.ofNullable(logging_overrides.get(subsystem))
+				.orElseGet(() -> (Optional.ofNullable(logging_overrides.get("__DEFAULT__"))
+						.orElse(default_log_level)));
+		return curr_min_level.isLessSpecificThan(level);
+	}
+}
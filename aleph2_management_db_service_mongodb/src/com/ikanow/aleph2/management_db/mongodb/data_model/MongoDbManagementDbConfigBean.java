@@ -25,6 +25,14 @@ public class MongoDbManagementDbConfigBean extends MongoDbConfigurationBean {
 
 	final public static String PROPERTIES_ROOT = "MongoDbManagementDbService";
 	
+	final public static long DEFAULT_V1_FULL_SOURCE_SYNC_PERIOD_SECS = 300L;
+	final public static String DEFAULT_V1_CHANGE_LOG = "local.oplog.rs";
+	final public static long DEFAULT_V1_FALLBACK_POLL_PERIOD_SECS = 30L;
+	final public static int DEFAULT_V1_MAX_CONCURRENT_BUCKET_UPDATES = 16;
+	final public static int DEFAULT_V1_TEST_WORKER_THREADS = 4;
+	final public static long DEFAULT_V1_TEST_LEASE_SECS = 300L;
+	final public static int DEFAULT_V1_MAX_CONCURRENT_LIBRARY_COPIES = 4;
+	
 	protected MongoDbManagementDbConfigBean() {}
 	
 	/**
@@ -39,5 +47,48 @@ public class MongoDbManagementDbConfigBean extends MongoDbConfigurationBean {
 	 */
 	public Boolean v1_enabled() { return v1_enabled; }
 	
+	/** In between full synchronizations, the v1 source and share syncs only look at sources/shares modified since the last check. This is how often 
+	 *  (in seconds) the full v1 vs v2 comparison is run (to catch deletes and anything missed) - defaults to 300s 
+	 * @return
+	 */
+	public Long v1_full_source_sync_period_secs() { return v1_full_source_sync_period_secs; }
+	
+	/** The capped collection (in "db.collection" format) tailed to wake up the v1 sync services as soon as the v1 collections change - defaults to the oplog, "" to disable
+	 * @return
+	 */
+	public String v1_change_log() { return v1_change_log; }
+	
+	/** While change notifications from v1_change_log are being received, the v1 sync services only poll every this many seconds - defaults to 30s 
+	 * @return
+	 */
+	public Long v1_fallback_poll_period_secs() { return v1_fallback_poll_period_secs; }
+	
+	/** The max number of bucket creates/deletes/updates the v1 source sync has outstanding against the core management db at any one time - defaults to 16
+	 * @return
+	 */
+	public Integer v1_max_concurrent_bucket_updates() { return v1_max_concurrent_bucket_updates; }
+	
+	/** The number of v1 test queue entries that can be processed (launched or checked) in parallel - defaults to 4
+	 * @return
+	 */
+	public Integer v1_test_worker_threads() { return v1_test_worker_threads; }
+	
+	/** How long (in seconds) a node's claim on a v1 test queue entry lasts before another node can reclaim it (eg if the first node crashed) - defaults to 300s
+	 * @return
+	 */
+	public Long v1_test_lease_secs() { return v1_test_lease_secs; }
+	
+	/** The max number of library jars the v1 share sync copies into the storage service at any one time - defaults to 4
+	 * @return
+	 */
+	public Integer v1_max_concurrent_library_copies() { return v1_max_concurrent_library_copies; }
+	
 	private Boolean v1_enabled;
+	private Long v1_full_source_sync_period_secs;
+	private String v1_change_log;
+	private Long v1_fallback_poll_period_secs;
+	private Integer v1_max_concurrent_bucket_updates;
+	private Integer v1_test_worker_threads;
+	private Long v1_test_lease_secs;
+	private Integer v1_max_concurrent_library_copies;
 }
@@ -32,6 +32,8 @@ public class TestQueueBean implements Serializable{
 	private String message;
 	private Date started_processing_on;
 	private Date last_processed_on;
+	private String owner; // (the node currently processing the entry, see IkanowV1SyncService_TestBuckets)
+	private Date lease_expires_on; // (when the owner's claim on the entry lapses)
 
 	
 	
@@ -43,6 +45,8 @@ public class TestQueueBean implements Serializable{
 	public String message() { return message; }
 	public Date started_processing_on() { return started_processing_on; }
 	public Date last_processed_on() { return last_processed_on; }
+	public String owner() { return owner; }
+	public Date lease_expires_on() { return lease_expires_on; }
 	
 	/**
 	 * Enum for the various states the test
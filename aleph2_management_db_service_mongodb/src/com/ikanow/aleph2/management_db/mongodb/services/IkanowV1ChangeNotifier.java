@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.management_db.mongodb.services;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableSet;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/** Tails a change log (normally the oplog, but any capped collection with oplog style {ts, ns} entries works) and wakes up
+ *  the v1 sync monitors as soon as one of the collections they watch changes, so they don't have to poll every couple of seconds.
+ *  If the change log isn't available (eg standalone mongod) or the tail fails, isActive() returns false and the monitors just
+ *  fall back to polling.
+ *  The tail thread runs while there are registrations - each sync service unregisters when it's stopped, and the last one out stops the thread.
+ */
+public class IkanowV1ChangeNotifier {
+	private static final Logger _logger = LogManager.getLogger();
+
+	protected static final long RETRY_DELAY_MS = 250L; // (between tailable cursors dying and being re-created)
+	protected static final long MISSING_CHANGE_LOG_DELAY_MS = 30000L; // (between checks for a change log that doesn't exist)
+
+	protected final DBCollection _change_log;
+	protected final Set<String> _namespaces;
+	protected final Map<Object, Registration> _registrations = new ConcurrentHashMap<Object, Registration>();
+	protected volatile Thread _tail_thread = null; // (null when not tailing, set back to null to stop the current thread)
+	protected volatile boolean _active = false;
+
+	/** A monitor's interest in a set of collections
+	 */
+	public class Registration {
+		protected final Set<String> _namespaces;
+		protected final Runnable _on_change;
+		protected final AtomicBoolean _change_pending = new AtomicBoolean(false);
+		protected volatile long _last_poll = 0L;
+
+		protected Registration(final Collection<String> namespaces, final Runnable on_change) {
+			_namespaces = ImmutableSet.copyOf(namespaces);
+			_on_change = on_change;
+		}
+
+		/** Called by the monitor at the start of each run
+		 * @param fallback_poll_period_ms - if notifications are working, how often to poll anyway
+		 * @return whether the monitor should query the DB (a watched collection has changed, notifications aren't working, or it's time for a fallback poll)
+		 */
+		public boolean shouldPoll(final long fallback_poll_period_ms) {
+			final boolean changed = acknowledgeChange();
+			final long now = System.currentTimeMillis();
+			if (changed || !isActive() || ((now - _last_poll) >= fallback_poll_period_ms)) {
+				_last_poll = now;
+				return true;
+			}
+			return false;
+		}
+
+		/** For monitors that poll anyway: marks any pending change as handled (so the next change wakes the monitor up again)
+		 * @return whether a watched collection had changed since the last call
+		 */
+		public boolean acknowledgeChange() {
+			return _change_pending.getAndSet(false);
+		}
+
+		/** Wakes up the monitor (multiple changes before the monitor next runs are coalesced into one wake-up)
+		 */
+		protected void notifyChange() {
+			if (_change_pending.compareAndSet(false, true)) {
+				_on_change.run();
+			}
+		}
+	}
+
+	/** User c'tor
+	 * @param change_log - the collection to tail, normally local.oplog.rs
+	 * @param namespaces - all the collections that monitors can register interest in, in "db.collection" format
+	 */
+	public IkanowV1ChangeNotifier(final DBCollection change_log, final Collection<String> namespaces) {
+		_change_log = change_log;
+		_namespaces = ImmutableSet.copyOf(namespaces);
+	}
+
+	/** Registers a monitor's interest in a set of collections (replacing any previous registration from the same owner) - starts tailing the change log on the first call
+	 * @param owner - the object the registration is for (eg the sync service)
+	 * @param namespaces - the collections to watch, in "db.collection" format
+	 * @param on_change - called (on the notifier's thread, so should just schedule the work) when one of the collections changes
+	 * @return the registration, which the monitor should check on each run
+	 */
+	public synchronized Registration register(final Object owner, final Collection<String> namespaces, final Runnable on_change) {
+		final Registration registration = new Registration(namespaces, on_change);
+		_registrations.put(owner, registration);
+
+		if (null == _tail_thread) {
+			final Thread tail_thread = new Thread(() -> tail(), "IkanowV1ChangeNotifier");
+			tail_thread.setDaemon(true);
+			_tail_thread = tail_thread;
+			tail_thread.start();
+		}
+		return registration;
+	}
+
+	/** Removes a monitor's registration (eg when its sync service is stopped) - stops tailing the change log once there are none left
+	 * @param owner - the object passed into register
+	 */
+	public synchronized void unregister(final Object owner) {
+		_registrations.remove(owner);
+		if (_registrations.isEmpty()) {
+			stop();
+		}
+	}
+
+	/** Whether change notifications are currently being received
+	 * @return
+	 */
+	public boolean isActive() {
+		return _active;
+	}
+
+	/** Stops tailing the change log (a subsequent register starts it again)
+	 */
+	public synchronized void stop() {
+		final Thread tail_thread = _tail_thread;
+		_tail_thread = null;
+		_active = false;
+		if (null != tail_thread) {
+			tail_thread.interrupt(); // (wakes it up if it's waiting on the cursor or sleeping)
+		}
+	}
+
+	/** Whether the calling thread is the current tail thread, ie hasn't been stopped
+	 * @return
+	 */
+	protected boolean isTailing() {
+		return Thread.currentThread() == _tail_thread;
+	}
+
+	/** Main loop of the tail thread
+	 */
+	protected void tail() {
+		boolean initialized = false;
+		Object last_ts = null;
+		while (isTailing()) {
+			try {
+				if (!_change_log.getDB().collectionExists(_change_log.getName())) {
+					if (_active) {
+						_logger.warn(ErrorUtils.get("IkanowV1ChangeNotifier: change log {0} not found, falling back to polling", _change_log.getFullName()));
+					}
+					_active = false;
+					Thread.sleep(MISSING_CHANGE_LOG_DELAY_MS);
+					continue;
+				}
+				if (!initialized) { // (start from the end of the change log)
+					last_ts = getLatestTimestamp();
+					initialized = true;
+				}
+				final BasicDBObject query = new BasicDBObject("ns", new BasicDBObject("$in", _namespaces));
+				if (null != last_ts) {
+					query.put("ts", new BasicDBObject("$gt", last_ts));
+				}
+				final DBCursor cursor = _change_log.find(query)
+											.addOption(Bytes.QUERYOPTION_TAILABLE)
+											.addOption(Bytes.QUERYOPTION_AWAITDATA);
+				if (null != last_ts) {
+					cursor.addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+				}
+				try {
+					_active = isTailing();
+					while (isTailing() && cursor.hasNext()) {
+						final DBObject entry = cursor.next();
+						last_ts = entry.get("ts");
+						notifyChange(String.valueOf(entry.get("ns")));
+					}
+				}
+				finally {
+					cursor.close();
+				}
+				Thread.sleep(RETRY_DELAY_MS); // (tailable cursors die if eg the collection is empty, so just try again)
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+			catch (Throwable t) {
+				if (!isTailing()) { // (stopped while waiting on the cursor)
+					break;
+				}
+				_logger.error(ErrorUtils.getLongForm("IkanowV1ChangeNotifier: {0}", t));
+				_active = false;
+				try { Thread.sleep(MISSING_CHANGE_LOG_DELAY_MS); } catch (InterruptedException e) { break; }
+			}
+		}
+		synchronized (this) {
+			if (isTailing()) { // (interrupted by someone other than stop(), so let the next register start a new thread)
+				_tail_thread = null;
+				_active = false;
+			}
+		}
+	}
+
+	/** Wakes up all the monitors interested in the namespace
+	 * @param namespace
+	 */
+	protected void notifyChange(final String namespace) {
+		_registrations.values().stream().filter(r -> r._namespaces.contains(namespace)).forEach(r -> r.notifyChange());
+	}
+
+	/** Returns the timestamp of the most recent entry in the change log, so we don't replay old changes
+	 * @return the timestamp, or null if the change log is empty or doesn't exist
+	 */
+	protected Object getLatestTimestamp() {
+		try {
+			final DBCursor cursor = _change_log.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+			try {
+				return cursor.hasNext() ? cursor.next().get("ts") : null;
+			}
+			finally {
+				cursor.close();
+			}
+		}
+		catch (Throwable t) {
+			return null;
+		}
+	}
+}
@@ -20,20 +20,26 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 import java.util.Date;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -78,6 +84,10 @@ import com.ikanow.aleph2.data_model.utils.SetOnce;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
 import com.ikanow.aleph2.management_db.mongodb.data_model.MongoDbManagementDbConfigBean;
+import com.ikanow.aleph2.shared.crud.mongodb.utils.MongoDbUtils;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
 
 /** This service looks for changes to IKANOW sources and applies them to data bucket beans
  * @author acp
@@ -96,6 +106,7 @@ public class IkanowV1SyncService_Buckets {
 	
 	protected final ScheduledExecutorService _mutex_scheduler = Executors.newScheduledThreadPool(1);		
 	protected final ScheduledExecutorService _source_scheduler = Executors.newScheduledThreadPool(1);		
+	protected final ExecutorService _bucket_update_executor = Executors.newSingleThreadExecutor(); // (launches the bucket create/delete/update calls, see applySourceChanges)
 	protected SetOnce<ScheduledFuture<?>> _source_monitor_handle = new SetOnce<ScheduledFuture<?>>(); 
 	
 	protected static int _num_leader_changes = 0; // (just for debugging/testing)
@@ -140,6 +151,9 @@ public class IkanowV1SyncService_Buckets {
 	 */
 	public void stop() {
 		_source_monitor_handle.get().cancel(true);
+		_source_scheduler.execute(() -> _bucket_update_executor.shutdown()); // (runs after the current sync, since the scheduler is single threaded)
+		_underlying_management_db.get().getUnderlyingPlatformDriver(IkanowV1ChangeNotifier.class, Optional.empty())
+			.ifPresent(notifier -> notifier.unregister(this)); // (the notifier stops tailing once all the sync services have stopped)
 	}
 	
 	////////////////////////////////////////////////////
@@ -178,7 +192,10 @@ public class IkanowV1SyncService_Buckets {
 	
 	public class SourceMonitor implements Runnable {
 		private final SetOnce<ICrudService<JsonNode>> _v1_db = new SetOnce<ICrudService<JsonNode>>();
+		private final SetOnce<Optional<IkanowV1ChangeNotifier.Registration>> _change_registration = new SetOnce<Optional<IkanowV1ChangeNotifier.Registration>>();
 		private boolean _last_state = false;
+		private Optional<Date> _high_water_mark = Optional.empty(); // (only sources modified since this are checked, except for full syncs)
+		private long _last_full_sync = 0L;
 		
 		/* (non-Javadoc)
 		 * @see java.lang.Runnable#run()
@@ -187,6 +204,7 @@ public class IkanowV1SyncService_Buckets {
 		public void run() {
 			if (!_source_mutex_monitor.get().isLeader()) {
 				_last_state = false;
+				_high_water_mark = Optional.empty(); // (start with a full sync if we become the leader again)
 				return;
 			}
 			if (!_last_state) {
@@ -199,17 +217,37 @@ public class IkanowV1SyncService_Buckets {
 				final ICrudService<JsonNode> v1_config_db = _underlying_management_db.get().getUnderlyingPlatformDriver(ICrudService.class, Optional.of("ingest.source")).get();				
 				_v1_db.set(v1_config_db);
 				
-				_v1_db.get().optimizeQuery(Arrays.asList("extractType"));
+				_v1_db.get().optimizeQuery(Arrays.asList("extractType", "modified"));
+			}
+			if (!_change_registration.isSet()) { // (wake up as soon as the v1 collection changes, if change notifications are available)
+				_change_registration.set(_underlying_management_db.get().getUnderlyingPlatformDriver(IkanowV1ChangeNotifier.class, Optional.empty())
+						.map(notifier -> notifier.register(IkanowV1SyncService_Buckets.this, Arrays.asList(MongoDbManagementDbService.V1_SOURCE_STORE), () -> _source_scheduler.execute(this))));
+			}
+			final long fallback_poll_period_ms = 1000L*Optional.ofNullable(_config.v1_fallback_poll_period_secs())
+															.orElse(MongoDbManagementDbConfigBean.DEFAULT_V1_FALLBACK_POLL_PERIOD_SECS);
+			if (!_change_registration.get().map(registration -> registration.shouldPoll(fallback_poll_period_ms)).orElse(true)) {
+				return; // (nothing has changed since the last poll)
 			}
 			
 			try {
+				// Every so often do a full sync (catches deletes, and any changes the incremental check missed, eg because of clock skew)
+				final long now = System.currentTimeMillis();
+				final long full_sync_period_ms = 1000L*Optional.ofNullable(_config.v1_full_source_sync_period_secs())
+																.orElse(MongoDbManagementDbConfigBean.DEFAULT_V1_FULL_SOURCE_SYNC_PERIOD_SECS);
+				final boolean full_sync = !_high_water_mark.isPresent() || ((now - _last_full_sync) >= full_sync_period_ms);
+				
 				// Synchronize
-				synchronizeSources(
+				_high_water_mark = synchronizeSources(
 						_core_management_db.get().getDataBucketStore(), 
 						_underlying_management_db.get().getDataBucketStatusStore(), 
-						_v1_db.get())
+						_v1_db.get(),
+						full_sync ? Optional.empty() : _high_water_mark)
 						.get();
 					// (the get at the end just ensures that you don't get two of these scheduled results colliding - because of the 1-thread thread pool)
+				
+				if (full_sync) {
+					_last_full_sync = now;
+				}
 			}			
 			catch (Throwable t) {
 				_logger.error(ErrorUtils.getLongForm("{0}", t));
@@ -222,7 +260,7 @@ public class IkanowV1SyncService_Buckets {
 
 	// CONTROL LOGIC
 	
-	/** Top level logic for source synchronization
+	/** Top level logic for source synchronization (full sync)
 	 * @param bucket_mgmt
 	 * @param source_db
 	 */
@@ -232,14 +270,30 @@ public class IkanowV1SyncService_Buckets {
 			final ICrudService<JsonNode> source_db
 			)
 	{
-		return compareSourcesToBuckets_get(bucket_mgmt, source_db)
-			.thenApply(v1_v2 -> {
-				return compareSourcesToBuckets_categorize(v1_v2);
-			})
-			.thenCompose(create_update_delete -> {
+		return synchronizeSources(bucket_mgmt, underlying_bucket_status_mgmt, source_db, Optional.empty()).thenApply(__ -> null);
+	}
+	
+	/** Top level logic for source synchronization
+	 * @param bucket_mgmt
+	 * @param source_db
+	 * @param modified_since - if present, only sources modified since then are checked (so deletes are not detected), else a full sync is performed
+	 * @return the high water mark to pass into the next incremental sync
+	 */
+	protected CompletableFuture<Optional<Date>> synchronizeSources(
+			final IManagementCrudService<DataBucketBean> bucket_mgmt, 
+			final IManagementCrudService<DataBucketStatusBean> underlying_bucket_status_mgmt, 
+			final ICrudService<JsonNode> source_db,
+			final Optional<Date> modified_since
+			)
+	{
+		return compareSourcesToBuckets_get(bucket_mgmt, source_db, modified_since)
+			.thenCompose(v1_v2_mark -> {
+				final Tuple3<Collection<String>, Collection<String>, Collection<String>> create_update_delete =
+						compareSourcesToBuckets_categorize(Tuples._2T(v1_v2_mark._1(), v1_v2_mark._2()));
+				
 				if (create_update_delete._1().isEmpty() && create_update_delete._2().isEmpty() && create_update_delete._3().isEmpty()) {
 					//(nothing to do)
-					return CompletableFuture.completedFuture(null);
+					return CompletableFuture.completedFuture(v1_v2_mark._3());
 				}							
 				_logger.info(ErrorUtils.get("Found [create={0}, delete={1}, update={2}] sources", 
 						create_update_delete._1().size(),
@@ -247,76 +301,140 @@ public class IkanowV1SyncService_Buckets {
 						create_update_delete._3().size())
 						);
 				
-				final List<CompletableFuture<Boolean>> l1 = 
-					create_update_delete._1().stream().parallel()
-						.<Tuple2<String, ManagementFuture<?>>>map(key -> 
-							Tuples._2T(key, createNewBucket(key, bucket_mgmt, underlying_bucket_status_mgmt, source_db)))
-						.<CompletableFuture<Boolean>>map(key_fres -> 
-							updateV1SourceStatus_top(key_fres._1(), key_fres._2(), true, source_db))
-						.collect(Collectors.toList());
-					;
+				final int max_in_flight = Optional.ofNullable(_config.v1_max_concurrent_bucket_updates())
+													.orElse(MongoDbManagementDbConfigBean.DEFAULT_V1_MAX_CONCURRENT_BUCKET_UPDATES);
+				
+				return applySourceChanges(create_update_delete, bucket_mgmt, underlying_bucket_status_mgmt, source_db, max_in_flight, _bucket_update_executor)
+						.thenApply(__ -> v1_v2_mark._3());
+			});
+	}
+	
+	/** Creates/deletes/updates the buckets, with at most max_in_flight of the (asynchronous) management calls outstanding at any one time
+	 *  (so a mass import doesn't flood the core management db), then writes the results back to the v1 sources
+	 * @param create_update_delete - the output of compareSourcesToBuckets_categorize
+	 * @param bucket_mgmt
+	 * @param underlying_bucket_status_mgmt
+	 * @param source_db
+	 * @param max_in_flight - the max number of outstanding create/delete/update calls
+	 * @param executor - the thread that launches the calls (blocks while max_in_flight calls are outstanding)
+	 * @return
+	 */
+	protected static CompletableFuture<Void> applySourceChanges(
+			final Tuple3<Collection<String>, Collection<String>, Collection<String>> create_update_delete,
+			final IManagementCrudService<DataBucketBean> bucket_mgmt, 
+			final IManagementCrudService<DataBucketStatusBean> underlying_bucket_status_mgmt, 
+			final ICrudService<JsonNode> source_db,
+			final int max_in_flight,
+			final Executor executor
+			)
+	{
+		final Semaphore in_flight = new Semaphore(Math.max(1, max_in_flight));
+		
+		return CompletableFuture.supplyAsync(() -> {
+					final Map<String, CompletableFuture<Collection<BasicMessageBean>>> created = 
+							runBounded(create_update_delete._1(), key -> createNewBucket(key, bucket_mgmt, underlying_bucket_status_mgmt, source_db), in_flight);
+					final Map<String, CompletableFuture<Collection<BasicMessageBean>>> deleted = 
+							runBounded(create_update_delete._2(), key -> deleteBucket(key, bucket_mgmt), in_flight);
+					final Map<String, CompletableFuture<Collection<BasicMessageBean>>> updated = 
+							runBounded(create_update_delete._3(), key -> updateBucket(key, bucket_mgmt, underlying_bucket_status_mgmt, source_db), in_flight);
 					
-				final List<CompletableFuture<Boolean>> l2 = 
-						create_update_delete._2().stream().parallel()
-							.<Tuple2<String, ManagementFuture<?>>>map(key -> 
-								Tuples._2T(key, deleteBucket(key, bucket_mgmt)))
-						.<CompletableFuture<Boolean>>map(key_fres -> 
-							CompletableFuture.completedFuture(true)) // (don't update source in delete case obviously)
-							.collect(Collectors.toList());
-						;
+					return Tuples._3T(created, deleted, updated);
+				}, executor)
+				.thenCompose(cdu -> {
+					final Date main_date = new Date();
+					final CompletableFuture<?> f_create = waitForBatch("create", cdu._1())
+															.thenCompose(results -> updateV1SourceStatuses(main_date, results, true, source_db, executor));
+					final CompletableFuture<?> f_delete = waitForBatch("delete", cdu._2()); // (don't update source in delete case obviously)
+					final CompletableFuture<?> f_update = waitForBatch("update", cdu._3())
+															.thenCompose(results -> updateV1SourceStatuses(main_date, results, false, source_db, executor));
+					
+					return CompletableFuture.allOf(f_create, f_delete, f_update);
+				});
+	}
+	
+	/** Launches an operation per key, waiting (on the calling thread) for a permit before each one - permits are released as the operations complete
+	 * @param keys
+	 * @param operation
+	 * @param in_flight
+	 * @return a map of key vs the status messages of the operation
+	 */
+	protected static Map<String, CompletableFuture<Collection<BasicMessageBean>>> runBounded(
+			final Collection<String> keys, final Function<String, ManagementFuture<?>> operation, final Semaphore in_flight)
+	{
+		final Map<String, CompletableFuture<Collection<BasicMessageBean>>> results = new LinkedHashMap<String, CompletableFuture<Collection<BasicMessageBean>>>();
+		for (String key: keys) {
+			in_flight.acquireUninterruptibly();
+			CompletableFuture<Collection<BasicMessageBean>> result;
+			try {
+				result = getStatusMessages(operation.apply(key));
+			}
+			catch (Throwable e) {
+				result = CompletableFuture.<Collection<BasicMessageBean>>completedFuture(Arrays.asList(buildErrorMessage(e)));
+			}
+			result.whenComplete((__, ___) -> in_flight.release());
+			results.put(key, result);
+		}
+		return results;
+	}
+	
+	/** Waits for a batch of operations to complete, and logs a single summary of any failures
+	 * @param operation_name
+	 * @param batch
+	 * @return a map of key vs status messages
+	 */
+	protected static CompletableFuture<Map<String, Collection<BasicMessageBean>>> waitForBatch(final String operation_name, 
+			final Map<String, CompletableFuture<Collection<BasicMessageBean>>> batch)
+	{
+		return CompletableFuture.allOf(batch.values().toArray(new CompletableFuture[0]))
+				.thenApply(__ -> {
+					final Map<String, Collection<BasicMessageBean>> results = batch.entrySet().stream()
+							.collect(Collectors.toMap(kv -> kv.getKey(), kv -> kv.getValue().join()));
 					
-				final List<CompletableFuture<Boolean>> l3 = 
-						create_update_delete._3().stream().parallel()
-							.<Tuple2<String, ManagementFuture<?>>>map(key -> 
-								Tuples._2T(key, updateBucket(key, bucket_mgmt, underlying_bucket_status_mgmt, source_db)))
-							.<CompletableFuture<Boolean>>map(key_fres -> 
-								updateV1SourceStatus_top(key_fres._1(), key_fres._2(), false, source_db))
+					final List<String> failed = results.entrySet().stream()
+							.filter(kv -> kv.getValue().stream().anyMatch(msg -> !msg.success()))
+							.map(kv -> kv.getKey())
 							.collect(Collectors.toList());
-						;
-						
-				List<CompletableFuture<?>> retval = 
-						Arrays.asList(l1, l2, l3).stream().flatMap(l -> l.stream())
-						.collect(Collectors.toList());
-						;
-						
-				return CompletableFuture.allOf(retval.toArray(new CompletableFuture[0]));
-			});
+					
+					if (!failed.isEmpty()) {
+						_logger.warn(ErrorUtils.get("Bucket {0}: {1} of {2} failed, eg {3}", operation_name, failed.size(), results.size(), 
+								failed.stream().limit(10).collect(Collectors.joining(", "))));
+					}
+					return results;
+				});
 	}
 	
-	/** Top level handler for update status based on the result
-	 * @param key
+	/** Converts the result of a management call into the status messages to write back to the v1 source
 	 * @param fres
-	 * @param disable_on_failure
-	 * @param source_db
 	 * @return
 	 */
-	protected CompletableFuture<Boolean> updateV1SourceStatus_top(final String key, 
-			final ManagementFuture<?> fres, boolean disable_on_failure,
-			ICrudService<JsonNode> source_db)
-	{		
+	protected static CompletableFuture<Collection<BasicMessageBean>> getStatusMessages(final ManagementFuture<?> fres) {
 		return fres.getManagementResults()
-				.<Boolean>thenCompose(res ->  {
+				.<Collection<BasicMessageBean>>thenApply(res ->  {
 					try {
 						fres.get(); // (check if the DB side call has failed)
-						return updateV1SourceStatus(new Date(), key, res, disable_on_failure, source_db);
+						return res;
 					}
 					catch (Throwable e) { // DB-side call has failed, create ad hoc error
-						final Collection<BasicMessageBean> errs = res.isEmpty()
-								? Arrays.asList(
-									new BasicMessageBean(
-											new Date(), 
-											false, 
-											"(unknown)", 
-											"(unknown)", 
-											null, 
-											ErrorUtils.getLongForm("{0}", e), 
-											null
-											)
-									)
-								: res;
-						return updateV1SourceStatus(new Date(), key, errs, disable_on_failure, source_db);											
+						return res.isEmpty() ? Arrays.asList(buildErrorMessage(e)) : res;
 					}
-				});
+				})
+				.exceptionally(e -> Arrays.asList(buildErrorMessage(e)));
+	}
+	
+	/** Ad hoc error for when a management call fails without any status messages
+	 * @param e
+	 * @return
+	 */
+	protected static BasicMessageBean buildErrorMessage(final Throwable e) {
+		return new BasicMessageBean(
+				new Date(), 
+				false, 
+				"(unknown)", 
+				"(unknown)", 
+				null, 
+				ErrorUtils.getLongForm("{0}", e), 
+				null
+				);
 	}
 	
 	/** Want to end up with 3 lists:
@@ -382,29 +500,76 @@ public class IkanowV1SyncService_Buckets {
 		final IManagementCrudService<DataBucketBean> bucket_mgmt, 
 		final ICrudService<JsonNode> source_db)
 	{
-		// (could make this more efficient by having a regular "did something happen" query with a slower "get everything and resync)
-		// (don't forget to add "modified" to the compund index though)
+		return compareSourcesToBuckets_get(bucket_mgmt, source_db, Optional.empty()).thenApply(t3 -> Tuples._2T(t3._1(), t3._2()));
+	}
+	
+	/** Gets a list of keys,modified from v1 and a list matching keys,modified from V2 (ie _id minus ';')
+	 *  In incremental mode (modified_since present), only v1 sources modified since then (and their buckets) are returned, so the
+	 *  categorization step can't detect deletes - that's left to the (much less frequent) full syncs
+	 * @param bucket_mgmt
+	 * @param source_db
+	 * @param modified_since - if present, only return sources whose modified time is >= this (else return everything)
+	 * @return tuple of id-vs-(date-or-null-if-not-approved) for v1, id-vs-date for v2, and the new high water mark (latest v1 modified time seen)
+	 */
+	protected static 
+	CompletableFuture<Tuple3<Map<String, String>, Map<String, Date>, Optional<Date>>> compareSourcesToBuckets_get(
+		final IManagementCrudService<DataBucketBean> bucket_mgmt, 
+		final ICrudService<JsonNode> source_db,
+		final Optional<Date> modified_since)
+	{
+		// (uses the compound index on extractType, modified)
+		final SingleQueryComponent<JsonNode> v1_query = modified_since
+				.map(since -> CrudUtils.allOf().when("extractType", "V2DataBucket").rangeAbove("modified", since, false))
+				.orElseGet(() -> CrudUtils.allOf().when("extractType", "V2DataBucket"));
+		
 		CompletableFuture<Cursor<JsonNode>> f_v1_sources = 
-				source_db.getObjectsBySpec(
-						CrudUtils.allOf().when("extractType", "V2DataBucket"),
-						Arrays.asList("key", "modified", "isApproved"), true);
+				source_db.getObjectsBySpec(v1_query, Arrays.asList("key", "modified", "isApproved"), true);
 		
 		return f_v1_sources
-			.<Map<String, String>>thenApply(v1_sources -> {
-				return StreamSupport.stream(v1_sources.spliterator(), false)
+			.<Tuple2<Map<String, String>, Optional<Date>>>thenApply(v1_sources -> {
+				final List<JsonNode> v1_source_list = StreamSupport.stream(v1_sources.spliterator(), false).collect(Collectors.toList());
+				
+				final Map<String, String> v1_key_datestr_map = v1_source_list.stream()
 					.collect(Collectors.toMap(
 							j -> safeJsonGet("key", j).asText(),
 							j -> safeJsonGet("isApproved", j).asBoolean() ? safeJsonGet("modified", j).asText() : ""
 							));
+				
+				// (the string format only has second precision, hence the inclusive range above - a few sources get re-checked each time, which is harmless)
+				final Optional<Date> high_water_mark = v1_source_list.stream()
+						.map(j -> safeJsonGet("modified", j).asText())
+						.filter(datestr -> !datestr.isEmpty())
+						.<Date>flatMap(datestr -> {
+							try {
+								return Stream.of(parseJavaDate(datestr));
+							}
+							catch (Throwable e) {
+								return Stream.empty(); // (just ignore)
+							}
+						})
+						.max(Date::compareTo)
+						.map(Optional::of)
+						.orElse(modified_since);
+				
+				return Tuples._2T(v1_key_datestr_map, high_water_mark);
 			})
-			.<Tuple2<Map<String, String>, Map<String, Date>>>
-			thenCompose(v1_key_datestr_map -> {
-				final SingleQueryComponent<DataBucketBean> bucket_query = CrudUtils.allOf(DataBucketBean.class)
-						.rangeIn(DataBucketBean::_id, "aleph...bucket.", true, "aleph...bucket/", true)
+			.<Tuple3<Map<String, String>, Map<String, Date>, Optional<Date>>>
+			thenCompose(v1_key_datestr_map_mark -> {
+				final Map<String, String> v1_key_datestr_map = v1_key_datestr_map_mark._1();
+				
+				if (modified_since.isPresent() && v1_key_datestr_map.isEmpty()) { // (nothing's changed, no need to check the buckets)
+					return CompletableFuture.completedFuture(Tuples._3T(v1_key_datestr_map, Collections.<String, Date>emptyMap(), v1_key_datestr_map_mark._2()));
+				}
+				
+				final SingleQueryComponent<DataBucketBean> bucket_query = modified_since.isPresent()
+						? CrudUtils.allOf(DataBucketBean.class)
+								.withAny(JsonUtils._ID, v1_key_datestr_map.keySet().stream().map(key -> getBucketIdFromV1SourceKey(key)).collect(Collectors.toList()))
+						: CrudUtils.allOf(DataBucketBean.class)
+								.rangeIn(DataBucketBean::_id, "aleph...bucket.", true, "aleph...bucket/", true)
 						;						
 				
 				return bucket_mgmt.getObjectsBySpec(bucket_query, Arrays.asList(JsonUtils._ID, "modified"), true)
-						.<Tuple2<Map<String, String>, Map<String, Date>>>
+						.<Tuple3<Map<String, String>, Map<String, Date>, Optional<Date>>>
 						thenApply(c -> {							
 							final Map<String, Date> v2_key_date_map = 
 									StreamSupport.stream(c.spliterator(), false)
@@ -413,7 +578,7 @@ public class IkanowV1SyncService_Buckets {
 											b -> b.modified()
 											));
 							
-							return Tuples._2T(v1_key_datestr_map, v2_key_date_map);
+							return Tuples._3T(v1_key_datestr_map, v2_key_date_map, v1_key_datestr_map_mark._2());
 						});
 			});
 	}
@@ -562,6 +727,59 @@ public class IkanowV1SyncService_Buckets {
 			final ICrudService<JsonNode> source_db
 			)
 	{
+		final SingleQueryComponent<JsonNode> v1_query = CrudUtils.allOf().when("key", key);
+		final CompletableFuture<Boolean> update_res = source_db.updateObjectBySpec(v1_query, Optional.empty(), 
+				buildV1SourceStatusUpdate(main_date, getStatusSummary(status_messages), set_approved_state));
+		
+		return update_res;
+	}
+	
+	/** Bulk version of updateV1SourceStatus - each source's status, approved state and message are set in a single update (so
+	 *  they change together), sent as one unordered bulk operation where the underlying collection is available, else one update per source
+	 * @param main_date
+	 * @param key_status_messages - source key vs status messages
+	 * @param set_approved_state
+	 * @param source_db
+	 * @param executor - runs the bulk operation, since the driver call blocks
+	 * @return the number of sources updated
+	 */
+	protected static CompletableFuture<Long> updateV1SourceStatuses(
+			final Date main_date,
+			final Map<String, Collection<BasicMessageBean>> key_status_messages,
+			final boolean set_approved_state,
+			final ICrudService<JsonNode> source_db,
+			final Executor executor
+			)
+	{
+		if (key_status_messages.isEmpty()) {
+			return CompletableFuture.completedFuture(0L);
+		}
+		final Map<String, UpdateComponent<JsonNode>> key_updates = key_status_messages.entrySet().stream()
+				.collect(Collectors.toMap(
+						kv -> kv.getKey(), 
+						kv -> buildV1SourceStatusUpdate(main_date, getStatusSummary(kv.getValue()), set_approved_state), 
+						(a, b) -> a, LinkedHashMap::new));
+		
+		final Optional<DBCollection> maybe_dbc = source_db.getUnderlyingPlatformDriver(DBCollection.class, Optional.empty());
+		return maybe_dbc.map(dbc -> CompletableFuture.supplyAsync(() -> {
+					final BulkWriteOperation bulk = dbc.initializeUnorderedBulkOperation();
+					key_updates.forEach((key, update) -> bulk.find(new BasicDBObject("key", key)).updateOne(MongoDbUtils.createUpdateObject(update)));
+					return (long) bulk.execute().getMatchedCount();
+				}, executor))
+				.orElseGet(() -> {
+					final List<CompletableFuture<Boolean>> updates = key_updates.entrySet().stream()
+							.map(kv -> source_db.updateObjectBySpec(CrudUtils.allOf().when("key", kv.getKey()), Optional.empty(), kv.getValue()))
+							.collect(Collectors.toList());
+					return CompletableFuture.allOf(updates.toArray(new CompletableFuture[0]))
+							.thenApply(__ -> updates.stream().filter(f -> f.join()).count());
+				});
+	}
+	
+	/** Summarizes the management side-channel results
+	 * @param status_messages
+	 * @return a tuple of whether there were any errors, and the messages as a single string
+	 */
+	protected static Tuple2<Boolean, String> getStatusSummary(final Collection<BasicMessageBean> status_messages) {
 		final String message_block = status_messages.stream()
 			.map(msg -> {
 				return "[" + msg.date() + "] " + msg.source() + " (" + msg.command() + "): " + (msg.success() ? "INFO" : "ERROR") + ": " + msg.message();
@@ -571,21 +789,53 @@ public class IkanowV1SyncService_Buckets {
 		
 		final boolean any_errors = status_messages.stream().anyMatch(msg -> !msg.success());
 		
-		@SuppressWarnings("deprecation")
+		return Tuples._2T(any_errors, message_block);
+	}
+	
+	/** Builds the update to the v1 source's harvest status from the summarized management side-channel results
+	 * @param main_date
+	 * @param errors_messages - the output of getStatusSummary
+	 * @param set_approved_state
+	 * @return
+	 */
+	protected static UpdateComponent<JsonNode> buildV1SourceStatusUpdate(
+			final Date main_date,
+			final Tuple2<Boolean, String> errors_messages,
+			final boolean set_approved_state
+			)
+	{
+		final CommonUpdateComponent<JsonNode> update_1 = buildV1SourceStatusUpdate(errors_messages._1(), set_approved_state);
+		
+		return update_1.set("harvest.harvest_message", buildV1SourceMessage(main_date, errors_messages._2()));
+	}
+	
+	/** Builds the part of the update to the v1 source's harvest status that doesn't depend on the individual messages
+	 * @param any_errors
+	 * @param set_approved_state
+	 * @return
+	 */
+	protected static CommonUpdateComponent<JsonNode> buildV1SourceStatusUpdate(
+			final boolean any_errors,
+			final boolean set_approved_state
+			)
+	{
 		final CommonUpdateComponent<JsonNode> update_1 = CrudUtils.update()				
-				.set("harvest.harvest_status", (any_errors ? "error" : "success"))
-				.set("harvest.harvest_message",
-						"[" + main_date.toGMTString() + "] Bucket synchronization:\n" 
-						+ (message_block.isEmpty() ? "(no messages)" : message_block));
+				.set("harvest.harvest_status", (any_errors ? "error" : "success"));
 		
-		final UpdateComponent<JsonNode> update = set_approved_state 
+		return set_approved_state 
 				? update_1.set("isApproved", !any_errors)
 				: update_1;
-		
-		final SingleQueryComponent<JsonNode> v1_query = CrudUtils.allOf().when("key", key);
-		final CompletableFuture<Boolean> update_res = source_db.updateObjectBySpec(v1_query, Optional.empty(), update);
-		
-		return update_res;
+	}
+	
+	/** Builds the v1 source's harvest message from the summarized management side-channel results
+	 * @param main_date
+	 * @param message_block - the message part of the output of getStatusSummary
+	 * @return
+	 */
+	@SuppressWarnings("deprecation")
+	protected static String buildV1SourceMessage(final Date main_date, final String message_block) {
+		return "[" + main_date.toGMTString() + "] Bucket synchronization:\n" 
+				+ (message_block.isEmpty() ? "(no messages)" : message_block);
 	}
 	
 	////////////////////////////////////////////////////
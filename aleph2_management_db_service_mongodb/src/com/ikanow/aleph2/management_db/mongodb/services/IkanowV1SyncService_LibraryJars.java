@@ -33,10 +33,14 @@ import java.util.Set;
 import java.util.function.Supplier;
 import java.util.Date;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -45,9 +49,11 @@ import java.util.stream.StreamSupport;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.leader.LeaderLatch;
 import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileAlreadyExistsException;
 import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.ParentNotDirectoryException;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.UnsupportedFileSystemException;
@@ -64,6 +70,8 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -116,7 +124,13 @@ public class IkanowV1SyncService_LibraryJars {
 	protected final ScheduledExecutorService _source_scheduler = Executors.newScheduledThreadPool(1);		
 	protected SetOnce<ScheduledFuture<?>> _library_monitor_handle = new SetOnce<ScheduledFuture<?>>(); 
 	
+	protected final ExecutorService _library_copy_executor; // (bounds the number of jars being copied into the storage service at once)
+	
 	protected static int _num_leader_changes = 0; // (just for debugging/testing)
+	protected static final AtomicLong _num_bytes_copied = new AtomicLong(0L); // (just for debugging/testing)
+	
+	// Hashes of the jars already in the storage service, so unchanged jars aren't copied again: path -> (length, modification time, md5)
+	protected static final Map<String, Tuple3<Long, Long, String>> _library_file_hashes = new ConcurrentHashMap<String, Tuple3<Long, Long, String>>();
 	
 	public final static String LIBRARY_MONITOR_MUTEX = "/app/aleph2/locks/v1/library_jars";
 
@@ -132,6 +146,8 @@ public class IkanowV1SyncService_LibraryJars {
 		_underlying_management_db = _context.getServiceProvider(IManagementDbService.class, Optional.empty()).get();
 		_core_distributed_services = _context.getService(ICoreDistributedServices.class, Optional.empty()).get();
 		_storage_service = _context.getStorageService();
+		_library_copy_executor = Executors.newFixedThreadPool(Math.max(1, Optional.ofNullable(_config.v1_max_concurrent_library_copies())
+																				.orElse(MongoDbManagementDbConfigBean.DEFAULT_V1_MAX_CONCURRENT_LIBRARY_COPIES)));
 		
 		if (Optional.ofNullable(_config.v1_enabled()).orElse(false)) {
 			// Launch the synchronization service
@@ -152,10 +168,16 @@ public class IkanowV1SyncService_LibraryJars {
 		_library_monitor_handle.forceSet(_source_scheduler.scheduleWithFixedDelay(new LibraryMonitor(), 1, 1L, TimeUnit.SECONDS));
 	}
 	
-	/** Stop threads (just for testing I think)
+	/** Stop threads (just for testing I think) - the copy executor is shut down once any in-progress sync has launched its copies,
+	 *  and copies already in progress are allowed to finish
 	 */
 	public void stop() {
-		_library_monitor_handle.get().cancel(true);
+		if (_library_monitor_handle.isSet()) {
+			_library_monitor_handle.get().cancel(true);
+		}
+		_source_scheduler.execute(() -> _library_copy_executor.shutdown()); // (runs after the current sync, since the scheduler is single threaded)
+		_underlying_management_db.get().getUnderlyingPlatformDriver(IkanowV1ChangeNotifier.class, Optional.empty())
+			.ifPresent(notifier -> notifier.unregister(this));
 	}
 	
 	////////////////////////////////////////////////////
@@ -194,15 +216,22 @@ public class IkanowV1SyncService_LibraryJars {
 	
 	public class LibraryMonitor implements Runnable {
 		private final SetOnce<ICrudService<JsonNode>> _v1_db = new SetOnce<ICrudService<JsonNode>>();
+		private final SetOnce<Optional<IkanowV1ChangeNotifier.Registration>> _change_registration = new SetOnce<Optional<IkanowV1ChangeNotifier.Registration>>();
 		private boolean _last_state = false;
+		private Optional<Date> _high_water_mark = Optional.empty(); // (only shares modified since this are checked, except for full syncs)
+		private long _last_full_sync = 0L;
 		
 		/* (non-Javadoc)
 		 * @see java.lang.Runnable#run()
 		 */
 		@Override
 		public void run() {
+			if (_library_copy_executor.isShutdown()) { // (service has been stopped)
+				return;
+			}
 			if (!_library_mutex_monitor.get().isLeader()) {
 				_last_state = false;
+				_high_water_mark = Optional.empty(); // (start with a full sync if we become the leader again)
 				return;
 			}
 			if (!_last_state) {
@@ -215,21 +244,42 @@ public class IkanowV1SyncService_LibraryJars {
 				final ICrudService<JsonNode> v1_config_db = _underlying_management_db.get().getUnderlyingPlatformDriver(ICrudService.class, Optional.of("social.share")).get();				
 				_v1_db.set(v1_config_db);				
 				_v1_db.get().optimizeQuery(Arrays.asList("title"));
+				_v1_db.get().optimizeQuery(Arrays.asList("modified"));
 			}
 			if (!_mongodb_distributed_fs.isSet()) {
 				final GridFS fs = _underlying_management_db.get().getUnderlyingPlatformDriver(GridFS.class, Optional.of("file.binary_shares")).get();
 				_mongodb_distributed_fs.set(fs);
 			}
+			if (!_change_registration.isSet()) { // (wake up as soon as the v1 collection changes, if change notifications are available)
+				_change_registration.set(_underlying_management_db.get().getUnderlyingPlatformDriver(IkanowV1ChangeNotifier.class, Optional.empty())
+						.map(notifier -> notifier.register(IkanowV1SyncService_LibraryJars.this, Arrays.asList(MongoDbManagementDbService.V1_SHARE_STORE), () -> _source_scheduler.execute(this))));
+			}
+			final long fallback_poll_period_ms = 1000L*Optional.ofNullable(_config.v1_fallback_poll_period_secs())
+															.orElse(MongoDbManagementDbConfigBean.DEFAULT_V1_FALLBACK_POLL_PERIOD_SECS);
+			if (!_change_registration.get().map(registration -> registration.shouldPoll(fallback_poll_period_ms)).orElse(true)) {
+				return; // (nothing has changed since the last poll)
+			}
 			
 			try {
+				// Every so often do a full sync (catches deletes, and any changes the incremental check missed, eg because of clock skew)
+				final long now = System.currentTimeMillis();
+				final long full_sync_period_ms = 1000L*Optional.ofNullable(_config.v1_full_source_sync_period_secs())
+																.orElse(MongoDbManagementDbConfigBean.DEFAULT_V1_FULL_SOURCE_SYNC_PERIOD_SECS);
+				final boolean full_sync = !_high_water_mark.isPresent() || ((now - _last_full_sync) >= full_sync_period_ms);
+				
 				// Synchronize
-				synchronizeLibraryJars(
+				_high_water_mark = synchronizeLibraryJars(
 						_core_management_db.get().getSharedLibraryStore(), 
 						_storage_service,
 						_v1_db.get(),
-						_mongodb_distributed_fs.get())
+						_mongodb_distributed_fs.get(),
+						full_sync ? Optional.empty() : _high_water_mark)
 						.get();
 					// (the get at the end just ensures that you don't get two of these scheduled results colliding - because of the 1-thread thread pool)
+				
+				if (full_sync) {
+					_last_full_sync = now;
+				}
 			}			
 			catch (Throwable t) {
 				_logger.error(ErrorUtils.getLongForm("{0}", t));
@@ -242,7 +292,7 @@ public class IkanowV1SyncService_LibraryJars {
 
 	// CONTROL LOGIC
 	
-	/** Top level logic for source synchronization
+	/** Top level logic for source synchronization (full sync)
 	 * @param library_mgmt
 	 * @param share_db
 	 */
@@ -253,14 +303,31 @@ public class IkanowV1SyncService_LibraryJars {
 			final GridFS share_fs
 			)
 	{
-		return compareJarsToLibaryBeans_get(library_mgmt, share_db)
-			.thenApply(v1_v2 -> {
-				return compareJarsToLibraryBeans_categorize(v1_v2);
-			})
-			.thenCompose(create_update_delete -> {
+		return synchronizeLibraryJars(library_mgmt, aleph2_fs, share_db, share_fs, Optional.empty()).thenApply(__ -> null);
+	}
+	
+	/** Top level logic for source synchronization
+	 * @param library_mgmt
+	 * @param share_db
+	 * @param modified_since - if present, only shares modified since then are checked (so deletes are not detected), else a full sync is performed
+	 * @return the high water mark to pass into the next incremental sync
+	 */
+	protected CompletableFuture<Optional<Date>> synchronizeLibraryJars(
+			final IManagementCrudService<SharedLibraryBean> library_mgmt,
+			final IStorageService aleph2_fs,
+			final ICrudService<JsonNode> share_db,
+			final GridFS share_fs,
+			final Optional<Date> modified_since
+			)
+	{
+		return compareJarsToLibaryBeans_get(library_mgmt, share_db, modified_since)
+			.thenCompose(v1_v2_mark -> {
+				final Tuple3<Collection<String>, Collection<String>, Collection<String>> create_update_delete =
+						compareJarsToLibraryBeans_categorize(Tuples._2T(v1_v2_mark._1(), v1_v2_mark._2()));
+				
 				if (create_update_delete._1().isEmpty() && create_update_delete._2().isEmpty() && create_update_delete._3().isEmpty()) {
 					//(nothing to do)
-					return CompletableFuture.completedFuture(null);
+					return CompletableFuture.completedFuture(v1_v2_mark._3());
 				}							
 				_logger.info(ErrorUtils.get("Found [create={0}, delete={1}, update={2}] sources", 
 						create_update_delete._1().size(),
@@ -268,17 +335,18 @@ public class IkanowV1SyncService_LibraryJars {
 						create_update_delete._3().size())
 						);
 				
+				// (the jars are copied in parallel on the copy executor)
 				final List<CompletableFuture<Boolean>> l1 = 
-					create_update_delete._1().stream().parallel()
+					create_update_delete._1().stream()
 						.<Tuple2<String, ManagementFuture<?>>>map(id -> 
-							Tuples._2T(id, createLibraryBean(id, library_mgmt, aleph2_fs, true, share_db, share_fs, _context)))
+							Tuples._2T(id, createLibraryBean(id, library_mgmt, aleph2_fs, true, share_db, share_fs, _context, _library_copy_executor)))
 						.<CompletableFuture<Boolean>>map(id_fres -> 
 							updateV1ShareErrorStatus_top(id_fres._1(), id_fres._2(), library_mgmt, share_db, true))
 						.collect(Collectors.toList());
 					;
 					
 				final List<CompletableFuture<Boolean>> l2 = 
-						create_update_delete._2().stream().parallel()
+						create_update_delete._2().stream()
 							.<Tuple2<String, ManagementFuture<?>>>map(id -> 
 								Tuples._2T(id, deleteLibraryBean(id, library_mgmt, aleph2_fs)))
 						.<CompletableFuture<Boolean>>map(id_fres -> 
@@ -287,9 +355,9 @@ public class IkanowV1SyncService_LibraryJars {
 						;
 					
 				final List<CompletableFuture<Boolean>> l3 = 
-						create_update_delete._3().stream().parallel()
+						create_update_delete._3().stream()
 							.<Tuple2<String, ManagementFuture<?>>>map(id -> 
-								Tuples._2T(id, createLibraryBean(id, library_mgmt, aleph2_fs, false, share_db, share_fs, _context)))
+								Tuples._2T(id, createLibraryBean(id, library_mgmt, aleph2_fs, false, share_db, share_fs, _context, _library_copy_executor)))
 						.<CompletableFuture<Boolean>>map(id_fres -> 
 							updateV1ShareErrorStatus_top(id_fres._1(), id_fres._2(), library_mgmt, share_db, false))
 							.collect(Collectors.toList());
@@ -300,7 +368,7 @@ public class IkanowV1SyncService_LibraryJars {
 						.collect(Collectors.toList());
 						;
 						
-				return CompletableFuture.allOf(retval.toArray(new CompletableFuture[0]));
+				return CompletableFuture.allOf(retval.toArray(new CompletableFuture[0])).thenApply(__ -> v1_v2_mark._3());
 			});
 	}
 	
@@ -408,31 +476,75 @@ public class IkanowV1SyncService_LibraryJars {
 		final IManagementCrudService<SharedLibraryBean> library_mgmt, 
 		final ICrudService<JsonNode> share_db)
 	{
-		// (could make this more efficient by having a regular "did something happen" query with a slower "get everything and resync)
-		// (don't forget to add "modified" to the compound index though)
+		return compareJarsToLibaryBeans_get(library_mgmt, share_db, Optional.empty()).thenApply(t3 -> Tuples._2T(t3._1(), t3._2()));
+	}
+	
+	/** Gets a list of _id,modified from v1 and a list matching _id,modified from V2
+	 *  In incremental mode (modified_since present), only v1 shares modified since then (and their library beans) are returned, so the
+	 *  categorization step can't detect deletes - that's left to the (much less frequent) full syncs
+	 * @param library_mgmt
+	 * @param share_db
+	 * @param modified_since - if present, only return shares whose modified time is >= this (else return everything)
+	 * @return tuple of id-vs-(date-or-null-if-not-approved) for v1, id-vs-date for v2, and the new high water mark (latest v1 modified time seen)
+	 */
+	protected static 
+	CompletableFuture<Tuple3<Map<String, String>, Map<String, Date>, Optional<Date>>> compareJarsToLibaryBeans_get(
+		final IManagementCrudService<SharedLibraryBean> library_mgmt, 
+		final ICrudService<JsonNode> share_db,
+		final Optional<Date> modified_since)
+	{
+		final SingleQueryComponent<JsonNode> v1_query = modified_since
+				.map(since -> CrudUtils.allOf().when("type", "binary")
+								.rangeIn("title", "/app/aleph2/library/", true, "/app/aleph2/library0", true)
+								.rangeAbove("modified", since, false))
+				.orElseGet(() -> CrudUtils.allOf().when("type", "binary")
+								.rangeIn("title", "/app/aleph2/library/", true, "/app/aleph2/library0", true));
+		
 		CompletableFuture<Cursor<JsonNode>> f_v1_jars = 
-				share_db.getObjectsBySpec(
-						CrudUtils.allOf().when("type", "binary")
-							.rangeIn("title", "/app/aleph2/library/", true, "/app/aleph2/library0", true),
-							Arrays.asList(JsonUtils._ID, "modified"), true
-						);
+				share_db.getObjectsBySpec(v1_query, Arrays.asList(JsonUtils._ID, "modified"), true);
 		
 		return f_v1_jars
-			.<Map<String, String>>thenApply(v1_jars -> {
-				return StreamSupport.stream(v1_jars.spliterator(), false)
+			.<Tuple2<Map<String, String>, Optional<Date>>>thenApply(v1_jars -> {
+				final Map<String, String> v1_id_datestr_map = StreamSupport.stream(v1_jars.spliterator(), false)
 					.collect(Collectors.toMap(
 							j -> safeJsonGet(JsonUtils._ID, j).asText(),
 							j -> safeJsonGet("modified", j).asText()
 							));
+				
+				// (the string format only has second precision, hence the inclusive range above - a few shares get re-checked each time, which is harmless)
+				final Optional<Date> high_water_mark = v1_id_datestr_map.values().stream()
+						.filter(datestr -> !datestr.isEmpty())
+						.<Date>flatMap(datestr -> {
+							try {
+								return Stream.of(parseJavaDate(datestr));
+							}
+							catch (Throwable e) {
+								return Stream.empty(); // (just ignore)
+							}
+						})
+						.max(Date::compareTo)
+						.map(Optional::of)
+						.orElse(modified_since);
+				
+				return Tuples._2T(v1_id_datestr_map, high_water_mark);
 			})
-			.<Tuple2<Map<String, String>, Map<String, Date>>>
-			thenCompose(v1_id_datestr_map -> {
-				final SingleQueryComponent<SharedLibraryBean> library_query = CrudUtils.allOf(SharedLibraryBean.class)
-						.rangeIn(SharedLibraryBean::_id, "v1_", true, "v1a", true)
+			.<Tuple3<Map<String, String>, Map<String, Date>, Optional<Date>>>
+			thenCompose(v1_id_datestr_map_mark -> {
+				final Map<String, String> v1_id_datestr_map = v1_id_datestr_map_mark._1();
+				
+				if (modified_since.isPresent() && v1_id_datestr_map.isEmpty()) { // (nothing's changed, no need to check the library beans)
+					return CompletableFuture.completedFuture(Tuples._3T(v1_id_datestr_map, Collections.<String, Date>emptyMap(), v1_id_datestr_map_mark._2()));
+				}
+				
+				final SingleQueryComponent<SharedLibraryBean> library_query = modified_since.isPresent()
+						? CrudUtils.allOf(SharedLibraryBean.class)
+								.withAny(SharedLibraryBean::_id, v1_id_datestr_map.keySet().stream().map(id -> "v1_" + id).collect(Collectors.toList()))
+						: CrudUtils.allOf(SharedLibraryBean.class)
+								.rangeIn(SharedLibraryBean::_id, "v1_", true, "v1a", true)
 						;						
 				
 				return library_mgmt.getObjectsBySpec(library_query, Arrays.asList(JsonUtils._ID, "modified"), true)
-						.<Tuple2<Map<String, String>, Map<String, Date>>>
+						.<Tuple3<Map<String, String>, Map<String, Date>, Optional<Date>>>
 						thenApply(c -> {							
 							final Map<String, Date> v2_id_date_map = 
 									StreamSupport.stream(c.spliterator(), false)
@@ -441,7 +553,7 @@ public class IkanowV1SyncService_LibraryJars {
 											b -> b.modified()
 											));
 							
-							return Tuples._2T(v1_id_datestr_map, v2_id_date_map);
+							return Tuples._3T(v1_id_datestr_map, v2_id_date_map, v1_id_datestr_map_mark._2());
 						});
 			});
 	}
@@ -452,59 +564,119 @@ public class IkanowV1SyncService_LibraryJars {
 	// FS - WRITE AND DELETE
 	
 	/** MongoFS -> HDFS
+	 *  If the destination already has the same contents (by md5), it isn't re-written - so the modification time of the jar
+	 *  is preserved and anything caching it locally doesn't have to re-fetch it
 	 * @param binary_id
 	 * @param path
 	 * @param aleph2_fs
 	 * @param share_fs
+	 * @return the number of bytes written (0 if the destination was already up to date)
 	 * @throws IOException
 	 */
-	protected static void copyFile(final String binary_id, final String path, 
+	protected static long copyFile(final String binary_id, final String path, 
 			final IStorageService aleph2_fs,
 			final GridFS share_fs
 			) throws IOException
 	{
 		if (!binary_id.isEmpty()) { //(safeGet => is "" not null)
+			final GridFSDBFile file = share_fs.find(new ObjectId(binary_id));						
+			
+			final FileContext fs = aleph2_fs.getUnderlyingPlatformDriver(FileContext.class, Optional.empty()).get();			
+			final String adjusted_path = getAdjustedPath(path);
+			final Path file_path = fs.makeQualified(new Path(adjusted_path));
+			
+			final Optional<String> existing_md5 = getExistingFileHash(fs, file_path);
+			
+			// Mongo stores the md5 of each file, so can usually avoid even reading the file
+			if (existing_md5.isPresent() && existing_md5.get().equalsIgnoreCase(Optional.ofNullable(file.getMD5()).orElse(""))) {
+				return 0L;
+			}
 			try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-				final GridFSDBFile file = share_fs.find(new ObjectId(binary_id));						
 				file.writeTo(out);		
+				final byte[] bytes = out.toByteArray();
 				
-				final FileContext fs = aleph2_fs.getUnderlyingPlatformDriver(FileContext.class, Optional.empty()).get();			
-				final String adjusted_path = getAdjustedPath(path);
-				final Path file_path = fs.makeQualified(new Path(adjusted_path));
-				
+				if (existing_md5.isPresent() && existing_md5.get().equals(Hashing.md5().hashBytes(bytes).toString())) {
+					return 0L;
+				}
 				try (FSDataOutputStream outer = fs.create(file_path, EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE), 
 						org.apache.hadoop.fs.Options.CreateOpts.createParent()))
 				{
-					outer.write(out.toByteArray());
+					outer.write(bytes);
 				}
+				_library_file_hashes.remove(file_path.toString());
+				_num_bytes_copied.addAndGet(bytes.length);
+				return bytes.length;
 			}
 		}
+		return 0L;
 	}
 	
 	/** Local FS -> HDFS
 	 * @param local_path
 	 * @param remote_path
 	 * @param aleph2_fs
+	 * @return the number of bytes written (0 if the destination was already up to date)
 	 * @throws IOException 
 	 * @throws UnsupportedFileSystemException 
 	 * @throws ParentNotDirectoryException 
 	 * @throws FileNotFoundException 
 	 * @throws AccessControlException 
 	 */
-	protected static void copyFile(final String local_path, final String remote_path, final IStorageService aleph2_fs) throws IOException {
+	protected static long copyFile(final String local_path, final String remote_path, final IStorageService aleph2_fs) throws IOException {
 		final FileContext fc = aleph2_fs.getUnderlyingPlatformDriver(FileContext.class, Optional.empty()).get();			
 
 		final String adjusted_path = getAdjustedPath(remote_path);
 		final Path file_path = fc.makeQualified(new Path(adjusted_path));
-				
+		
+		final File local_file = new File(local_path);
+		final Optional<String> existing_md5 = getExistingFileHash(fc, file_path);
+		if (existing_md5.isPresent() && existing_md5.get().equals(Files.hash(local_file, Hashing.md5()).toString())) {
+			return 0L;
+		}
+		
 		try (FSDataOutputStream outer = fc.create(file_path, EnumSet.of(CreateFlag.OVERWRITE, CreateFlag.CREATE), // ie should fail if the destination file already exists 
 				org.apache.hadoop.fs.Options.CreateOpts.createParent()))
 		{
-			Files.copy(new File(local_path), outer.getWrappedStream());
+			Files.copy(local_file, outer.getWrappedStream());
 		}
 		catch (FileAlreadyExistsException e) {//(carry on - the file is versioned so it can't be out of date)
+			return 0L;
 		}
-		
+		_library_file_hashes.remove(file_path.toString());
+		_num_bytes_copied.addAndGet(local_file.length());
+		return local_file.length();
+	}
+	
+	/** Returns the md5 of a file already in the storage service, cached against its length and modification time so that
+	 *  unchanged jars are only read once
+	 * @param fs
+	 * @param file_path
+	 * @return the (lower case hex) md5, or empty if the file doesn't exist
+	 * @throws IOException
+	 */
+	protected static Optional<String> getExistingFileHash(final FileContext fs, final Path file_path) throws IOException {
+		final FileStatus status;
+		try {
+			status = fs.getFileStatus(file_path);
+		}
+		catch (FileNotFoundException e) {
+			_library_file_hashes.remove(file_path.toString());
+			return Optional.empty();
+		}
+		final Tuple3<Long, Long, String> cached = _library_file_hashes.get(file_path.toString());
+		if ((null != cached) && (cached._1() == status.getLen()) && (cached._2() == status.getModificationTime())) {
+			return Optional.of(cached._3());
+		}
+		final Hasher hasher = Hashing.md5().newHasher();
+		try (FSDataInputStream in = fs.open(file_path)) {
+			final byte[] buffer = new byte[65536];
+			for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+				hasher.putBytes(buffer, 0, read);
+			}
+		}
+		final String md5 = hasher.hash().toString();
+		_library_file_hashes.put(file_path.toString(), Tuples._3T(status.getLen(), status.getModificationTime(), md5));
+		return Optional.of(md5);
 	}
 	
 	protected static void deleteFile(final String path, final IStorageService aleph2_fs) throws IOException {
@@ -525,7 +697,7 @@ public class IkanowV1SyncService_LibraryJars {
 
 	// DB MANIPULATION - WRITE
 	
-	/** Create a new library bean
+	/** Create a new library bean (copying the jar on the calling thread)
 	 * @param id
 	 * @param bucket_mgmt
 	 * @param create_not_update - true if create, false if update
@@ -540,6 +712,27 @@ public class IkanowV1SyncService_LibraryJars {
 			final GridFS share_fs,
 			final IServiceContext context
 			)
+	{
+		return createLibraryBean(id, library_mgmt, aleph2_fs, create_not_update, share_db, share_fs, context, Runnable::run);
+	}
+	
+	/** Create a new library bean
+	 * @param id
+	 * @param bucket_mgmt
+	 * @param create_not_update - true if create, false if update
+	 * @param share_db
+	 * @param copy_executor - the jar is copied into the storage service on this executor
+	 * @return
+	 */
+	protected static ManagementFuture<Supplier<Object>> createLibraryBean(final String id,
+			final IManagementCrudService<SharedLibraryBean> library_mgmt, 
+			final IStorageService aleph2_fs,
+			final boolean create_not_update,
+			final ICrudService<JsonNode> share_db,			
+			final GridFS share_fs,
+			final IServiceContext context,
+			final Executor copy_executor
+			)
 	{
 		if (create_not_update) {
 			_logger.info(ErrorUtils.get("Found new share {0}, creating library bean", id));
@@ -552,10 +745,10 @@ public class IkanowV1SyncService_LibraryJars {
 
 		final SingleQueryComponent<JsonNode> v1_query = CrudUtils.allOf().when(JsonUtils._ID, new ObjectId(id));
 		return FutureUtils.denestManagementFuture(share_db.getObjectBySpec(v1_query)
-			.<ManagementFuture<Supplier<Object>>>thenApply(Lambdas.wrap_u(jsonopt -> {
+			.<ManagementFuture<Supplier<Object>>>thenApplyAsync(Lambdas.wrap_u(jsonopt -> {
 					final SharedLibraryBean new_object = getLibraryBeanFromV1Share(jsonopt.get());
 					
-					// Try to copy the file across before going crazy (going to leave this as single threaded for now, we'll live)
+					// Try to copy the file across before going crazy (unchanged jars aren't re-written)
 					final String binary_id = safeJsonGet("binaryId", jsonopt.get()).asText();
 					if (!binary_id.isEmpty()) {
 						copyFile(binary_id, new_object.path_name(), aleph2_fs, share_fs);
@@ -572,7 +765,7 @@ public class IkanowV1SyncService_LibraryJars {
 					final AuthorizationBean auth = new AuthorizationBean(new_object.owner_id()); 					
 					final ManagementFuture<Supplier<Object>> ret = library_mgmt.secured(context, auth).storeObject(new_object, !create_not_update);
 					return ret;
-				}))
+				}), copy_executor)
 				.exceptionally(e -> {
 					return FutureUtils.<Supplier<Object>>createManagementFuture(
 							FutureUtils.returnError(new RuntimeException(e)), 
@@ -112,6 +112,8 @@ public class IkanowV1SyncService_PurgeBuckets {
 	 */
 	public void stop() {
 		_source_purge_monitor_handle.get().cancel(true);
+		_underlying_management_db.get().getUnderlyingPlatformDriver(IkanowV1ChangeNotifier.class, Optional.empty())
+			.ifPresent(notifier -> notifier.unregister(this));
 	}
 	
 	////////////////////////////////////////////////////
@@ -150,6 +152,7 @@ public class IkanowV1SyncService_PurgeBuckets {
 	
 	public class SourcePurgeMonitor implements Runnable {
 		private final SetOnce<ICrudService<PurgeQueueBean>> _v1_db = new SetOnce<ICrudService<PurgeQueueBean>>();
+		private final SetOnce<Optional<IkanowV1ChangeNotifier.Registration>> _change_registration = new SetOnce<Optional<IkanowV1ChangeNotifier.Registration>>();
 		private boolean _last_state = false;
 		
 		/* (non-Javadoc)
@@ -173,6 +176,15 @@ public class IkanowV1SyncService_PurgeBuckets {
 				
 				_v1_db.get().optimizeQuery(Arrays.asList(BeanTemplateUtils.from(PurgeQueueBean.class).field(PurgeQueueBean::status)));
 			}
+			if (!_change_registration.isSet()) { // (wake up as soon as the v1 collection changes, if change notifications are available)
+				_change_registration.set(_underlying_management_db.get().getUnderlyingPlatformDriver(IkanowV1ChangeNotifier.class, Optional.empty())
+						.map(notifier -> notifier.register(IkanowV1SyncService_PurgeBuckets.this, Arrays.asList(MongoDbManagementDbService.V1_PURGE_QUEUE), () -> _source_purge_scheduler.execute(this))));
+			}
+			final long fallback_poll_period_ms = 1000L*Optional.ofNullable(_config.v1_fallback_poll_period_secs())
+															.orElse(MongoDbManagementDbConfigBean.DEFAULT_V1_FALLBACK_POLL_PERIOD_SECS);
+			if (!_change_registration.get().map(registration -> registration.shouldPoll(fallback_poll_period_ms)).orElse(true)) {
+				return; // (nothing has changed since the last poll)
+			}
 			
 			try {
 				// Synchronize
@@ -20,16 +20,21 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Date;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.leader.LeaderLatch;
@@ -54,7 +59,6 @@ import com.ikanow.aleph2.data_model.objects.data_import.DataBucketStatusBean;
 import com.ikanow.aleph2.data_model.objects.shared.ProcessingTestSpecBean;
 import com.ikanow.aleph2.data_model.utils.CrudUtils;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.BeanUpdateComponent;
-import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
 import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
@@ -62,7 +66,6 @@ import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.BucketUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.JsonUtils;
-import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.SetOnce;
 import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
 import com.ikanow.aleph2.management_db.mongodb.data_model.MongoDbManagementDbConfigBean;
@@ -89,6 +92,11 @@ public class IkanowV1SyncService_TestBuckets {
 	protected final ScheduledExecutorService _source_test_scheduler = Executors.newScheduledThreadPool(1);		
 	protected SetOnce<ScheduledFuture<?>> _source_test_monitor_handle = new SetOnce<ScheduledFuture<?>>(); 
 	
+	// Claimed test queue entries are processed in parallel on the worker pool, the permits stop a node claiming more than it can process
+	protected final String _owner_id = UUID.randomUUID().toString();
+	protected final ExecutorService _test_workers;
+	protected final Semaphore _test_worker_permits;
+	
 	protected static int _num_leader_changes = 0; // (just for debugging/testing)
 	
 	public final static String SOURCE_TEST_MONITOR_MUTEX = "/app/aleph2/locks/v1/sources_test";
@@ -106,6 +114,10 @@ public class IkanowV1SyncService_TestBuckets {
 		_context.getService(ICoreDistributedServices.class, Optional.empty()).get();
 		_core_distributed_services = _context.getService(ICoreDistributedServices.class, Optional.empty()).get();
 		
+		final int num_test_workers = Math.max(1, Optional.ofNullable(_config.v1_test_worker_threads()).orElse(MongoDbManagementDbConfigBean.DEFAULT_V1_TEST_WORKER_THREADS));
+		_test_workers = Executors.newFixedThreadPool(num_test_workers);
+		_test_worker_permits = new Semaphore(num_test_workers);
+		
 		if (Optional.ofNullable(_config.v1_enabled()).orElse(false)) {
 			// Launch the synchronization service
 			
@@ -126,10 +138,15 @@ public class IkanowV1SyncService_TestBuckets {
 		_source_test_monitor_handle.forceSet(_source_test_scheduler.scheduleWithFixedDelay(new SourceTestMonitor(), 1, 1L, TimeUnit.SECONDS));
 	}
 	
-	/** Stop threads (just for testing I think)
+	/** Stop threads (just for testing I think) - tests already running on the worker pool are allowed to finish (and release their entries)
 	 */
 	public void stop() {
-		_source_test_monitor_handle.get().cancel(true);
+		if (_source_test_monitor_handle.isSet()) {
+			_source_test_monitor_handle.get().cancel(true);
+		}
+		_test_workers.shutdown();
+		_underlying_management_db.get().getUnderlyingPlatformDriver(IkanowV1ChangeNotifier.class, Optional.empty())
+			.ifPresent(notifier -> notifier.unregister(this));
 	}
 	
 	////////////////////////////////////////////////////
@@ -168,6 +185,7 @@ public class IkanowV1SyncService_TestBuckets {
 	
 	public class SourceTestMonitor implements Runnable {
 		private final SetOnce<ICrudService<TestQueueBean>> _v1_db = new SetOnce<ICrudService<TestQueueBean>>();
+		private final SetOnce<Optional<IkanowV1ChangeNotifier.Registration>> _change_registration = new SetOnce<Optional<IkanowV1ChangeNotifier.Registration>>();
 		private boolean _last_state = false;
 		
 		/* (non-Javadoc)
@@ -190,7 +208,15 @@ public class IkanowV1SyncService_TestBuckets {
 				_v1_db.set(v1_config_db);
 				
 				_v1_db.get().optimizeQuery(Arrays.asList(BeanTemplateUtils.from(TestQueueBean.class).field(TestQueueBean::status)));
+				_v1_db.get().optimizeQuery(Arrays.asList(BeanTemplateUtils.from(TestQueueBean.class).field(TestQueueBean::status), 
+															BeanTemplateUtils.from(TestQueueBean.class).field(TestQueueBean::lease_expires_on)));
+			}
+			if (!_change_registration.isSet()) { // (wake up as soon as the v1 collection changes, if change notifications are available)
+				_change_registration.set(_underlying_management_db.get().getUnderlyingPlatformDriver(IkanowV1ChangeNotifier.class, Optional.empty())
+						.map(notifier -> notifier.register(IkanowV1SyncService_TestBuckets.this, Arrays.asList(MongoDbManagementDbService.V1_TEST_QUEUE), () -> _source_test_scheduler.execute(this))));
 			}
+			_change_registration.get().ifPresent(registration -> registration.acknowledgeChange());
+				//(always poll, since in progress tests need checking regardless - notifications just mean new tests get started immediately)
 			
 			try {
 				// Synchronize
@@ -199,11 +225,12 @@ public class IkanowV1SyncService_TestBuckets {
 						_underlying_management_db.get().getDataBucketStatusStore(), 
 						_v1_db.get(),
 						new BucketTestService())
-						.get();
-				//(note this only waits for completions to finish, which should be super fast)
-				
-				//(note you can have multiple instances of the called code running even though the main thread pool is one,
-				// because of the futures - the code handles it so that it doesn't try to start the code multiple times)
+						.exceptionally(t -> {
+							_logger.error(ErrorUtils.getLongForm("{0}", t));
+							return null;
+						});
+				//(note this doesn't wait for the claimed tests to be processed, so a slow test doesn't hold up the ones behind it
+				// - entries still being processed are leased to this node, so the next cycle won't pick them up again)
 			}			
 			catch (Throwable t) {
 				_logger.error(ErrorUtils.getLongForm("{0}", t));
@@ -216,9 +243,11 @@ public class IkanowV1SyncService_TestBuckets {
 
 	// CONTROL LOGIC
 	
-	/** Top level logic for source synchronization
+	/** Top level logic for source synchronization: claims test queue entries one at a time (until there are none left or all the workers are busy)
+	 *  and processes them on the worker pool
 	 * @param bucket_mgmt
 	 * @param source_db
+	 * @return a future that completes when all the entries claimed in this cycle have been processed (and released)
 	 */
 	protected CompletableFuture<Void> synchronizeTestSources(
 			final IManagementCrudService<DataBucketBean> bucket_mgmt, 
@@ -227,49 +256,125 @@ public class IkanowV1SyncService_TestBuckets {
 			final BucketTestService bucket_test_service
 			)
 	{
-		//_logger.debug("Starting a sync test sources cycle");
-		final List<CompletableFuture<?>> new_results = new ArrayList<CompletableFuture<?>>(); // (not used for synchronization - in a single)
-		final List<CompletableFuture<?>> existing_results = new ArrayList<CompletableFuture<?>>();		
+		final long lease_ms = 1000L*Optional.ofNullable(_config.v1_test_lease_secs()).orElse(MongoDbManagementDbConfigBean.DEFAULT_V1_TEST_LEASE_SECS);
+		final List<String> claimed_this_cycle = new ArrayList<String>(); // (so an entry processed quickly isn't picked up again in the same cycle)
+		final List<CompletableFuture<?>> results = new ArrayList<CompletableFuture<?>>();
+		
+		while (!_test_workers.isShutdown() && _test_worker_permits.tryAcquire()) {
+			final Optional<TestQueueBean> claimed;
+			try {
+				claimed = claimTestSource(source_test_db, claimed_this_cycle, lease_ms).join();
+			}
+			catch (Throwable t) {
+				_test_worker_permits.release();
+				_logger.error(ErrorUtils.getLongForm("Error claiming test source: {0}", t));
+				break;
+			}
+			if (!claimed.isPresent()) {
+				_test_worker_permits.release();
+				break;
+			}
+			final TestQueueBean test_source = claimed.get();
+			claimed_this_cycle.add(test_source._id());
+			_logger.debug("Claimed test source: " + test_source._id());
+			
+			try {
+				results.add(
+						CompletableFuture.supplyAsync(() -> processTestSource(test_source, bucket_test_service, source_test_db), _test_workers)
+							.thenCompose(f -> f)
+							.exceptionally(t -> {
+								_logger.error(ErrorUtils.getLongForm("Error processing test source " + test_source._id() + ": {0}", t));
+								return false;
+							})
+							.thenCompose(__ -> releaseTestSource(test_source._id(), source_test_db))
+							.whenComplete((__, ___) -> _test_worker_permits.release())
+						);
+			}
+			catch (RejectedExecutionException e) { // (the service was stopped after the isShutdown check - hand the entry back for the next cycle/node)
+				results.add(releaseTestSource(test_source._id(), source_test_db).whenComplete((__, ___) -> _test_worker_permits.release()));
+				break;
+			}
+		}
+		return CompletableFuture.allOf(results.toArray(new CompletableFuture[0]));
+	}
+	
+	/** Atomically claims the next test queue entry that needs processing, ie either
+	 *  - a new entry (which gets marked in_progress)
+	 *  - an in_progress entry that isn't leased (ie a running test that needs checking)
+	 *  - an in_progress entry whose lease has expired (ie the node processing it died)
+	 * @param source_test_db
+	 * @param exclude_ids - entries already processed in this cycle
+	 * @param lease_ms - how long the claim lasts
+	 * @return the entry as it was before it was claimed, or empty if there's nothing to do
+	 */
+	protected CompletableFuture<Optional<TestQueueBean>> claimTestSource(final ICrudService<TestQueueBean> source_test_db, final Collection<String> exclude_ids, final long lease_ms) {
+		final Date now = new Date();
 		
-		final CompletableFuture<List<TestQueueBean>> future_test_sources = getAllTestSources(source_test_db);
+		final SingleQueryComponent<TestQueueBean> new_test = CrudUtils.allOf(TestQueueBean.class)
+				.whenNot(TestQueueBean::status, TestStatus.in_progress)
+				.whenNot(TestQueueBean::status, TestStatus.completed)
+				.whenNot(TestQueueBean::status, TestStatus.error); //can be complete | error | in_progress | submitted | {unset/anything else}
+		final SingleQueryComponent<TestQueueBean> unleased_test = CrudUtils.allOf(TestQueueBean.class)
+				.when(TestQueueBean::status, TestStatus.in_progress)
+				.withNotPresent(TestQueueBean::lease_expires_on);
+		final SingleQueryComponent<TestQueueBean> expired_test = CrudUtils.allOf(TestQueueBean.class)
+				.when(TestQueueBean::status, TestStatus.in_progress)
+				.rangeBelow(TestQueueBean::lease_expires_on, now, true);
 		
-		//check for entries in test db
-		return future_test_sources.thenCompose( test_sources -> {
-			//_logger.debug("Got test sources successfully, looping over any results");
-			test_sources.forEach(Lambdas.wrap_consumer_u(test_source -> {		
-				_logger.debug("Looking at test source: " + test_source._id());
-				try {
-					final DataBucketBean to_test = Lambdas.wrap_u(() -> getBucketFromV1Source(test_source.source())).get();
-					if ( test_source.status() != null &&
-							(test_source.status() == TestStatus.in_progress || test_source.status() == TestStatus.completed || test_source.status() == TestStatus.error ) 
-							//(test_source.status().equals("in_progress") || test_source.status().equals("completed") || test_source.status().equals("error"))
-							)
-					{
-						existing_results.add(handleExistingTestSource(to_test, test_source, source_test_db));
-					} else { // in progress...
-						
-						_logger.debug("Found a new entry, setting up test");
-						new_results.add(handleNewTestSource(to_test, test_source, bucket_test_service, source_test_db));								
-					}
-				} catch (Exception ex ) {
-					final String error = ErrorUtils.getLongForm("error: {0}", ex);
-					_logger.error("Error when checking test source: " + error);
-					//turn off this test source
-					updateTestSourceStatus(test_source._id(), TestStatus.error, source_test_db, Optional.empty(), Optional.empty(), Optional.of(error))
-							.join();
-				}
-			}));
-			if (existing_results.isEmpty()) { // Make sure at least that we don't start a new thread until we've got all the tests from the previous sources
-				existing_results.add(future_test_sources);
+		for (String id: exclude_ids) {
+			new_test.whenNot(JsonUtils._ID, id);
+			unleased_test.whenNot(JsonUtils._ID, id);
+			expired_test.whenNot(JsonUtils._ID, id);
+		}
+		
+		final UpdateComponent<TestQueueBean> claim = CrudUtils.update(TestQueueBean.class)
+				.set(TestQueueBean::status, TestStatus.in_progress)
+				// (don't set started_processing_on - only set that once the job has been launched)
+				.set(TestQueueBean::owner, _owner_id)
+				.set(TestQueueBean::lease_expires_on, new Date(now.getTime() + lease_ms));
+		
+		return source_test_db.updateAndReturnObjectBySpec(CrudUtils.anyOf(new_test, unleased_test, expired_test), 
+				Optional.of(false), claim, Optional.of(true), Collections.emptyList(), false);
+	}
+	
+	/** Releases this node's claim on a test queue entry, so it can be checked again in the next cycle
+	 * @param id
+	 * @param source_test_db
+	 * @return
+	 */
+	protected CompletableFuture<Boolean> releaseTestSource(final String id, final ICrudService<TestQueueBean> source_test_db) {
+		final SingleQueryComponent<TestQueueBean> query = CrudUtils.allOf(TestQueueBean.class)
+				.when(JsonUtils._ID, id)
+				.when(TestQueueBean::owner, _owner_id); // (in case the lease expired and another node has claimed it since)
+		
+		return source_test_db.updateObjectBySpec(query, Optional.of(false), 
+				CrudUtils.update(TestQueueBean.class).unset(TestQueueBean::owner).unset(TestQueueBean::lease_expires_on));
+	}
+	
+	/** Processes a claimed test queue entry
+	 * @param test_source - the entry as it was before it was claimed
+	 * @param bucket_test_service
+	 * @param source_test_db
+	 * @return
+	 */
+	protected CompletableFuture<Boolean> processTestSource(final TestQueueBean test_source, final BucketTestService bucket_test_service, final ICrudService<TestQueueBean> source_test_db) {
+		_logger.debug("Looking at test source: " + test_source._id());
+		try {
+			final DataBucketBean to_test = getBucketFromV1Source(test_source.source());
+			if ((TestStatus.in_progress == test_source.status()) && (null != test_source.started_processing_on())) {
+				return handleExistingTestSource(to_test, test_source, source_test_db);
 			}
-			//_logger.debug("done looping over test sources");
-			//combine response of new and old entries, return
-			List<CompletableFuture<?>> retval = 
-					Arrays.asList(existing_results).stream() // potentially block on existing results but not new tests 'cos that can take ages
-					.flatMap(l -> l.stream())
-					.collect(Collectors.toList());			
-			return CompletableFuture.allOf(retval.toArray(new CompletableFuture[0]));
-		});				
+			else { // new, or claimed by a node that died before launching it
+				_logger.debug("Found a new entry, setting up test");
+				return handleNewTestSource(to_test, test_source, bucket_test_service, source_test_db);
+			}
+		}
+		catch (Exception ex) {
+			final String error = ErrorUtils.getLongForm("error: {0}", ex);
+			_logger.error("Error when checking test source: " + error);
+			//turn off this test source
+			return updateTestSourceStatus(test_source._id(), TestStatus.error, source_test_db, Optional.empty(), Optional.empty(), Optional.of(error));
+		}
 	}
 	
 	/**
@@ -498,39 +603,6 @@ public class IkanowV1SyncService_TestBuckets {
 		return source_test_db.updateObjectBySpec(v1_query, Optional.empty(), update_component);		
 	}
 	
-	/**
-	 * Returns back all test sources that aren't marked as complete or errored
-	 * 
-	 * @param source_test_db
-	 * @return
-	 */
-	protected CompletableFuture<List<TestQueueBean>> getAllTestSources(final ICrudService<TestQueueBean> source_test_db) {
-		final QueryComponent<TestQueueBean> get_query =
-				CrudUtils.allOf(TestQueueBean.class)
-				.whenNot(TestQueueBean::status, TestStatus.completed)
-				.whenNot(TestQueueBean::status, TestStatus.error); //can be complete | error | in_progress | submitted | {unset/anything else}
-				
-		final QueryComponent<TestQueueBean> update_query =
-				CrudUtils.allOf(TestQueueBean.class)
-				.whenNot(TestQueueBean::status, TestStatus.in_progress)
-				.whenNot(TestQueueBean::status, TestStatus.completed)
-				.whenNot(TestQueueBean::status, TestStatus.error); //can be complete | error | in_progress | submitted | {unset/anything else}
-
-		final UpdateComponent<TestQueueBean> update_command = CrudUtils.update(TestQueueBean.class)
-				.set(TestQueueBean::status, TestStatus.in_progress)
-				// (don't set started_processing_on - only set that once the job has been launched)
-				;		
-		
-		final CompletableFuture<List<TestQueueBean>> get_command = 
-				source_test_db.getObjectsBySpec(get_query)
-				.thenApply(c -> StreamSupport.stream(c.spliterator(), false).collect(Collectors.toList()));
-		
-		return get_command.thenCompose(__ -> {
-			return source_test_db.updateObjectsBySpec(update_query, Optional.of(false), update_command);
-		})
-		.thenApply(__ -> get_command.join()); // (ie return the original command but only once the update has completed)
-	}
-	
 	////////////////////////////////////////////////////
 	////////////////////////////////////////////////////
 
@@ -49,6 +49,7 @@ import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
 import com.ikanow.aleph2.data_model.utils.BucketUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.ManagementDbUtils;
+import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.SetOnce;
 import com.ikanow.aleph2.management_db.mongodb.data_model.MongoDbManagementDbConfigBean;
 import com.ikanow.aleph2.management_db.mongodb.module.MongoDbManagementDbModule;
@@ -56,6 +57,7 @@ import com.ikanow.aleph2.management_db.mongodb.utils.MongoDbCollectionUtils;
 import com.ikanow.aleph2.shared.crud.mongodb.services.IMongoDbCrudServiceFactory;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.Mongo;
 import com.mongodb.gridfs.GridFS;
 
 /** Implementation of the management DB service using MongoDB (or mock MongoDB) 
@@ -80,6 +82,12 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 	final public static String LIBRARY_STATE_DB_PREFIX = "aleph2_library_state";
 	public static final String AUTHENTICATION_STORE = "authentication";
 	
+	// The v1 collections that the v1 sync services monitor
+	public static final String V1_SOURCE_STORE = "ingest.source";
+	public static final String V1_SHARE_STORE = "social.share";
+	public static final String V1_TEST_QUEUE = "ingest.v2_test_q";
+	public static final String V1_PURGE_QUEUE = "ingest.v2_purge_q";
+	
 	protected final IMongoDbCrudServiceFactory _crud_factory;
 	protected final Optional<AuthorizationBean> _auth;
 	protected final Optional<ProjectBean> _project;
@@ -95,6 +103,10 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 	protected final SetOnce<IManagementCrudService<DataBucketBean>> _bucket_crud = new SetOnce<>();
 	protected final SetOnce<IManagementCrudService<DataBucketStatusBean>> _bucket_status_crud = new SetOnce<>();
 	protected final SetOnce<IManagementCrudService<SharedLibraryBean>> _library_crud = new SetOnce<>();
+	protected final SetOnce<Optional<IkanowV1ChangeNotifier>> _v1_change_notifier = new SetOnce<>();
+	
+	// Which DB each state collection lives in (shared with the filtered/read only versions of this service)
+	protected final MongoDbCollectionUtils.PlacementIndex _placement_index;
 	
 	protected final boolean _read_only;
 	
@@ -115,6 +127,7 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 		_auth = Optional.empty();
 		_project = Optional.empty();
 		_properties = properties;
+		_placement_index = new MongoDbCollectionUtils.PlacementIndex();
 
 		_read_only = false;
 		
@@ -130,12 +143,27 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 	 */
 	public MongoDbManagementDbService(IMongoDbCrudServiceFactory crud_factory, 
 			Optional<AuthorizationBean> auth, Optional<ProjectBean> project, final MongoDbManagementDbConfigBean properties, final boolean read_only)
+	{
+		this(crud_factory, auth, project, properties, read_only, new MongoDbCollectionUtils.PlacementIndex());
+	}
+	
+	/** User constructor for building a cloned version with different auth settings, sharing the state collection placement index
+	 * @param crud_factory 
+	 * @param auth_fieldname
+	 * @param auth
+	 * @param project
+	 * @param placement_index
+	 */
+	protected MongoDbManagementDbService(IMongoDbCrudServiceFactory crud_factory, 
+			Optional<AuthorizationBean> auth, Optional<ProjectBean> project, final MongoDbManagementDbConfigBean properties, final boolean read_only,
+			final MongoDbCollectionUtils.PlacementIndex placement_index)
 	{
 		_crud_factory = crud_factory;
 		_auth = auth;
 		_project = project;		
 		_properties = properties;
 		_read_only = read_only;
+		_placement_index = placement_index;
 	}
 	
 	/* (non-Javadoc)
@@ -143,7 +171,7 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 	 */
 	public MongoDbManagementDbService getFilteredDb(final Optional<AuthorizationBean> client_auth, final Optional<ProjectBean> project_auth)
 	{
-		return new MongoDbManagementDbService(_crud_factory, client_auth, project_auth, _properties, _read_only);
+		return new MongoDbManagementDbService(_crud_factory, client_auth, project_auth, _properties, _read_only, _placement_index);
 	}
 	
 	
@@ -196,9 +224,13 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 		
 		final String collection_name = BucketUtils.getUniqueSignature(name, collection);
 		
-		final DB db = MongoDbCollectionUtils.findDatabase(
-						_crud_factory.getMongoDb("test").getMongo(), 
-						prefix, collection_name);
+		_placement_index.seedOnce(() -> 
+						Optionals.streamOf(getStateDirectory(Optional.empty(), Optional.empty())
+												.getObjectsBySpec(CrudUtils.allOf(AssetStateDirectoryBean.class)).join(), false)
+									.map(AssetStateDirectoryBean::_id));
+		
+		final Mongo client = _crud_factory.getMongoDb("test").getMongo();
+		final DB db = _placement_index.findDatabase(dbn -> client.getDB(dbn), prefix, collection_name);
 
 		final DBCollection db_collection = db.getCollection(collection_name);
 		final ICrudService<T> state_crud = _crud_factory.getMongoDbCrudService(
@@ -219,6 +251,7 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 						.put("deleteDatastore",
 							(Object ret_val, Object[] args) -> {
 								raw_state_crud_dir.deleteObjectById(db_collection.getFullName());
+								_placement_index.remove(db_collection.getFullName());
 								return ret_val;
 							})
 						.build()
@@ -334,6 +367,9 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 			}
 			return (Optional<T>) Optional.of( _crud_factory.getMongoDb(driver_options.get()));
 		}
+		else if (IkanowV1ChangeNotifier.class == driver_class) {
+			return (Optional<T>) getV1ChangeNotifier();
+		}
 		else if (ICrudService.class == driver_class) {
 			if (!driver_options.isPresent()) {
 				throw new RuntimeException("If requesting a CRUD service, need to specify db_name.coll_name[/fully.qualified.bean.class]");
@@ -362,6 +398,24 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 		return Optional.empty();
 	}
 
+	/** Returns the (lazily created) notifier that wakes up the v1 sync services when the v1 collections change
+	 * @return the notifier, or Optional.empty() if disabled in the config
+	 */
+	protected Optional<IkanowV1ChangeNotifier> getV1ChangeNotifier() {
+		synchronized (this) {
+			if (!_v1_change_notifier.isSet()) {
+				final String change_log = Optional.ofNullable(_properties.v1_change_log()).orElse(MongoDbManagementDbConfigBean.DEFAULT_V1_CHANGE_LOG);
+				final String[] db_coll = change_log.split("[.]", 2);
+				_v1_change_notifier.set((2 != db_coll.length) 
+						? Optional.empty()
+						: Optional.of(new IkanowV1ChangeNotifier(_crud_factory.getMongoDbCollection(db_coll[0], db_coll[1]), 
+								Arrays.asList(V1_SOURCE_STORE, V1_SHARE_STORE, V1_TEST_QUEUE, V1_PURGE_QUEUE)))
+						);
+			}
+		}
+		return _v1_change_notifier.get();
+	}
+	
 	/** This service needs to load some additional classes via Guice. Here's the module that defines the bindings
 	 * @return
 	 */
@@ -509,7 +563,7 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 	 */
 	@Override
 	public IManagementDbService readOnlyVersion() {
-		return new MongoDbManagementDbService(_crud_factory, _auth, _project, _properties, true);
+		return new MongoDbManagementDbService(_crud_factory, _auth, _project, _properties, true, _placement_index);
 	}
 
 	/* (non-Javadoc)
@@ -535,7 +589,7 @@ public class MongoDbManagementDbService implements IManagementDbService, IExtraD
 	 */
 	@Override
 	public IManagementDbService getSecuredDb(AuthorizationBean client_auth) {
-		return new MongoDbManagementDbService(_crud_factory, _auth, _project, _properties, true);
+		return new MongoDbManagementDbService(_crud_factory, _auth, _project, _properties, true, _placement_index);
 	}
 
 }
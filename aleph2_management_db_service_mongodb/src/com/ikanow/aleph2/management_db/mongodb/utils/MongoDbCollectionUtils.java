@@ -60,4 +60,119 @@ public class MongoDbCollectionUtils {
 					.findFirst()
 					.get();
 	}
+
+	/** Keeps track of which DB each collection lives in (and how many collections each DB has) so that findDatabase doesn't
+	 *  have to query every DB each time a state store is requested. It is seeded from the state directory and kept up to date
+	 *  on create/delete - a collection that isn't in the index falls back to scanning the DBs (skipping any already known to be full).
+	 *  Thread safe.
+	 */
+	public static class PlacementIndex {
+		protected final AtomicBoolean _seeded = new AtomicBoolean(false);
+		protected final Map<String, Map<String, String>> _collection_to_db = new HashMap<>(); // (db prefix -> collection -> db name)
+		protected final Map<String, Integer> _db_counts = new HashMap<>(); // (db name -> number of collections)
+		protected final Set<String> _scanned_dbs = new HashSet<>(); // (DBs whose full list of collections has been indexed)
+		
+		/** Seeds the index with the contents of the state directory - only the first call does anything
+		 * @param full_names - returns the "db.collection" names of all the known state collections
+		 */
+		public void seedOnce(final Supplier<Stream<String>> full_names) {
+			if (_seeded.compareAndSet(false, true)) {
+				full_names.get().forEach(full_name -> {
+					final int dot = full_name.indexOf('.');
+					if (dot > 0) {
+						synchronized (this) {
+							final String db_name = full_name.substring(0, dot);
+							if (null == put(db_name, full_name.substring(dot + 1))) {
+								_db_counts.merge(db_name, 1, Integer::sum);
+							}
+						}
+					}
+				});
+			}
+		}
+		
+		/** Returns the DB containing the collection, or the DB in which it should be created (which is then recorded in the index)
+		 * @param db_getter - returns a DB from its name (normally Mongo::getDB, which doesn't talk to the server)
+		 * @param db_name_prefix
+		 * @param collection_name
+		 * @return
+		 */
+		public DB findDatabase(final Function<String, DB> db_getter, final String db_name_prefix, final String collection_name) {
+			final Optional<String> cached = get(db_name_prefix, collection_name);
+			if (cached.isPresent()) {
+				return db_getter.apply(cached.get());
+			}
+			synchronized (this) {
+				// (check again in case another thread has just created it)
+				final Optional<String> cached_again = get(db_name_prefix, collection_name);
+				if (cached_again.isPresent()) {
+					return db_getter.apply(cached_again.get());
+				}
+				// Same logic as the uncached version: stop at the DB containing the collection or the first empty one,
+				// (re-)indexing each DB along the way - DBs already scanned and found to be full are skipped since they're fully indexed
+				DB first_available = null;
+				for (int i = 1; ; ++i) {
+					final String db_name = db_name_prefix + "_" + i;
+					final DB db = db_getter.apply(db_name);
+					if (_scanned_dbs.contains(db_name) && (_db_counts.getOrDefault(db_name, 0) >= MAX_COLLS_PER_DB)) {
+						continue;
+					}
+					final Set<String> names = db.getCollectionNames();
+					_scanned_dbs.add(db_name);
+					_db_counts.put(db_name, names.size());
+					names.forEach(name -> put(db_name, name));
+					
+					if (names.contains(collection_name)) {
+						return db;
+					}
+					if ((null == first_available) && (names.size() < MAX_COLLS_PER_DB)) {
+						first_available = db;
+					}
+					if (names.isEmpty()) {
+						break;
+					}
+				}
+				//(guaranteed to have found an available DB since the loop only exits on an empty one)
+				
+				// The caller is about to create the collection:
+				put(first_available.getName(), collection_name);
+				_db_counts.merge(first_available.getName(), 1, Integer::sum);
+				return first_available;
+			}
+		}
+		
+		/** Removes a collection from the index (eg when its datastore is deleted)
+		 * @param full_name - the "db.collection" name
+		 */
+		public synchronized void remove(final String full_name) {
+			final int dot = full_name.indexOf('.');
+			if (dot > 0) {
+				final String db_name = full_name.substring(0, dot);
+				final Map<String, String> colls = _collection_to_db.get(getPrefix(db_name));
+				if ((null != colls) && (null != colls.remove(full_name.substring(dot + 1)))) {
+					_db_counts.computeIfPresent(db_name, (__, count) -> Math.max(0, count - 1));
+				}
+			}
+		}
+		
+		/** Returns the DB containing the collection, if known
+		 */
+		protected synchronized Optional<String> get(final String db_name_prefix, final String collection_name) {
+			return Optional.ofNullable(_collection_to_db.get(db_name_prefix)).map(colls -> colls.get(collection_name));
+		}
+		
+		/** Records a collection's DB
+		 * @return the previous DB, if any
+		 */
+		protected String put(final String db_name, final String collection_name) {
+			return _collection_to_db.computeIfAbsent(getPrefix(db_name), __ -> new HashMap<>()).put(collection_name, db_name);
+		}
+		
+		/** eg aleph2_harvest_state_3 -> aleph2_harvest_state
+		 */
+		protected static String getPrefix(final String db_name) {
+			final int underscore = db_name.lastIndexOf('_');
+			return (underscore > 0) ? db_name.substring(0, underscore) : db_name;
+		}
+	}
 }
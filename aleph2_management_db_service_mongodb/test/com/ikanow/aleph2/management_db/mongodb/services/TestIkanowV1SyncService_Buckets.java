@@ -26,17 +26,27 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bson.types.BSONTimestamp;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
 
 import scala.Tuple2;
 import scala.Tuple3;
@@ -51,6 +61,7 @@ import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
@@ -60,11 +71,15 @@ import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.CrudUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.FutureUtils;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
 import com.ikanow.aleph2.management_db.mongodb.data_model.MongoDbManagementDbConfigBean;
 import com.ikanow.aleph2.management_db.mongodb.module.MockMongoDbManagementDbModule;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigValueFactory;
@@ -160,10 +175,82 @@ public class TestIkanowV1SyncService_Buckets {
 		@SuppressWarnings("unchecked")
 		final ICrudService<JsonNode> v1_config_db = _service_context.getCoreManagementDbService().getUnderlyingPlatformDriver(ICrudService.class, Optional.of("ingest.source")).get();				
 		
-		assertTrue("Query optimized", v1_config_db.deregisterOptimizedQuery(Arrays.asList("extractType")));
+		assertTrue("Query optimized", v1_config_db.deregisterOptimizedQuery(Arrays.asList("extractType", "modified")));
 		
 	}
 	
+	@Test
+	public void test_changeNotifications() throws JsonProcessingException, IOException, InterruptedException, ExecutionException {
+		_logger.info("Starting test_changeNotifications");
+		
+		// Stand in for the oplog: an in process capped collection (see v1_change_log in the test config) that we write oplog style entries into
+		final String[] change_log_name = _service_config.v1_change_log().split("[.]", 2);
+		final DB change_log_db = this._service_context.getCoreManagementDbService().getUnderlyingPlatformDriver(DB.class, Optional.of(change_log_name[0])).get();
+		final DBCollection change_log = change_log_db.createCollection(change_log_name[1], new BasicDBObject("capped", true).append("size", 1048576));
+		
+		@SuppressWarnings("unchecked")
+		ICrudService<JsonNode> v1_source_db = this._service_context.getCoreManagementDbService()
+																	.getUnderlyingPlatformDriver(ICrudService.class, Optional.of("ingest.source")).get();
+		v1_source_db.deleteDatastore().get();
+		
+		IManagementCrudService<DataBucketBean> bucket_db = this._service_context.getCoreManagementDbService().getDataBucketStore();
+		bucket_db.deleteDatastore().get();
+		
+		// Fallback polling so slow that the bucket can only get created in time via the change notification
+		IkanowV1SyncService_Buckets s1 = new IkanowV1SyncService_Buckets(BeanTemplateUtils.clone(_service_config)
+																			.with("v1_enabled", true)
+																			.with("v1_fallback_poll_period_secs", 3600L)
+																		.done(), 
+				_service_context);
+		
+		int old = IkanowV1SyncService_Buckets._num_leader_changes;
+		s1.start();
+		for (int i = 0; i < 20; ++i) {
+			try { Thread.sleep(1000); } catch (Exception e) {}
+			if ((old + 1) == IkanowV1SyncService_Buckets._num_leader_changes) break;
+		}
+		assertEquals(old + 1, IkanowV1SyncService_Buckets._num_leader_changes);
+		
+		final IkanowV1ChangeNotifier notifier = _service_context.getService(IManagementDbService.class, Optional.empty()).get()
+																	.getUnderlyingPlatformDriver(IkanowV1ChangeNotifier.class, Optional.empty()).get();
+		final Object test_owner = new Object();
+		final int ts_secs = (int)(System.currentTimeMillis()/1000L);
+		final AtomicInteger ts_inc = new AtomicInteger(0);
+		
+		// Wait for the notifier to be tailing the change log: keep writing entries for a collection the sync service doesn't watch until one gets through
+		final CountDownLatch tailing = new CountDownLatch(1);
+		notifier.register(test_owner, Arrays.asList(MongoDbManagementDbService.V1_SHARE_STORE), tailing::countDown);
+		for (int i = 0; (i < 80) && (tailing.getCount() > 0); ++i) {
+			change_log.insert(new BasicDBObject("ts", new BSONTimestamp(ts_secs, ts_inc.incrementAndGet())).append("op", "i").append("ns", MongoDbManagementDbService.V1_SHARE_STORE));
+			tailing.await(250L, TimeUnit.MILLISECONDS);
+		}
+		assertEquals("Change notifications active", 0L, tailing.getCount());
+		s1._source_scheduler.submit(() -> {}).get(); // (the initial sync runs on the (single threaded) source scheduler, so this waits for it to finish)
+		
+		// Create a source, "write" the oplog entry, and check the notification wakes up the sync service
+		
+		final ObjectMapper mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+		final JsonNode v1_source = mapper.readTree(this.getClass().getResourceAsStream("test_v1_sync_sample_source.json"));
+		final String bucket_id = IkanowV1SyncService_Buckets.getBucketIdFromV1SourceKey(v1_source.get("key").asText());
+		
+		final CountDownLatch source_changed = new CountDownLatch(1);
+		notifier.register(test_owner, Arrays.asList(MongoDbManagementDbService.V1_SOURCE_STORE), source_changed::countDown);
+		v1_source_db.storeObject(v1_source).get();
+		change_log.insert(new BasicDBObject("ts", new BSONTimestamp(ts_secs, ts_inc.incrementAndGet())).append("op", "i").append("ns", MongoDbManagementDbService.V1_SOURCE_STORE));
+		assertTrue("Source change notified", source_changed.await(10L, TimeUnit.SECONDS));
+		
+		// The notifier hands the sync service's wake-up to the source scheduler in the same pass as ours, so after a couple of 
+		// round trips through the scheduler the triggered sync has completed (the fallback poll is an hour away, so only the notification can have created the bucket)
+		s1._source_scheduler.submit(() -> {}).get();
+		s1._source_scheduler.submit(() -> {}).get();
+		assertTrue("Bucket created via notification", bucket_db.getObjectById(bucket_id).get().isPresent());
+		
+		s1.stop();
+		notifier.unregister(test_owner);
+		assertFalse(notifier._registrations.containsKey(s1));
+		assertFalse(notifier._registrations.containsKey(test_owner));
+	}
+	
 	////////////////////////////////////////////////////
 	////////////////////////////////////////////////////
 
@@ -388,6 +475,100 @@ public class TestIkanowV1SyncService_Buckets {
 		assertEquals(true, f_res._2().containsKey("aleph...bucket.Template_V2_data_bucket.2"));		
 	}
 	
+	@Test
+	public void test_compareSourcesToBuckets_get_incremental() throws InterruptedException, ExecutionException {
+		_logger.info("Starting test_compareSourcesToBuckets_get_incremental");
+		
+		final int num_sources = 2000;
+		
+		@SuppressWarnings("unchecked")
+		ICrudService<JsonNode> v1_source_db = this._service_context.getCoreManagementDbService()
+																	.getUnderlyingPlatformDriver(ICrudService.class, Optional.of("ingest.source")).get();
+		
+		final DBCollection dbc = v1_source_db.getUnderlyingPlatformDriver(DBCollection.class, Optional.empty()).get();
+		
+		v1_source_db.deleteDatastore().get();
+		v1_source_db.optimizeQuery(Arrays.asList("extractType", "modified")).get();
+		
+		IManagementCrudService<DataBucketBean> bucket_db = this._service_context.getCoreManagementDbService().getDataBucketStore();
+		
+		bucket_db.deleteDatastore().get();
+		
+		// Create lots of sources (modified a minute apart, in the past) and matching buckets
+		// (store the sources directly so modified is a date, like it is in v1)
+		
+		final long base_time = new Date().getTime() - 24L*3600L*1000L;
+		final List<DataBucketBean> buckets = new LinkedList<DataBucketBean>();
+		for (int i = 0; i < num_sources; ++i) {
+			final Date modified = new Date(base_time + i*60000L);
+			final String key = "aleph...bucket.test_incremental." + i;
+			dbc.save(new BasicDBObject("key", key).append("extractType", "V2DataBucket").append("isApproved", true).append("modified", modified));
+			buckets.add(BeanTemplateUtils.build(DataBucketBean.class)
+							.with(DataBucketBean::_id, IkanowV1SyncService_Buckets.getBucketIdFromV1SourceKey(key))
+							.with(DataBucketBean::full_name, "/test/incremental/" + i)
+							.with(DataBucketBean::modified, modified)
+						.done().get());
+		}
+		bucket_db.storeObjects(buckets).get();
+		assertEquals(num_sources, (long)v1_source_db.countObjects().get());
+		assertEquals(num_sources, (long)bucket_db.countObjects().get());
+		
+		// 1) Full sync: reads everything, nothing to do
+		
+		final Tuple3<Map<String, String>, Map<String, Date>, Optional<Date>> full_res = 
+				IkanowV1SyncService_Buckets.compareSourcesToBuckets_get(bucket_db, v1_source_db, Optional.empty()).get();
+		
+		assertEquals(num_sources, full_res._1().size());
+		assertEquals(num_sources, full_res._2().size());
+		assertTrue(full_res._3().isPresent());
+		assertEquals((base_time + (num_sources - 1)*60000L)/1000L, full_res._3().get().getTime()/1000L); //(second precision)
+		
+		final Tuple3<Collection<String>, Collection<String>, Collection<String>> full_cud = 
+				IkanowV1SyncService_Buckets.compareSourcesToBuckets_categorize(Tuples._2T(full_res._1(), full_res._2()));
+		assertTrue(full_cud._1().isEmpty() && full_cud._2().isEmpty() && full_cud._3().isEmpty());
+		
+		// 2) Incremental sync, nothing changed: only the source(s) at the high water mark are read
+		
+		final Tuple3<Map<String, String>, Map<String, Date>, Optional<Date>> unchanged_res = 
+				IkanowV1SyncService_Buckets.compareSourcesToBuckets_get(bucket_db, v1_source_db, full_res._3()).get();
+		
+		_logger.info(ErrorUtils.get("Documents read per cycle: full={0} incremental={1}", 
+				full_res._1().size() + full_res._2().size(), unchanged_res._1().size() + unchanged_res._2().size()));
+		
+		assertEquals(1, unchanged_res._1().size());
+		assertEquals(1, unchanged_res._2().size());
+		assertEquals(full_res._3(), unchanged_res._3());
+		
+		// 3) Modify a few sources (and delete one): only those are read, the delete is only spotted by the full sync
+		
+		final Date now = new Date();
+		for (int i = 0; i < 10; ++i) {
+			dbc.update(new BasicDBObject("key", "aleph...bucket.test_incremental." + i), new BasicDBObject("$set", new BasicDBObject("modified", now)));
+		}
+		dbc.remove(new BasicDBObject("key", "aleph...bucket.test_incremental.100"));
+		
+		final Tuple3<Map<String, String>, Map<String, Date>, Optional<Date>> changed_res = 
+				IkanowV1SyncService_Buckets.compareSourcesToBuckets_get(bucket_db, v1_source_db, unchanged_res._3()).get();
+		
+		assertEquals(11, changed_res._1().size()); //(10 modified + 1 at the old high water mark)
+		assertEquals(11, changed_res._2().size());
+		assertEquals(now.getTime()/1000L, changed_res._3().get().getTime()/1000L);
+		
+		final Tuple3<Collection<String>, Collection<String>, Collection<String>> changed_cud = 
+				IkanowV1SyncService_Buckets.compareSourcesToBuckets_categorize(Tuples._2T(changed_res._1(), changed_res._2()));
+		assertEquals(0, changed_cud._1().size());
+		assertEquals(0, changed_cud._2().size());
+		assertEquals(10, changed_cud._3().size());
+		
+		final Tuple3<Map<String, String>, Map<String, Date>, Optional<Date>> full_res_2 = 
+				IkanowV1SyncService_Buckets.compareSourcesToBuckets_get(bucket_db, v1_source_db, Optional.empty()).get();
+		
+		final Tuple3<Collection<String>, Collection<String>, Collection<String>> full_cud_2 = 
+				IkanowV1SyncService_Buckets.compareSourcesToBuckets_categorize(Tuples._2T(full_res_2._1(), full_res_2._2()));
+		assertEquals(Arrays.asList("aleph...bucket.test_incremental.100"), Arrays.asList(full_cud_2._2().toArray()));
+		assertEquals(10, full_cud_2._3().size());
+	}
+	
 	////////////////////////////////////////////////////
 	////////////////////////////////////////////////////
 
@@ -485,6 +666,97 @@ public class TestIkanowV1SyncService_Buckets {
 				res3.get().get("harvest").toString().replace("\"", "'"));		
 	}
 		
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_applySourceChanges_bounded() throws JsonProcessingException, IOException, InterruptedException, ExecutionException {
+		_logger.info("Starting test_applySourceChanges_bounded");
+		
+		final int num_sources = 100;
+		final int max_in_flight = 8;
+		
+		final ICrudService<JsonNode> v1_source_db = Mockito.spy((ICrudService<JsonNode>) this._service_context.getCoreManagementDbService()
+												.getUnderlyingPlatformDriver(ICrudService.class, Optional.of("ingest.source")).get());
+		
+		v1_source_db.deleteDatastore().get();
+		
+		IManagementCrudService<DataBucketStatusBean> bucket_status_db = this._service_context.getCoreManagementDbService().getDataBucketStatusStore();		
+		bucket_status_db.deleteDatastore().get();
+		
+		// Create lots of V1 sources
+		
+		final ObjectMapper mapper = BeanTemplateUtils.configureMapper(Optional.empty());		
+		final List<String> keys = new LinkedList<String>();
+		final List<JsonNode> sources = new LinkedList<JsonNode>();
+		for (int i = 0; i < num_sources; ++i) {
+			final JsonNode v1_source = mapper.readTree(this.getClass().getResourceAsStream("test_v1_sync_sample_source.json"));
+			final String key = "aleph...bucket.Template_V2_data_bucket." + i;
+			((ObjectNode)v1_source).remove("_id");
+			((ObjectNode)v1_source).set("key", new TextNode(key));
+			keys.add(key);
+			sources.add(v1_source);
+		}
+		v1_source_db.storeObjects(sources).get();
+		assertEquals((long)num_sources, (long)v1_source_db.countObjects().get());
+		
+		// Slow bucket store that tracks how many calls are outstanding, and returns a different (timestamped) message per bucket,
+		// with every 10th bucket failing
+		
+		final AtomicInteger in_flight = new AtomicInteger(0);
+		final AtomicInteger peak_in_flight = new AtomicInteger(0);
+		final ScheduledExecutorService completer = Executors.newScheduledThreadPool(4);
+		final Answer<Object> slow_answer = invocation -> {
+			peak_in_flight.accumulateAndGet(in_flight.incrementAndGet(), Math::max);
+			final CompletableFuture<Object> main_future = new CompletableFuture<Object>();
+			final CompletableFuture<Collection<BasicMessageBean>> side_channel = new CompletableFuture<Collection<BasicMessageBean>>();
+			final boolean is_store = invocation.getMethod().getName().equals("storeObject");
+			final String id = is_store ? ((DataBucketBean)invocation.getArguments()[0])._id() : invocation.getArguments()[0].toString();
+			final boolean success = !id.endsWith("0;");
+			completer.schedule(() -> {
+				in_flight.decrementAndGet();
+				main_future.complete(is_store ? (Supplier<Object>)() -> "id" : true);
+				side_channel.complete(Arrays.asList(
+						new BasicMessageBean(new Date(), true, "CoreManagementDbService", invocation.getMethod().getName(), null, "Validated bucket " + id, null),
+						new BasicMessageBean(new Date(), success, "DataImportManager", "onBucketCreated", null, (success ? "Started bucket " : "Failed to start bucket ") + id, null)
+						));
+			}, 20L, TimeUnit.MILLISECONDS);
+			return FutureUtils.createManagementFuture(main_future, side_channel);
+		};
+		final IManagementCrudService<DataBucketBean> bucket_db = Mockito.mock(IManagementCrudService.class);
+		Mockito.when(bucket_db.storeObject(Mockito.any(DataBucketBean.class))).thenAnswer(slow_answer);
+		Mockito.when(bucket_db.deleteObjectById(Mockito.any())).thenAnswer(slow_answer);
+		
+		final List<String> deleted_keys = Arrays.asList("aleph...bucket.deleted.1", "aleph...bucket.deleted.2", "aleph...bucket.deleted.3");
+		
+		IkanowV1SyncService_Buckets.applySourceChanges(Tuples._3T(keys, deleted_keys, Collections.emptyList()), 
+				bucket_db, bucket_status_db, v1_source_db, max_in_flight, Executors.newSingleThreadExecutor()).get();
+		
+		completer.shutdown();
+		
+		// Calls were made in parallel, but never more than the limit
+		assertTrue("Peak in flight = " + peak_in_flight.get(), peak_in_flight.get() > 1);
+		assertTrue("Peak in flight = " + peak_in_flight.get(), peak_in_flight.get() <= max_in_flight);
+		Mockito.verify(bucket_db, Mockito.times(num_sources)).storeObject(Mockito.any(DataBucketBean.class));
+		Mockito.verify(bucket_db, Mockito.times(deleted_keys.size())).deleteObjectById(Mockito.any());
+		
+		// All the sources were updated, via a single bulk operation on the underlying collection (rather than one update per source)
+		final long num_errors = num_sources/10;
+		assertEquals((long)num_sources - num_errors, (long)v1_source_db.countObjectsBySpec(CrudUtils.allOf().when("harvest.harvest_status", "success").when("isApproved", true)).get());
+		assertEquals(num_errors, (long)v1_source_db.countObjectsBySpec(CrudUtils.allOf().when("harvest.harvest_status", "error").when("isApproved", false)).get());
+		Mockito.verify(v1_source_db, Mockito.never()).updateObjectsBySpec(Mockito.any(), Mockito.any(), Mockito.any());
+		Mockito.verify(v1_source_db, Mockito.never()).updateObjectBySpec(Mockito.any(), Mockito.any(), Mockito.any());
+		
+		// ...and each source got its own messages
+		for (String key: keys) {
+			final JsonNode harvest = v1_source_db.getObjectBySpec(CrudUtils.allOf().when("key", key)).get().get().get("harvest");
+			final boolean success = !key.endsWith("0");
+			assertEquals(success ? "success" : "error", harvest.get("harvest_status").asText());
+			assertEquals("[DATE] Bucket synchronization:\n"
+							+ "[DATE] CoreManagementDbService (storeObject): INFO: Validated bucket " + key + ";\n"
+							+ "[DATE] DataImportManager (onBucketCreated): " + (success ? "INFO: Started bucket " : "ERROR: Failed to start bucket ") + key + ";", 
+					harvest.get("harvest_message").asText().replaceAll("\\[.*?\\]", "[DATE]"));
+		}
+	}
+		
 	@Test
 	public void test_updateBucket() throws JsonProcessingException, IOException, InterruptedException, ExecutionException, ParseException {
 		_logger.info("Starting test_updateBucket");
@@ -30,8 +30,10 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -52,6 +54,7 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
@@ -59,17 +62,21 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudSe
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.FutureUtils;
 import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
+import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.management_db.mongodb.data_model.MongoDbManagementDbConfigBean;
 import com.ikanow.aleph2.management_db.mongodb.module.MockMongoDbManagementDbModule;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
 import com.mongodb.util.JSON;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
@@ -721,6 +728,144 @@ public class TestIkanowV1SyncService_LibraryJars {
 			assertFalse(f.exists());			
 		}
 	}
+	
+	@Test
+	public void test_copyFile_skipsUnchangedJars() throws IOException {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;
+		FileUtils.forceMkdir(new File(temp_dir + "/library/"));
+		FileUtils.deleteQuietly(new File(temp_dir + "/library/misc/copy_test.jar"));
+		final File f = new File(temp_dir + "/library/misc/copy_test.jar");
+		
+		final GridFS share_fs = _service_context.getCoreManagementDbService().getUnderlyingPlatformDriver(GridFS.class, Optional.of("file.binary_shares")).get();
+		final DBCollection share_files = share_fs.getDB().getCollection(share_fs.getBucketName() + ".files");
+		final DBCollection share_chunks = share_fs.getDB().getCollection(share_fs.getBucketName() + ".chunks");
+		
+		final GridFSInputFile share_file = share_fs.createFile("test_copy_1".getBytes());
+		share_file.save();
+		final String binary_id = share_file.getId().toString();
+		assertEquals(Hashing.md5().hashBytes("test_copy_1".getBytes()).toString(), share_fs.find(new ObjectId(binary_id)).getMD5());
+		
+		// New file: gets written
+		assertEquals(11L, IkanowV1SyncService_LibraryJars.copyFile(binary_id, "/app/aleph2/library/misc/copy_test.jar", _service_context.getStorageService(), share_fs));
+		assertEquals("test_copy_1", FileUtils.readFileToString(f));
+		final long mod_time = f.lastModified();
+		
+		// Same contents (no md5 available from the share): read but not re-written
+		share_files.update(new BasicDBObject("_id", share_file.getId()), new BasicDBObject("$unset", new BasicDBObject("md5", 1)));
+		assertEquals(null, share_fs.find(new ObjectId(binary_id)).getMD5());
+		assertEquals(0L, IkanowV1SyncService_LibraryJars.copyFile(binary_id, "/app/aleph2/library/misc/copy_test.jar", _service_context.getStorageService(), share_fs));
+		assertEquals(mod_time, f.lastModified());
+		
+		// Same contents (md5 available from the share): not even read (the chunks are removed so reading the contents would fail)
+		share_files.update(new BasicDBObject("_id", share_file.getId()), 
+				new BasicDBObject("$set", new BasicDBObject("md5", Hashing.md5().hashBytes("test_copy_1".getBytes()).toString())));
+		share_chunks.remove(new BasicDBObject("files_id", share_file.getId()));
+		final long bytes_before = IkanowV1SyncService_LibraryJars._num_bytes_copied.get();
+		assertEquals(0L, IkanowV1SyncService_LibraryJars.copyFile(binary_id, "/app/aleph2/library/misc/copy_test.jar", _service_context.getStorageService(), share_fs));
+		assertEquals(bytes_before, IkanowV1SyncService_LibraryJars._num_bytes_copied.get());
+		assertEquals(mod_time, f.lastModified());
+		
+		// Different contents: re-written
+		final GridFSInputFile share_file_2 = share_fs.createFile("test_copy_22".getBytes());
+		share_file_2.save();
+		assertEquals(12L, IkanowV1SyncService_LibraryJars.copyFile(share_file_2.getId().toString(), "/app/aleph2/library/misc/copy_test.jar", _service_context.getStorageService(), share_fs));
+		assertEquals("test_copy_22", FileUtils.readFileToString(f));
+		assertEquals(bytes_before + 12L, IkanowV1SyncService_LibraryJars._num_bytes_copied.get());
+		
+		share_fs.remove(new ObjectId(binary_id));
+		share_fs.remove((ObjectId)share_file_2.getId());
+		FileUtils.deleteQuietly(f);
+	}
+	
+	@Test
+	public void test_incrementalSynchronization() throws JsonProcessingException, IOException, ParseException, InterruptedException, ExecutionException {
+		
+		@SuppressWarnings("unchecked")
+		ICrudService<JsonNode> v1_share_db = this._service_context.getCoreManagementDbService()
+																	.getUnderlyingPlatformDriver(ICrudService.class, Optional.of("social.share")).get();
+		
+		v1_share_db.deleteDatastore().get();
+		
+		IManagementCrudService<SharedLibraryBean> library_db = this._service_context.getCoreManagementDbService().getSharedLibraryStore();
+		
+		library_db.deleteDatastore().get();
+		
+		final GridFS share_fs = _service_context.getCoreManagementDbService().getUnderlyingPlatformDriver(GridFS.class, Optional.of("file.binary_shares")).get();
+		
+		// Create 3 V1 shares (with no binary, so nothing gets copied)
+		
+		final ObjectMapper mapper = BeanTemplateUtils.configureMapper(Optional.empty());		
+		final DBCollection dbc = v1_share_db.getUnderlyingPlatformDriver(DBCollection.class, Optional.empty()).get();
+		
+		final long now = (new Date().getTime()/1000L)*1000L; // (the high water mark only has second precision)
+		final List<DBObject> v1_shares = Arrays.asList("855d44e3347d336b3e8c4cbe", "955d44e3347d336b3e8c4cbe", "a55d44e3347d336b3e8c4cbe").stream()
+				.map(Lambdas.wrap_u(id -> {
+					final JsonNode v1_share = mapper.readTree(this.getClass().getResourceAsStream("test_v1_sync_sample_share.json"));
+					final DBObject v1_share_dbo = (DBObject) JSON.parse(v1_share.toString());
+					v1_share_dbo.put("_id", new ObjectId(id));
+					v1_share_dbo.put("title", "/app/aleph2/library/misc/library_" + id + ".jar");
+					v1_share_dbo.put("modified", new Date(now - 3600L*1000L));
+					v1_share_dbo.removeField("binaryId");
+					return v1_share_dbo;
+				}))
+				.collect(Collectors.toList());
+		v1_shares.get(1).put("modified", new Date(now - 1800L*1000L));
+		v1_shares.forEach(v1_share_dbo -> dbc.save(v1_share_dbo));
+		assertEquals(3L, (long)v1_share_db.countObjects().get());
+		
+		final IkanowV1SyncService_LibraryJars s1 = new IkanowV1SyncService_LibraryJars(_service_config, _service_context);
+		
+		// 1) Full sync: all the shares are created, the high water mark is the latest modified time
+		
+		final Optional<Date> mark_1 = s1.synchronizeLibraryJars(library_db, _service_context.getStorageService(), v1_share_db, share_fs, Optional.empty()).get();
+		
+		assertEquals(3L, (long)library_db.countObjects().get());
+		assertEquals(Optional.of(new Date(now - 1800L*1000L)), mark_1);
+		
+		final Map<String, Date> v2_modified_1 = getLibraryModifiedTimes(library_db);
+		
+		// 2) Incremental sync with nothing changed: nothing happens, same high water mark
+		
+		final Optional<Date> mark_2 = s1.synchronizeLibraryJars(library_db, _service_context.getStorageService(), v1_share_db, share_fs, mark_1).get();
+		
+		assertEquals(mark_1, mark_2);
+		assertEquals(v2_modified_1, getLibraryModifiedTimes(library_db));
+		
+		// 3) Update one share and delete another: the incremental sync only picks up the update, and advances the high water mark
+		
+		final Date updated_time = new Date(now + 3600L*1000L);
+		v1_shares.get(0).put("modified", updated_time);
+		dbc.save(v1_shares.get(0));
+		dbc.remove(new BasicDBObject("_id", v1_shares.get(2).get("_id")));
+		
+		final Optional<Date> mark_3 = s1.synchronizeLibraryJars(library_db, _service_context.getStorageService(), v1_share_db, share_fs, mark_2).get();
+		
+		assertEquals(Optional.of(updated_time), mark_3);
+		final Map<String, Date> v2_modified_3 = getLibraryModifiedTimes(library_db);
+		assertEquals(3, v2_modified_3.size()); // (deletes aren't detected by incremental syncs)
+		assertTrue("share 1 should have been updated", v2_modified_3.get("v1_" + v1_shares.get(0).get("_id")).after(v2_modified_1.get("v1_" + v1_shares.get(0).get("_id"))));
+		assertEquals(v2_modified_1.get("v1_" + v1_shares.get(1).get("_id")), v2_modified_3.get("v1_" + v1_shares.get(1).get("_id")));
+		
+		// 4) Full sync: picks up the delete
+		
+		final Optional<Date> mark_4 = s1.synchronizeLibraryJars(library_db, _service_context.getStorageService(), v1_share_db, share_fs, Optional.empty()).get();
+
+		assertEquals(Optional.of(updated_time), mark_4);
+		assertEquals(2L, (long)library_db.countObjects().get());
+		assertFalse("share 3 should be deleted", library_db.getObjectById("v1_" + v1_shares.get(2).get("_id")).get().isPresent());
+		
+		s1.stop();
+		assertTrue("Copy executor shut down", s1._library_copy_executor.awaitTermination(10L, TimeUnit.SECONDS));
+	}
+	
+	/** Returns the library bean ids vs their modified times
+	 * @param library_db
+	 * @return
+	 */
+	protected static Map<String, Date> getLibraryModifiedTimes(final IManagementCrudService<SharedLibraryBean> library_db) throws InterruptedException, ExecutionException {
+		return StreamSupport.stream(library_db.getObjectsBySpec(CrudUtils.allOf(SharedLibraryBean.class)).get().spliterator(), false)
+				.collect(Collectors.toMap(b -> b._id(), b -> b.modified()));
+	}
 		
 	////////////////////////////////////////////////////
 	////////////////////////////////////////////////////
@@ -21,13 +21,21 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -40,6 +48,7 @@ import org.junit.Test;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
@@ -568,6 +577,139 @@ public class TestIkanowV1SyncService_TestBuckets {
 		v2_test_q.deleteDatastore().get();										
 	}
 
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_ConcurrentClaimsSynchronizeSources() throws JsonProcessingException, IOException, ParseException, InterruptedException, ExecutionException {
+		_logger.info("Starting test_ConcurrentClaimsSynchronizeSources");
+		final ICrudService<TestQueueBean> v2_test_q = this._service_context.getCoreManagementDbService().getUnderlyingPlatformDriver(ICrudService.class, Optional.of("ingest.v2_test_q/" + TestQueueBean.class.getName())).get();
+		
+		//clear test_q
+		v2_test_q.deleteDatastore().get();
+		
+		//put lots of entries in the test_q (each with its own bucket so we can tell them apart)
+		final int num_tests = 40;
+		final List<TestQueueBean> test_entries = new ArrayList<TestQueueBean>();
+		for (int i = 0; i < num_tests; ++i) {
+			final TestQueueBean test_entry = createTestQEntry(60L);
+			((ObjectNode)test_entry.source()).put("key", "aleph...bucket.Template_V2_data_bucket." + i);
+			test_entries.add(test_entry);
+		}
+		// (plus one claimed by a node that died before launching it, and one still leased by a live node)
+		final TestQueueBean abandoned_entry = BeanTemplateUtils.clone(createTestQEntry(60L))
+				.with(TestQueueBean::status, TestStatus.in_progress)
+				.with(TestQueueBean::owner, "dead_node")
+				.with(TestQueueBean::lease_expires_on, new Date(new Date().getTime() - 1000L))
+				.done();
+		((ObjectNode)abandoned_entry.source()).put("key", "aleph...bucket.Template_V2_data_bucket.abandoned");
+		test_entries.add(abandoned_entry);
+		final TestQueueBean leased_entry = BeanTemplateUtils.clone(createTestQEntry(60L))
+				.with(TestQueueBean::status, TestStatus.in_progress)
+				.with(TestQueueBean::owner, "live_node")
+				.with(TestQueueBean::lease_expires_on, new Date(new Date().getTime() + 3600L*1000L))
+				.done();
+		((ObjectNode)leased_entry.source()).put("key", "aleph...bucket.Template_V2_data_bucket.leased");
+		v2_test_q.storeObjects(test_entries).get();
+		v2_test_q.storeObject(leased_entry).get();
+		assertEquals(num_tests + 2, v2_test_q.countObjects().get().longValue());
+		
+		// Count how many times each test is launched
+		final ConcurrentHashMap<String, AtomicInteger> launches = new ConcurrentHashMap<String, AtomicInteger>();
+		final BucketTestService counting_test_service = new BucketTestService() {
+			@Override
+			public ManagementFuture<Boolean> test_bucket(IManagementDbService core_management_db, DataBucketBean to_test, ProcessingTestSpecBean test_spec) {
+				launches.computeIfAbsent(to_test._id(), __ -> new AtomicInteger(0)).incrementAndGet();
+				try { Thread.sleep(10L); } catch (InterruptedException e) {} // (give the other claimers a chance to get at it)
+				return FutureUtils.createManagementFuture(CompletableFuture.completedFuture(true));
+			}
+		};
+		
+		// Several claimers (ie nodes) running sync cycles at the same time
+		final int num_claimers = 4;
+		final List<IkanowV1SyncService_TestBuckets> claimers = IntStream.range(0, num_claimers).boxed()
+				.map(__ -> new IkanowV1SyncService_TestBuckets(_service_config, _service_context))
+				.collect(Collectors.toList());
+		final ExecutorService claimer_threads = Executors.newFixedThreadPool(num_claimers);
+		final List<Future<?>> cycles = claimers.stream().map(claimer -> claimer_threads.submit(() -> {
+			for (int cycle = 0; cycle < 5; ++cycle) {
+				claimer.synchronizeTestSources(claimer._core_management_db.get().getDataBucketStore(), 
+						claimer._underlying_management_db.get().getDataBucketStatusStore(), 
+						v2_test_q, counting_test_service).join();
+			}
+		}))
+		.collect(Collectors.toList());
+		for (Future<?> f: cycles) f.get();
+		claimer_threads.shutdown();
+		claimers.forEach(claimer -> claimer.stop());
+		
+		// Each test (including the abandoned one) was launched exactly once, the leased one wasn't touched
+		assertEquals(num_tests + 1, launches.size());
+		launches.forEach((id, count) -> assertEquals("Launches for " + id, 1, count.get()));
+		
+		for (TestQueueBean test_entry: test_entries) {
+			final TestQueueBean test_bean = v2_test_q.getObjectById(test_entry._id()).get().get();
+			assertEquals(TestStatus.in_progress, test_bean.status());
+			assertTrue("Launched: " + test_bean._id(), null != test_bean.started_processing_on());
+			assertEquals("Released: " + test_bean._id(), null, test_bean.owner());
+			assertEquals("Released: " + test_bean._id(), null, test_bean.lease_expires_on());
+		}
+		final TestQueueBean leased_bean = v2_test_q.getObjectById(leased_entry._id()).get().get();
+		assertEquals("live_node", leased_bean.owner());
+		assertEquals(null, leased_bean.started_processing_on());
+		
+		//cleanup
+		v2_test_q.deleteDatastore().get();										
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_StopSynchronizeSources() throws JsonProcessingException, IOException, InterruptedException, ExecutionException {
+		_logger.info("Starting test_StopSynchronizeSources");
+		final ICrudService<TestQueueBean> v2_test_q = this._service_context.getCoreManagementDbService().getUnderlyingPlatformDriver(ICrudService.class, Optional.of("ingest.v2_test_q/" + TestQueueBean.class.getName())).get();
+		
+		//clear test_q
+		v2_test_q.deleteDatastore().get();
+		
+		final TestQueueBean test_entry = createTestQEntry(60L);
+		v2_test_q.storeObject(test_entry).get();
+		
+		// Once the service is stopped the worker pool is shut down, and no more entries are claimed
+		final IkanowV1SyncService_TestBuckets stopped_service = new IkanowV1SyncService_TestBuckets(_service_config, _service_context);
+		stopped_service.stop();
+		assertTrue("Workers shut down", stopped_service._test_workers.isShutdown());
+		
+		stopped_service.synchronizeTestSources(stopped_service._core_management_db.get().getDataBucketStore(), 
+				stopped_service._underlying_management_db.get().getDataBucketStatusStore(), 
+				v2_test_q, new SuccessBucketTestService()).get();
+		
+		final TestQueueBean test_bean = v2_test_q.getObjectById(test_entry._id()).get().get();
+		assertEquals(TestStatus.submitted, test_bean.status());
+		assertEquals(null, test_bean.owner());
+		
+		// If the service is stopped after an entry has been claimed but before it's handed to the workers, the claim and the permit are given back
+		final IkanowV1SyncService_TestBuckets racing_service = new IkanowV1SyncService_TestBuckets(_service_config, _service_context) {
+			@Override
+			protected CompletableFuture<Optional<TestQueueBean>> claimTestSource(final ICrudService<TestQueueBean> source_test_db, final Collection<String> exclude_ids, final long lease_ms) {
+				final CompletableFuture<Optional<TestQueueBean>> claimed = super.claimTestSource(source_test_db, exclude_ids, lease_ms);
+				claimed.join();
+				stop();
+				return claimed;
+			}
+		};
+		final int num_permits = racing_service._test_worker_permits.availablePermits();
+		racing_service.synchronizeTestSources(racing_service._core_management_db.get().getDataBucketStore(), 
+				racing_service._underlying_management_db.get().getDataBucketStatusStore(), 
+				v2_test_q, new SuccessBucketTestService()).get();
+		assertEquals(num_permits, racing_service._test_worker_permits.availablePermits());
+		
+		final TestQueueBean released_bean = v2_test_q.getObjectById(test_entry._id()).get().get();
+		assertEquals(null, released_bean.owner());
+		assertEquals(null, released_bean.lease_expires_on());
+		assertEquals(null, released_bean.started_processing_on());
+		
+		//cleanup
+		v2_test_q.deleteDatastore().get();										
+	}
+	
 	private TestQueueBean createTestQEntry(long max_secs_to_run) throws JsonProcessingException, IOException {		
 		final ObjectMapper mapper = BeanTemplateUtils.configureMapper(Optional.empty());
 		final JsonNode v1_source = mapper.readTree(this.getClass().getResourceAsStream("test_v1_sync_sample_source.json"));
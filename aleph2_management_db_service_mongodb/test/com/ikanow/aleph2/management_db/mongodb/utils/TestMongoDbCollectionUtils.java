@@ -71,4 +71,72 @@ public class TestMongoDbCollectionUtils {
 		assertEquals("test_findDatabase_2", db2.getName());		
 		
 	}
+
+	@Test
+	public void test_placementIndex() {
+		final String prefix = "test_placementIndex";
+		
+		MockMongoDbCrudServiceFactory mock_crud_service_factory = new MockMongoDbCrudServiceFactory();
+		
+		// Hundreds of state collections over 3 DBs (2 full)
+		IntStream.range(1, 6).boxed().forEach(i -> mock_crud_service_factory.getMongoDb(prefix + "_" + i).dropDatabase());
+		final List<String> full_names = new ArrayList<String>();
+		for (int i = 1; i <= 3; ++i) {
+			final int num_colls = (i < 3) ? 210 : 50;
+			for (int j = 0; j < num_colls; ++j) {
+				final DBCollection coll = mock_crud_service_factory.getMongoDb(prefix + "_" + i).getCollection("state_" + i + "_" + j);
+				coll.save(new BasicDBObject());
+				full_names.add(coll.getFullName());
+			}
+		}
+		final Mongo client = mock_crud_service_factory.getMongoDb("test").getMongo();
+		
+		// Count the calls that hit the DB
+		final AtomicInteger driver_calls = new AtomicInteger(0);
+		final Function<String, DB> db_getter = dbn -> {
+			final DB db = Mockito.spy(client.getDB(dbn));
+			Mockito.doAnswer(invocation -> { driver_calls.incrementAndGet(); return invocation.callRealMethod(); }).when(db).getCollectionNames();
+			Mockito.doAnswer(invocation -> { driver_calls.incrementAndGet(); return invocation.callRealMethod(); }).when(db).collectionExists(Mockito.anyString());
+			return db;
+		};
+		
+		final MongoDbCollectionUtils.PlacementIndex index = new MongoDbCollectionUtils.PlacementIndex();
+		index.seedOnce(() -> full_names.stream());
+		index.seedOnce(() -> { fail("Should only seed once"); return null; });
+		
+		// 1) Existing collections: no driver calls
+		
+		for (String full_name: full_names) {
+			final String[] db_coll = full_name.split("[.]", 2);
+			assertEquals(db_coll[0], index.findDatabase(db_getter, prefix, db_coll[1]).getName());
+		}
+		assertEquals(0, driver_calls.get());
+		
+		// 2) New collection: falls back to a scan (stops at the first empty DB), then cached
+		
+		assertEquals(prefix + "_3", index.findDatabase(db_getter, prefix, "new_coll_1").getName());
+		assertEquals(4, driver_calls.get());
+		assertEquals(prefix + "_3", index.findDatabase(db_getter, prefix, "new_coll_1").getName());
+		assertEquals(4, driver_calls.get());
+		
+		// 3) Another new collection: the full DBs have been scanned so are skipped
+		
+		driver_calls.set(0);
+		assertEquals(prefix + "_3", index.findDatabase(db_getter, prefix, "new_coll_2").getName());
+		assertEquals(2, driver_calls.get());
+		
+		// 4) Delete: next request is a miss again
+		
+		driver_calls.set(0);
+		index.remove(prefix + "_3.new_coll_2");
+		assertEquals(prefix + "_3", index.findDatabase(db_getter, prefix, "new_coll_2").getName());
+		assertEquals(2, driver_calls.get());
+		
+		// 5) Same answers as the uncached version for collections the seed didn't know about
+		
+		final MongoDbCollectionUtils.PlacementIndex unseeded_index = new MongoDbCollectionUtils.PlacementIndex();
+		assertEquals(MongoDbCollectionUtils.findDatabase(client, prefix, "state_2_7").getName(), unseeded_index.findDatabase(db_getter, prefix, "state_2_7").getName());
+		assertEquals(MongoDbCollectionUtils.findDatabase(client, prefix, "state_3_7").getName(), unseeded_index.findDatabase(db_getter, prefix, "state_3_7").getName());
+		assertEquals(MongoDbCollectionUtils.findDatabase(client, prefix, "new_coll_3").getName(), unseeded_index.findDatabase(db_getter, prefix, "new_coll_3").getName());
+	}
 }
@@ -19,6 +19,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.shiro.authc.credential.CredentialsMatcher;
 
+import com.google.inject.Singleton;
 import com.google.inject.multibindings.Multibinder;
 import com.ikanow.aleph2.security.interfaces.IRoleProvider;
 import com.ikanow.aleph2.security.service.AccountStatusCredentialsMatcher;
@@ -41,6 +42,7 @@ public class IkanowV1SecurityModule extends CoreSecurityModule{
 	protected void bindMisc() {
 		// do not just bind the implementation class,e.g. IkanowV1DataModificationChecker. This somehow creates an error about EhCachemanager already created.
 		bind(IModificationChecker.class).to(IkanowV1DataModificationChecker.class).asEagerSingleton();
+		bind(IkanowV1DataGroupRoleProvider.class).in(Singleton.class); // (the modification checker drops its cached community permissions)
 		expose(IModificationChecker.class);
 	}
 
@@ -15,6 +15,19 @@
  *******************************************************************************/
 package com.ikanow.aleph2.security.service;
 
+import java.util.Collection;
+import java.util.Collections;
+
 public interface IModificationChecker {
+	/** Returns true if all the cached security information should be discarded
+	 * @return
+	 */
 	public boolean isModified();
+	
+	/** Returns the principals whose cached authorization information is out of date because of changes since the last call
+	 * @return
+	 */
+	public default Collection<String> getModifiedPrincipals() {
+		return Collections.emptyList();
+	}
 }
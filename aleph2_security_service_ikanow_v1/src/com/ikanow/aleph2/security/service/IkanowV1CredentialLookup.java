@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.security.service;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+
+/** Looks up the v1 authentication record for a login name (username, or profileId if it's a valid ObjectId).
+ *  Found records are cached for a short time, and names that weren't found for an even shorter time, so repeated (or failing)
+ *  logins don't each query the DB. Concurrent lookups for the same name share one query.
+ */
+public class IkanowV1CredentialLookup {
+	private static final Logger logger = LogManager.getLogger(IkanowV1CredentialLookup.class);
+
+	public static final long DEFAULT_POSITIVE_TTL_MS = 30000L; // (password/status changes can take this long to be seen, unless invalidated)
+	public static final long DEFAULT_NEGATIVE_TTL_MS = 5000L;
+	public static final long DEFAULT_MAX_CACHED = 10000L;
+
+	protected final Supplier<ICrudService<AuthenticationBean>> _crud;
+	protected final Cache<String, AuthenticationBean> _found;
+	protected final Cache<String, Boolean> _not_found;
+	protected final ConcurrentHashMap<String, CompletableFuture<Optional<AuthenticationBean>>> _in_flight = new ConcurrentHashMap<>();
+	protected final AtomicLong _db_lookups = new AtomicLong();
+
+	/** User c'tor with the default cache settings
+	 * @param crud - the security.authentication store (supplier, since it's created lazily)
+	 */
+	public IkanowV1CredentialLookup(final Supplier<ICrudService<AuthenticationBean>> crud) {
+		this(crud, DEFAULT_POSITIVE_TTL_MS, DEFAULT_NEGATIVE_TTL_MS, DEFAULT_MAX_CACHED);
+	}
+
+	/** User c'tor
+	 * @param crud - the security.authentication store (supplier, since it's created lazily)
+	 * @param positive_ttl_ms - how long found records are cached
+	 * @param negative_ttl_ms - how long names that weren't found are cached
+	 * @param max_cached - the max number of entries in each cache
+	 */
+	public IkanowV1CredentialLookup(final Supplier<ICrudService<AuthenticationBean>> crud, final long positive_ttl_ms, final long negative_ttl_ms, final long max_cached) {
+		_crud = crud;
+		_found = CacheBuilder.newBuilder().maximumSize(max_cached).expireAfterWrite(positive_ttl_ms, TimeUnit.MILLISECONDS).build();
+		_not_found = CacheBuilder.newBuilder().maximumSize(max_cached).expireAfterWrite(negative_ttl_ms, TimeUnit.MILLISECONDS).build();
+	}
+
+	/** Returns the authentication record for a login name
+	 * @param login_name - username or profileId
+	 * @return the record, or empty if there isn't one
+	 * @throws Exception if the DB query fails
+	 */
+	public Optional<AuthenticationBean> lookup(final String login_name) throws Exception {
+		final Optional<Optional<AuthenticationBean>> cached = getCached(login_name);
+		if (cached.isPresent()) {
+			return cached.get();
+		}
+		final CompletableFuture<Optional<AuthenticationBean>> future = new CompletableFuture<Optional<AuthenticationBean>>();
+		final CompletableFuture<Optional<AuthenticationBean>> in_flight = _in_flight.putIfAbsent(login_name, future);
+		if (null != in_flight) { // (someone else is already looking this name up)
+			try {
+				return in_flight.get();
+			}
+			catch (ExecutionException e) {
+				throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+			}
+		}
+		try {
+			final Optional<Optional<AuthenticationBean>> cached_since = getCached(login_name); // (a lookup might have completed since the first check)
+			final Optional<AuthenticationBean> result = cached_since.isPresent() ? cached_since.get() : query(login_name);
+			future.complete(result);
+			return result;
+		}
+		catch (Throwable t) {
+			future.completeExceptionally(t);
+			throw t;
+		}
+		finally {
+			_in_flight.remove(login_name, future);
+		}
+	}
+
+	/** Drops any cached records for the specified login names (username or profileId)
+	 * @param login_names
+	 */
+	public void invalidate(final Collection<String> login_names) {
+		_not_found.invalidateAll(login_names);
+		_found.invalidateAll(login_names);
+		_found.asMap().values().removeIf(b -> login_names.contains(b.getProfileId()) || login_names.contains(b.getUsername()));
+	}
+
+	/** Drops all the cached records
+	 */
+	public void invalidateAll() {
+		_found.invalidateAll();
+		_not_found.invalidateAll();
+	}
+
+	/** The number of DB queries made (mainly for testing)
+	 * @return
+	 */
+	public long getDbLookups() {
+		return _db_lookups.get();
+	}
+
+	/** Checks the caches
+	 * @param login_name
+	 * @return empty if the name isn't cached, else the cached result
+	 */
+	protected Optional<Optional<AuthenticationBean>> getCached(final String login_name) {
+		final AuthenticationBean found = _found.getIfPresent(login_name);
+		if (null != found) {
+			return Optional.of(Optional.of(found));
+		}
+		else if (null != _not_found.getIfPresent(login_name)) {
+			return Optional.of(Optional.empty());
+		}
+		return Optional.empty();
+	}
+
+	/** Queries the DB and caches the result
+	 * @param login_name
+	 * @return
+	 * @throws Exception
+	 */
+	protected Optional<AuthenticationBean> query(final String login_name) throws Exception {
+		SingleQueryComponent<AuthenticationBean> query = CrudUtils.anyOf(AuthenticationBean.class).when("username", login_name);
+		if (ObjectId.isValid(login_name)) { // (the name can be mapped to an id)
+			query = query.when("profileId", new ObjectId(login_name));
+		}
+		_db_lookups.incrementAndGet();
+		final Optional<AuthenticationBean> result = _crud.get().getObjectBySpec(query).get();
+		if (result.isPresent()) {
+			logger.debug("Loaded user info from db:" + result.get());
+			_found.put(login_name, result.get());
+		}
+		else {
+			_not_found.put(login_name, Boolean.TRUE);
+		}
+		return result;
+	}
+}
@@ -15,11 +15,23 @@
  *******************************************************************************/
 package com.ikanow.aleph2.security.service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -54,6 +66,18 @@ public class IkanowV1DataGroupRoleProvider implements IRoleProvider{
 	
 	public static String SYSTEM_COMMUNITY_ID ="4c927585d591d31d7b37097a";
 	
+	public static final long DEFAULT_MODIFICATION_CHECK_INTERVAL_MS = 5000L;
+	
+	// The permissions of each community, shared by all its members, dropped when the community (or one of its sources, buckets or shares) changes
+	protected final Map<String, CommunityPermissions> communityPermissionsCache = new ConcurrentHashMap<String, CommunityPermissions>();
+	protected final AtomicLong cacheGeneration = new AtomicLong(0L);
+	protected long modificationCheckIntervalMs = DEFAULT_MODIFICATION_CHECK_INTERVAL_MS;
+	protected volatile long lastModificationCheck = 0L;
+	protected final IkanowV1ModificationWatermark<JsonNode> sourceWatermark = IkanowV1ModificationWatermark.forJson(() -> getSourceDb());
+	protected final IkanowV1ModificationWatermark<JsonNode> shareWatermark = IkanowV1ModificationWatermark.forJson(() -> getShareDb());
+	protected final IkanowV1ModificationWatermark<DataBucketBean> bucketWatermark = new IkanowV1ModificationWatermark<DataBucketBean>(
+			() -> getBucketDb(), () -> CrudUtils.allOf(DataBucketBean.class), b -> b._id(), b -> Optional.ofNullable(b.modified()));
+	
 	@SuppressWarnings("unchecked")
 	protected void initDb() {
 		if (_core_management_db == null) {
@@ -123,6 +147,58 @@ public class IkanowV1DataGroupRoleProvider implements IRoleProvider{
 	}
 
 
+	/** The permissions that come from a (data) community, shared by all the principals who are members of it
+	 *  (everything except the action, which depends on the member's role in the community)
+	 */
+	protected static class CommunityPermissions {
+		protected final String community_modified; // (the community's modified time when this was loaded - if it's changed then so might the sources/shares)
+		protected final Set<String> source_ids;
+		protected final Set<String> bucket_ids;
+		protected final Collection<DataBucketBean> buckets;
+		protected final Set<String> share_ids;
+		protected final Map<String, Set<String>> permissions_by_action = new ConcurrentHashMap<String, Set<String>>();
+		
+		protected CommunityPermissions(final String community_modified, final Set<String> source_ids, final Set<String> bucket_ids, final Collection<DataBucketBean> buckets, final Set<String> share_ids) {
+			this.community_modified = community_modified;
+			this.source_ids = source_ids;
+			this.bucket_ids = bucket_ids;
+			this.buckets = buckets;
+			this.share_ids = share_ids;
+		}
+		
+		/** Returns the permissions for a member of the community with the specified action (cached, since most members have the same action)
+		 * @param communityId
+		 * @param action
+		 * @return
+		 */
+		protected Set<String> getPermissions(final String communityId, final String action) {
+			return permissions_by_action.computeIfAbsent(action, __ -> {
+				final Set<String> permissions = new HashSet<String>();
+				permissions.add(PermissionExtractor.createPermission(IkanowV1SecurityService.SECURITY_ASSET_COMMUNITY, Optional.of(action), communityId));
+				for (String sourceId : source_ids) {
+					permissions.add(PermissionExtractor.createPermission(IkanowV1SecurityService.SECURITY_ASSET_SOURCE, Optional.of(action), sourceId));
+				}
+				for (DataBucketBean bucket : buckets) {
+					permissions.add(PermissionExtractor.createPathPermission(bucket, Optional.of(action), bucket.full_name()));
+					permissions.add(PermissionExtractor.createPermission(bucket, Optional.of(action), bucket._id()));
+				}
+				for (String shareId : share_ids) {
+					// shared libraries are read for now except admins
+					permissions.add(PermissionExtractor.createPermission(SharedLibraryBean.class.getSimpleName(), Optional.of(ISecurityService.ACTION_READ), shareId));
+				}
+				return Collections.unmodifiableSet(permissions);
+			});
+		}
+		
+		/** Whether any of the specified sources, buckets or shares contributed to this community's permissions
+		 * @param ids
+		 * @return
+		 */
+		protected boolean containsAny(final Collection<String> ids) {
+			return ids.stream().anyMatch(id -> source_ids.contains(id) || bucket_ids.contains(id) || share_ids.contains(id));
+		}
+	}
+	
 	public Tuple2<Set<String>, Set<String>> getRolesAndPermissions(String principalName) {
 		
         Set<String> roleNames = new HashSet<String>();
@@ -132,8 +208,11 @@ public class IkanowV1DataGroupRoleProvider implements IRoleProvider{
 			try {
 				
 				ObjectId objecId = new ObjectId(principalName); 
+				checkForModifications();
 				result = getCommunityDb().getObjectsBySpec(CrudUtils.allOf().when("members._id", objecId).when("isSystemCommunity" , false)).get();
 						boolean roleAssigned = false;
+						// community id -> (action, modified)
+						final Map<String, Tuple2<String, String>> dataCommunities = new LinkedHashMap<String, Tuple2<String, String>>();
 						for (Iterator<JsonNode> it = result.iterator(); it.hasNext();) {
 							if(!roleAssigned){
 								roleNames.add(principalName);
@@ -144,27 +223,17 @@ public class IkanowV1DataGroupRoleProvider implements IRoleProvider{
 	        	    	if(type==null || "data".equalsIgnoreCase(type.asText())){
 		        	    	String communityId = community.get("_id").asText();
 		        	    	if(!SYSTEM_COMMUNITY_ID.equals(communityId)){
-		        	    	//String communityName = community.get("name").asText();
 		        	    	String action = determineCommunityAction(community.get("members"), principalName);
-		        	    	String communityPermission = PermissionExtractor.createPermission(IkanowV1SecurityService.SECURITY_ASSET_COMMUNITY, Optional.of(action), communityId);
-		        	    	permissions.add(communityPermission);
-		        	    	Tuple2<Set<String>,Set<String>> sourceAndBucketIds = loadSourcesAndBucketIdsByCommunityId(communityId);
-		        	    	// add all sources to permissions
-		        	    	for (String sourceId : sourceAndBucketIds._1()) {
-			        	    	String sourcePermission = PermissionExtractor.createPermission(IkanowV1SecurityService.SECURITY_ASSET_SOURCE, Optional.of(action), sourceId);
-			        	    	permissions.add(sourcePermission);
-							}
-		        	    	// add all bucketids to permissions
-		        	    	Set<String> bucketIds = sourceAndBucketIds._2();
-		        	    	if(!bucketIds.isEmpty()){
-		        	    		Set<String> bucketPathPermissions  = loadBucketPermissions(bucketIds,action);
-		        	    		permissions.addAll(bucketPathPermissions);
-		        	    	}
-		        	    	Set<String> sharePermissions = loadSharePermissionsByCommunityId(communityId);
-		        	    	permissions.addAll(sharePermissions);
+		        	    	dataCommunities.put(communityId, Tuples._2T(action, getModified(community)));
 		        	    	}
 	        	    	} // type
 					} // it
+					final Map<String, CommunityPermissions> communityPermissions = getCommunityPermissions(
+							dataCommunities.entrySet().stream().collect(Collectors.toMap(kv -> kv.getKey(), kv -> kv.getValue()._2())));
+					for (Map.Entry<String, Tuple2<String, String>> kv : dataCommunities.entrySet()) {
+						Optional.ofNullable(communityPermissions.get(kv.getKey()))
+							.ifPresent(p -> permissions.addAll(p.getPermissions(kv.getKey(), kv.getValue()._1())));
+					}
 					logger.debug("Permissions for "+principalName+":");
 					logger.debug(permissions);
 	        		        
@@ -192,71 +261,172 @@ public class IkanowV1DataGroupRoleProvider implements IRoleProvider{
 		return action;
 	}
 
+	protected static String getModified(JsonNode json) {
+		return Optional.ofNullable(json.get(IkanowV1ModificationWatermark.MODIFIED)).map(m -> m.asText()).orElse("");
+	}
+	
 	/**
-	 * Returns the sourceIds and the bucket IDs associated with the community.
-	 * @param communityId
+	 * Returns the (shared) permissions of each of the communities, loading the ones that aren't cached (or have changed) in one go.
+	 * @param communityIdsToModified - the community ids and their current modified times
 	 * @return
 	 * @throws ExecutionException 
 	 * @throws InterruptedException 
 	 */
-	protected Tuple2<Set<String>, Set<String>> loadSourcesAndBucketIdsByCommunityId(String communityId) throws InterruptedException, ExecutionException {
-		Set<String> sourceIds = new HashSet<String>();
-		Set<String> bucketIds = new HashSet<String>();		
-		ObjectId objecId = new ObjectId(communityId); 
-		Cursor<JsonNode> cursor = getSourceDb().getObjectsBySpec(CrudUtils.anyOf().when("communityIds", objecId)).get();
-
-	        		for (Iterator<JsonNode> it = cursor.iterator(); it.hasNext();) {
-	        			JsonNode source = it.next();
-	        			String sourceId = source.get("_id").asText();	
-	        			sourceIds.add(sourceId);
-	        			JsonNode extracType = source.get("extractType");
-	        			if(extracType!=null && "V2DataBucket".equalsIgnoreCase(extracType.asText())){
-	        				JsonNode bucketId = source.get("key");
-	        				if(bucketId !=null){
-	        					// TODO HACK , according to Alex, buckets have a semicolon as last id character to facilitate some string conversion 
-	        					bucketIds.add(bucketId.asText()+";");
-	        				}
-	        			}
-	        			// bucket id
-	        		}
-					
-		return new Tuple2<Set<String>, Set<String>>(sourceIds,bucketIds);
-	}
-
-	protected Set<String> loadBucketPermissions(Set<String> bucketIds, String action) throws InterruptedException, ExecutionException {
-		Set<String> bucketPaths = new HashSet<String>();
-		Cursor<DataBucketBean> cursor = getBucketDb().getObjectsBySpec(CrudUtils.anyOf(DataBucketBean.class).withAny("_id", bucketIds)).get();
-
-	        		for (Iterator<DataBucketBean> it = cursor.iterator(); it.hasNext();) {
-	        			DataBucketBean bucket = it.next();
-	        			bucketPaths.add(PermissionExtractor.createPathPermission(bucket, Optional.of(action),bucket.full_name()));
-	        			bucketPaths.add(PermissionExtractor.createPermission(bucket, Optional.of(action),bucket._id()));
-	        		}
-	        			// bucket id					
-		return bucketPaths;
+	protected Map<String, CommunityPermissions> getCommunityPermissions(Map<String, String> communityIdsToModified) throws InterruptedException, ExecutionException {
+		final Map<String, CommunityPermissions> communityPermissions = new HashMap<String, CommunityPermissions>();
+		final Map<String, String> toLoad = new HashMap<String, String>();
+		for (Map.Entry<String, String> kv : communityIdsToModified.entrySet()) {
+			final CommunityPermissions cached = communityPermissionsCache.get(kv.getKey());
+			if ((null != cached) && cached.community_modified.equals(kv.getValue())) {
+				communityPermissions.put(kv.getKey(), cached);
+			}
+			else {
+				toLoad.put(kv.getKey(), kv.getValue());
+			}
+		}
+		if (!toLoad.isEmpty()) {
+			final long generation = cacheGeneration.get();
+			final Map<String, CommunityPermissions> loaded = loadCommunityPermissions(toLoad);
+			communityPermissions.putAll(loaded);
+			if (generation == cacheGeneration.get()) { // (else something changed while we were loading, so don't cache - the next call will re-load)
+				communityPermissionsCache.putAll(loaded);
+			}
+		}
+		return communityPermissions;
 	}
-
+	
 	/**
-	 * Returns the sourceIds and the bucket IDs associated with the community.
-	 * @param communityId
+	 * Loads the sources, buckets and shares of all the specified communities - 3 queries however many communities there are.
+	 * @param communityIdsToModified - the community ids and their current modified times
 	 * @return
 	 * @throws ExecutionException 
 	 * @throws InterruptedException 
 	 */
-	protected Set<String> loadSharePermissionsByCommunityId(String communityId) throws InterruptedException, ExecutionException {
-		Set<String> shareIds = new HashSet<String>();
-		ObjectId objecId = new ObjectId(communityId); 
-		Cursor<JsonNode> cursor = getShareDb().getObjectsBySpec(CrudUtils.anyOf().when("communities._id", objecId)).get();
+	protected Map<String, CommunityPermissions> loadCommunityPermissions(Map<String, String> communityIdsToModified) throws InterruptedException, ExecutionException {
+		final List<ObjectId> communityObjectIds = communityIdsToModified.keySet().stream().map(id -> new ObjectId(id)).collect(Collectors.toList());
+		final Map<String, Set<String>> sourceIds = new HashMap<String, Set<String>>();
+		final Map<String, Set<String>> bucketIds = new HashMap<String, Set<String>>();
+		final Map<String, Set<String>> shareIds = new HashMap<String, Set<String>>();
+		
+		// 1) Sources (and the ids of the buckets they represent)
+		final Cursor<JsonNode> sources = getSourceDb().getObjectsBySpec(CrudUtils.allOf().withAny("communityIds", communityObjectIds), 
+				Arrays.asList("_id", "communityIds", "extractType", "key"), true).get();
+		for (Iterator<JsonNode> it = sources.iterator(); it.hasNext();) {
+			JsonNode source = it.next();
+			String sourceId = source.get("_id").asText();
+			Optional<String> bucketId = Optional.empty();
+			JsonNode extracType = source.get("extractType");
+			if(extracType!=null && "V2DataBucket".equalsIgnoreCase(extracType.asText())){
+				JsonNode key = source.get("key");
+				if(key !=null){
+					// TODO HACK , according to Alex, buckets have a semicolon as last id character to facilitate some string conversion 
+					bucketId = Optional.of(key.asText()+";");
+				}
+			}
+			for (String communityId : getIds(source.get("communityIds"), Optional.empty())) {
+				if (communityIdsToModified.containsKey(communityId)) {
+					sourceIds.computeIfAbsent(communityId, __ -> new HashSet<String>()).add(sourceId);
+					bucketId.ifPresent(id -> bucketIds.computeIfAbsent(communityId, __ -> new HashSet<String>()).add(id));
+				}
+			}
+		}
+		
+		// 2) Buckets
+		final Set<String> allBucketIds = bucketIds.values().stream().flatMap(ids -> ids.stream()).collect(Collectors.toSet());
+		final Map<String, DataBucketBean> buckets = new HashMap<String, DataBucketBean>();
+		if (!allBucketIds.isEmpty()) {
+			final Cursor<DataBucketBean> cursor = getBucketDb().getObjectsBySpec(CrudUtils.allOf(DataBucketBean.class).withAny("_id", allBucketIds), 
+					Arrays.asList("_id", "full_name"), true).get();
+			for (Iterator<DataBucketBean> it = cursor.iterator(); it.hasNext();) {
+				DataBucketBean bucket = it.next();
+				buckets.put(bucket._id(), bucket);
+			}
+		}
+		
+		// 3) Shares
+		final Cursor<JsonNode> shares = getShareDb().getObjectsBySpec(CrudUtils.allOf().withAny("communities._id", communityObjectIds), 
+				Arrays.asList("_id", "communities"), true).get();
+		for (Iterator<JsonNode> it = shares.iterator(); it.hasNext();) {
+			JsonNode share = it.next();
+			String shareId = "v1_"+share.get("_id").asText();
+			for (String communityId : getIds(share.get("communities"), Optional.of("_id"))) {
+				if (communityIdsToModified.containsKey(communityId)) {
+					shareIds.computeIfAbsent(communityId, __ -> new HashSet<String>()).add(shareId);
+				}
+			}
+		}
+		
+		return communityIdsToModified.entrySet().stream().collect(Collectors.toMap(kv -> kv.getKey(), kv -> {
+			final Set<String> communityBucketIds = bucketIds.getOrDefault(kv.getKey(), Collections.emptySet());
+			return new CommunityPermissions(kv.getValue(),
+					sourceIds.getOrDefault(kv.getKey(), Collections.emptySet()),
+					communityBucketIds,
+					communityBucketIds.stream().map(id -> buckets.get(id)).filter(b -> null != b).collect(Collectors.toList()),
+					shareIds.getOrDefault(kv.getKey(), Collections.emptySet()));
+		}));
+	}
+	
+	/** Returns the ids in a JSON array (of ids, or of objects containing ids) 
+	 * @param array
+	 * @param idField - if the array elements are objects, the field containing the id
+	 * @return
+	 */
+	protected static List<String> getIds(JsonNode array, Optional<String> idField) {
+		final List<String> ids = new ArrayList<String>();
+		if ((null != array) && array.isArray()) {
+			for (JsonNode element : array) {
+				Optional.ofNullable(idField.map(f -> element.get(f)).orElse(element)).ifPresent(id -> ids.add(id.asText()));
+			}
+		}
+		return ids;
+	}
 
-	        		for (Iterator<JsonNode> it = cursor.iterator(); it.hasNext();) {
-	        			JsonNode share = it.next();
-	        			String shareId = "v1_"+share.get("_id").asText();
-	        			// shared libraries are read for now except admins
-	        			String permission = PermissionExtractor.createPermission(SharedLibraryBean.class.getSimpleName(), Optional.of(ISecurityService.ACTION_READ),shareId);
-	        			shareIds.add(permission);	        			
-	        		}
-					
-		return shareIds;
+	/**
+	 * Every so often (modificationCheckIntervalMs), drops the cached permissions of any community whose sources, buckets or shares have been
+	 * modified since the last check (community changes are picked up from the community's own modified time when it's read).
+	 * The first check just initializes the watermarks.
+	 * @throws Exception 
+	 */
+	protected void checkForModifications() throws Exception {
+		final long now = System.currentTimeMillis();
+		if ((now - lastModificationCheck) < modificationCheckIntervalMs) {
+			return;
+		}
+		synchronized (this) {
+			if ((now - lastModificationCheck) < modificationCheckIntervalMs) { // (someone else just did it)
+				return;
+			}
+			final Set<String> modifiedCommunityIds = new HashSet<String>();
+			final Set<String> modifiedIds = new HashSet<String>();
+			for (JsonNode source : sourceWatermark.getModifiedSinceLastCheck(Arrays.asList("communityIds"))) {
+				modifiedIds.add(source.get("_id").asText());
+				modifiedCommunityIds.addAll(getIds(source.get("communityIds"), Optional.empty()));
+			}
+			for (DataBucketBean bucket : bucketWatermark.getModifiedSinceLastCheck(Arrays.asList())) {
+				modifiedIds.add(bucket._id());
+			}
+			for (JsonNode share : shareWatermark.getModifiedSinceLastCheck(Arrays.asList("communities"))) {
+				modifiedIds.add("v1_"+share.get("_id").asText());
+				modifiedCommunityIds.addAll(getIds(share.get("communities"), Optional.of("_id")));
+			}
+			if (!modifiedIds.isEmpty()) {
+				// (also check the ids against the cached communities, in case eg a source has been removed from a community)
+				invalidateCommunities(Stream.concat(modifiedCommunityIds.stream(), 
+						communityPermissionsCache.entrySet().stream().filter(kv -> kv.getValue().containsAny(modifiedIds)).map(kv -> kv.getKey()))
+						.collect(Collectors.toSet()));
+			}
+			lastModificationCheck = now;
+		}
+	}
+	
+	/**
+	 * Drops the cached permissions of the specified communities 
+	 * @param communityIds
+	 */
+	public void invalidateCommunities(Collection<String> communityIds) {
+		logger.debug("Invalidating cached permissions for communities: "+communityIds);
+		cacheGeneration.incrementAndGet();
+		communityIds.forEach(communityPermissionsCache::remove);
 	}
 	
 }
@@ -15,17 +15,19 @@
  *******************************************************************************/
 package com.ikanow.aleph2.security.service;
 
-import java.text.SimpleDateFormat;
+import java.time.Clock;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-
-import scala.Tuple2;
+import org.bson.types.ObjectId;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.inject.Inject;
@@ -34,83 +36,157 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.utils.CrudUtils;
-import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
 
+/** Every so often (checkIntervalMs) looks for communities, people, sources and shares that have been modified since the last check
+ *  (one range query per collection on "modified"), and works out which principals' cached authorization information they affect:
+ *  the person themselves, or the members of the changed community (or of the communities the changed source/share belongs to).
+ *  Only those principals' authorization info then needs to be cleared, instead of the whole cache.
+ *  The affected communities' cached permissions are dropped from the data group role provider at the same time, so the principals
+ *  don't just re-load them from its cache.
+ */
 public class IkanowV1DataModificationChecker implements IModificationChecker{
 
+	public static final long DEFAULT_CHECK_INTERVAL_MS = 5000L;
+
 	protected IServiceContext _context;
+	protected final IkanowV1DataGroupRoleProvider roleProvider;
 	private ICrudService<JsonNode> communityDb = null;
+	private ICrudService<JsonNode> personDb = null;
+	private ICrudService<JsonNode> sourceDb = null;
+	private ICrudService<JsonNode> shareDb = null;
 	protected IManagementDbService _underlying_management_db = null;
 	private static final Logger logger = LogManager.getLogger(IkanowV1DataModificationChecker.class);
-	private Date lastModified = null;
 
+	protected final IkanowV1ModificationWatermark<JsonNode> communityWatermark = IkanowV1ModificationWatermark.forJson(() -> getCommunityDb());
+	protected final IkanowV1ModificationWatermark<JsonNode> personWatermark = IkanowV1ModificationWatermark.forJson(() -> getPersonDb());
+	protected final IkanowV1ModificationWatermark<JsonNode> sourceWatermark = IkanowV1ModificationWatermark.forJson(() -> getSourceDb());
+	protected final IkanowV1ModificationWatermark<JsonNode> shareWatermark = IkanowV1ModificationWatermark.forJson(() -> getShareDb());
 
+	protected long checkIntervalMs = DEFAULT_CHECK_INTERVAL_MS;
+	protected Clock clock = Clock.systemUTC(); // (so tests can control when the next check happens)
+	protected long lastCheck = 0L;
+	protected boolean invalidateAll = false; // (if a check fails, we don't know what's changed so everything has to go)
 
 	@Inject
-	public IkanowV1DataModificationChecker(IServiceContext serviceContext){
+	public IkanowV1DataModificationChecker(IServiceContext serviceContext, IkanowV1DataGroupRoleProvider roleProvider){
 		this._context = serviceContext;
+		this.roleProvider = roleProvider;
 	}
-	
-	public boolean isModified(){
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.security.service.IModificationChecker#isModified()
+	 */
+	@Override
+	public synchronized boolean isModified(){
+		final boolean modified = invalidateAll;
+		invalidateAll = false;
+		return modified;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.security.service.IModificationChecker#getModifiedPrincipals()
+	 */
+	@Override
+	public synchronized Collection<String> getModifiedPrincipals(){
+		final long now = clock.millis();
+		if ((now - lastCheck) < checkIntervalMs) {
+			return Collections.emptyList();
+		}
+		lastCheck = now;
 		try {
-						
-			// index modified
-			if(lastModified==null){
-				// dont wait for index
-				getCommunityDb().optimizeQuery(Arrays.asList("modified")).thenApply(this::queryLastModifiedDate);
-				return true;
+			final Set<String> principals = new HashSet<String>();
+			final Set<String> changedCommunityIds = new HashSet<String>();
+			final Set<String> otherCommunityIds = new HashSet<String>();
+
+			for (JsonNode community : communityWatermark.getModifiedSinceLastCheck(Arrays.asList("members"))) {
+				changedCommunityIds.add(community.get("_id").asText());
+				principals.addAll(IkanowV1DataGroupRoleProvider.getIds(community.get("members"), Optional.of("_id")));
 			}
-		} catch (Exception e) {
-				logger.error("Caught Exception",e);
-		}
-		return false;
-	}
-	
-	protected Date queryLastModifiedDate(Boolean wasIndexed) {
-		if (wasIndexed) {
-
-			SingleQueryComponent<JsonNode> query = CrudUtils.allOf().orderBy(new Tuple2<String, Integer>("modified", -1)).limit(1);
-			CompletableFuture<Cursor<JsonNode>> fCursor = getCommunityDb().getObjectsBySpec(query, Arrays.asList("modified"), true);
-			try {
-				Iterator<JsonNode> it = fCursor.get().iterator();
-				if (it.hasNext()) {
-					JsonNode n = it.next();
-					logger.debug(n);					
-					JsonNode modifiedNode = n.get("modified");
-					if (modifiedNode != null) {
-						String modifiedText = modifiedNode.asText();
-						// logger.debug(modifiedText);
-						// example Thu Aug 13 15:44:08 CDT 2015
-						SimpleDateFormat sdf = new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy");
-						lastModified = sdf.parse(modifiedText);
-						// logger.debug(lastModified);
-					}
+			// (people leaving communities show up here, since their community list changes)
+			for (JsonNode person : personWatermark.getModifiedSinceLastCheck(Arrays.asList())) {
+				principals.add(person.get("_id").asText());
+			}
+			for (JsonNode source : sourceWatermark.getModifiedSinceLastCheck(Arrays.asList("communityIds"))) {
+				otherCommunityIds.addAll(IkanowV1DataGroupRoleProvider.getIds(source.get("communityIds"), Optional.empty()));
+			}
+			for (JsonNode share : shareWatermark.getModifiedSinceLastCheck(Arrays.asList("communities"))) {
+				otherCommunityIds.addAll(IkanowV1DataGroupRoleProvider.getIds(share.get("communities"), Optional.of("_id")));
+			}
+			final Set<String> allCommunityIds = new HashSet<String>(changedCommunityIds);
+			allCommunityIds.addAll(otherCommunityIds);
+			if (!allCommunityIds.isEmpty()) {
+				roleProvider.invalidateCommunities(allCommunityIds);
+			}
+			otherCommunityIds.removeAll(changedCommunityIds);
+
+			if (!otherCommunityIds.isEmpty()) { // (one query for the members of all the communities with changed sources/shares)
+				final Cursor<JsonNode> communities = getCommunityDb().getObjectsBySpec(
+						CrudUtils.allOf().withAny("_id", otherCommunityIds.stream().filter(id -> ObjectId.isValid(id)).map(id -> new ObjectId(id)).collect(Collectors.toList())),
+						Arrays.asList("_id", "members"), true).get();
+				for (Iterator<JsonNode> it = communities.iterator(); it.hasNext();) {
+					principals.addAll(IkanowV1DataGroupRoleProvider.getIds(it.next().get("members"), Optional.of("_id")));
 				}
-			} catch (Throwable e) {
-				logger.error("queryLastModifiedDate caught Exception", e);
 			}
+			if (!principals.isEmpty()) {
+				logger.debug("Modified principals: "+principals);
+			}
+			return principals;
+		} catch (Throwable e) {
+			logger.error("Caught Exception",e);
+			invalidateAll = true;
+			return Collections.emptyList();
 		}
-		return null;
 	}
 
 	@SuppressWarnings("unchecked")
 	protected void initDb() {
+		if (_underlying_management_db == null) {
+			_underlying_management_db = _context.getService(IManagementDbService.class, Optional.empty()).get();
+		}
 		if (communityDb == null) {
 			String communityOptions = "social.community";
 			communityDb = _underlying_management_db.getUnderlyingPlatformDriver(ICrudService.class, Optional.of(communityOptions)).get();
 		}
+		if (personDb == null) {
+			String personOptions = "social.person";
+			personDb = _underlying_management_db.getUnderlyingPlatformDriver(ICrudService.class, Optional.of(personOptions)).get();
+		}
+		if (sourceDb == null) {
+			String ingestOptions = "ingest.source";
+			sourceDb = _underlying_management_db.getUnderlyingPlatformDriver(ICrudService.class, Optional.of(ingestOptions)).get();
+		}
+		if (shareDb == null) {
+			String shareOptions = "social.share";
+			shareDb = _underlying_management_db.getUnderlyingPlatformDriver(ICrudService.class, Optional.of(shareOptions)).get();
+		}
 	}
 
 	protected ICrudService<JsonNode> getCommunityDb(){
-		if (_underlying_management_db == null) {
-			_underlying_management_db = _context.getService(IManagementDbService.class, Optional.empty()).get();
+		if(communityDb == null) {
+			initDb();
 		}
+	      return communityDb;
+	}
 
-		if(communityDb == null) {
+	protected ICrudService<JsonNode> getPersonDb(){
+		if(personDb == null) {
+			initDb();
+		}
+	      return personDb;
+	}
+
+	protected ICrudService<JsonNode> getSourceDb(){
+		if(sourceDb == null) {
 			initDb();
 		}
-	      return communityDb;		
+	      return sourceDb;
 	}
 
+	protected ICrudService<JsonNode> getShareDb(){
+		if(shareDb == null) {
+			initDb();
+		}
+	      return shareDb;
+	}
 
 }
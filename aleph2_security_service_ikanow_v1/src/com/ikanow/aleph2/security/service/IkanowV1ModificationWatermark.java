@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.security.service;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.POJONode;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+
+/** Tracks the latest "modified" time seen in a collection, so that callers can periodically ask for just the objects modified
+ *  since the last check (one indexed range query) instead of re-reading everything.
+ *  Not thread safe - callers are expected to serialize their checks.
+ *
+ * @param <T> - the type of the objects in the collection
+ */
+public class IkanowV1ModificationWatermark<T> {
+	private static final Logger logger = LogManager.getLogger(IkanowV1ModificationWatermark.class);
+
+	public static final String MODIFIED = "modified";
+
+	// v1 dates come out of the JSON view as Date.toString, eg "Thu Aug 13 15:44:08 CDT 2015" (DateTimeFormatter is thread safe, unlike SimpleDateFormat)
+	protected static final DateTimeFormatter V1_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.ENGLISH);
+
+	protected final Supplier<ICrudService<T>> _crud;
+	protected final Function<T, Optional<Date>> _get_modified;
+	protected final Function<T, String> _get_id;
+	protected final Supplier<SingleQueryComponent<T>> _empty_query;
+
+	protected Optional<Date> _watermark = Optional.empty();
+	protected Set<String> _ids_at_watermark = Collections.emptySet(); // (dates can have 1s precision, so the range query is inclusive and these have already been returned)
+	protected boolean _all_seen_at_watermark = false; // (after initialization, everything at the watermark counts as already seen)
+	protected boolean _initialized = false;
+
+	/** User c'tor
+	 * @param crud - the collection to track (supplier, since the DB services are created lazily)
+	 * @param empty_query - returns an empty query for the collection's type
+	 * @param get_id - returns the _id of an object, as a string
+	 * @param get_modified - returns the modified time of an object
+	 */
+	public IkanowV1ModificationWatermark(final Supplier<ICrudService<T>> crud, final Supplier<SingleQueryComponent<T>> empty_query,
+			final Function<T, String> get_id, final Function<T, Optional<Date>> get_modified)
+	{
+		_crud = crud;
+		_empty_query = empty_query;
+		_get_id = get_id;
+		_get_modified = get_modified;
+	}
+
+	/** Watermark for the v1 collections (accessed as JSON)
+	 * @param crud
+	 * @return
+	 */
+	public static IkanowV1ModificationWatermark<JsonNode> forJson(final Supplier<ICrudService<JsonNode>> crud) {
+		return new IkanowV1ModificationWatermark<JsonNode>(crud, () -> CrudUtils.allOf(),
+				j -> Optional.ofNullable(j.get("_id")).map(id -> id.asText()).orElse(""),
+				j -> parseDate(j.get(MODIFIED)));
+	}
+
+	/** Returns the objects modified since the last call - the first call just initializes the watermark (to the latest modified time
+	 *  in the collection) and returns nothing
+	 * @param fields - the fields to return (the _id and modified fields are always returned)
+	 * @return
+	 * @throws Exception
+	 */
+	public List<T> getModifiedSinceLastCheck(final List<String> fields) throws Exception {
+		final List<String> all_fields = Stream.concat(Stream.of("_id", MODIFIED), fields.stream()).distinct().collect(Collectors.toList());
+
+		if (!_initialized) {
+			try {
+				_crud.get().optimizeQuery(Arrays.asList(MODIFIED)); // (don't wait for the index)
+			}
+			catch (Exception e) { // (best effort, eg read-only stores can't create indexes)
+			}
+			final SingleQueryComponent<T> query = _empty_query.get().orderBy(new Tuple2<String, Integer>(MODIFIED, -1)).limit(1);
+			final Cursor<T> cursor = _crud.get().getObjectsBySpec(query, all_fields, true).get();
+			update(toList(cursor));
+			_all_seen_at_watermark = true;
+			_initialized = true;
+			return Collections.emptyList();
+		}
+
+		final SingleQueryComponent<T> query = _watermark
+				.map(watermark -> _empty_query.get().rangeAbove(MODIFIED, watermark, false))
+				.orElseGet(() -> _empty_query.get().withPresent(MODIFIED)); // (collection was empty)
+
+		final List<T> modified = toList(_crud.get().getObjectsBySpec(query, all_fields, true).get()).stream()
+				.filter(t -> !_watermark.equals(_get_modified.apply(t)) || !(_all_seen_at_watermark || _ids_at_watermark.contains(_get_id.apply(t))))
+				.collect(Collectors.toList());
+
+		update(modified);
+		return modified;
+	}
+
+	/** The current watermark (mainly for testing)
+	 * @return
+	 */
+	public Optional<Date> getWatermark() {
+		return _watermark;
+	}
+
+	/** Advances the watermark past the specified objects
+	 * @param objects
+	 */
+	protected void update(final List<T> objects) {
+		final Optional<Date> new_watermark = objects.stream().map(_get_modified).filter(d -> d.isPresent()).map(d -> d.get()).max(Date::compareTo);
+		if (new_watermark.isPresent() && (!_watermark.isPresent() || new_watermark.get().after(_watermark.get()))) {
+			_watermark = new_watermark;
+			_ids_at_watermark = new HashSet<String>();
+			_all_seen_at_watermark = false;
+		}
+		objects.stream().filter(t -> _watermark.equals(_get_modified.apply(t))).map(_get_id).forEach(_ids_at_watermark::add);
+	}
+
+	/** Converts a (v1) date field from the JSON view of the collection
+	 * @param date_node
+	 * @return
+	 */
+	public static Optional<Date> parseDate(final JsonNode date_node) {
+		if (null == date_node) {
+			return Optional.empty();
+		}
+		else if (date_node.isPojo() && (((POJONode)date_node).getPojo() instanceof Date)) {
+			return Optional.of((Date)((POJONode)date_node).getPojo());
+		}
+		else if (date_node.isNumber()) {
+			return Optional.of(new Date(date_node.asLong()));
+		}
+		try {
+			return Optional.of(Date.from(ZonedDateTime.parse(date_node.asText(), V1_DATE_FORMAT).toInstant()));
+		}
+		catch (Exception e) {
+			logger.debug("Unable to parse date: " + date_node.asText());
+			return Optional.empty();
+		}
+	}
+
+	/** Drains a cursor
+	 * @param cursor
+	 * @return
+	 */
+	protected static <T> List<T> toList(final Cursor<T> cursor) {
+		final List<T> l = new ArrayList<T>();
+		for (Iterator<T> it = cursor.iterator(); it.hasNext();) {
+			l.add(it.next());
+		}
+		return l;
+	}
+}
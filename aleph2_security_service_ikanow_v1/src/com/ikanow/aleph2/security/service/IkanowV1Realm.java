@@ -35,7 +35,6 @@ import org.apache.shiro.cache.Cache;
 import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.subject.SimplePrincipalCollection;
-import org.bson.types.ObjectId;
 
 import scala.Tuple2;
 
@@ -44,9 +43,7 @@ import com.google.inject.Inject;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
-import com.ikanow.aleph2.data_model.utils.CrudUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
-import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
 import com.ikanow.aleph2.security.interfaces.IClearableRealmCache;
 import com.ikanow.aleph2.security.interfaces.IRoleProvider;
 
@@ -67,6 +64,8 @@ public class IkanowV1Realm extends AuthorizingRealm implements IClearableRealmCa
 
 
 	private Set<IRoleProvider> roleProviders;
+
+	protected final IkanowV1CredentialLookup credentialLookup = new IkanowV1CredentialLookup(() -> getAuthenticationStore());
 	
 	@Inject
 	public IkanowV1Realm(final IServiceContext service_context, CredentialsMatcher matcher, Set<IRoleProvider> roleProviders) {		
@@ -151,22 +150,10 @@ public class IkanowV1Realm extends AuthorizingRealm implements IClearableRealmCa
         try {
         
 
-    		SingleQueryComponent<AuthenticationBean> queryUsername = CrudUtils.anyOf(AuthenticationBean.class).when("username",username);		
-            @SuppressWarnings("unused")
-			ObjectId objectId = null;
-	        try {
-	            objectId = new ObjectId(username);
-	            // if we get here the username can be mapped to an id
-	           queryUsername = queryUsername.when("profileId",new ObjectId(username));
-			} catch (Exception e) {
-				// TODO: handle exception
-			}
-        
-        Optional<AuthenticationBean> result = getAuthenticationStore().getObjectBySpec(queryUsername).get();
+        // (cached, and concurrent logins for the same name share one query)
+        Optional<AuthenticationBean> result = credentialLookup.lookup(username);
         if(result.isPresent()){
-        	AuthenticationBean b = result.get();
-        	logger.debug("Loaded user info from db:"+b);
-			info = new IkanowV1AuthenticationInfo(b);
+			info = new IkanowV1AuthenticationInfo(result.get());
         }
         } catch (Throwable e) {
             final String message = "There was a Connection error while authenticating user [" + username + "]";
@@ -184,13 +171,18 @@ public class IkanowV1Realm extends AuthorizingRealm implements IClearableRealmCa
     @Override
     public void clearAuthorizationCached(Collection<String> principalNames){
    	 logger.debug("clearCachedAuthorizationInfo for "+principalNames);
-   	 SimplePrincipalCollection principals = new SimplePrincipalCollection(principalNames, this.getClass().getName());
-   	 super.doClearCache(principals);   	 
+   	 credentialLookup.invalidate(principalNames);
+   	 // (one at a time - the cache is keyed on single principal collections, so a collection of all the names wouldn't match any of them)
+   	 for (String principalName : principalNames) {
+   		 SimplePrincipalCollection principals = new SimplePrincipalCollection(principalName, this.getClass().getName());
+   		 super.doClearCache(principals);
+   	 }
     }
 
     @Override
     public void clearAllCaches(){
 		 logger.debug("clearAllCaches");
+		 credentialLookup.invalidateAll();
 			
 
 		 Cache<Object, AuthenticationInfo> ac = getAuthenticationCache();
@@ -17,11 +17,13 @@ package com.ikanow.aleph2.security.service;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.apache.shiro.mgt.RealmSecurityManager;
 import org.apache.shiro.mgt.SecurityManager;
 
 import com.google.inject.Inject;
@@ -30,6 +32,8 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.IExtraDependencyL
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ISecurityService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ISubject;
+import com.ikanow.aleph2.data_model.utils.Optionals;
+import com.ikanow.aleph2.security.interfaces.IClearableRealmCache;
 import com.ikanow.aleph2.security.module.IkanowV1SecurityModule;
 
 public class IkanowV1SecurityService extends SecurityService implements ISecurityService, IExtraDependencyLoader{
@@ -45,10 +49,12 @@ public class IkanowV1SecurityService extends SecurityService implements ISecurit
 	@Inject
 	protected IModificationChecker modificationChecker;
 	
+	protected final SecurityManager realmSecurityManager;
+	
 	@Inject
 	public IkanowV1SecurityService(IServiceContext serviceContext, SecurityManager securityManager) {
 		super(serviceContext,securityManager);
-
+		this.realmSecurityManager = securityManager;
 	}
 
 	@Override
@@ -99,11 +105,28 @@ public class IkanowV1SecurityService extends SecurityService implements ISecurit
 	@Override
 	public boolean isCacheInvalid() {
 		if(modificationChecker!=null){
+			// Clear just the principals affected by changes, the rest of the cache stays valid
+			final Collection<String> modifiedPrincipals = modificationChecker.getModifiedPrincipals();
+			if(!modifiedPrincipals.isEmpty()){
+				getClearableRealms().forEach(realm -> realm.clearAuthorizationCached(modifiedPrincipals));
+			}
 			return modificationChecker.isModified();
 		}else{
 			return ISecurityService.super.isCacheInvalid();
 		}
 	}
 	
+	/** Returns the realms whose caches can be cleared per principal
+	 * @return
+	 */
+	protected Collection<IClearableRealmCache> getClearableRealms() {
+		if(realmSecurityManager instanceof RealmSecurityManager){
+			return Optionals.ofNullable(((RealmSecurityManager)realmSecurityManager).getRealms()).stream()
+					.filter(realm -> realm instanceof IClearableRealmCache)
+					.map(realm -> (IClearableRealmCache)realm)
+					.collect(Collectors.toList());
+		}
+		return Collections.emptyList();
+	}
 	
 }
@@ -16,29 +16,56 @@
 package com.ikanow.aleph2.security.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.realm.AuthorizingRealm;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ISecurityService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ISubject;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils;
 import com.ikanow.aleph2.security.utils.ProfilingUtility;
 import com.ikanow.aleph2.security.web.CookieBean;
 import com.ikanow.aleph2.security.web.IkanowV1CookieAuthentication;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigValueFactory;
@@ -257,6 +284,233 @@ public class IkanowV1SecurityServiceTest extends MockDbBasedTest {
 		//Thread.sleep(50000);
 	}
 	
+	/**
+	 * Checks that a change to a community only clears the cached authorization info of its members, and that a change to a community's
+	 * sources also drops the role provider's cached permissions for the community (so they aren't just re-loaded from there)
+	 */
+	@Test
+	public void testIsCacheInvalid_perPrincipal() throws Exception{
+		final IkanowV1SecurityService service = (IkanowV1SecurityService)securityService;
+		final IkanowV1DataModificationChecker checker = (IkanowV1DataModificationChecker)service.modificationChecker;
+		final Clock original_clock = checker.clock;
+		final Instant start = Instant.now();
+		checker.clock = Clock.fixed(start.plusMillis(checker.checkIntervalMs), ZoneOffset.UTC);
+		assertFalse(service.isCacheInvalid()); // (initializes the watermarks if needed)
+		
+		final AuthorizingRealm realm = (AuthorizingRealm)service.getClearableRealms().iterator().next();
+		final PrincipalCollection admin = new SimplePrincipalCollection(adminId, IkanowV1Realm.class.getName());
+		final PrincipalCollection regularUser = new SimplePrincipalCollection(regularUserId, IkanowV1Realm.class.getName());
+		assertTrue(realm.hasRole(admin, "admin"));
+		assertFalse(realm.hasRole(regularUser, "admin"));
+		assertNotNull(realm.getAuthorizationCache().get(admin));
+		assertNotNull(realm.getAuthorizationCache().get(regularUser));
+		
+		// Nothing's changed
+		checker.clock = Clock.fixed(start.plusMillis(2*checker.checkIntervalMs), ZoneOffset.UTC);
+		assertFalse(service.isCacheInvalid());
+		assertNotNull(realm.getAuthorizationCache().get(admin));
+		assertNotNull(realm.getAuthorizationCache().get(regularUser));
+		
+		// Create a community containing the regular user but not the admin (modified after anything already seen - v1 dates have 1s precision)
+		final IManagementDbService underlying_management_db = _service_context.getService(IManagementDbService.class, Optional.empty()).get();
+		final DBCollection communityColl = underlying_management_db.getUnderlyingPlatformDriver(DBCollection.class, Optional.of("social.community")).get();
+		final DBCollection sourceColl = underlying_management_db.getUnderlyingPlatformDriver(DBCollection.class, Optional.of("ingest.source")).get();
+		final ObjectId communityId = new ObjectId();
+		communityColl.save(new BasicDBObject("_id", communityId).append("type", "data").append("isSystemCommunity", false).append("modified", Date.from(start.plusSeconds(2)))
+				.append("members", Arrays.asList(new BasicDBObject("_id", new ObjectId(regularUserId)).append("userType", "member"))));
+		
+		// (not checked again until the interval has elapsed)
+		assertFalse(service.isCacheInvalid());
+		assertNotNull(realm.getAuthorizationCache().get(regularUser));
+		
+		checker.clock = Clock.fixed(start.plusMillis(3*checker.checkIntervalMs), ZoneOffset.UTC);
+		assertFalse(service.isCacheInvalid());
+		assertNotNull(realm.getAuthorizationCache().get(admin));
+		assertEquals(null, realm.getAuthorizationCache().get(regularUser));
+		
+		// Re-load the regular user's permissions (caches the new community's permissions), then add a source to the community
+		assertFalse(realm.hasRole(regularUser, "admin"));
+		assertTrue(checker.roleProvider.communityPermissionsCache.containsKey(communityId.toString()));
+		
+		sourceColl.save(new BasicDBObject("_id", new ObjectId()).append("communityIds", Arrays.asList(communityId)).append("modified", Date.from(start.plusSeconds(3))));
+		
+		checker.clock = Clock.fixed(start.plusMillis(4*checker.checkIntervalMs), ZoneOffset.UTC);
+		assertFalse(service.isCacheInvalid());
+		assertNotNull(realm.getAuthorizationCache().get(admin));
+		assertEquals(null, realm.getAuthorizationCache().get(regularUser));
+		assertFalse(checker.roleProvider.communityPermissionsCache.containsKey(communityId.toString()));
+		
+		checker.clock = original_clock;
+	}
+	
+	/**
+	 * Checks that a user in many communities costs a fixed number of queries (not one per community per collection), and that the
+	 * per-community permissions are shared between users and re-loaded only for communities whose data has changed.
+	 */
+	@Test
+	public void testDataGroupRoleProviderQueryCount() throws Exception {
+		final int numCommunities = 20;
+		final IManagementDbService underlying_management_db = _service_context.getService(IManagementDbService.class, Optional.empty()).get();
+		final DBCollection communityColl = underlying_management_db.getUnderlyingPlatformDriver(DBCollection.class, Optional.of("social.community")).get();
+		final DBCollection sourceColl = underlying_management_db.getUnderlyingPlatformDriver(DBCollection.class, Optional.of("ingest.source")).get();
+		final DBCollection shareColl = underlying_management_db.getUnderlyingPlatformDriver(DBCollection.class, Optional.of("social.share")).get();
+		final DBCollection bucketColl = underlying_management_db.getUnderlyingPlatformDriver(DBCollection.class, Optional.of("aleph2_data_import.bucket")).get();
+		
+		final Date created = new Date(System.currentTimeMillis() - 3600000L);
+		final String ownerId = new ObjectId().toString();
+		final String memberId = new ObjectId().toString();
+		final List<ObjectId> communityIds = new ArrayList<ObjectId>();
+		final List<ObjectId> sourceIds = new ArrayList<ObjectId>();
+		for (int i = 0; i < numCommunities; ++i) {
+			final ObjectId communityId = new ObjectId();
+			communityIds.add(communityId);
+			communityColl.save(new BasicDBObject("_id", communityId).append("type", "data").append("isSystemCommunity", false).append("modified", created)
+					.append("members", Arrays.asList(
+							new BasicDBObject("_id", new ObjectId(ownerId)).append("userType", "owner"),
+							new BasicDBObject("_id", new ObjectId(memberId)).append("userType", "member"))));
+			final ObjectId sourceId = new ObjectId();
+			sourceIds.add(sourceId);
+			sourceColl.save(new BasicDBObject("_id", sourceId).append("communityIds", Arrays.asList(communityId)).append("extractType", "V2DataBucket")
+					.append("key", "test_bucket_" + i).append("modified", created));
+			bucketColl.save(new BasicDBObject("_id", "test_bucket_" + i + ";").append("full_name", "/test/role_provider/bucket_" + i).append("modified", created));
+			shareColl.save(new BasicDBObject("_id", new ObjectId()).append("communities", Arrays.asList(new BasicDBObject("_id", communityId)))
+					.append("modified", created));
+		}
+		
+		final Map<String, AtomicInteger> queryCounts = new HashMap<String, AtomicInteger>();
+		final IkanowV1DataGroupRoleProvider roleProvider = new IkanowV1DataGroupRoleProvider(_service_context) {
+			@Override
+			protected ICrudService<JsonNode> getCommunityDb() { return countQueries("community", super.getCommunityDb(), queryCounts); }
+			@Override
+			protected ICrudService<JsonNode> getSourceDb() { return countQueries("source", super.getSourceDb(), queryCounts); }
+			@Override
+			protected ICrudService<JsonNode> getShareDb() { return countQueries("share", super.getShareDb(), queryCounts); }
+			@Override
+			protected ICrudService<DataBucketBean> getBucketDb() { return countQueries("bucket", super.getBucketDb(), queryCounts); }
+		};
+		roleProvider.modificationCheckIntervalMs = 3600000L; // (only check for modifications when the test says so)
+		
+		// First user: 1 community query, then 1 $in query each for sources, buckets and shares (+1 each to initialize the watermarks)
+		final Set<String> ownerPermissions = roleProvider.getRolesAndPermissions(ownerId)._2();
+		assertQueryCounts(queryCounts, 1, 2, 2, 2);
+		for (int i = 0; i < numCommunities; ++i) {
+			assertTrue(ownerPermissions.contains(IkanowV1SecurityService.SECURITY_ASSET_COMMUNITY + ":" + ISecurityService.ACTION_READ_WRITE + ":" + communityIds.get(i)));
+			assertTrue(ownerPermissions.contains(IkanowV1SecurityService.SECURITY_ASSET_SOURCE + ":" + ISecurityService.ACTION_READ_WRITE + ":" + sourceIds.get(i)));
+		}
+		assertEquals(numCommunities*5, ownerPermissions.size()); // (community, source, bucket path, bucket id, share)
+		
+		// Second user in the same communities: shares the cached community permissions
+		final Set<String> memberPermissions = roleProvider.getRolesAndPermissions(memberId)._2();
+		assertQueryCounts(queryCounts, 2, 2, 2, 2);
+		assertEquals(ownerPermissions.size(), memberPermissions.size());
+		assertTrue(memberPermissions.contains(IkanowV1SecurityService.SECURITY_ASSET_COMMUNITY + ":" + ISecurityService.ACTION_READ + ":" + communityIds.get(0)));
+		assertFalse(memberPermissions.contains(IkanowV1SecurityService.SECURITY_ASSET_COMMUNITY + ":" + ISecurityService.ACTION_READ_WRITE + ":" + communityIds.get(0)));
+		
+		// Modify a source - the next check picks it up, and only its community is re-loaded
+		sourceColl.update(new BasicDBObject("_id", sourceIds.get(3)), new BasicDBObject("$set", new BasicDBObject("modified", new Date())));
+		roleProvider.lastModificationCheck = 0L;
+		assertEquals(ownerPermissions, roleProvider.getRolesAndPermissions(ownerId)._2());
+		assertQueryCounts(queryCounts, 3, 4, 4, 4);
+		
+		// No changes since the last check
+		roleProvider.lastModificationCheck = 0L;
+		assertEquals(ownerPermissions, roleProvider.getRolesAndPermissions(ownerId)._2());
+		assertQueryCounts(queryCounts, 4, 5, 5, 5);
+		
+		// Remove a source from its community - picked up from the community's modified time, no check needed
+		sourceColl.update(new BasicDBObject("_id", sourceIds.get(5)), new BasicDBObject("$set", new BasicDBObject("communityIds", Arrays.asList())));
+		communityColl.update(new BasicDBObject("_id", communityIds.get(5)), new BasicDBObject("$set", new BasicDBObject("modified", new Date())));
+		final Set<String> ownerPermissions2 = roleProvider.getRolesAndPermissions(ownerId)._2();
+		assertQueryCounts(queryCounts, 5, 6, 5, 6); // (no buckets left in the community)
+		assertEquals(ownerPermissions.size() - 3, ownerPermissions2.size());
+		assertFalse(ownerPermissions2.contains(IkanowV1SecurityService.SECURITY_ASSET_SOURCE + ":" + ISecurityService.ACTION_READ_WRITE + ":" + sourceIds.get(5)));
+	}
+	
+	protected static void assertQueryCounts(Map<String, AtomicInteger> queryCounts, int community, int source, int bucket, int share) {
+		assertEquals("community", community, queryCounts.getOrDefault("community", new AtomicInteger(0)).get());
+		assertEquals("source", source, queryCounts.getOrDefault("source", new AtomicInteger(0)).get());
+		assertEquals("bucket", bucket, queryCounts.getOrDefault("bucket", new AtomicInteger(0)).get());
+		assertEquals("share", share, queryCounts.getOrDefault("share", new AtomicInteger(0)).get());
+	}
+	
+	/** Wraps a CRUD service, counting the queries made against it
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <T> ICrudService<T> countQueries(String name, ICrudService<T> delegate, Map<String, AtomicInteger> queryCounts) {
+		return (ICrudService<T>) Proxy.newProxyInstance(ICrudService.class.getClassLoader(), new Class<?>[] { ICrudService.class }, (proxy, method, args) -> {
+			if (method.getName().startsWith("getObject") || method.getName().startsWith("countObject")) {
+				synchronized (queryCounts) {
+					queryCounts.computeIfAbsent(name, __ -> new AtomicInteger(0)).incrementAndGet();
+				}
+			}
+			try {
+				return method.invoke(delegate, args);
+			}
+			catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		});
+	}
+	
+	@Test
+	public void testCredentialLookupLoginStorm() throws Exception {
+		final int numThreads = 20;
+		final int numLoginsPerThread = 50;
+		final IManagementDbService underlying_management_db = _service_context.getService(IManagementDbService.class, Optional.empty()).get();
+		@SuppressWarnings("unchecked")
+		final ICrudService<AuthenticationBean> authenticationDb = underlying_management_db.getUnderlyingPlatformDriver(ICrudService.class, Optional.of("security.authentication/"+AuthenticationBean.class.getName())).get();
+		final Map<String, AtomicInteger> queryCounts = new HashMap<String, AtomicInteger>();
+		// (slow queries, so that concurrent logins for the same name overlap)
+		final ICrudService<AuthenticationBean> countedDb = countQueries("authentication", delayQueries(authenticationDb, 100L), queryCounts);
+		final IkanowV1CredentialLookup credentialLookup = new IkanowV1CredentialLookup(() -> countedDb);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < numThreads; ++i) {
+			results.add(executor.submit(() -> {
+				start.await();
+				int found = 0;
+				for (int j = 0; j < numLoginsPerThread; ++j) {
+					found += credentialLookup.lookup(testUserId).map(b -> 1).orElse(0);
+					found += credentialLookup.lookup("nobody@ikanow.com").map(b -> 1).orElse(0);
+				}
+				return found;
+			}));
+		}
+		start.countDown();
+		for (Future<Integer> result : results) {
+			assertEquals(numLoginsPerThread, result.get().intValue());
+		}
+		executor.shutdown();
+		// one query for the user that exists, one for the user that doesn't
+		assertEquals(2, queryCounts.get("authentication").get());
+		assertEquals(2L, credentialLookup.getDbLookups());
+		assertEquals(testUserId, credentialLookup.lookup(testUserId).get().getProfileId());
+		
+		// Invalidation (by principal) forces a new query
+		credentialLookup.invalidate(Arrays.asList(testUserId));
+		assertTrue(credentialLookup.lookup(testUserId).isPresent());
+		assertEquals(3, queryCounts.get("authentication").get());
+	}
+
+	/** Wraps a CRUD service, delaying its queries
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <T> ICrudService<T> delayQueries(ICrudService<T> delegate, long delayMs) {
+		return (ICrudService<T>) Proxy.newProxyInstance(ICrudService.class.getClassLoader(), new Class<?>[] { ICrudService.class }, (proxy, method, args) -> {
+			if (method.getName().startsWith("getObject")) {
+				Thread.sleep(delayMs);
+			}
+			try {
+				return method.invoke(delegate, args);
+			}
+			catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		});
+	}
+	
 	@Test
 	public void testBucketPermission(){
 		// test personal community permission
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.security.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+
+/**
+ * Compact binary encoding of session attributes: a one byte type tag followed by the value, for the common simple types
+ * (strings, numbers, booleans, dates), falling back to java serialization for everything else.
+ * Replaces the Base64 encoded java serialization of SerializableUtils (which can still be decoded, for sessions written by older versions).
+ * @author jfreydank
+ *
+ */
+public class SessionAttributeCodec {
+	protected static final Logger logger = LogManager.getLogger(SessionAttributeCodec.class);
+
+	protected static final byte TYPE_STRING = 1;
+	protected static final byte TYPE_LONG = 2;
+	protected static final byte TYPE_INTEGER = 3;
+	protected static final byte TYPE_BOOLEAN = 4;
+	protected static final byte TYPE_DATE = 5;
+	protected static final byte TYPE_DOUBLE = 6;
+	protected static final byte TYPE_SERIALIZED = 127;
+
+	/**
+	 * Encodes a (non null) attribute value
+	 * @param value
+	 * @return the encoded value, or null if it can't be encoded
+	 */
+	public static byte[] encode(Object value) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(32);
+			write(value, bos);
+			return bos.toByteArray();
+		} catch (Exception e) {
+			logger.error("Caught exception encoding:", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Feeds the encoded form of a (non null) attribute value into a hasher, without building the encoded array
+	 * @param value
+	 * @param hasher
+	 * @return false if it can't be encoded
+	 */
+	public static boolean hash(Object value, Hasher hasher) {
+		try {
+			write(value, Funnels.asOutputStream(hasher));
+			return true;
+		} catch (Exception e) {
+			logger.error("Caught exception encoding:", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the encoded form of a (non null) attribute value
+	 * @param value
+	 * @param os
+	 * @throws IOException
+	 */
+	protected static void write(Object value, OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		if (value instanceof String) {
+			out.writeByte(TYPE_STRING);
+			out.write(((String)value).getBytes(StandardCharsets.UTF_8)); // (rest of the array)
+		}
+		else if (value instanceof Long) {
+			out.writeByte(TYPE_LONG);
+			out.writeLong((Long)value);
+		}
+		else if (value instanceof Integer) {
+			out.writeByte(TYPE_INTEGER);
+			out.writeInt((Integer)value);
+		}
+		else if (value instanceof Boolean) {
+			out.writeByte(TYPE_BOOLEAN);
+			out.writeBoolean((Boolean)value);
+		}
+		else if (value instanceof Double) {
+			out.writeByte(TYPE_DOUBLE);
+			out.writeDouble((Double)value);
+		}
+		else if ((value instanceof Date) && (Date.class == value.getClass())) { // (not eg java.sql.Timestamp, which would lose its type)
+			out.writeByte(TYPE_DATE);
+			out.writeLong(((Date)value).getTime());
+		}
+		else {
+			out.writeByte(TYPE_SERIALIZED);
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			oos.writeObject(value);
+			oos.flush();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Decodes an attribute value
+	 * @param bytes - from encode
+	 * @return
+	 */
+	public static Object decode(byte[] bytes) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			switch (in.readByte()) {
+				case TYPE_STRING: return new String(bytes, 1, bytes.length - 1, StandardCharsets.UTF_8);
+				case TYPE_LONG: return in.readLong();
+				case TYPE_INTEGER: return in.readInt();
+				case TYPE_BOOLEAN: return in.readBoolean();
+				case TYPE_DOUBLE: return in.readDouble();
+				case TYPE_DATE: return new Date(in.readLong());
+				case TYPE_SERIALIZED: return new ObjectInputStream(in).readObject();
+				default: throw new IOException("Unknown type: " + bytes[0]);
+			}
+		} catch (Exception e) {
+			logger.error("Caught exception decoding:", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes an attribute stored in a session object - either binary (this codec) or a string (Base64 java serialization, from SerializableUtils)
+	 * @param node
+	 * @return
+	 */
+	public static Object decode(JsonNode node) {
+		if (node.isTextual()) {
+			return SerializableUtils.deserialize(node.asText());
+		}
+		try {
+			return decode(node.binaryValue());
+		} catch (IOException e) {
+			logger.error("Caught exception decoding:", e);
+			return null;
+		}
+	}
+}
@@ -15,24 +15,40 @@
  *******************************************************************************/
 package com.ikanow.aleph2.security.db;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 import org.apache.shiro.session.Session;
 import org.apache.shiro.session.mgt.SimpleSession;
 
+import scala.Tuple2;
+
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
 
 public class SessionDb extends AbstractDb{
 
 	protected String DOTREPLACE = "@DOT@";
 	protected String DOLLARREPLACE = "@USD@";
 	
+	public static final String LAST_ACCESS_TIME = "last_access_time";
+	public static final String VERSION = "version"; // (the content hash, so other nodes can tell if their cached copy is current)
+	
+	protected static final ObjectMapper _mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	
 	public SessionDb(final IServiceContext service_context){
 		super(service_context);
 	}
@@ -46,24 +62,27 @@ public class SessionDb extends AbstractDb{
 		ObjectNode sessionOb = null;
 		if(session instanceof Session){
 			Session s  = (Session)session;
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-			 sessionOb = mapper.createObjectNode();			 
+			 sessionOb = _mapper.createObjectNode();			 
 			 sessionOb.put("_id", s.getId().toString());
-			 sessionOb.put("last_access_time", s.getLastAccessTime().getTime());
+			 sessionOb.put(LAST_ACCESS_TIME, s.getLastAccessTime().getTime());
 			 sessionOb.put("start_time_stamp", s.getStartTimestamp().getTime());
 			 sessionOb.put("timeout", s.getTimeout());
 			 sessionOb.put("host", s.getHost());
-			 ObjectNode attributesOb = sessionOb.putObject("attributes");
-			 for (Iterator<Object> it = s.getAttributeKeys().iterator(); it.hasNext();) {
-				Object key = it.next();
+			 // (each attribute is only encoded once, for both the stored object and the content hash)
+			 final Hasher hasher = newContentHasher(s);
+			 ObjectNode attributesOb = _mapper.createObjectNode();
+			 for (Object key : getSortedAttributeKeys(s)) {
 				Object value = s.getAttribute(key);
 				if(value!=null){
-					// base64 encode objects in session
+					// compact binary encoding of objects in session
 					logger.debug("Storing session attribute:"+key+"="+value);
-					attributesOb.put(escapeMongoCharacters(""+key), SerializableUtils.serialize(value));	
+					final byte[] encoded = SessionAttributeCodec.encode(value);
+					attributesOb.put(escapeMongoCharacters(""+key), encoded);
+					hasher.putString(""+key, StandardCharsets.UTF_8).putBytes(Optional.ofNullable(encoded).orElse(new byte[0]));
 				}
 			}
+			 sessionOb.put(VERSION, hasher.hash().asLong());
+			 sessionOb.set("attributes", attributesOb);
 		}
 		return sessionOb;
 	}
@@ -75,14 +94,14 @@ public class SessionDb extends AbstractDb{
 			if(sessionOb!= null){				
 				s =  new SimpleSession();
 				 s.setId(sessionOb.get("_id").asText());
-				 s.setLastAccessTime(new Date(sessionOb.get("last_access_time").asLong()));
+				 s.setLastAccessTime(new Date(sessionOb.get(LAST_ACCESS_TIME).asLong()));
 				 s.setStartTimestamp(new Date(sessionOb.get("start_time_stamp").asLong()));
 				 s.setTimeout(sessionOb.get("timeout").asLong());
 				 s.setHost(sessionOb.get("host").asText());
 				 JsonNode attributesOb = sessionOb.get("attributes");
 				 for (Iterator<Entry<String, JsonNode>> it = attributesOb.fields(); it.hasNext();) {
 					 Entry<String, JsonNode> e = it.next();
-					 s.setAttribute(deescapeMongoCharacters(e.getKey()), SerializableUtils.deserialize(e.getValue().asText()));
+					 s.setAttribute(deescapeMongoCharacters(e.getKey()), SessionAttributeCodec.decode(e.getValue()));
 				}
 			}		
 		} catch (Exception e) {
@@ -92,6 +111,71 @@ public class SessionDb extends AbstractDb{
 	}
 	
 
+	/**
+	 * Only updates the last access time of a stored session (for touches, which don't change anything else)
+	 * @param id
+	 * @param lastAccessTime
+	 * @return true if the session was found
+	 */
+	public boolean updateLastAccessTime(Object id, Date lastAccessTime) {
+		return getStore().updateObjectById(id, CrudUtils.update().set(LAST_ACCESS_TIME, lastAccessTime.getTime())).join().booleanValue();
+	}
+
+	/**
+	 * Loads just the version and last access time of a stored session, to check whether a cached copy is still current
+	 * @param id
+	 * @return (version, last access time), or empty if the session doesn't exist (or couldn't be read)
+	 */
+	public Optional<Tuple2<Long, Date>> loadVersion(Object id) {
+		try {
+			return getStore().getObjectById(id, Arrays.asList(VERSION, LAST_ACCESS_TIME), true).get()
+					.map(js -> new Tuple2<Long, Date>(Optional.ofNullable(js.get(VERSION)).map(v -> v.asLong()).orElse(0L), // (sessions written by older versions don't have one)
+							new Date(js.get(LAST_ACCESS_TIME).asLong())));
+		} catch (Exception e) {
+			logger.error("Caught Exception loading from db:", e);
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Returns a hash of everything that gets stored about a session except its last access time, so callers can tell whether
+	 * a session needs re-writing or just touching. The attributes are streamed into the hash rather than encoded into arrays, since this
+	 * runs on every update
+	 * @param s
+	 * @return
+	 */
+	public long getContentHash(Session s) {
+		final Hasher hasher = newContentHasher(s);
+		for (Object key : getSortedAttributeKeys(s)) {
+			final Object value = s.getAttribute(key);
+			if(value!=null){
+				hasher.putString(""+key, StandardCharsets.UTF_8);
+				SessionAttributeCodec.hash(value, hasher);
+			}
+		}
+		return hasher.hash().asLong();
+	}
+
+	/**
+	 * Starts the content hash with the session's fixed fields
+	 * @param s
+	 * @return
+	 */
+	protected static Hasher newContentHasher(Session s) {
+		return Hashing.murmur3_128().newHasher()
+				.putLong(s.getStartTimestamp().getTime())
+				.putLong(s.getTimeout())
+				.putString(""+s.getHost(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param s
+	 * @return the session's attribute keys, in the order they're hashed
+	 */
+	protected static List<Object> getSortedAttributeKeys(Session s) {
+		return s.getAttributeKeys().stream().sorted(Comparator.comparing(key -> ""+key)).collect(Collectors.toList());
+	}
+
 	protected String escapeMongoCharacters(String fieldName){
 		String value = null;
 		if(fieldName!=null){
@@ -1,38 +1,126 @@
 package com.ikanow.aleph2.security.shiro;
 
 import java.io.Serializable;
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.shiro.session.Session;
+import org.apache.shiro.session.UnknownSessionException;
+import org.apache.shiro.session.mgt.AbstractSessionManager;
+import org.apache.shiro.session.mgt.SimpleSession;
 import org.apache.shiro.session.mgt.ValidatingSession;
 import org.apache.shiro.session.mgt.eis.CachingSessionDAO;
 
+import scala.Tuple2;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.inject.Inject;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.security.db.SessionDb;
 
 /**
- * This class stores the session in the mongodb database
+ * This class stores the session in the mongodb database.
+ * Most updates are just touches (only the last access time changes), so the whole session is only re-written when its content changes,
+ * otherwise just the last access time is updated, and at most once per lastAccessWriteWindowMs per session. Touches within the window
+ * are dropped, not deferred: if a session isn't updated again after the window, the stored last access time can lag the real one by up
+ * to lastAccessWriteWindowMs (so other nodes could consider it expired that much early, which is why the window should be much smaller
+ * than the session timeout).
+ * Sessions read from the database are also kept in a bounded local cache. A cached session is re-used as is for stalenessIntervalMs,
+ * after that its version (the content hash) is checked against the database first, so changes and deletions (eg logouts) made on
+ * other nodes are seen within that interval. Reads always go through that cache, never through Shiro's active sessions cache (which
+ * has no version checks), even if a CacheManager is set.
  * @author jfreydank
  *
  */
 public class  MongoDbSessionDao extends CachingSessionDAO {
 
+	public static final long DEFAULT_LAST_ACCESS_WRITE_WINDOW_MS = 10000L; // (should be much smaller than the session timeout)
+	public static final long DEFAULT_STALENESS_INTERVAL_MS = 5000L;
+	public static final long DEFAULT_MAX_CACHED_SESSIONS = 10000L;
+	protected static final long MAX_TRACKED_SESSIONS = 100000L;
+
 	protected final IServiceContext _context;
 	protected SessionDb sessionDb;
 
+	protected long lastAccessWriteWindowMs = DEFAULT_LAST_ACCESS_WRITE_WINDOW_MS;
+	protected long stalenessIntervalMs = DEFAULT_STALENESS_INTERVAL_MS;
+	protected long maxCachedSessions = DEFAULT_MAX_CACHED_SESSIONS;
+	protected long sessionTimeoutMs = AbstractSessionManager.DEFAULT_GLOBAL_SESSION_TIMEOUT;
+	protected final Ticker ticker; // (so tests can control the local cache's expiry)
+
+	/**
+	 * What has been persisted for a session
+	 */
+	protected static class WriteState {
+		protected final long contentHash;
+		protected final long persistedAccessTime;
+
+		protected WriteState(long contentHash, long persistedAccessTime) {
+			this.contentHash = contentHash;
+			this.persistedAccessTime = persistedAccessTime;
+		}
+	}
+	// (if a session isn't in here - eg evicted - the next update is just a full write)
+	protected final Cache<Serializable, WriteState> writeStates = CacheBuilder.newBuilder().maximumSize(MAX_TRACKED_SESSIONS).build();
+
+	/**
+	 * A locally cached session
+	 */
+	protected static class CachedSession {
+		protected final Session session;
+		protected final long version;
+		protected volatile long lastVerified;
+
+		protected CachedSession(Session session, long version, long lastVerified) {
+			this.session = session;
+			this.version = version;
+			this.lastVerified = lastVerified;
+		}
+	}
+	protected volatile Cache<Serializable, CachedSession> localSessions;
+
+	protected final AtomicLong dbReads = new AtomicLong();
+	protected final AtomicLong localReads = new AtomicLong();
+	protected final AtomicLong versionChecks = new AtomicLong();
+	protected final AtomicLong fullWrites = new AtomicLong();
+	protected final AtomicLong accessTimeWrites = new AtomicLong();
+	protected final AtomicLong skippedWrites = new AtomicLong();
 	
 	@Inject
 	public MongoDbSessionDao(final IServiceContext service_context){
+		this(service_context, new SessionDb(service_context));
+	}
+
+	/**
+	 * @param service_context
+	 * @param sessionDb - where the sessions are stored (eg so tests can wrap it)
+	 */
+	public MongoDbSessionDao(final IServiceContext service_context, final SessionDb sessionDb){
+		this(service_context, sessionDb, Ticker.systemTicker());
+	}
+
+	/**
+	 * @param service_context
+	 * @param sessionDb - where the sessions are stored (eg so tests can wrap it)
+	 * @param ticker - the local session cache's time source (eg so tests can control its expiry)
+	 */
+	public MongoDbSessionDao(final IServiceContext service_context, final SessionDb sessionDb, final Ticker ticker){
 		super();
 		_context = service_context;
-		this.sessionDb = new SessionDb(service_context);
+		this.sessionDb = sessionDb;
+		this.ticker = ticker;
+		this.localSessions = createLocalSessionCache(maxCachedSessions, sessionTimeoutMs, ticker);
 	}
 	
     @Override
     protected Serializable doCreate(Session session) {
         Serializable sessionId = generateSessionId(session);
         assignSessionId(session, sessionId);
-        sessionDb.store(session);
+        storeSession(session, sessionDb.getContentHash(session));
         return session.getId();
     }
     @Override
@@ -40,15 +128,203 @@ public class  MongoDbSessionDao extends CachingSessionDAO {
         if(session instanceof ValidatingSession && !((ValidatingSession)session).isValid()) {
             return; 
         }
-        sessionDb.store(session);
+        final long contentHash = sessionDb.getContentHash(session);
+        final WriteState state = writeStates.getIfPresent(session.getId());
+        if ((null == state) || (state.contentHash != contentHash)) {
+        	storeSession(session, contentHash);
+        }
+        else if ((session.getLastAccessTime().getTime() - state.persistedAccessTime) >= lastAccessWriteWindowMs) {
+        	if (sessionDb.updateLastAccessTime(session.getId().toString(), session.getLastAccessTime())) {
+        		accessTimeWrites.incrementAndGet();
+        		writeStates.put(session.getId(), new WriteState(contentHash, session.getLastAccessTime().getTime()));
+        	}
+        	else { // (eg deleted by another node - just write it back)
+        		storeSession(session, contentHash);
+        	}
+        }
+        else {
+        	skippedWrites.incrementAndGet();
+        }
     }
     @Override
     protected void doDelete(Session session) {
+        writeStates.invalidate(session.getId());
+        localSessions.invalidate(session.getId());
         sessionDb.delete(session.getId().toString());
     }
+    /**
+     * Overridden so that reads always go through the version checked local cache: CachingSessionDAO would otherwise return
+     * whatever is in Shiro's active sessions cache (if a CacheManager is set), without ever seeing changes made on other nodes
+     */
+    @Override
+    public Session readSession(Serializable sessionId) throws UnknownSessionException {
+        final Session session = doReadSession(sessionId);
+        if (null == session) {
+        	throw new UnknownSessionException("There is no session with id [" + sessionId + "]");
+        }
+        return session;
+    }
     @Override
     protected Session doReadSession(Serializable sessionId) {
+        final long now = System.currentTimeMillis();
+        final CachedSession cached = localSessions.getIfPresent(sessionId);
+        if (null != cached) {
+        	if (isExpired(cached.session, now)) { // (another node might have kept it alive, so check the database)
+        		localSessions.invalidate(sessionId);
+        	}
+        	else if ((now - cached.lastVerified) < stalenessIntervalMs) {
+        		localReads.incrementAndGet();
+        		return cached.session;
+        	}
+        	else {
+        		versionChecks.incrementAndGet();
+        		final Optional<Tuple2<Long, Date>> stored = sessionDb.loadVersion(sessionId.toString());
+        		if (!stored.isPresent()) { // (deleted, eg logged out on another node)
+        			localSessions.invalidate(sessionId);
+        			writeStates.invalidate(sessionId);
+        			return null;
+        		}
+        		else if (stored.get()._1().longValue() == cached.version) {
+        			if (stored.get()._2().after(cached.session.getLastAccessTime()) && (cached.session instanceof SimpleSession)) { // (touched on another node)
+        				((SimpleSession)cached.session).setLastAccessTime(stored.get()._2());
+        			}
+        			cached.lastVerified = now;
+        			return cached.session;
+        		}
+        		localSessions.invalidate(sessionId);
+        	}
+        }
+        dbReads.incrementAndGet();
         Session session = (Session)sessionDb.loadById(sessionId.toString());
+        if (null != session) {
+        	final long contentHash = sessionDb.getContentHash(session);
+        	writeStates.put(session.getId(), new WriteState(contentHash, session.getLastAccessTime().getTime()));
+        	localSessions.put(session.getId(), new CachedSession(session, contentHash, now));
+        }
         return session;
     }
+
+    /**
+     * Whether a session has timed out, going by its last access time
+     * @param session
+     * @param now
+     * @return
+     */
+    protected static boolean isExpired(Session session, long now) {
+    	return (session.getTimeout() > 0) && ((now - session.getLastAccessTime().getTime()) >= session.getTimeout());
+    }
+
+    /**
+     * Creates the local session cache (entries not read for a session timeout are dropped anyway)
+     * @param maxCachedSessions
+     * @param sessionTimeoutMs
+     * @param ticker
+     * @return
+     */
+    protected static Cache<Serializable, CachedSession> createLocalSessionCache(long maxCachedSessions, long sessionTimeoutMs, Ticker ticker) {
+    	return CacheBuilder.newBuilder().maximumSize(maxCachedSessions)
+    			.expireAfterAccess(sessionTimeoutMs, TimeUnit.MILLISECONDS).ticker(ticker).build();
+    }
+
+    /**
+     * Writes out the whole session
+     * @param session
+     * @param contentHash
+     */
+    protected void storeSession(Session session, long contentHash) {
+        sessionDb.store(session);
+        fullWrites.incrementAndGet();
+        writeStates.put(session.getId(), new WriteState(contentHash, session.getLastAccessTime().getTime()));
+        localSessions.put(session.getId(), new CachedSession(session, contentHash, System.currentTimeMillis()));
+    }
+
+	/**
+	 * Sets the minimum time between last access time writes for a session (touches within the window aren't persisted, see the class comment)
+	 * @param lastAccessWriteWindowMs
+	 */
+	public void setLastAccessWriteWindowMs(long lastAccessWriteWindowMs) {
+		this.lastAccessWriteWindowMs = lastAccessWriteWindowMs;
+	}
+
+	public long getLastAccessWriteWindowMs() {
+		return lastAccessWriteWindowMs;
+	}
+
+	/**
+	 * Sets how long a locally cached session is used without checking its version in the database, ie how long changes made
+	 * on other nodes (eg logouts) can take to be seen here
+	 * @param stalenessIntervalMs
+	 */
+	public void setStalenessIntervalMs(long stalenessIntervalMs) {
+		this.stalenessIntervalMs = stalenessIntervalMs;
+	}
+
+	public long getStalenessIntervalMs() {
+		return stalenessIntervalMs;
+	}
+
+	/**
+	 * Sets the maximum number of locally cached sessions (clears the cache)
+	 * @param maxCachedSessions
+	 */
+	public void setMaxCachedSessions(long maxCachedSessions) {
+		this.maxCachedSessions = maxCachedSessions;
+		this.localSessions = createLocalSessionCache(maxCachedSessions, sessionTimeoutMs, ticker);
+	}
+
+	/**
+	 * Sets the session timeout, ie how long a locally cached session can go unread before it's dropped - should match the
+	 * session manager's (global) session timeout (clears the cache)
+	 * @param sessionTimeoutMs
+	 */
+	public void setSessionTimeoutMs(long sessionTimeoutMs) {
+		this.sessionTimeoutMs = sessionTimeoutMs;
+		this.localSessions = createLocalSessionCache(maxCachedSessions, sessionTimeoutMs, ticker);
+	}
+
+	public long getSessionTimeoutMs() {
+		return sessionTimeoutMs;
+	}
+
+	/**
+	 * @return the number of times a whole session has been read from the database
+	 */
+	public long getDbReads() {
+		return dbReads.get();
+	}
+
+	/**
+	 * @return the number of times a locally cached session has been used without going to the database
+	 */
+	public long getLocalReads() {
+		return localReads.get();
+	}
+
+	/**
+	 * @return the number of times a locally cached session's version has been checked against the database
+	 */
+	public long getVersionChecks() {
+		return versionChecks.get();
+	}
+
+	/**
+	 * @return the number of times a whole session has been written
+	 */
+	public long getFullWrites() {
+		return fullWrites.get();
+	}
+
+	/**
+	 * @return the number of times just the last access time of a session has been written
+	 */
+	public long getAccessTimeWrites() {
+		return accessTimeWrites.get();
+	}
+
+	/**
+	 * @return the number of updates that didn't need writing
+	 */
+	public long getSkippedWrites() {
+		return skippedWrites.get();
+	}
 }
@@ -18,19 +18,31 @@ package com.ikanow.aleph2.security.service;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.shiro.cache.MemoryConstrainedCacheManager;
 import org.apache.shiro.session.Session;
+import org.apache.shiro.session.UnknownSessionException;
+import org.apache.shiro.session.mgt.SimpleSession;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Ticker;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
@@ -38,6 +50,7 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.ISecurityService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils;
 import com.ikanow.aleph2.security.db.SessionDb;
+import com.ikanow.aleph2.security.shiro.MongoDbSessionDao;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigValueFactory;
@@ -113,4 +126,207 @@ public class IkanowV2SecurityServiceTest  extends MockDbBasedTest{
 		
 	}
 	
+	@Test
+	public void testSessionDaoWriteCoalescing(){
+		final int numTouches = 10000;
+		CountingSessionDb sessionDb = new CountingSessionDb(_service_context);
+
+		// Old behavior: every touch re-writes the whole session
+		SimpleSession legacySession = new SimpleSession("localhost");
+		legacySession.setId("legacy123");
+		legacySession.setAttribute("currentUser", "doesnotexist@ikanow.com");
+		legacySession.setAttribute("loginTime", new Date());
+		for (int i = 0; i < numTouches; ++i) {
+			legacySession.touch();
+			sessionDb.store(legacySession);
+		}
+		final long legacyBytes = sessionDb.bytesWritten.get();
+		sessionDb.delete("legacy123");
+
+		// New behavior: touches are coalesced
+		CountingSessionDb daoSessionDb = new CountingSessionDb(_service_context);
+		MongoDbSessionDao sessionDao = new MongoDbSessionDao(_service_context, daoSessionDb);
+		SimpleSession session = new SimpleSession("localhost");
+		session.setAttribute("currentUser", "doesnotexist@ikanow.com");
+		session.setAttribute("loginTime", new Date());
+		sessionDao.create(session);
+		for (int i = 0; i < numTouches; ++i) {
+			session.touch();
+			sessionDao.update(session);
+		}
+		assertEquals(1L, sessionDao.getFullWrites());
+		assertEquals(numTouches, sessionDao.getAccessTimeWrites() + sessionDao.getSkippedWrites());
+		assertTrue(sessionDao.getAccessTimeWrites() + sessionDao.getFullWrites() < numTouches/100);
+		assertTrue("Bytes written: "+daoSessionDb.bytesWritten.get()+" vs "+legacyBytes, daoSessionDb.bytesWritten.get() < legacyBytes/100);
+
+
+		// Outside the window the last access time is written on its own (a lot less than the whole session)
+		final long bytesBeforeTouch = daoSessionDb.bytesWritten.get();
+		sessionDao.setLastAccessWriteWindowMs(0L);
+		session.touch();
+		sessionDao.update(session);
+		assertEquals(1L, sessionDao.getFullWrites());
+		assertTrue(daoSessionDb.bytesWritten.get() - bytesBeforeTouch < legacyBytes/numTouches);
+		Session stored = (Session)sessionDb.loadById(session.getId().toString());
+		assertEquals(session.getLastAccessTime(), stored.getLastAccessTime());
+		assertEquals("doesnotexist@ikanow.com", stored.getAttribute("currentUser"));
+		assertEquals(session.getAttribute("loginTime"), stored.getAttribute("loginTime"));
+
+		// Content changes are always written in full
+		sessionDao.setLastAccessWriteWindowMs(MongoDbSessionDao.DEFAULT_LAST_ACCESS_WRITE_WINDOW_MS);
+		session.setAttribute("currentUser", "someoneelse@ikanow.com");
+		sessionDao.update(session);
+		assertEquals(2L, sessionDao.getFullWrites());
+		stored = (Session)sessionDb.loadById(session.getId().toString());
+		assertEquals("someoneelse@ikanow.com", stored.getAttribute("currentUser"));
+
+		sessionDao.delete(session);
+		assertNull(sessionDb.loadById(session.getId().toString()));
+	}
+
+	@Ignore // (profiling only - timings depend on the machine, so this isn't run as part of the build)
+	@Test
+	public void testSessionDaoTouchLatency(){
+		final int numTouches = 10000;
+		SessionDb sessionDb = new SessionDb(_service_context);
+
+		for (int run = 0; run < 2; ++run) { // (first run is warm up)
+			// Old behavior: every touch re-writes the whole session
+			SimpleSession legacySession = new SimpleSession("localhost");
+			legacySession.setId("legacy123");
+			legacySession.setAttribute("currentUser", "doesnotexist@ikanow.com");
+			legacySession.setAttribute("loginTime", new Date());
+			final long legacyStart = System.nanoTime();
+			for (int i = 0; i < numTouches; ++i) {
+				legacySession.touch();
+				sessionDb.store(legacySession);
+			}
+			final long legacyNanos = System.nanoTime() - legacyStart;
+			sessionDb.delete("legacy123");
+
+			// New behavior: touches are coalesced
+			MongoDbSessionDao sessionDao = new MongoDbSessionDao(_service_context);
+			SimpleSession session = new SimpleSession("localhost");
+			session.setAttribute("currentUser", "doesnotexist@ikanow.com");
+			session.setAttribute("loginTime", new Date());
+			sessionDao.create(session);
+			final long start = System.nanoTime();
+			for (int i = 0; i < numTouches; ++i) {
+				session.touch();
+				sessionDao.update(session);
+			}
+			final long nanos = System.nanoTime() - start;
+			sessionDao.delete(session);
+
+			if (run > 0) {
+				assertTrue("Mean touch latency: legacy=" + legacyNanos/numTouches + "ns current=" + nanos/numTouches + "ns", nanos < legacyNanos);
+			}
+		}
+	}
+
+	@Test
+	public void testSessionDaoLocalCache(){
+		final int numReads = 1000;
+		// two nodes sharing the same session store
+		MongoDbSessionDao sessionDaoA = new MongoDbSessionDao(_service_context);
+		MongoDbSessionDao sessionDaoB = new MongoDbSessionDao(_service_context);
+		sessionDaoB.setCacheManager(new MemoryConstrainedCacheManager()); // (Shiro's active sessions cache mustn't bypass the version checks)
+		sessionDaoB.setStalenessIntervalMs(60000L);
+
+		SimpleSession session = new SimpleSession("localhost");
+		session.setAttribute("currentUser", "doesnotexist@ikanow.com");
+		Serializable sessionId = sessionDaoA.create(session);
+
+		for (int i = 0; i < numReads; ++i) {
+			Session read = sessionDaoB.readSession(sessionId);
+			assertEquals("doesnotexist@ikanow.com", read.getAttribute("currentUser"));
+		}
+		assertEquals(1L, sessionDaoB.getDbReads());
+		assertEquals(numReads - 1L, sessionDaoB.getLocalReads());
+
+		// Changes on the other node are seen once the cached copy is stale
+		session.setAttribute("currentUser", "someoneelse@ikanow.com");
+		sessionDaoA.update(session);
+		assertEquals("doesnotexist@ikanow.com", sessionDaoB.readSession(sessionId).getAttribute("currentUser"));
+		sessionDaoB.setStalenessIntervalMs(0L);
+		assertEquals("someoneelse@ikanow.com", sessionDaoB.readSession(sessionId).getAttribute("currentUser"));
+		assertEquals(2L, sessionDaoB.getDbReads());
+		assertEquals(1L, sessionDaoB.getVersionChecks());
+
+		// Unchanged sessions just need a version check
+		sessionDaoB.readSession(sessionId);
+		assertEquals(2L, sessionDaoB.getDbReads());
+		assertEquals(2L, sessionDaoB.getVersionChecks());
+
+		// Logout on the other node
+		sessionDaoA.delete(session);
+		try {
+			sessionDaoB.readSession(sessionId);
+			fail("Session should have been invalidated");
+		}
+		catch (UnknownSessionException e) {
+		}
+		assertEquals(3L, sessionDaoB.getVersionChecks());
+	}
+
+	@Test
+	public void testSessionDaoLocalCacheTimeout(){
+		final AtomicLong nanos = new AtomicLong(0L);
+		final Ticker testTicker = new Ticker() {
+			@Override
+			public long read() {
+				return nanos.get();
+			}
+		};
+		MongoDbSessionDao sessionDaoA = new MongoDbSessionDao(_service_context);
+		MongoDbSessionDao sessionDaoB = new MongoDbSessionDao(_service_context, new SessionDb(_service_context), testTicker);
+		sessionDaoB.setStalenessIntervalMs(60000L);
+		sessionDaoB.setSessionTimeoutMs(1000L);
+		assertEquals(1000L, sessionDaoB.getSessionTimeoutMs());
+
+		SimpleSession session = new SimpleSession("localhost");
+		session.setAttribute("currentUser", "doesnotexist@ikanow.com");
+		Serializable sessionId = sessionDaoA.create(session);
+
+		sessionDaoB.readSession(sessionId);
+		sessionDaoB.readSession(sessionId);
+		assertEquals(1L, sessionDaoB.getDbReads());
+		assertEquals(1L, sessionDaoB.getLocalReads());
+
+		// Not read for longer than the configured session timeout: dropped from the local cache (the session itself is still valid)
+		nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1001L));
+		assertEquals("doesnotexist@ikanow.com", sessionDaoB.readSession(sessionId).getAttribute("currentUser"));
+		assertEquals(2L, sessionDaoB.getDbReads());
+		assertEquals(1L, sessionDaoB.getLocalReads());
+
+		sessionDaoA.delete(session);
+	}
+
+	/**
+	 * Counts the (approximate, ie as JSON) number of bytes of session data written
+	 */
+	public static class CountingSessionDb extends SessionDb {
+		protected final AtomicLong bytesWritten = new AtomicLong();
+
+		public CountingSessionDb(final IServiceContext service_context) {
+			super(service_context);
+		}
+
+		@Override
+		public JsonNode store(Object session) {
+			final JsonNode js = super.store(session);
+			bytesWritten.addAndGet(getSize(js));
+			return js;
+		}
+
+		@Override
+		public boolean updateLastAccessTime(Object id, Date lastAccessTime) {
+			bytesWritten.addAndGet(getSize(_mapper.createObjectNode().put(LAST_ACCESS_TIME, lastAccessTime.getTime())));
+			return super.updateLastAccessTime(id, lastAccessTime);
+		}
+
+		protected static long getSize(JsonNode js) {
+			return (null == js) ? 0L : js.toString().getBytes(StandardCharsets.UTF_8).length;
+		}
+	}
 }